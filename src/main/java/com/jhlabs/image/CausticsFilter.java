@@ -228,7 +228,7 @@ public class CausticsFilter extends WholeImageFilter {
         final int outWidth = transformedSpace.width;
         final int outHeight = transformedSpace.height;
         int index = 0;
-        final int[] pixels = new int[outWidth * outHeight];
+        final int[] pixels = createOutPixels(outWidth * outHeight);
 
         for (int y = 0; y < outHeight; y++) {
             for (int x = 0; x < outWidth; x++) {
@@ -608,7 +608,7 @@ public class CellularFilter extends WholeImageFilter implements Function2D, Clon
 //		max = minmax[1];
 
 
-        final int[] outPixels = new int[width * height];
+        final int[] outPixels = createOutPixels(width * height);
 
         boolean multiThreaded = true;
         if(multiThreaded) {
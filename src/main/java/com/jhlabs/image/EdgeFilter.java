@@ -91,7 +91,7 @@ public class EdgeFilter extends WholeImageFilter {
 	@Override
     protected int[] filterPixels( int width, int height, int[] inPixels, Rectangle transformedSpace ) {
 		int index = 0;
-		int[] outPixels = new int[width * height];
+		int[] outPixels = createOutPixels(width * height);
 
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
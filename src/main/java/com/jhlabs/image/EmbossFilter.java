@@ -67,7 +67,7 @@ public class EmbossFilter extends WholeImageFilter {
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
         int index = 0;
-        int[] outPixels = new int[width * height];
+        int[] outPixels = createOutPixels(width * height);
 
         int[] bumpPixels;
         int bumpMapWidth, bumpMapHeight;
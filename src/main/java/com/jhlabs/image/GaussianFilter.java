@@ -17,6 +17,7 @@ limitations under the License.
 package com.jhlabs.image;
 
 import pixelitor.ThreadPool;
+import pixelitor.utils.BufferPool;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.Kernel;
@@ -88,21 +89,27 @@ public class GaussianFilter extends ConvolveFilter {
             dst = createCompatibleDestImage(src, null);
         }
 
-        int[] inPixels = new int[width * height];
-        int[] outPixels = new int[width * height];
-
-
-//        src.getRGB(0, 0, width, height, inPixels, 0, width);
-//        int[] inPixels = ImageUtils.getPixelsAsArray( src);
-        getRGB(src, 0, 0, width, height, inPixels);
+        int[] inPixels = BufferPool.borrowInts(width * height);
+        int[] outPixels = null;
+        try {
+            outPixels = BufferPool.borrowInts(width * height);
+//            src.getRGB(0, 0, width, height, inPixels, 0, width);
+//            int[] inPixels = ImageUtils.getPixelsAsArray( src);
+            getRGB(src, 0, 0, width, height, inPixels);
+
+            if (radius > 0) {
+                convolveAndTranspose(kernel, inPixels, outPixels, width, height, alpha, alpha && premultiplyAlpha, false, CLAMP_EDGES);
+                convolveAndTranspose(kernel, outPixels, inPixels, height, width, alpha, false, alpha && premultiplyAlpha, CLAMP_EDGES);
+            }
 
-        if (radius > 0) {
-            convolveAndTranspose(kernel, inPixels, outPixels, width, height, alpha, alpha && premultiplyAlpha, false, CLAMP_EDGES);
-            convolveAndTranspose(kernel, outPixels, inPixels, height, width, alpha, false, alpha && premultiplyAlpha, CLAMP_EDGES);
+//            dst.setRGB(0, 0, width, height, inPixels, 0, width);
+            setRGB(dst, 0, 0, width, height, inPixels);
+        } finally {
+            BufferPool.returnInts(inPixels);
+            if (outPixels != null) {
+                BufferPool.returnInts(outPixels);
+            }
         }
-
-//        dst.setRGB(0, 0, width, height, inPixels, 0, width);
-        setRGB(dst, 0, 0, width, height, inPixels);
         return dst;
     }
 
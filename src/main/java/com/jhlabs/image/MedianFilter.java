@@ -74,7 +74,7 @@ public class MedianFilter extends WholeImageFilter {
 		int[] r = new int[9];
 		int[] g = new int[9];
 		int[] b = new int[9];
-		int[] outPixels = new int[width * height];
+		int[] outPixels = createOutPixels(width * height);
 
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
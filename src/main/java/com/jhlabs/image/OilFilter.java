@@ -68,7 +68,7 @@ public class OilFilter extends WholeImageFilter {
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
+        int[] outPixels = createOutPixels(width * height);
 
 //        for (int y = 0; y < height; y++) {
 //            calculateLine(width, height, inPixels, outPixels, y);
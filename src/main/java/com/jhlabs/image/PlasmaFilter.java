@@ -251,7 +251,7 @@ public class PlasmaFilter extends WholeImageFilter {
 
 	@Override
     protected int[] filterPixels( int width, int height, int[] inPixels, Rectangle transformedSpace ) {
-		int[] outPixels = new int[width * height];
+		int[] outPixels = createOutPixels(width * height);
 
 		random.setSeed(seed);
 
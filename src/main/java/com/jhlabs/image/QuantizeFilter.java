@@ -173,7 +173,7 @@ public class QuantizeFilter extends WholeImageFilter {
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
+        int[] outPixels = createOutPixels(width * height);
 
         quantize(inPixels, outPixels, width, height, numColors, dither, serpentine);
 
@@ -129,7 +129,7 @@ public class SmearFilter extends WholeImageFilter {
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
+        int[] outPixels = createOutPixels(width * height);
 
 //        randomGenerator.setSeed(seed);
 
@@ -16,6 +16,8 @@ limitations under the License.
 
 package com.jhlabs.image;
 
+import pixelitor.utils.BufferPool;
+
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
@@ -59,9 +61,19 @@ public abstract class WholeImageFilter extends AbstractBufferedImageOp {
         }
 //		WritableRaster dstRaster = dst.getRaster();
 
-        int[] inPixels = getRGB(src, 0, 0, width, height, null);
-        inPixels = filterPixels(width, height, inPixels, transformedSpace);
-        setRGB(dst, 0, 0, transformedSpace.width, transformedSpace.height, inPixels);
+        int[] inPixels = BufferPool.borrowInts(width * height);
+        int[] outPixels = null;
+        try {
+            getRGB(src, 0, 0, width, height, inPixels);
+            outPixels = filterPixels(width, height, inPixels, transformedSpace);
+            setRGB(dst, 0, 0, transformedSpace.width, transformedSpace.height, outPixels);
+        } finally {
+            BufferPool.returnInts(inPixels);
+            // the pool ignores the output arrays that were not borrowed from it
+            if (outPixels != null && outPixels != inPixels) {
+                BufferPool.returnInts(outPixels);
+            }
+        }
 
         return dst;
     }
@@ -74,6 +86,15 @@ public abstract class WholeImageFilter extends AbstractBufferedImageOp {
     protected void transformSpace(Rectangle rect) {
     }
 
+    /**
+     * Returns a cleared output array from the buffer pool.
+     * The subclasses can use this for the arrays they return
+     * from filterPixels, because those are returned to the pool.
+     */
+    protected static int[] createOutPixels(int length) {
+        return BufferPool.borrowInts(length);
+    }
+
     /**
      * Actually filter the pixels.
      *
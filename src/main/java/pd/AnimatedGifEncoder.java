@@ -3,6 +3,14 @@ package pd;
 import java.io.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class AnimatedGifEncoder - Encodes a GIF file consisting of one or more
@@ -18,6 +26,10 @@ import java.awt.image.*;
  *     e.finish();
  * </pre>
  *
+ * The frames can be quantized and compressed by several threads (see
+ * <code>setNumThreads</code>), and only the changed part of each frame
+ * needs to be encoded (see <code>setFrameDifferencing</code>).
+ *
  * No copyright asserted on the source code of this class. May be used for any
  * purpose, however, refer to the Unisys LZW patent for restrictions on use of
  * the associated LZWEncoder class. Please forward any corrections to
@@ -36,8 +48,6 @@ public class AnimatedGifEncoder {
 
     protected Color transparent = null; // transparent color if given
 
-    protected int transIndex; // transparent index in color table
-
     protected int repeat = -1; // no repeat
 
     protected int delay = 0; // frame delay (hundredths)
@@ -46,17 +56,7 @@ public class AnimatedGifEncoder {
 
     protected OutputStream out;
 
-    protected BufferedImage image; // current frame
-
-    protected byte[] pixels; // BGR byte array from frame
-
-    protected byte[] indexedPixels; // converted frame indexed to palette
-
-    protected int colorDepth; // number of bit planes
-
-    protected byte[] colorTab; // RGB palette
-
-    protected boolean[] usedEntry = new boolean[256]; // active palette entries
+    protected int colorDepth = 8; // number of bit planes
 
     protected int palSize = 7; // color table size (bits-1)
 
@@ -69,6 +69,22 @@ public class AnimatedGifEncoder {
     protected boolean sizeSet = false; // if false, get size from first frame
 
     protected int sample = 10; // default sample interval for quantizer
+
+    protected int numThreads = 1; // number of threads encoding the frames
+
+    protected boolean frameDifferencing = false; // encode only the changed pixels
+
+    protected Palette globalPalette = null; // used by all frames if set
+
+    protected byte[] prevPixels; // BGR pixels of the previous frame
+
+    private ExecutorService executor;
+
+    // the frames being encoded, in the order they were added
+    private final Deque<Future<EncodedFrame>> pendingFrames = new ArrayDeque<>();
+
+    private boolean writeFailed = false;
+
     private File file;
 
     /**
@@ -85,7 +101,7 @@ public class AnimatedGifEncoder {
     /**
      * Sets the GIF frame disposal code for the last added frame and any
      * subsequent frames. Default is 0 if no transparent color has been set,
-     * otherwise 2.
+     * otherwise 2. With frame differencing the default is 1.
      *
      * @param code
      *          int disposal code.
@@ -116,7 +132,8 @@ public class AnimatedGifEncoder {
      * frames. Since all colors are subject to modification in the quantization
      * process, the color in the final palette for each frame closest to the given
      * color becomes the transparent color for that frame. May be set to null to
-     * indicate no transparent color.
+     * indicate no transparent color. Frame differencing is not used while a
+     * transparent color is set.
      *
      * @param c
      *          Color to be treated as transparent on display.
@@ -125,6 +142,67 @@ public class AnimatedGifEncoder {
         transparent = c;
     }
 
+    /**
+     * Sets the number of threads that quantize and compress the frames. The
+     * frames are still written in the order they were added. Default is 1,
+     * which encodes each frame in the thread adding it. Must be invoked before
+     * the first image is added.
+     *
+     * @param n
+     *          int number of threads.
+     */
+    public void setNumThreads(int n) {
+        if (!firstFrame || !pendingFrames.isEmpty()) {
+            return;
+        }
+        numThreads = Math.max(1, n);
+    }
+
+    /**
+     * If set, only the bounding rectangle of the pixels that changed since the
+     * previous frame is encoded, and the unchanged pixels within it are
+     * transparent. Makes the files of animations with static areas much
+     * smaller. Must be invoked before the first image is added.
+     *
+     * @param b
+     *          true to encode only the changes.
+     */
+    public void setFrameDifferencing(boolean b) {
+        if (!firstFrame || !pendingFrames.isEmpty()) {
+            return;
+        }
+        frameDifferencing = b;
+    }
+
+    /**
+     * Computes one color table from the given sample frames, which is then used
+     * for all frames instead of a separate color table for each frame. This
+     * avoids the flickering of the colors between the frames and makes the
+     * file smaller. Must be invoked before the first image is added.
+     *
+     * @param sampleFrames
+     *          the frames that represent the colors of the animation.
+     */
+    public void setGlobalPalette(List<BufferedImage> sampleFrames) {
+        if (!firstFrame || !pendingFrames.isEmpty() || sampleFrames.isEmpty()) {
+            return;
+        }
+        // every n-th pixel of n frames is about the size of one frame
+        int step = sampleFrames.size();
+        ByteArrayOutputStream samples = new ByteArrayOutputStream();
+        for (BufferedImage frame : sampleFrames) {
+            byte[] pixels = getImagePixels(frame, frame.getWidth(), frame.getHeight());
+            for (int i = 0; i < pixels.length; i += 3 * step) {
+                samples.write(pixels, i, 3);
+            }
+        }
+        byte[] samplePixels = samples.toByteArray();
+        if (samplePixels.length == 0) {
+            return;
+        }
+        globalPalette = new Palette(samplePixels, sample);
+    }
+
     /**
      * Adds next GIF frame. The frame is not written immediately, but is actually
      * deferred until the next frame is received so that timing data can be
@@ -140,35 +218,65 @@ public class AnimatedGifEncoder {
         if ((im == null) || !started) {
             return false;
         }
-        boolean ok = true;
-        try {
-            if (!sizeSet) {
-                // use first frame's size
-                setSize(im.getWidth(), im.getHeight());
+        if (!sizeSet) {
+            // use first frame's size
+            setSize(im.getWidth(), im.getHeight());
+        }
+        if (numThreads > 1 && executor == null) {
+            executor = Executors.newFixedThreadPool(numThreads, r -> {
+                Thread thread = new Thread(r, "GIF Encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (frameDifferencing && globalPalette != null && globalPalette.transIndex < 0) {
+            globalPalette.reserveTransparentIndex();
+        }
+
+        byte[] pixels = getImagePixels(im, width, height);
+        byte[] prev = (transparent == null) ? prevPixels : null;
+        prevPixels = frameDifferencing ? pixels : null;
+
+        // the current settings apply to this frame
+        int frameDelay = delay;
+        int frameDispose = dispose;
+        Color frameTransparent = transparent;
+        Callable<EncodedFrame> task = () -> encodeFrame(pixels, prev, frameDelay, frameDispose, frameTransparent);
+
+        if (executor == null) {
+            try {
+                writeFrame(task.call());
+            } catch (Exception e) {
+                writeFailed = true;
             }
-            image = im;
-            getImagePixels(); // convert to correct format if necessary
-            analyzePixels(); // build color table & map pixels
-            if (firstFrame) {
-                writeLSD(); // logical screen descriptior
-                writePalette(); // global color table
-                if (repeat >= 0) {
-                    // use NS app extension to indicate reps
-                    writeNetscapeExt();
+        } else {
+            pendingFrames.add(executor.submit(task));
+            // limits the number of frames held in memory
+            writeFinishedFrames(2 * numThreads);
+        }
+        return !writeFailed;
+    }
+
+    /**
+     * Writes the encoded frames at the head of the queue, waiting
+     * for them if there are more pending frames than allowed
+     */
+    private void writeFinishedFrames(int maxPending) {
+        while (!pendingFrames.isEmpty()
+                && (pendingFrames.size() > maxPending || pendingFrames.peek().isDone())) {
+            Future<EncodedFrame> future = pendingFrames.poll();
+            try {
+                EncodedFrame frame = future.get();
+                if (!writeFailed) {
+                    writeFrame(frame);
                 }
+            } catch (IOException | ExecutionException e) {
+                writeFailed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                writeFailed = true;
             }
-            writeGraphicCtrlExt(); // write graphic control extension
-            writeImageDesc(); // image descriptor
-            if (!firstFrame) {
-                writePalette(); // local color table
-            }
-            writePixels(); // encode and write pixel data
-            firstFrame = false;
-        } catch (IOException e) {
-            ok = false;
         }
-
-        return ok;
     }
 
     /**
@@ -178,7 +286,8 @@ public class AnimatedGifEncoder {
     public boolean finish() {
         if (!started)
             return false;
-        boolean ok = true;
+        writeFinishedFrames(0);
+        boolean ok = !writeFailed;
         started = false;
         try {
             out.write(0x3b); // gif trailer
@@ -191,20 +300,26 @@ public class AnimatedGifEncoder {
         }
 
         // reset for subsequent use
-        transIndex = 0;
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
         out = null;
-        image = null;
-        pixels = null;
-        indexedPixels = null;
-        colorTab = null;
+        prevPixels = null;
         closeStream = false;
         firstFrame = true;
+        writeFailed = false;
 
         return ok;
     }
 
     public void cancel() {
-        if (finish()) {
+        for (Future<EncodedFrame> future : pendingFrames) {
+            future.cancel(true);
+        }
+        pendingFrames.clear();
+        finish();
+        if (file != null) {
             file.delete();
         }
     }
@@ -303,45 +418,141 @@ public class AnimatedGifEncoder {
     }
 
     /**
-     * Analyzes image colors and creates color map.
+     * Quantizes and compresses a frame. Called from the encoding threads,
+     * so it only reads the settings that can't change after the first frame.
+     *
+     * @param pixels
+     *          the BGR pixels of the frame.
+     * @param prev
+     *          the BGR pixels of the previous frame, or null if the
+     *          whole frame has to be encoded.
      */
-    protected void analyzePixels() {
-        int len = pixels.length;
-        int nPix = len / 3;
-        indexedPixels = new byte[nPix];
-        NeuQuant nq = new NeuQuant(pixels, len, sample);
-        // initialize quantizer
-        colorTab = nq.process(); // create reduced palette
-        // convert map from BGR to RGB
-        for (int i = 0; i < colorTab.length; i += 3) {
-            byte temp = colorTab[i];
-            colorTab[i] = colorTab[i + 2];
-            colorTab[i + 2] = temp;
-            usedEntry[i / 3] = false;
+    protected EncodedFrame encodeFrame(byte[] pixels, byte[] prev, int frameDelay,
+                                       int frameDispose, Color frameTransparent) throws IOException {
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        boolean nothingChanged = false;
+        if (prev != null) {
+            Rectangle changed = findChangedBounds(pixels, prev);
+            if (changed == null) {
+                // a single transparent pixel keeps the timing of the frame
+                nothingChanged = true;
+                bounds = new Rectangle(0, 0, 1, 1);
+            } else {
+                bounds = changed;
+            }
+        }
+
+        Palette palette = globalPalette;
+        if (palette == null) {
+            palette = new Palette(crop(pixels, bounds), sample);
+            if (prev != null) {
+                palette.reserveTransparentIndex();
+            }
         }
-        // map image pixels to new palette
+
+        // map image pixels to the palette
+        byte[] indexedPixels = new byte[bounds.width * bounds.height];
+        boolean[] usedEntry = new boolean[256];
         int k = 0;
-        for (int i = 0; i < nPix; i++) {
-            int index = nq.map(pixels[k++] & 0xff, pixels[k++] & 0xff, pixels[k++] & 0xff);
-            usedEntry[index] = true;
-            indexedPixels[i] = (byte) index;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int i = 3 * (y * width + bounds.x);
+            for (int x = 0; x < bounds.width; x++, i += 3) {
+                int index;
+                if (prev != null && (nothingChanged || (pixels[i] == prev[i]
+                        && pixels[i + 1] == prev[i + 1] && pixels[i + 2] == prev[i + 2]))) {
+                    index = palette.transIndex;
+                } else {
+                    index = palette.map(pixels[i] & 0xff, pixels[i + 1] & 0xff, pixels[i + 2] & 0xff);
+                    usedEntry[index] = true;
+                }
+                indexedPixels[k++] = (byte) index;
+            }
         }
-        pixels = null;
-        colorDepth = 8;
-        palSize = 7;
-        // get closest match to transparent color if specified
-        if (transparent != null) {
-            transIndex = findClosest(transparent);
+
+        EncodedFrame frame = new EncodedFrame();
+        frame.bounds = bounds;
+        frame.colorTab = (palette == globalPalette) ? null : palette.colorTab;
+        frame.delay = frameDelay;
+        if (prev != null) {
+            frame.transIndex = palette.transIndex;
+            frame.transparent = true;
+            frame.dispose = 1; // leave the previous frame in place
+        } else if (frameTransparent != null) {
+            // get closest match to transparent color if specified
+            frame.transIndex = findClosest(palette.colorTab, usedEntry, frameTransparent);
+            frame.transparent = true;
+            frame.dispose = 2; // force clear if using transparent color
+        } else {
+            frame.dispose = frameDifferencing ? 1 : 0;
+        }
+        if (frameDispose >= 0) {
+            frame.dispose = frameDispose & 7; // user override
         }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(indexedPixels.length / 2 + 64);
+        new LZWEncoder(bounds.width, bounds.height, indexedPixels, colorDepth).encode(data);
+        frame.data = data.toByteArray();
+        return frame;
+    }
+
+    /**
+     * Returns the bounding rectangle of the pixels that differ
+     * between the two frames, or null if they are the same
+     */
+    protected Rectangle findChangedBounds(byte[] pixels, byte[] prev) {
+        int minX = width;
+        int maxX = -1;
+        int minY = -1;
+        int maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int rowStart = 3 * y * width;
+            int first = -1;
+            for (int i = rowStart, end = rowStart + 3 * width; i < end; i++) {
+                if (pixels[i] != prev[i]) {
+                    first = (i - rowStart) / 3;
+                    break;
+                }
+            }
+            if (first < 0) {
+                continue;
+            }
+            int last = first;
+            for (int i = rowStart + 3 * width - 1; i >= rowStart + 3 * first; i--) {
+                if (pixels[i] != prev[i]) {
+                    last = (i - rowStart) / 3;
+                    break;
+                }
+            }
+            if (minY < 0) {
+                minY = y;
+            }
+            maxY = y;
+            minX = Math.min(minX, first);
+            maxX = Math.max(maxX, last);
+        }
+        if (minY < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    private byte[] crop(byte[] pixels, Rectangle bounds) {
+        if (bounds.width == width && bounds.height == height) {
+            return pixels;
+        }
+        byte[] cropped = new byte[3 * bounds.width * bounds.height];
+        for (int y = 0; y < bounds.height; y++) {
+            System.arraycopy(pixels, 3 * ((bounds.y + y) * width + bounds.x),
+                    cropped, 3 * y * bounds.width, 3 * bounds.width);
+        }
+        return cropped;
     }
 
     /**
      * Returns index of palette color closest to c
      *
      */
-    protected int findClosest(Color c) {
-        if (colorTab == null)
-            return -1;
+    protected static int findClosest(byte[] colorTab, boolean[] usedEntry, Color c) {
         int r = c.getRed();
         int g = c.getGreen();
         int b = c.getBlue();
@@ -364,73 +575,86 @@ public class AnimatedGifEncoder {
     }
 
     /**
-     * Extracts image pixels into byte array "pixels"
+     * Extracts the image pixels into a new BGR byte array
+     * of the given size
      */
-    protected void getImagePixels() {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        int type = image.getType();
-        if ((w != width) || (h != height) || (type != BufferedImage.TYPE_3BYTE_BGR)) {
-            // create new image with right size/format
-            BufferedImage temp = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            Graphics2D g = temp.createGraphics();
-            g.drawImage(image, 0, 0, null);
-            image = temp;
+    protected static byte[] getImagePixels(BufferedImage image, int w, int h) {
+        if ((image.getWidth() == w) && (image.getHeight() == h)
+                && (image.getType() == BufferedImage.TYPE_3BYTE_BGR)
+                && (image.getRaster().getParent() == null)) {
+            return ((DataBufferByte) image.getRaster().getDataBuffer()).getData().clone();
         }
-        pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        // create new image with right size/format
+        BufferedImage temp = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = temp.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return ((DataBufferByte) temp.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Writes an encoded frame, preceded by the file
+     * header blocks if it is the first frame
+     */
+    protected void writeFrame(EncodedFrame frame) throws IOException {
+        if (firstFrame) {
+            writeLSD(); // logical screen descriptior
+            // global color table
+            writePalette(globalPalette != null ? globalPalette.colorTab : frame.colorTab);
+            if (repeat >= 0) {
+                // use NS app extension to indicate reps
+                writeNetscapeExt();
+            }
+        }
+        writeGraphicCtrlExt(frame); // write graphic control extension
+        boolean localPalette = !firstFrame && frame.colorTab != null;
+        writeImageDesc(frame, localPalette); // image descriptor
+        if (localPalette) {
+            writePalette(frame.colorTab); // local color table
+        }
+        out.write(frame.data); // compressed pixel data
+        firstFrame = false;
     }
 
     /**
      * Writes Graphic Control Extension
      */
-    protected void writeGraphicCtrlExt() throws IOException {
+    protected void writeGraphicCtrlExt(EncodedFrame frame) throws IOException {
         out.write(0x21); // extension introducer
         out.write(0xf9); // GCE label
         out.write(4); // data block size
-        int transp, disp;
-        if (transparent == null) {
-            transp = 0;
-            disp = 0; // dispose = no action
-        } else {
-            transp = 1;
-            disp = 2; // force clear if using transparent color
-        }
-        if (dispose >= 0) {
-            disp = dispose & 7; // user override
-        }
-        disp <<= 2;
 
         // packed fields
         out.write(0 | // 1:3 reserved
-                disp | // 4:6 disposal
+                (frame.dispose << 2) | // 4:6 disposal
                 0 | // 7 user input - 0 = none
-                transp); // 8 transparency flag
+                (frame.transparent ? 1 : 0)); // 8 transparency flag
 
-        writeShort(delay); // delay x 1/100 sec
-        out.write(transIndex); // transparent color index
+        writeShort(frame.delay); // delay x 1/100 sec
+        out.write(frame.transIndex); // transparent color index
         out.write(0); // block terminator
     }
 
     /**
      * Writes Image Descriptor
      */
-    protected void writeImageDesc() throws IOException {
+    protected void writeImageDesc(EncodedFrame frame, boolean localPalette) throws IOException {
         out.write(0x2c); // image separator
-        writeShort(0); // image position x,y = 0,0
-        writeShort(0);
-        writeShort(width); // image size
-        writeShort(height);
+        writeShort(frame.bounds.x); // image position x,y
+        writeShort(frame.bounds.y);
+        writeShort(frame.bounds.width); // image size
+        writeShort(frame.bounds.height);
         // packed fields
-        if (firstFrame) {
-            // no LCT - GCT is used for first (or only) frame
-            out.write(0);
-        } else {
+        if (localPalette) {
             // specify normal LCT
             out.write(0x80 | // 1 local color table 1=yes
                     0 | // 2 interlace - 0=no
                     0 | // 3 sorted - 0=no
                     0 | // 4-5 reserved
                     palSize); // 6-8 size of color table
+        } else {
+            // no LCT - GCT is used
+            out.write(0);
         }
     }
 
@@ -468,7 +692,7 @@ public class AnimatedGifEncoder {
     /**
      * Writes color table
      */
-    protected void writePalette() throws IOException {
+    protected void writePalette(byte[] colorTab) throws IOException {
         out.write(colorTab, 0, colorTab.length);
         int n = (3 * 256) - colorTab.length;
         for (int i = 0; i < n; i++) {
@@ -476,14 +700,6 @@ public class AnimatedGifEncoder {
         }
     }
 
-    /**
-     * Encodes and writes pixel data
-     */
-    protected void writePixels() throws IOException {
-        LZWEncoder encoder = new LZWEncoder(width, height, indexedPixels, colorDepth);
-        encoder.encode(out);
-    }
-
     /**
      * Write 16-bit value to output stream, LSB first
      */
@@ -500,6 +716,80 @@ public class AnimatedGifEncoder {
             out.write((byte) s.charAt(i));
         }
     }
+
+    /**
+     * A color table created by NeuQuant
+     */
+    protected static class Palette {
+        private final NeuQuant quantizer;
+
+        protected final byte[] colorTab; // RGB palette
+
+        protected int transIndex = -1; // reserved for the unchanged pixels
+
+        private int transReplacement; // used instead of the reserved index
+
+        protected Palette(byte[] bgrPixels, int sample) {
+            quantizer = new NeuQuant(bgrPixels, bgrPixels.length, sample);
+            colorTab = quantizer.process(); // create reduced palette
+            // convert map from BGR to RGB
+            for (int i = 0; i < colorTab.length; i += 3) {
+                byte temp = colorTab[i];
+                colorTab[i] = colorTab[i + 2];
+                colorTab[i + 2] = temp;
+            }
+        }
+
+        /**
+         * Frees up an index for the transparent pixels by merging
+         * the two most similar colors of the palette
+         */
+        protected void reserveTransparentIndex() {
+            int numColors = colorTab.length / 3;
+            int dmin = Integer.MAX_VALUE;
+            for (int i = 0; i < numColors; i++) {
+                for (int j = i + 1; j < numColors; j++) {
+                    int dr = (colorTab[3 * i] & 0xff) - (colorTab[3 * j] & 0xff);
+                    int dg = (colorTab[3 * i + 1] & 0xff) - (colorTab[3 * j + 1] & 0xff);
+                    int db = (colorTab[3 * i + 2] & 0xff) - (colorTab[3 * j + 2] & 0xff);
+                    int d = dr * dr + dg * dg + db * db;
+                    if (d < dmin) {
+                        dmin = d;
+                        transIndex = j;
+                        transReplacement = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the palette index for the given color. Safe to call
+         * from several threads after the palette was created.
+         */
+        protected int map(int b, int g, int r) {
+            int index = quantizer.map(b, g, r);
+            return (index == transIndex) ? transReplacement : index;
+        }
+    }
+
+    /**
+     * The compressed pixel data of a frame and the settings needed to write it
+     */
+    protected static class EncodedFrame {
+        protected Rectangle bounds;
+
+        protected byte[] colorTab; // null if the global palette is used
+
+        protected int transIndex;
+
+        protected boolean transparent;
+
+        protected int dispose;
+
+        protected int delay;
+
+        protected byte[] data;
+    }
 }
 
 /*
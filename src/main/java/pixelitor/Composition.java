@@ -17,6 +17,7 @@
 
 package pixelitor;
 
+import pixelitor.automate.macro.MacroRecorder;
 import pixelitor.filters.Filter;
 import pixelitor.filters.FilterUtils;
 import pixelitor.filters.RepeatLast;
@@ -34,25 +35,32 @@ import pixelitor.history.NotUndoableEdit;
 import pixelitor.history.PixelitorEdit;
 import pixelitor.history.SelectionChangeEdit;
 import pixelitor.history.TranslationEdit;
+import pixelitor.io.ImageProxy;
 import pixelitor.layers.ContentLayer;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
 import pixelitor.layers.LayerButton;
 import pixelitor.layers.LayerMask;
+import pixelitor.layers.LazyImage;
 import pixelitor.menus.SelectionActions;
 import pixelitor.selection.IgnoreSelection;
 import pixelitor.selection.Selection;
 import pixelitor.selection.SelectionInteraction;
 import pixelitor.selection.SelectionType;
+import pixelitor.utils.BufferPool;
 import pixelitor.utils.Dialogs;
 import pixelitor.utils.HistogramsPanel;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.MemoryManager;
 import pixelitor.utils.Messages;
+import pixelitor.utils.SwapFile;
 import pixelitor.utils.UpdateGUI;
 import pixelitor.utils.Utils;
 
+import javax.swing.*;
 import java.awt.Component;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
@@ -66,11 +74,15 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
 import static pixelitor.Composition.ImageChangeActions.FULL;
 import static pixelitor.Composition.ImageChangeActions.INVALIDATE_CACHE;
+import static pixelitor.Composition.ImageChangeActions.REPAINT;
 
 /**
  * An image composition consisting of multiple layers
@@ -93,11 +105,37 @@ public class Composition implements Serializable {
     //
     private transient File file;
     private transient boolean dirty = false;
+
+    // incremented at every change, a background save can
+    // mark the composition clean only if it didn't change
+    private transient int modificationCount = 0;
     private transient boolean compositeImageUpToDate = false;
     private transient BufferedImage cachedCompositeImage = null;
     private transient ImageDisplay ic;
+
+    // while true, the changes are only shown by repaintDeferredChanges
+    private transient volatile boolean repaintsDeferred = false;
+    private transient volatile boolean changedWhileDeferred = false;
     private transient Selection selection;
 
+    // not null only while the composition is hibernated
+    private transient volatile SwapFile swapFile;
+    private transient volatile BufferedImage hibernationProxy;
+
+    // true while the images are moved into or read back from the
+    // swap file by a background thread, the proxy is painted meanwhile
+    private transient volatile boolean swapping = false;
+    private transient volatile boolean wakeUpRequested = false;
+
+    // not null only while the layers of an opened file are decoded
+    private transient volatile BufferedImage loadingPreview;
+
+    // not null if this is a reduced-resolution working copy of a file
+    private transient ImageProxy proxy;
+
+    // true if the layers are created without their Swing components
+    private transient boolean withoutLayerGUI = false;
+
     // A Composition can be created either with one of the following static
     // factory methods or through deserialization (pxc)
 
@@ -105,11 +143,25 @@ public class Composition implements Serializable {
      * Creates a single-layered composition from the given image
      */
     public static Composition fromImage(BufferedImage img, File file, String name) {
+        return fromImage(img, file, name, false);
+    }
+
+    /**
+     * Creates a single-layered composition, whose layer has no Swing
+     * components, so that it can be written in a layered format
+     * outside the EDT, for example in batch processing
+     */
+    public static Composition fromImageWithoutGUI(BufferedImage img, String name) {
+        return fromImage(img, null, name, true);
+    }
+
+    private static Composition fromImage(BufferedImage img, File file, String name, boolean withoutLayerGUI) {
         assert img != null;
 
         img = ImageUtils.toCompatibleImage(img);
         Canvas canvas = new Canvas(img.getWidth(), img.getHeight());
         Composition comp = new Composition(canvas);
+        comp.withoutLayerGUI = withoutLayerGUI;
         comp.addBaseLayer(img);
 
         if (file != null) {
@@ -155,6 +207,10 @@ public class Composition implements Serializable {
         canvas.setIc(ic);
     }
 
+    public boolean createsLayerGUI() {
+        return !withoutLayerGUI;
+    }
+
     public boolean isEmpty() {
         return layerList.isEmpty();
     }
@@ -181,6 +237,13 @@ public class Composition implements Serializable {
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (dirty) {
+            modificationCount++;
+        }
+    }
+
+    public int getModificationCount() {
+        return modificationCount;
     }
 
     public boolean isDirty() {
@@ -257,7 +320,9 @@ public class Composition implements Serializable {
 
         layerList.add(newLayerIndex, newLayer);
         setActiveLayer(newLayer, AddToHistory.NO);
-        ic.addLayerToGUI(newLayer, newLayerIndex);
+        if (ic != null) {
+            ic.addLayerToGUI(newLayer, newLayerIndex);
+        }
 
         History.addEdit(addToHistory, () -> new NewLayerEdit(this, newLayer, activeLayerBefore, historyName));
 
@@ -349,8 +414,10 @@ public class Composition implements Serializable {
         }
 
         if (updateGUI.isYes()) {
-            LayerButton button = layerToBeDeleted.getUI().getLayerButton();
-            ic.deleteLayerButton(button);
+            if (ic != null) {
+                LayerButton button = layerToBeDeleted.getUI().getLayerButton();
+                ic.deleteLayerButton(button);
+            }
 
             if (isActiveComp()) {
                 AppLogic.activeCompLayerCountChanged(this, layerList.size());
@@ -365,9 +432,19 @@ public class Composition implements Serializable {
             Layer oldLayer = activeLayer;
             activeLayer = newActiveLayer;
 
+            if (layerList.contains(oldLayer)) {
+                // mostly transparent or very large layers are
+                // stored in packed form while they are not edited
+                packLayer(oldLayer);
+            }
+
             // notify UI
             activeLayer.activateUI();
-            AppLogic.activeLayerChanged(newActiveLayer);
+            if (ic != null) {
+                // compositions without a window (for example
+                // the ones processed by macros) don't affect the menus
+                AppLogic.activeLayerChanged(newActiveLayer);
+            }
 
             // notify history
             History.addEdit(addToHistory, () -> new LayerSelectionChangeEdit(this, oldLayer, newActiveLayer));
@@ -375,6 +452,158 @@ public class Composition implements Serializable {
         assert checkInvariant();
     }
 
+    /**
+     * Converts the mostly transparent image layers into sparse form, and
+     * moves the very large layers and masks out of the heap. The active
+     * layer is packed only if includeActive is true.
+     * Returns the number of freed bytes.
+     */
+    public long packLayers(boolean includeActive) {
+        long freed = 0;
+        for (Layer layer : layerList) {
+            if (includeActive || layer != activeLayer) {
+                freed += packLayer(layer);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Sets the flattened preview stored in the file, which is shown
+     * until the layers are decoded or something changes
+     */
+    public void setLoadingPreview(BufferedImage loadingPreview) {
+        this.loadingPreview = loadingPreview;
+    }
+
+    public boolean isLoading() {
+        return loadingPreview != null;
+    }
+
+    public ImageProxy getProxy() {
+        return proxy;
+    }
+
+    public void setProxy(ImageProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Records the filter for the proxy and for the macro
+     * recorder, if the filter added an edit
+     */
+    public void filterApplied(Filter filter, PixelitorEdit lastEditBefore) {
+        PixelitorEdit edit = History.getLastEdit();
+        if (edit == null || edit == lastEditBefore || edit.getComp() != this) {
+            return;
+        }
+        if (proxy != null) {
+            proxy.filterApplied(this, filter, edit);
+        }
+        MacroRecorder.filterApplied(filter);
+    }
+
+    public BufferedImage getLoadingPreview() {
+        return loadingPreview;
+    }
+
+    /**
+     * Decodes the lazily loaded layers and masks in parallel in the
+     * background, starting with the visible layers from the top.
+     * When everything is decoded, the real composite replaces the preview.
+     */
+    public void decodeLayersInBackground() {
+        List<ImageLayer> order = new ArrayList<>();
+        for (int pass = 0; pass < 2; pass++) {
+            boolean visibleLayers = pass == 0;
+            for (int i = layerList.size() - 1; i >= 0; i--) {
+                Layer layer = layerList.get(i);
+                if (layer.isVisible() != visibleLayers) {
+                    continue;
+                }
+                if (layer instanceof ImageLayer) {
+                    order.add((ImageLayer) layer);
+                }
+                if (layer.hasMask()) {
+                    order.add(layer.getMask());
+                }
+            }
+        }
+
+        Runnable loadingFinished = () -> {
+            if (loadingPreview != null) {
+                loadingPreview = null;
+                imageChanged(FULL);
+            }
+        };
+        if (order.isEmpty()) {
+            loadingFinished.run();
+            return;
+        }
+
+        AtomicInteger numRemaining = new AtomicInteger(order.size());
+        for (ImageLayer layer : order) {
+            LazyImage.runInBackground(() -> {
+                try {
+                    if (layer.decodeLazyPixels()) {
+                        SwingUtilities.invokeLater(layer::updateIconImage);
+                    }
+                } finally {
+                    if (numRemaining.decrementAndGet() == 0) {
+                        SwingUtilities.invokeLater(loadingFinished);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes the lazily loaded layers and masks in parallel and waits
+     * for the result, for example because the file will be overwritten
+     */
+    public void decodeLazyLayers() {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Layer layer : layerList) {
+            if (layer instanceof ImageLayer) {
+                ImageLayer imageLayer = (ImageLayer) layer;
+                futures.add(LazyImage.runInBackground(imageLayer::decodeLazyPixels));
+            }
+            if (layer.hasMask()) {
+                LayerMask mask = layer.getMask();
+                futures.add(LazyImage.runInBackground(mask::decodeLazyPixels));
+            }
+        }
+        ThreadPool.waitForFutures(futures.toArray(new Future<?>[0]));
+    }
+
+    private static long packLayer(Layer layer) {
+        long freed = 0;
+        if (layer instanceof ImageLayer) {
+            freed += ((ImageLayer) layer).pack();
+        }
+        if (layer.hasMask()) {
+            freed += layer.getMask().pack();
+        }
+        return freed;
+    }
+
+    /**
+     * Returns true if some layers or masks are stored out of the heap.
+     * The composite of such compositions is painted directly at the
+     * resolution of the view, without a canvas-sized composite image.
+     */
+    public boolean hasOutOfCoreLayers() {
+        for (Layer layer : layerList) {
+            if (layer instanceof ImageLayer && ((ImageLayer) layer).isOutOfCore()) {
+                return true;
+            }
+            if (layer.hasMask() && layer.getMask().isOutOfCore()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean isActiveLayer(Layer layer) {
         return layer == activeLayer;
     }
@@ -421,6 +650,23 @@ public class Composition implements Serializable {
         imageChanged(FULL);
     }
 
+    /**
+     * Runs the given point operation tile by tile if the filtered layer
+     * is out of core and there is no selection. Returns false if
+     * the operation should run normally on the filter source.
+     */
+    public boolean filterOutOfCoreTiles(UnaryOperator<BufferedImage> op, ChangeReason changeReason, String opName) {
+        if (hasSelection()) {
+            return false;
+        }
+        if (!getActiveMaskOrImageLayer().filterTiles(op, changeReason, opName)) {
+            return false;
+        }
+        setDirty(true);
+        imageChanged(FULL);
+        return true;
+    }
+
     public void changePreviewImage(BufferedImage img, String filterName, ChangeReason changeReason) {
         ImageLayer layer = getActiveMaskOrImageLayer();
         layer.changePreviewImage(img, filterName, changeReason);
@@ -605,9 +851,13 @@ public class Composition implements Serializable {
         layerList.remove(layer);
         layerList.add(newIndex, layer);
 
-        ic.changeLayerOrderInTheGUI(oldIndex, newIndex);
+        if (ic != null) {
+            ic.changeLayerOrderInTheGUI(oldIndex, newIndex);
+        }
         imageChanged(FULL);
-        AppLogic.layerOrderChanged(this);
+        if (ic != null) {
+            AppLogic.layerOrderChanged(this);
+        }
 
         History.addEdit(addHistory, () -> new LayerOrderChangeEdit(this, oldIndex, newIndex));
     }
@@ -645,9 +895,20 @@ public class Composition implements Serializable {
 
 //        BufferedImage imageSoFar = ImageUtils.createCompatibleImage(getCanvasWidth(), getCanvasHeight());
 
+        MemoryManager.ensureAvailable(4L * canvas.getWidth() * canvas.getHeight());
         BufferedImage imageSoFar = new BufferedImage(
                 canvas.getWidth(), canvas.getHeight(), TYPE_INT_ARGB_PRE);
-        Graphics2D g = imageSoFar.createGraphics();
+
+        return applyLayers(imageSoFar, new AffineTransform(), null);
+    }
+
+    /**
+     * Applies the visible layers on the given image, where the canvas
+     * coordinates are mapped to the image with the given transform.
+     * If the area is not null, only that part of the canvas is painted.
+     */
+    private BufferedImage applyLayers(BufferedImage imageSoFar, AffineTransform canvasToImage, Rectangle area) {
+        Graphics2D g = createLayerGraphics(imageSoFar, canvasToImage, area);
 
         boolean firstVisibleLayer = true;
         for (Layer layer : layerList) {
@@ -658,7 +919,7 @@ public class Composition implements Serializable {
                     if (g != null) {
                         g.dispose();
                     }
-                    g = imageSoFar.createGraphics();
+                    g = createLayerGraphics(imageSoFar, canvasToImage, area);
                 }
                 firstVisibleLayer = false;
             }
@@ -669,6 +930,93 @@ public class Composition implements Serializable {
         return imageSoFar;
     }
 
+    private static Graphics2D createLayerGraphics(BufferedImage img, AffineTransform canvasToImage, Rectangle area) {
+        Graphics2D g = img.createGraphics();
+        g.transform(canvasToImage);
+        if (area != null) {
+            g.clip(area);
+        }
+        return g;
+    }
+
+    /**
+     * Paints the composite of the visible part of the canvas with the
+     * transform of the given Graphics. The layers are composited into a
+     * buffer which is only as big as the painted area on the device.
+     */
+    public void paintCompositeDirectly(Graphics2D g) {
+        Rectangle area = canvas.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+        AffineTransform at = g.getTransform();
+        Rectangle deviceArea = at.createTransformedShape(area).getBounds();
+        if (deviceArea.isEmpty()) {
+            return;
+        }
+
+        BufferedImage buffer = BufferPool.borrowImage(deviceArea.width, deviceArea.height, TYPE_INT_ARGB_PRE);
+        AffineTransform canvasToBuffer = AffineTransform.getTranslateInstance(-deviceArea.x, -deviceArea.y);
+        canvasToBuffer.concatenate(at);
+        BufferedImage result = applyLayers(buffer, canvasToBuffer, area);
+
+        g.setTransform(new AffineTransform());
+        g.drawImage(result, deviceArea.x, deviceArea.y, null);
+        g.setTransform(at);
+
+        BufferPool.returnImage(buffer);
+        if (result != buffer) {
+            BufferPool.returnImage(result);
+        }
+    }
+
+    /**
+     * Creates a downscaled version of the composite image
+     * without calculating the full-sized composite first
+     */
+    public BufferedImage createScaledComposite(double scale) {
+        int width = Math.max(1, (int) (canvas.getWidth() * scale));
+        int height = Math.max(1, (int) (canvas.getHeight() * scale));
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB_PRE);
+        return applyLayers(img, AffineTransform.getScaleInstance(scale, scale), null);
+    }
+
+    /**
+     * Returns true if the composite image can be calculated in
+     * independent horizontal strips by getCompositeStrip. The adjustment
+     * layers can't be applied to a strip, because their filters might
+     * use the neighbouring pixels.
+     */
+    public boolean canCompositeInStrips() {
+        if (compositeImageUpToDate && !isHibernated()) {
+            return true;
+        }
+        for (Layer layer : layerList) {
+            if (layer.isVisible() && layer.isAdjustment()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the rows [y, y + height) of the composite image. If the
+     * composite image is not cached, only these rows are calculated.
+     */
+    public BufferedImage getCompositeStrip(int y, int height) {
+        if (isHibernated()) {
+            wakeUp();
+        }
+        int width = canvas.getWidth();
+        if (compositeImageUpToDate) {
+            return cachedCompositeImage.getSubimage(0, y, width, height);
+        }
+        BufferedImage strip = new BufferedImage(width, height, TYPE_INT_ARGB_PRE);
+        return applyLayers(strip, AffineTransform.getTranslateInstance(0, -y),
+                new Rectangle(0, y, width, height));
+    }
+
     public String generateNewLayerName() {
         String retVal = "layer " + newLayerCount;
         newLayerCount++;
@@ -677,14 +1025,254 @@ public class Composition implements Serializable {
 
     public void updateRegion(double startX, double startY, double endX, double endY, int thickness) {
         compositeImageUpToDate = false;
+        if (repaintsDeferred) {
+            changedWhileDeferred = true;
+            return;
+        }
         ic.updateRegion(startX, startY, endX, endY, thickness);
     }
 
+    /**
+     * If set to true, the changes made by other threads are not repainted (and
+     * the histograms are not updated) one by one, only the calls of
+     * repaintDeferredChanges show them, typically at a fixed frame rate.
+     * After setting it back to false, the caller should call imageChanged.
+     */
+    public void setRepaintsDeferred(boolean repaintsDeferred) {
+        this.repaintsDeferred = repaintsDeferred;
+        changedWhileDeferred = false;
+    }
+
+    public boolean areRepaintsDeferred() {
+        return repaintsDeferred;
+    }
+
+    /**
+     * Repaints the changes since the last call, if there were any
+     */
+    public void repaintDeferredChanges() {
+        assert SwingUtilities.isEventDispatchThread();
+        if (changedWhileDeferred) {
+            changedWhileDeferred = false;
+            // the cache could have been calculated during a change
+            compositeImageUpToDate = false;
+            if (ic != null) {
+                ic.repaint();
+            }
+        }
+    }
+
     public void dispose() {
         if (selection != null) {
             // stop the timer thread
             selection.deselectAndDispose();
         }
+        // a scheduled background hibernation will not start
+        swapping = false;
+        synchronized (this) {
+            if (swapFile != null) {
+                swapFile.close();
+                swapFile = null;
+                hibernationProxy = null;
+            }
+        }
+    }
+
+    public boolean isHibernated() {
+        return swapFile != null || swapping;
+    }
+
+    /**
+     * Moves the layer images and the undo backups of this composition
+     * into a swap file in the given directory. Only a proxy image scaled
+     * with the given factor is kept in memory for painting the window.
+     * Returns the number of freed bytes.
+     */
+    public synchronized long hibernate(File swapDir, double proxyScale) {
+        if (isHibernated()) {
+            return 0;
+        }
+        hibernationProxy = createHibernationProxy(proxyScale);
+        swapping = true;
+        try {
+            return moveToSwap(swapDir);
+        } finally {
+            swapping = false;
+        }
+    }
+
+    /**
+     * Called on the EDT: the proxy is created and painted from now on,
+     * the images are moved into the swap file by hibernateInBackground
+     */
+    public void startHibernation(double proxyScale) {
+        assert SwingUtilities.isEventDispatchThread();
+        if (isHibernated()) {
+            return;
+        }
+        hibernationProxy = createHibernationProxy(proxyScale);
+        wakeUpRequested = false;
+        swapping = true;
+    }
+
+    /**
+     * Called outside the EDT after startHibernation.
+     * Returns the number of freed bytes.
+     */
+    public synchronized long hibernateInBackground(File swapDir) {
+        if (!swapping || swapFile != null || wakeUpRequested) {
+            // woken up before the hibernation could start
+            return 0;
+        }
+        try {
+            return moveToSwap(swapDir);
+        } finally {
+            swapping = false;
+        }
+    }
+
+    /**
+     * Renders the proxy directly with the reduced size,
+     * so that no full-sized composite image is created
+     */
+    private BufferedImage createHibernationProxy(double proxyScale) {
+        double scale = Math.min(1.0, proxyScale);
+        if (!compositeImageUpToDate) {
+            return createScaledComposite(scale);
+        }
+        // the composite image is already there, only scale it down
+        int proxyWidth = Math.max(1, (int) (canvas.getWidth() * scale));
+        int proxyHeight = Math.max(1, (int) (canvas.getHeight() * scale));
+        BufferedImage proxy = new BufferedImage(proxyWidth, proxyHeight, TYPE_INT_ARGB_PRE);
+        Graphics2D g = proxy.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(cachedCompositeImage, 0, 0, proxyWidth, proxyHeight, null);
+        g.dispose();
+        return proxy;
+    }
+
+    private long moveToSwap(File swapDir) {
+        SwapFile swap;
+        try {
+            swap = SwapFile.create(swapDir);
+        } catch (IOException e) {
+            hibernationProxy = null;
+            swapping = false;
+            imageChanged(REPAINT);
+            showStatusMessageLater("Could not create a swap file: " + e.getMessage());
+            return 0;
+        }
+
+        long freed = 0;
+        try {
+            for (Layer layer : layerList) {
+                if (layer instanceof ImageLayer) {
+                    freed += ((ImageLayer) layer).hibernate(swap);
+                }
+                if (layer.hasMask()) {
+                    freed += layer.getMask().hibernate(swap);
+                }
+            }
+            freed += History.hibernateEdits(this, swap);
+        } catch (IOException e) {
+            // probably the disk is full: read back what was written
+            readBackFromSwap(swap);
+            imageChanged(REPAINT);
+            showStatusMessageLater("Could not hibernate " + name + ": " + e.getMessage());
+            return 0;
+        }
+
+        swapFile = swap;
+        freed += evictCompositeCache();
+        freed -= ImageUtils.getMemoryBytes(hibernationProxy);
+        return freed;
+    }
+
+    /**
+     * Restores the state before hibernate. It does nothing
+     * if the composition is not hibernated.
+     */
+    public synchronized void wakeUp() {
+        SwapFile swap = swapFile;
+        if (swap == null) {
+            if (swapping) {
+                // the background hibernation did not start yet, cancel it
+                swapping = false;
+                hibernationProxy = null;
+                imageChanged(REPAINT);
+            }
+            return;
+        }
+        // cleared before reading back the images so that the
+        // layers do not try to wake up the composition again
+        swapFile = null;
+        swapping = true;
+        readBackFromSwap(swap);
+        imageChanged(FULL);
+    }
+
+    /**
+     * Called on the EDT: the proxy is painted until the
+     * images are read back by wakeUpInBackground
+     */
+    public void startWakeUp() {
+        assert SwingUtilities.isEventDispatchThread();
+        wakeUpRequested = true;
+        swapping = true;
+    }
+
+    /**
+     * Called outside the EDT after startWakeUp, the
+     * window is repainted on the EDT after reading back the images
+     */
+    public synchronized void wakeUpInBackground() {
+        SwapFile swap = swapFile;
+        if (swap == null) {
+            if (swapping) {
+                // the scheduled hibernation was cancelled
+                swapping = false;
+                hibernationProxy = null;
+                SwingUtilities.invokeLater(() -> imageChanged(REPAINT));
+            }
+            // otherwise already woken up by something that needed the pixels
+            return;
+        }
+        swapFile = null;
+        swapping = true;
+        readBackFromSwap(swap);
+        SwingUtilities.invokeLater(() -> imageChanged(FULL));
+    }
+
+    private void readBackFromSwap(SwapFile swap) {
+        try {
+            for (Layer layer : layerList) {
+                if (layer instanceof ImageLayer) {
+                    ((ImageLayer) layer).wakeUp(swap);
+                }
+                if (layer.hasMask()) {
+                    layer.getMask().wakeUp(swap);
+                }
+            }
+            History.wakeUpEdits(this, swap);
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> Messages.showException(e));
+        } finally {
+            swap.close();
+            hibernationProxy = null;
+            swapping = false;
+        }
+    }
+
+    private static void showStatusMessageLater(String msg) {
+        SwingUtilities.invokeLater(() -> Messages.showStatusMessage(msg));
+    }
+
+    /**
+     * Returns the scaled-down image that is painted
+     * instead of the layers while hibernated
+     */
+    public BufferedImage getHibernationProxy() {
+        return hibernationProxy;
     }
 
     public void addNewLayerFromComposite(String newLayerName) {
@@ -786,6 +1374,9 @@ public class Composition implements Serializable {
      * Returns the composite image which jas the same dimensions as the canvas.
      */
     public BufferedImage getCompositeImage() {
+        if (isHibernated()) {
+            wakeUp();
+        }
         if (compositeImageUpToDate) {
             return cachedCompositeImage; // this caching is useful for example when using the Color Picker Tool
         }
@@ -796,12 +1387,40 @@ public class Composition implements Serializable {
         return cachedCompositeImage;
     }
 
+    public long getCompositeCacheMemoryBytes() {
+        return ImageUtils.getMemoryBytes(cachedCompositeImage);
+    }
+
+    /**
+     * Releases the cached composite image, it will be
+     * recalculated when needed. Returns the number of freed bytes.
+     */
+    public long evictCompositeCache() {
+        long freed = getCompositeCacheMemoryBytes();
+        cachedCompositeImage = null;
+        compositeImageUpToDate = false;
+        return freed;
+    }
+
     /**
      * The contents of this composition have been changed, the cache is invalidated,
      * and additional actions might be necessary
      */
     public void imageChanged(ImageChangeActions actions) {
         compositeImageUpToDate = false;
+        if (actions != REPAINT) {
+            // the stored preview of an opened file is not valid anymore
+            loadingPreview = null;
+        }
+        if (repaintsDeferred) {
+            changedWhileDeferred = true;
+            return;
+        }
+        if (swapping) {
+            // the images are moved by a background thread, the proxy
+            // is painted now and the swapping updates the window at the end
+            return;
+        }
 
         if (actions.isRepaint()) {
             if (ic != null) {
@@ -886,6 +1505,7 @@ public class Composition implements Serializable {
     public void executeFilterWithBusyCursor(Filter filter, ChangeReason changeReason, Component busyCursorParent) {
         String filterName = filter.getName();
 
+        PixelitorEdit lastEditBefore = History.getLastEdit();
         try {
             long startTime = System.nanoTime();
 
@@ -901,6 +1521,9 @@ public class Composition implements Serializable {
                 performanceMessage = String.format("%s took %.1f s", filterName, seconds);
             }
             Messages.showStatusMessage(performanceMessage);
+            if (!changeReason.isPreview()) {
+                filterApplied(filter, lastEditBefore);
+            }
         } catch (OutOfMemoryError e) {
             Dialogs.showOutOfMemoryDialog(e);
         } catch (Throwable e) { // make sure AssertionErrors are caught
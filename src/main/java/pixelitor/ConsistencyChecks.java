@@ -26,6 +26,7 @@ import pixelitor.menus.SelectionActions;
 import pixelitor.utils.Utils;
 
 import javax.swing.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.Optional;
 
@@ -132,18 +133,18 @@ public final class ConsistencyChecks {
 
     public static boolean imageCoversCanvasCheck(ImageLayer layer) {
         Composition comp = layer.getComp();
-        BufferedImage bufferedImage = layer.getImage();
+        Rectangle imageBounds = layer.getImageBounds();
 
         int txAbs = -layer.getTX();
         int canvasWidth = comp.getCanvasWidth();
-        int imageWidth = bufferedImage.getWidth();
+        int imageWidth = imageBounds.width;
         if (txAbs + canvasWidth > imageWidth + 1) { // allow one pixel difference for rounding effects
             return throwImageDoesNotCoverCanvasException(layer);
         }
 
         int tyAbs = -layer.getTY();
         int canvasHeight = comp.getCanvasHeight();
-        int imageHeight = bufferedImage.getHeight();
+        int imageHeight = imageBounds.height;
 
         if (tyAbs + canvasHeight > imageHeight + 1) {
             return throwImageDoesNotCoverCanvasException(layer);
@@ -154,11 +155,11 @@ public final class ConsistencyChecks {
 
     private static boolean throwImageDoesNotCoverCanvasException(ImageLayer layer) {
         Composition comp = layer.getComp();
-        BufferedImage bufferedImage = layer.getImage();
+        Rectangle imageBounds = layer.getImageBounds();
         int canvasWidth = comp.getCanvasWidth();
         int canvasHeight = comp.getCanvasHeight();
-        int imageWidth = bufferedImage.getWidth();
-        int imageHeight = bufferedImage.getHeight();
+        int imageWidth = imageBounds.width;
+        int imageHeight = imageBounds.height;
         int tx = layer.getTX();
         int ty = layer.getTY();
         String className = layer.getClass().getSimpleName();
@@ -1,6 +1,7 @@
 package pixelitor;
 
 import pixelitor.tools.FgBgColorSelector;
+import pixelitor.utils.ColorUtils;
 
 import java.awt.Color;
 
@@ -38,6 +39,10 @@ public class FgBgColors {
         gui.randomizeColorsAction.actionPerformed(null);
     }
 
+    public static void randomizeColorsOutsideEDT() {
+        gui.setColorsOutsideEDT(ColorUtils.getRandomColor(false), ColorUtils.getRandomColor(false));
+    }
+
     public static void setLayerMaskEditing(boolean b) {
         gui.setLayerMaskEditing(b);
     }
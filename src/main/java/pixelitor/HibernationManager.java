@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor;
+
+import pixelitor.utils.AppPreferences;
+import pixelitor.utils.SwapFile;
+
+import javax.swing.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hibernates the compositions that were not active for a while
+ * (or all the inactive compositions under memory pressure):
+ * their pixels are moved into a swap file and only a proxy
+ * image with the display resolution is kept in memory.
+ * A hibernated composition wakes up when it is activated
+ * or when something needs its pixels.
+ */
+public class HibernationManager {
+    private static final int CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    /**
+     * The idle time after which an inactive composition
+     * is hibernated, 0 means that it is never hibernated
+     */
+    private static int idleMinutes = AppPreferences.loadHibernationMinutes();
+
+    // the time when a composition stopped being the active one
+    private static final Map<Composition, Long> inactiveSince = new WeakHashMap<>();
+
+    private static Timer timer;
+
+    // the swap file reading and writing of the idle timer and of the
+    // activations is done here so that it doesn't block the EDT
+    private static final ExecutorService swapExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Hibernation");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // creating the proxy image allocates memory, which can trigger
+    // another eviction, but that should not start a new hibernation
+    private static boolean hibernationInProgress = false;
+
+    /**
+     * Utility class with static methods
+     */
+    private HibernationManager() {
+    }
+
+    public static void startIdleTimer() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer(CHECK_INTERVAL_MILLIS, e -> hibernateIdleComps());
+        timer.start();
+    }
+
+    public static int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public static void setIdleMinutes(int idleMinutes) {
+        HibernationManager.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * Called on the EDT when another composition becomes active
+     */
+    public static void activeCompChanged(Composition oldComp, Composition newComp) {
+        if (oldComp != null) {
+            inactiveSince.put(oldComp, System.currentTimeMillis());
+        }
+        inactiveSince.remove(newComp);
+        if (newComp.isHibernated()) {
+            // until the images are read back, the proxy is painted
+            newComp.startWakeUp();
+            swapExecutor.execute(newComp::wakeUpInBackground);
+        }
+    }
+
+    private static void hibernateIdleComps() {
+        if (idleMinutes <= 0) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - idleMinutes * 60_000L;
+        for (Composition comp : getInactiveComps()) {
+            if (inactiveSince.get(comp) < limit) {
+                hibernateInBackground(comp);
+            }
+        }
+    }
+
+    private static void hibernateInBackground(Composition comp) {
+        File swapDir = SwapFile.getDefaultDir();
+        if (swapDir == null) {
+            return;
+        }
+        // the proxy is created on the EDT, like the snapshot of a background save
+        hibernationInProgress = true;
+        try {
+            comp.startHibernation(getProxyScale(comp));
+        } finally {
+            hibernationInProgress = false;
+        }
+        swapExecutor.execute(() -> comp.hibernateInBackground(swapDir));
+    }
+
+    /**
+     * Hibernates the inactive compositions, starting with the one
+     * that was not used for the longest time, until at least the
+     * given number of bytes is freed. Returns the number of freed bytes.
+     * Unlike the idle hibernation, this runs on the calling thread,
+     * because the memory is needed right now.
+     */
+    public static long hibernateInactive(long bytesToFree) {
+        long freed = 0;
+        for (Composition comp : getInactiveComps()) {
+            if (freed >= bytesToFree) {
+                break;
+            }
+            freed += hibernate(comp);
+        }
+        return freed;
+    }
+
+    private static long hibernate(Composition comp) {
+        if (hibernationInProgress || comp.isHibernated()) {
+            return 0;
+        }
+        File swapDir = SwapFile.getDefaultDir();
+        if (swapDir == null) {
+            return 0;
+        }
+        hibernationInProgress = true;
+        try {
+            return comp.hibernate(swapDir, getProxyScale(comp));
+        } finally {
+            hibernationInProgress = false;
+        }
+    }
+
+    private static double getProxyScale(Composition comp) {
+        ImageDisplay ic = comp.getIC();
+        if (ic != null) {
+            return ic.getViewScale();
+        }
+        return 1.0;
+    }
+
+    /**
+     * Returns the inactive compositions which are not hibernated yet
+     * in the order of the time they were last active
+     */
+    private static List<Composition> getInactiveComps() {
+        Composition activeComp = ImageComponents.getActiveCompOrNull();
+        long now = System.currentTimeMillis();
+        List<Composition> comps = new ArrayList<>();
+        for (ImageComponent ic : ImageComponents.getICList()) {
+            Composition comp = ic.getComp();
+            if (comp != activeComp && !comp.isHibernated()) {
+                inactiveSince.putIfAbsent(comp, now);
+                comps.add(comp);
+            }
+        }
+        comps.sort(Comparator.comparing(inactiveSince::get));
+        return comps;
+    }
+}
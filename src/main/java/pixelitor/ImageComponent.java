@@ -276,6 +276,15 @@ public class ImageComponent extends JComponent implements MouseListener, MouseMo
         if (showLayerMask) {
             LayerMask layerMask = comp.getActiveLayer().getMask();
             layerMask.paintLayerOnGraphics(g2, true);
+        } else if (comp.isHibernated()) {
+            // only a proxy with the display resolution is in memory
+            g2.drawImage(comp.getHibernationProxy(), 0, 0, canvas.getWidth(), canvas.getHeight(), null);
+        } else if (comp.isLoading()) {
+            // the layers of the opened file are still decoded
+            g2.drawImage(comp.getLoadingPreview(), 0, 0, canvas.getWidth(), canvas.getHeight(), null);
+        } else if (comp.hasOutOfCoreLayers()) {
+            // the composite of very large images is not kept in memory
+            comp.paintCompositeDirectly(g2);
         } else {
             BufferedImage drawnImage = comp.getCompositeImage();
             ImageUtils.drawImageWithClipping(g2, drawnImage);
@@ -410,10 +419,8 @@ public class ImageComponent extends JComponent implements MouseListener, MouseMo
     }
 
     public void setupFitScreenZoomSize() {
-        BufferedImage image = comp.getCompositeImage();
-        int width = image.getWidth();
-        int height = image.getHeight();
-        setupFitScreenZoomSize(width, height, true);
+        // the composite has the same size as the canvas
+        setupFitScreenZoomSize(canvas.getWidth(), canvas.getHeight(), true);
     }
 
     private void setupFitScreenZoomSize(int imageWidth, int imageHeight, boolean alsoZoomInToFitScreen) {
@@ -222,6 +222,9 @@ public class ImageComponents {
         // not called in unit tests
         ImageComponent oldIC = (ImageComponent) activeIC;
 
+        // wake up before the listeners access the layers
+        HibernationManager.activeCompChanged(oldIC == null ? null : oldIC.getComp(), ic.getComp());
+
         setActiveIC(ic, false);
         for (ImageSwitchListener listener : imageSwitchListeners) {
             listener.activeImageHasChanged(oldIC, ic);
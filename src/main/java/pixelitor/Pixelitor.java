@@ -18,12 +18,14 @@
 package pixelitor;
 
 import net.jafama.FastMath;
+import pixelitor.automate.BatchCommandLine;
 import pixelitor.filters.Filter;
 import pixelitor.io.OpenSaveManager;
 import pixelitor.layers.LayerMaskAddType;
 import pixelitor.tools.Tool;
 import pixelitor.utils.AppPreferences;
 import pixelitor.utils.Dialogs;
+import pixelitor.utils.MemoryManager;
 import pixelitor.utils.Messages;
 import pixelitor.utils.Utils;
 
@@ -43,6 +45,11 @@ public class Pixelitor {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && BatchCommandLine.OPTION.equals(args[0])) {
+            // process a directory without starting the GUI
+            System.exit(BatchCommandLine.run(args));
+        }
+
         // allows to put the app into development mode by
         // adding -Dpixelitor.development=true to the command line
         if ("true".equals(System.getProperty("pixelitor.development"))) {
@@ -53,6 +60,8 @@ public class Pixelitor {
         setupForMacintosh();
 
         ExceptionHandler.INSTANCE.register();
+        MemoryManager.startMonitoring();
+        HibernationManager.startIdleTimer();
         EventQueue.invokeLater(() -> {
             try {
                 createAndShowGUI(args);
@@ -4,6 +4,7 @@ import net.jafama.FastMath;
 import pixelitor.Composition;
 import pixelitor.FgBgColors;
 import pixelitor.ImageComponents;
+import pixelitor.PixelitorWindow;
 import pixelitor.history.History;
 import pixelitor.history.ImageEdit;
 import pixelitor.layers.ImageLayer;
@@ -16,15 +17,19 @@ import pixelitor.utils.GridBagHelper;
 import pixelitor.utils.IntTextField;
 import pixelitor.utils.Messages;
 import pixelitor.utils.OKCancelDialog;
-import pixelitor.utils.Utils;
 
 import javax.swing.*;
+import java.awt.BorderLayout;
 import java.awt.GridBagLayout;
 import java.awt.Point;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.lang.reflect.InvocationTargetException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static pixelitor.Composition.ImageChangeActions.FULL;
 import static pixelitor.tools.Tools.BRUSH;
 import static pixelitor.tools.Tools.CLONE;
 import static pixelitor.tools.Tools.ERASER;
@@ -34,6 +39,8 @@ public class AutoPaint {
     //    public static final Tool[] ALLOWED_TOOLS = {SMUDGE, BRUSH, CLONE, ERASER, SHAPES};
     public static final Tool[] ALLOWED_TOOLS = {SMUDGE, BRUSH, CLONE, ERASER};
 
+    private static final int FRAMES_PER_SECOND = 25;
+
     private AutoPaint() {
     }
 
@@ -55,42 +62,97 @@ public class AutoPaint {
         assert SwingUtilities.isEventDispatchThread();
 
         Composition comp = ImageComponents.getActiveComp().orElseThrow(() -> new RuntimeException("no active composition"));
-        ProgressMonitor progressMonitor = Utils.createPercentageProgressMonitor("Auto Paint", "Stop");
 
         ImageLayer imageLayer = comp.getActiveMaskOrImageLayer();
         BufferedImage backupImage = imageLayer.getImageOrSubImageIfSelected(true, true);
+
+        // the strokes have no individual undo, and they
+        // are shown only by the timer at a fixed frame rate
         History.setSuspended(true);
+        comp.setRepaintsDeferred(true);
+
+        int numStrokes = settings.getNumStrokes();
+        AtomicInteger numPainted = new AtomicInteger();
+        AtomicBoolean canceled = new AtomicBoolean();
+
+        // the worker uses the shared tools and the live layer, therefore
+        // the modal progress dialog blocks the user input until it finishes
+        JProgressBar progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        JDialog progressDialog = createProgressDialog(progressBar, canceled);
+
+        Timer repaintTimer = new Timer(1000 / FRAMES_PER_SECOND, e -> {
+            comp.repaintDeferredChanges();
+
+            int progressPercentage = (int) ((float) numPainted.get() * 100 / numStrokes);
+            progressBar.setValue(progressPercentage);
+        });
+        repaintTimer.start();
 
         Runnable notEDTThreadTask = () -> {
             try {
-                runStrokesOutsideEDT(settings, comp, progressMonitor);
-            } catch (InterruptedException e) {
-                Messages.showException(e);
-            } catch (InvocationTargetException e) {
-                Throwable cause = e.getCause();
-                Messages.showException(cause);
+                runStrokesOutsideEDT(settings, comp, numPainted, canceled);
+            } catch (RuntimeException e) {
+                // the remaining strokes are not painted
+                SwingUtilities.invokeLater(() -> Messages.showException(e));
             } finally {
-                Runnable edtFinish = () -> {
+                SwingUtilities.invokeLater(() -> {
+                    repaintTimer.stop();
+                    progressDialog.dispose();
+
+                    comp.setRepaintsDeferred(false);
                     History.setSuspended(false);
                     ImageEdit edit = new ImageEdit(comp, "Auto Paint",
                             imageLayer, backupImage, IgnoreSelection.NO, false);
                     History.addEdit(edit);
-                };
-                try {
-                    SwingUtilities.invokeAndWait(edtFinish);
-                } catch (InterruptedException | InvocationTargetException e) {
-                    Messages.showException(e);
-                }
+
+                    imageLayer.updateIconImage();
+                    comp.imageChanged(FULL);
+                });
             }
         };
 
-        Thread thread = new Thread(notEDTThreadTask);
-        // start the non-EDT thread but do not wait until it finishes
-        // because this thread needs to put tasks on the EDT
+        // the strokes are painted directly into the layer,
+        // the EDT only shows the progress
+        Thread thread = new Thread(notEDTThreadTask, "Auto Paint");
         thread.start();
+
+        // returns only after the worker has finished
+        progressDialog.setVisible(true);
     }
 
-    private static void runStrokesOutsideEDT(Settings settings, Composition comp, ProgressMonitor progressMonitor) throws InvocationTargetException, InterruptedException {
+    private static JDialog createProgressDialog(JProgressBar progressBar, AtomicBoolean canceled) {
+        JDialog d = new JDialog(PixelitorWindow.getInstance(), "Auto Paint", true);
+        d.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        d.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                canceled.set(true);
+            }
+        });
+
+        JButton stopButton = new JButton("Stop");
+        stopButton.addActionListener(e -> {
+            canceled.set(true);
+            stopButton.setEnabled(false);
+        });
+
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(stopButton);
+
+        JPanel p = new JPanel(new BorderLayout());
+        p.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        p.add(progressBar, BorderLayout.CENTER);
+        p.add(buttonPanel, BorderLayout.SOUTH);
+
+        d.getContentPane().add(p);
+        d.pack();
+        d.setLocationRelativeTo(PixelitorWindow.getInstance());
+        return d;
+    }
+
+    private static void runStrokesOutsideEDT(Settings settings, Composition comp,
+                                             AtomicInteger numPainted, AtomicBoolean canceled) {
         assert !SwingUtilities.isEventDispatchThread();
 
         Random random = new Random();
@@ -98,31 +160,18 @@ public class AutoPaint {
         int canvasHeight = comp.getCanvasHeight();
 
         int numStrokes = settings.getNumStrokes();
-        for (int i = 0; i < numStrokes; i++) {
-            int progressPercentage = (int) ((float) i * 100 / numStrokes);
-            progressMonitor.setProgress(progressPercentage);
-            progressMonitor.setNote(progressPercentage + "%");
-
-//                    Utils.sleep(1, TimeUnit.SECONDS);
-
-            Runnable edtRunnable = () -> paintSingleStroke(comp, settings, canvasWidth, canvasHeight, random);
-
-            SwingUtilities.invokeAndWait(edtRunnable);
-
-            comp.repaint();
-            if (progressMonitor.isCanceled()) {
-                break;
-            }
+        for (int i = 0; i < numStrokes && !canceled.get(); i++) {
+            paintSingleStroke(comp, settings, canvasWidth, canvasHeight, random);
+            numPainted.set(i + 1);
         }
-        progressMonitor.close();
     }
 
     private static void paintSingleStroke(Composition comp, Settings settings, int canvasWidth, int canvasHeight, Random rand) {
-        // called on the EDT
-        assert SwingUtilities.isEventDispatchThread();
+        // called outside the EDT
+        assert !SwingUtilities.isEventDispatchThread();
 
         if (settings.withRandomColors()) {
-            FgBgColors.randomizeColors();
+            FgBgColors.randomizeColorsOutsideEDT();
         }
 
         int strokeLength = settings.getStrokeLength();
@@ -134,20 +183,16 @@ public class AutoPaint {
 
         Point end = new Point(endX, endY);
 
-        try {
-            Tool tool = settings.getTool();
-            // tool.randomize();
-            if (tool instanceof AbstractBrushTool) {
-                AbstractBrushTool abt = (AbstractBrushTool) tool;
-                abt.drawBrushStrokeProgrammatically(comp, start, end);
-            } else if (tool instanceof ShapesTool) {
-                ShapesTool st = (ShapesTool) tool;
-                st.paintShapeOnIC(comp, new UserDrag(start.x, start.y, end.x, end.y));
-            } else {
-                throw new IllegalStateException("tool = " + tool.getClass().getName());
-            }
-        } catch (Exception e) {
-            Messages.showException(e);
+        Tool tool = settings.getTool();
+        // tool.randomize();
+        if (tool instanceof AbstractBrushTool) {
+            AbstractBrushTool abt = (AbstractBrushTool) tool;
+            abt.drawBrushStrokeProgrammatically(comp, start, end);
+        } else if (tool instanceof ShapesTool) {
+            ShapesTool st = (ShapesTool) tool;
+            st.paintShapeOnIC(comp, new UserDrag(start.x, start.y, end.x, end.y));
+        } else {
+            throw new IllegalStateException("tool = " + tool.getClass().getName());
         }
     }
 
@@ -33,8 +33,12 @@ import pixelitor.utils.ValidatedDialog;
 
 import javax.swing.*;
 import java.awt.EventQueue;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
 
 /**
  * Utility class with static methods to support batch processing
@@ -115,6 +119,95 @@ public class Automate {
         worker.execute();
     }
 
+    /**
+     * Processes each file in the input directory with the given image
+     * operation in the {@link BatchEngine} pipeline, without opening
+     * the images in windows
+     */
+    public static void processEachFile(UnaryOperator<BufferedImage> operation,
+                                       String progressMonitorTitle) {
+        File openDir = FileChoosers.getLastOpenDir();
+        File saveDir = FileChoosers.getLastSaveDir();
+        if (openDir == null || !openDir.exists() || saveDir == null || !saveDir.exists()) {
+            throw new IllegalStateException("openDir = " + openDir + ", saveDir = " + saveDir);
+        }
+        File[] inputFiles = FileExtensionUtils.getAllSupportedFilesInDir(openDir);
+        if (inputFiles.length == 0) {
+            Messages.showInfo("No files", "There are no supported files in " + openDir.getAbsolutePath());
+            return;
+        }
+
+        OutputFormat outputFormat = OutputFormat.getLastOutputFormat();
+        int numExisting = 0;
+        for (File file : inputFiles) {
+            String outFileName = FileExtensionUtils.replaceExtension(file.getName(), outputFormat.toString());
+            if (new File(saveDir, outFileName).exists()) {
+                numExisting++;
+            }
+        }
+        boolean overwrite = false;
+        if (numExisting > 0) {
+            String message = String.format("%d output files already exist in %s. Overwrite them?",
+                    numExisting, saveDir.getAbsolutePath());
+            JOptionPane pane = new JOptionPane(message, JOptionPane.WARNING_MESSAGE);
+            pane.setOptions(new String[]{OVERWRITE_YES_ALL, OVERWRITE_NO, OVERWRITE_CANCEL});
+            pane.setInitialValue(OVERWRITE_NO);
+            pane.createDialog(PixelitorWindow.getInstance(), "Warning").setVisible(true);
+            Object answer = pane.getValue();
+            if (answer == null || OVERWRITE_CANCEL.equals(answer)) {
+                return;
+            }
+            overwrite = OVERWRITE_YES_ALL.equals(answer);
+        }
+
+        BatchEngine engine = new BatchEngine(openDir, saveDir, outputFormat, operation);
+        engine.setOverwrite(overwrite);
+        ProgressMonitor progressMonitor = Utils.createPercentageProgressMonitor(progressMonitorTitle);
+        SwingWorker<BatchEngine.Result, Void> worker = new SwingWorker<BatchEngine.Result, Void>() {
+            @Override
+            public BatchEngine.Result doInBackground() throws InterruptedException {
+                return engine.run((file, result, numFinished, numFiles) -> SwingUtilities.invokeLater(() -> {
+                    if (progressMonitor.isCanceled()) {
+                        engine.cancel();
+                    }
+                    progressMonitor.setProgress(numFinished * 100 / numFiles);
+                    progressMonitor.setNote(file.getName());
+                }));
+            }
+
+            @Override
+            protected void done() {
+                progressMonitor.close();
+                try {
+                    showBatchResult(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Messages.showException(e);
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    private static void showBatchResult(BatchEngine.Result result) {
+        if (result.getNumFailed() == 0) {
+            Messages.showStatusMessage(String.format("%d files processed, %d skipped",
+                    result.getNumProcessed(), result.getNumSkipped()));
+            return;
+        }
+        List<String> errors = result.getErrors();
+        StringBuilder msg = new StringBuilder(String.format(
+                "%d files processed, %d skipped, %d failed:",
+                result.getNumProcessed(), result.getNumSkipped(), errors.size()));
+        int numShown = Math.min(errors.size(), 10);
+        for (int i = 0; i < numShown; i++) {
+            msg.append('\n').append(errors.get(i));
+        }
+        if (numShown < errors.size()) {
+            msg.append("\n...");
+        }
+        Messages.showError("Batch Processing", msg.toString());
+    }
+
     private static void processFile(File file,
                                     CompAction action,
                                     File lastSaveDir,
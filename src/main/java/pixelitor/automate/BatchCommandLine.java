@@ -0,0 +1,227 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.automate;
+
+import pixelitor.automate.macro.Macro;
+import pixelitor.filters.Filter;
+import pixelitor.io.OutputFormat;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs the {@link BatchEngine} from the command line, without starting the GUI.
+ * It can be started with "java pixelitor.Pixelitor -batch ..." or with this
+ * class as the main class.
+ */
+public final class BatchCommandLine {
+    /**
+     * The first command-line argument that selects the batch mode
+     */
+    public static final String OPTION = "-batch";
+
+    private static final String USAGE = "Usage: " + OPTION
+            + " -in <dir> -out <dir> [-format jpg|png|gif|bmp|pxc|ora]"
+            + " [-resize <maxWidth>x<maxHeight>] [-filter <filter class>] [-macro <pxm file>]"
+            + " [-threads <n>|<decode>,<transform>,<encode>] [-queue <images>] [-overwrite]\n"
+            + "The -resize, -filter and -macro operations are applied in the given order.\n"
+            + "The -threads option sets the threads of the pipeline stages, and\n"
+            + "-queue the maximal number of decoded images in the pipeline.\n"
+            + "The filters run with their default settings, the classes outside\n"
+            + "the pixelitor.filters package must be given with the full name.";
+
+    /**
+     * Utility class with static methods
+     */
+    private BatchCommandLine() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Returns the exit code: 0 if every file was processed or
+     * skipped, 1 if some files failed, 2 for invalid arguments
+     */
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        File inputDir = null;
+        File outputDir = null;
+        OutputFormat format = OutputFormat.JPG;
+        UnaryOperator<BufferedImage> processor = img -> img;
+        int[] numThreads = null;
+        int maxResidentImages = 0;
+        boolean overwrite = false;
+
+        try {
+            int i = 0;
+            if (args.length > 0 && OPTION.equals(args[0])) {
+                i++;
+            }
+            for (; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-in":
+                        inputDir = new File(getValue(args, ++i, arg));
+                        break;
+                    case "-out":
+                        outputDir = new File(getValue(args, ++i, arg));
+                        break;
+                    case "-format":
+                        format = OutputFormat.valueFromExtension(getValue(args, ++i, arg));
+                        break;
+                    case "-resize":
+                        processor = andThen(processor, parseResize(getValue(args, ++i, arg)));
+                        break;
+                    case "-filter":
+                        processor = andThen(processor, BatchEngine.filter(createFilter(getValue(args, ++i, arg))));
+                        break;
+                    case "-macro":
+                        processor = andThen(processor, loadMacro(getValue(args, ++i, arg)));
+                        break;
+                    case "-threads":
+                        numThreads = parseThreads(getValue(args, ++i, arg));
+                        break;
+                    case "-queue":
+                        maxResidentImages = Integer.parseInt(getValue(args, ++i, arg));
+                        break;
+                    case "-overwrite":
+                        overwrite = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+            if (inputDir == null || outputDir == null) {
+                throw new IllegalArgumentException("The input and output directories are required");
+            }
+            if (!inputDir.isDirectory()) {
+                throw new IllegalArgumentException(inputDir.getAbsolutePath() + " is not a directory");
+            }
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new IllegalArgumentException("Could not create " + outputDir.getAbsolutePath());
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        BatchEngine engine = new BatchEngine(inputDir, outputDir, format, processor);
+        try {
+            if (numThreads != null) {
+                engine.setNumThreads(numThreads[0], numThreads[1], numThreads[2]);
+            }
+            if (maxResidentImages != 0) {
+                engine.setMaxResidentImages(maxResidentImages);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        engine.setOverwrite(overwrite);
+
+        BatchEngine.Result result;
+        try {
+            result = engine.run((file, fileResult, numFinished, numFiles) ->
+                    System.out.printf("[%d/%d] %s: %s%n", numFinished, numFiles,
+                            file.getName(), fileResult.toString().toLowerCase()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+
+        result.getErrors().forEach(System.err::println);
+        System.out.printf("%d processed, %d skipped, %d failed%n",
+                result.getNumProcessed(), result.getNumSkipped(), result.getNumFailed());
+        return result.getNumFailed() == 0 ? 0 : 1;
+    }
+
+    private static String getValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value after " + option);
+        }
+        return args[index];
+    }
+
+    private static UnaryOperator<BufferedImage> andThen(UnaryOperator<BufferedImage> first,
+                                                        UnaryOperator<BufferedImage> second) {
+        return img -> second.apply(first.apply(img));
+    }
+
+    private static UnaryOperator<BufferedImage> loadMacro(String fileName) {
+        Macro macro;
+        try {
+            macro = Macro.load(new File(fileName));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not load the macro " + fileName + ": " + e.getMessage());
+        }
+        if (macro.hasBrushStrokes()) {
+            throw new IllegalArgumentException("The macro " + fileName
+                    + " contains brush strokes, which can be replayed only in the GUI");
+        }
+        return macro.asImageOperation();
+    }
+
+    private static int[] parseThreads(String value) {
+        String[] parts = value.split(",");
+        if (parts.length == 1) {
+            int n = Integer.parseInt(parts[0].trim());
+            return new int[]{n, n, n};
+        }
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid thread counts: " + value);
+        }
+        int[] counts = new int[3];
+        for (int i = 0; i < 3; i++) {
+            counts[i] = Integer.parseInt(parts[i].trim());
+        }
+        return counts;
+    }
+
+    private static UnaryOperator<BufferedImage> parseResize(String value) {
+        String[] parts = value.toLowerCase().split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid size: " + value);
+        }
+        int maxWidth = Integer.parseInt(parts[0].trim());
+        int maxHeight = Integer.parseInt(parts[1].trim());
+        if (maxWidth < 1 || maxHeight < 1) {
+            throw new IllegalArgumentException("Invalid size: " + value);
+        }
+        return BatchEngine.resizeInBox(maxWidth, maxHeight);
+    }
+
+    static Filter createFilter(String className) {
+        if (className.indexOf('.') == -1) {
+            className = "pixelitor.filters." + className;
+        }
+        try {
+            Class<?> filterClass = Class.forName(className);
+            if (!Filter.class.isAssignableFrom(filterClass)) {
+                throw new IllegalArgumentException(className + " is not a filter");
+            }
+            return (Filter) filterClass.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Could not create the filter " + className + ": " + e);
+        }
+    }
+}
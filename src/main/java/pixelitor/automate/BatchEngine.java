@@ -0,0 +1,434 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.automate;
+
+import pixelitor.ThreadPool;
+import pixelitor.filters.Filter;
+import pixelitor.io.FileExtensionUtils;
+import pixelitor.io.OpenSaveManager;
+import pixelitor.io.OutputFormat;
+import pixelitor.utils.Resampler;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * Processes all supported image files of a directory without opening
+ * them in image windows and without using the EDT, so that it can
+ * also run from the command line.
+ * <p>
+ * The files flow through a pipeline of decoding, transforming and
+ * encoding stages, each with its own threads, connected by bounded
+ * queues, so that the slowest stage determines the speed. At most
+ * a given number of decoded images are in the pipeline, and the
+ * memory is also bounded by estimating the size of each image from
+ * its header before decoding it. A file that fails is only reported,
+ * the others are processed normally.
+ */
+public class BatchEngine {
+    private static final int MEGABYTE = 1024 * 1024;
+
+    // the decoded image, the processed image, the composite and
+    // the converted image written by some formats can exist at the same time
+    private static final int IMAGE_COPIES_PER_FILE = 4;
+
+    private final File inputDir;
+    private final File outputDir;
+    private final OutputFormat outputFormat;
+    private final UnaryOperator<BufferedImage> processor;
+
+    private int numDecoders = Math.max(1, ThreadPool.NUM_AVAILABLE_PROCESSORS / 2);
+    private int numTransformers = ThreadPool.NUM_AVAILABLE_PROCESSORS;
+    private int numEncoders = Math.max(1, ThreadPool.NUM_AVAILABLE_PROCESSORS / 2);
+    private int maxResidentImages = 2 * ThreadPool.NUM_AVAILABLE_PROCESSORS;
+    private boolean overwrite = false;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Receives the progress, called from the pipeline threads
+     */
+    public interface Listener {
+        void fileFinished(File file, FileResult result, int numFinished, int numFiles);
+    }
+
+    public enum FileResult {
+        PROCESSED, SKIPPED, FAILED
+    }
+
+    /**
+     * The outcome of a batch run
+     */
+    public static class Result {
+        private final AtomicInteger numProcessed = new AtomicInteger();
+        private final AtomicInteger numSkipped = new AtomicInteger();
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+        public int getNumProcessed() {
+            return numProcessed.get();
+        }
+
+        public int getNumSkipped() {
+            return numSkipped.get();
+        }
+
+        public int getNumFailed() {
+            return errors.size();
+        }
+
+        /**
+         * Returns the error messages of the failed files
+         */
+        public List<String> getErrors() {
+            synchronized (errors) {
+                return new ArrayList<>(errors);
+            }
+        }
+    }
+
+    public BatchEngine(File inputDir, File outputDir, OutputFormat outputFormat,
+                       UnaryOperator<BufferedImage> processor) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.outputFormat = outputFormat;
+        this.processor = processor;
+    }
+
+    /**
+     * Sets the number of threads for each stage
+     */
+    public void setNumThreads(int numDecoders, int numTransformers, int numEncoders) {
+        if (numDecoders < 1 || numTransformers < 1 || numEncoders < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "numDecoders = %d, numTransformers = %d, numEncoders = %d",
+                    numDecoders, numTransformers, numEncoders));
+        }
+        this.numDecoders = numDecoders;
+        this.numTransformers = numTransformers;
+        this.numEncoders = numEncoders;
+    }
+
+    /**
+     * The decoding waits if this many decoded images are in the
+     * pipeline, either queued or being transformed or encoded
+     */
+    public void setMaxResidentImages(int maxResidentImages) {
+        if (maxResidentImages < 1) {
+            throw new IllegalArgumentException("maxResidentImages = " + maxResidentImages);
+        }
+        this.maxResidentImages = maxResidentImages;
+    }
+
+    /**
+     * If false, the existing output files are skipped
+     */
+    public void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+    /**
+     * The files that were not decoded yet will be skipped
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Processes the files and returns after all of them are finished
+     */
+    public Result run(Listener listener) throws InterruptedException {
+        File[] files = FileExtensionUtils.getAllSupportedFilesInDir(inputDir);
+        if (files == null) {
+            throw new IllegalArgumentException(inputDir.getAbsolutePath() + " is not a directory");
+        }
+        Result result = new Result();
+        if (files.length == 0) {
+            return result;
+        }
+        Pipeline pipeline = new Pipeline(files, result, listener);
+        pipeline.run();
+        return result;
+    }
+
+    /**
+     * A decoded or transformed image on its way through the stages.
+     * The pills at the end of the queues stop the next stage.
+     */
+    private static class Item {
+        private static final Item POISON_PILL = new Item(null, null, 0);
+
+        private final File file;
+        private final File outFile;
+        private final int memoryPermits;
+        private BufferedImage img;
+
+        private Item(File file, File outFile, int memoryPermits) {
+            this.file = file;
+            this.outFile = outFile;
+            this.memoryPermits = memoryPermits;
+        }
+    }
+
+    /**
+     * The state of one run
+     */
+    private class Pipeline {
+        private final File[] files;
+        private final Result result;
+        private final Listener listener;
+
+        private final AtomicInteger nextFileIndex = new AtomicInteger();
+        private final AtomicInteger numFinished = new AtomicInteger();
+        private final AtomicInteger runningDecoders = new AtomicInteger(numDecoders);
+        private final AtomicInteger runningTransformers = new AtomicInteger(numTransformers);
+
+        private final BlockingQueue<Item> decoded = new ArrayBlockingQueue<>(maxResidentImages + numTransformers);
+        private final BlockingQueue<Item> transformed = new ArrayBlockingQueue<>(maxResidentImages + numEncoders);
+
+        // the back-pressure: the permits are taken before the decoding
+        // and given back after the encoding or at an error
+        private final Semaphore residentImages = new Semaphore(maxResidentImages, true);
+        private final int budgetMB = calcMemoryBudgetMB();
+        private final Semaphore memory = new Semaphore(budgetMB, true);
+
+        private Pipeline(File[] files, Result result, Listener listener) {
+            this.files = files;
+            this.result = result;
+            this.listener = listener;
+        }
+
+        private void run() throws InterruptedException {
+            ExecutorService threads = Executors.newFixedThreadPool(
+                    numDecoders + numTransformers + numEncoders, r -> {
+                        Thread thread = new Thread(r, "Batch Pipeline");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            for (int i = 0; i < numDecoders; i++) {
+                threads.execute(this::decodeFiles);
+            }
+            for (int i = 0; i < numTransformers; i++) {
+                threads.execute(this::transformImages);
+            }
+            for (int i = 0; i < numEncoders; i++) {
+                threads.execute(this::encodeImages);
+            }
+            threads.shutdown();
+            try {
+                threads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                cancelled = true;
+                threads.shutdownNow();
+                throw e;
+            }
+        }
+
+        private void decodeFiles() {
+            try {
+                int index;
+                while ((index = nextFileIndex.getAndIncrement()) < files.length) {
+                    Item item = decode(files[index]);
+                    if (item != null) {
+                        decoded.put(item);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (runningDecoders.decrementAndGet() == 0) {
+                    stopNextStage(decoded, numTransformers);
+                }
+            }
+        }
+
+        /**
+         * Returns null if the file was skipped or failed
+         */
+        private Item decode(File file) throws InterruptedException {
+            File outFile = new File(outputDir,
+                    FileExtensionUtils.replaceExtension(file.getName(), outputFormat.toString()));
+            if (cancelled || (outFile.exists() && !overwrite)) {
+                result.numSkipped.incrementAndGet();
+                fileFinished(file, FileResult.SKIPPED);
+                return null;
+            }
+
+            Item item = new Item(file, outFile, estimateMemoryMB(file, budgetMB));
+            residentImages.acquire();
+            memory.acquire(item.memoryPermits);
+            try {
+                item.img = OpenSaveManager.readFlattened(file);
+                if (item.img == null) {
+                    throw new IOException("not an image file");
+                }
+                return item;
+            } catch (Exception | OutOfMemoryError e) {
+                failed(item, e);
+                return null;
+            }
+        }
+
+        private void transformImages() {
+            try {
+                Item item;
+                while ((item = decoded.take()) != Item.POISON_PILL) {
+                    try {
+                        item.img = processor.apply(item.img);
+                        transformed.put(item);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        failed(item, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (runningTransformers.decrementAndGet() == 0) {
+                    stopNextStage(transformed, numEncoders);
+                }
+            }
+        }
+
+        private void encodeImages() {
+            try {
+                Item item;
+                while ((item = transformed.take()) != Item.POISON_PILL) {
+                    try {
+                        outputFormat.write(item.img, item.outFile);
+                        item.img = null;
+                        release(item);
+                        result.numProcessed.incrementAndGet();
+                        fileFinished(item.file, FileResult.PROCESSED);
+                    } catch (Exception | OutOfMemoryError e) {
+                        failed(item, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void stopNextStage(BlockingQueue<Item> queue, int numThreads) {
+            try {
+                for (int i = 0; i < numThreads; i++) {
+                    queue.put(Item.POISON_PILL);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Only this file fails, the memory of its images is released
+         */
+        private void failed(Item item, Throwable e) {
+            item.img = null;
+            release(item);
+            result.errors.add(item.file.getName() + ": " + e);
+            fileFinished(item.file, FileResult.FAILED);
+        }
+
+        private void release(Item item) {
+            memory.release(item.memoryPermits);
+            residentImages.release();
+        }
+
+        private void fileFinished(File file, FileResult fileResult) {
+            int finished = numFinished.incrementAndGet();
+            if (listener != null) {
+                listener.fileFinished(file, fileResult, finished, files.length);
+            }
+        }
+    }
+
+    private static int calcMemoryBudgetMB() {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // leave room for the garbage and for the rest of the app
+        return (int) Math.max(64, available / 2 / MEGABYTE);
+    }
+
+    /**
+     * Reads only the image size from the header. The layered files
+     * and the files with an unknown size are processed alone.
+     */
+    private static int estimateMemoryMB(File file, int budgetMB) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(in, true, true);
+                        long bytes = 4L * IMAGE_COPIES_PER_FILE * reader.getWidth(0) * reader.getHeight(0);
+                        return (int) Math.max(1, Math.min(budgetMB, bytes / MEGABYTE + 1));
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the error will be reported when the file is read
+        }
+        return budgetMB;
+    }
+
+    /**
+     * Scales the images so that they fit into the given box, keeping the proportions
+     */
+    public static UnaryOperator<BufferedImage> resizeInBox(int maxWidth, int maxHeight) {
+        return img -> {
+            int width = img.getWidth();
+            int height = img.getHeight();
+            double scale = Math.min(maxWidth / (double) width, maxHeight / (double) height);
+            int targetWidth = Math.max(1, (int) (scale * width));
+            int targetHeight = Math.max(1, (int) (scale * height));
+            if (targetWidth == width && targetHeight == height) {
+                return img;
+            }
+            return Resampler.resize(img, targetWidth, targetHeight, Resampler.DEFAULT_KERNEL, true);
+        };
+    }
+
+    /**
+     * Runs the filter with its current settings. The filter objects keep
+     * state while running, so the filtering itself is done by one worker
+     * at a time, but most filters use all processors internally, and the
+     * decoding and encoding of the other files still runs in parallel.
+     */
+    public static UnaryOperator<BufferedImage> filter(Filter filter) {
+        return img -> {
+            synchronized (filter) {
+                return filter.executeForOneLayer(img);
+            }
+        };
+    }
+}
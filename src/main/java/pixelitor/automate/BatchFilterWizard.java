@@ -17,8 +17,6 @@
 
 package pixelitor.automate;
 
-import pixelitor.ChangeReason;
-import pixelitor.PixelitorWindow;
 import pixelitor.filters.Filter;
 
 import java.awt.Component;
@@ -48,12 +46,7 @@ public class BatchFilterWizard extends Wizard {
     @Override
     protected void executeFinalAction() {
         Filter filter = config.getFilter();
-        PixelitorWindow busyCursorParent = PixelitorWindow.getInstance();
-
-        Automate.processEachFile(comp -> {
-//                final ImageLayer layer = comp.getActiveMaskOrImageLayer();
-            comp.executeFilterWithBusyCursor(filter, ChangeReason.BATCH_AUTOMATE, busyCursorParent);
-        }, true, "Batch Filter Progress");
+        Automate.processEachFile(BatchEngine.filter(filter), "Batch Filter Progress");
     }
 
     @Override
@@ -18,8 +18,6 @@
 package pixelitor.automate;
 
 import pixelitor.PixelitorWindow;
-import pixelitor.filters.comp.CompAction;
-import pixelitor.filters.comp.Resize;
 import pixelitor.utils.IntTextField;
 import pixelitor.utils.ValidatedDialog;
 import pixelitor.utils.ValidatedForm;
@@ -45,8 +43,7 @@ public class BatchResize {
         int maxWidth = batchResizePanel.getNewWidth();
         int maxHeight = batchResizePanel.getNewHeight();
 
-        CompAction resizeAction = new Resize(maxWidth, maxHeight, true);
-        Automate.processEachFile(resizeAction, true, "Batch Resize...");
+        Automate.processEachFile(BatchEngine.resizeInBox(maxWidth, maxHeight), "Batch Resize...");
     }
 
     static class BatchResizePanel extends ValidatedForm {
@@ -17,12 +17,116 @@
 
 package pixelitor.automate.macro;
 
+import pixelitor.Composition;
+import pixelitor.PixelitorWindow;
+import pixelitor.filters.Filter;
+import pixelitor.filters.FilterAction;
+import pixelitor.filters.FilterUtils;
+import pixelitor.filters.FilterWithParametrizedGUI;
+import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.filters.gui.ParamSet;
+import pixelitor.filters.gui.ParamState;
+import pixelitor.layers.ImageLayer;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+import static pixelitor.ChangeReason.REPEAT_LAST;
+
 /**
- * Encapsulates a filter and its parameters
+ * A filter application with all the settings of the filter
  */
 public class FilterMacroStep implements MacroStep {
+    private static final long serialVersionUID = 1L;
+
+    private final String filterName;
+    private final String filterClassName;
+
+    // null for filters without settings
+    private final Map<String, ParamState> paramStates;
+
+    private transient Filter filter;
+
+    public FilterMacroStep(Filter filter) {
+        filterName = filter.getName();
+        filterClassName = filter.getClass().getName();
+        if (filter instanceof FilterWithParametrizedGUI) {
+            paramStates = ((FilterWithParametrizedGUI) filter).getParamSet().copyAllStates();
+        } else {
+            paramStates = null;
+        }
+    }
+
+    /**
+     * The settings of filters with custom dialogs can't be recorded
+     */
+    public static boolean canBeRecorded(Filter filter) {
+        return filter instanceof FilterWithParametrizedGUI
+                || !(filter instanceof FilterWithGUI);
+    }
+
     @Override
-    public void execute() {
+    public void execute(Composition comp, boolean fastPath) {
+        Filter filter = getFilter();
+        ParamSet paramSet = null;
+        if (paramStates != null) {
+            paramSet = ((FilterWithParametrizedGUI) filter).getParamSet();
+        }
+
+        // the filter objects are shared, their current settings are restored
+        synchronized (filter) {
+            Map<String, ParamState> currentStates = null;
+            if (paramSet != null) {
+                currentStates = paramSet.copyAllStates();
+                paramSet.setAllStates(paramStates);
+            }
+            try {
+                if (fastPath) {
+                    ImageLayer layer = comp.getActiveMaskOrImageLayer();
+                    BufferedImage src = layer.getImage();
+                    BufferedImage dest = filter.executeForOneLayer(src);
+                    if (dest != src) {
+                        layer.setImage(dest);
+                    }
+                } else {
+                    comp.executeFilterWithBusyCursor(filter, REPEAT_LAST,
+                            PixelitorWindow.getInstance());
+                }
+            } finally {
+                if (paramSet != null) {
+                    paramSet.setAllStates(currentStates);
+                }
+            }
+        }
+    }
+
+    private synchronized Filter getFilter() {
+        if (filter == null) {
+            filter = findFilter();
+        }
+        return filter;
+    }
 
+    private Filter findFilter() {
+        for (FilterAction action : FilterUtils.getAllFiltersSorted()) {
+            if (action.getName().equals(filterName)) {
+                Filter menuFilter = action.getFilter();
+                if (menuFilter.getClass().getName().equals(filterClassName)) {
+                    return menuFilter;
+                }
+            }
+        }
+
+        // the filter menus are not created in headless mode
+        try {
+            return (Filter) Class.forName(filterClassName).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("The filter \"" + filterName + "\" is not available", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return filterName;
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.automate.macro;
+
+import pixelitor.Composition;
+import pixelitor.history.AddToHistory;
+import pixelitor.utils.UpdateGUI;
+
+/**
+ * The layer operations that can be recorded in macros
+ */
+public enum LayerMacroStep implements MacroStep {
+    ADD_NEW_LAYER("New Layer") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.addNewEmptyLayer(null, false);
+        }
+    }, ADD_NEW_LAYER_BELOW("New Layer Below") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.addNewEmptyLayer(null, true);
+        }
+    }, DUPLICATE_LAYER("Duplicate Layer") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.duplicateLayer();
+        }
+    }, DELETE_LAYER("Delete Layer") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            if (comp.getNrLayers() > 1) {
+                comp.deleteActiveLayer(UpdateGUI.YES, AddToHistory.YES);
+            }
+        }
+    }, MERGE_DOWN("Merge Down") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.mergeDown(UpdateGUI.YES);
+        }
+    }, FLATTEN_IMAGE("Flatten Image") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.flattenImage(fastPath ? UpdateGUI.NO : UpdateGUI.YES);
+        }
+    }, MOVE_LAYER_UP("Raise Layer") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.moveActiveLayerUp();
+        }
+    }, MOVE_LAYER_DOWN("Lower Layer") {
+        @Override
+        public void execute(Composition comp, boolean fastPath) {
+            comp.moveActiveLayerDown();
+        }
+    };
+
+    private final String displayName;
+
+    LayerMacroStep(String displayName) {
+        this.displayName = displayName;
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
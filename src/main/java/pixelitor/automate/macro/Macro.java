@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.automate.macro;
+
+import pixelitor.Composition;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A recorded sequence of filters, layer operations and brush strokes.
+ * Macro files (pxm) contain the GZIP-compressed Java serialization
+ * of this object.
+ */
+public class Macro implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String FILE_EXTENSION = "pxm";
+
+    private final List<MacroStep> steps;
+
+    public Macro(List<MacroStep> steps) {
+        this.steps = new ArrayList<>(steps);
+    }
+
+    public List<MacroStep> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * Returns true if the macro can run only in the GUI
+     */
+    public boolean hasBrushStrokes() {
+        for (MacroStep step : steps) {
+            if (step instanceof ToolStrokeMacroStep) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Repeats the steps on the given composition. The compositions
+     * without a window are processed in the fast path.
+     */
+    public void replay(Composition comp) {
+        boolean fastPath = comp.getIC() == null;
+        if (fastPath) {
+            for (MacroStep step : steps) {
+                step.execute(comp, true);
+            }
+            return;
+        }
+
+        boolean completed = false;
+        MacroRecorder.replayStarted();
+        try {
+            for (MacroStep step : steps) {
+                step.execute(comp, false);
+            }
+            completed = true;
+        } finally {
+            MacroRecorder.replayFinished(this, completed);
+        }
+    }
+
+    /**
+     * Returns an operation that replays the macro on a windowless
+     * composition created from the image, for the batch processing
+     */
+    public UnaryOperator<BufferedImage> asImageOperation() {
+        return img -> {
+            Composition comp = Composition.fromImage(img, null, "macro");
+            replay(comp);
+            return comp.getCompositeImage();
+        };
+    }
+
+    public void save(File file) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file))))) {
+            out.writeObject(this);
+        }
+    }
+
+    public static Macro load(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(file))))) {
+            return (Macro) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException(file.getName() + " is not a macro file", e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.automate.macro;
+
+import pixelitor.filters.Filter;
+import pixelitor.utils.Messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the steps of a macro while the user works. All
+ * methods are called on the EDT.
+ */
+public final class MacroRecorder {
+    // null if there is no recording
+    private static List<MacroStep> steps;
+
+    // the steps of a replayed macro are recorded as a whole
+    private static boolean suspended = false;
+
+    /**
+     * Utility class with static methods
+     */
+    private MacroRecorder() {
+    }
+
+    public static void start() {
+        steps = new ArrayList<>();
+    }
+
+    public static boolean isRecording() {
+        return steps != null && !suspended;
+    }
+
+    /**
+     * Stops the recording and returns the recorded macro
+     */
+    public static Macro stop() {
+        Macro macro = new Macro(steps);
+        steps = null;
+        return macro;
+    }
+
+    public static void record(MacroStep step) {
+        if (isRecording()) {
+            steps.add(step);
+        }
+    }
+
+    /**
+     * Called after a filter has changed the active composition
+     */
+    public static void filterApplied(Filter filter) {
+        if (!isRecording()) {
+            return;
+        }
+        if (FilterMacroStep.canBeRecorded(filter)) {
+            steps.add(new FilterMacroStep(filter));
+        } else {
+            Messages.showStatusMessage("The settings of " + filter.getName()
+                    + " can't be recorded, it is not added to the macro.");
+        }
+    }
+
+    static void replayStarted() {
+        suspended = true;
+    }
+
+    static void replayFinished(Macro macro, boolean completed) {
+        suspended = false;
+        if (completed && steps != null) {
+            steps.addAll(macro.getSteps());
+        }
+    }
+}
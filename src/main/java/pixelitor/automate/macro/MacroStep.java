@@ -17,11 +17,20 @@
 
 package pixelitor.automate.macro;
 
+import pixelitor.Composition;
+
+import java.io.Serializable;
+
 /**
  * A step of a recorded macro.
  * Following the Command design pattern it encapsulates
  * a user action that can be replayed.
  */
-public interface MacroStep {
-    void execute();
+public interface MacroStep extends Serializable {
+    /**
+     * Repeats the action on the given composition. In the fast path
+     * the composition has no window: there are no previews,
+     * repaints or history.
+     */
+    void execute(Composition comp, boolean fastPath);
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.automate.macro;
+
+import pixelitor.Composition;
+import pixelitor.ImageComponents;
+import pixelitor.PixelitorWindow;
+import pixelitor.automate.Automate;
+import pixelitor.io.FileChoosers;
+import pixelitor.io.FileExtensionUtils;
+import pixelitor.utils.Messages;
+
+import javax.swing.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * The menu actions of the macros
+ */
+public final class Macros {
+    private static final FileNameExtensionFilter macroFilter =
+            new FileNameExtensionFilter("Pixelitor macros", Macro.FILE_EXTENSION);
+
+    private static File lastMacroDir;
+
+    /**
+     * Utility class with static methods
+     */
+    private Macros() {
+    }
+
+    public static void startRecording() {
+        if (MacroRecorder.isRecording()) {
+            Messages.showInfo("Recording", "A macro is already being recorded.");
+            return;
+        }
+        MacroRecorder.start();
+        Messages.showStatusMessage("Recording a macro: the filters, layer operations "
+                + "and brush strokes are recorded until the recording is stopped.");
+    }
+
+    public static void stopRecordingAndSave() {
+        if (!MacroRecorder.isRecording()) {
+            Messages.showInfo("Not recording", "No macro is being recorded.");
+            return;
+        }
+        Macro macro = MacroRecorder.stop();
+        if (macro.isEmpty()) {
+            Messages.showInfo("Empty macro", "Nothing was recorded.");
+            return;
+        }
+
+        JFileChooser chooser = createChooser();
+        if (chooser.showSaveDialog(PixelitorWindow.getInstance()) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        if (FileExtensionUtils.getFileExtension(file.getName()) == null) {
+            file = new File(file.getParentFile(), file.getName() + '.' + Macro.FILE_EXTENSION);
+        }
+        lastMacroDir = file.getParentFile();
+        try {
+            macro.save(file);
+            Messages.showFileSavedMessage(file);
+        } catch (IOException e) {
+            Messages.showException(e);
+        }
+    }
+
+    /**
+     * Replays a macro file on the active image
+     */
+    public static void runOnActiveImage() {
+        Optional<Composition> comp = ImageComponents.getActiveComp();
+        if (!comp.isPresent()) {
+            return;
+        }
+        loadMacro("Run Macro").ifPresent(macro -> {
+            try {
+                macro.replay(comp.get());
+            } catch (Exception e) {
+                Messages.showException(e);
+            }
+        });
+    }
+
+    /**
+     * Replays a macro file on every image of a folder,
+     * without opening them in windows
+     */
+    public static void batchRun() {
+        loadMacro("Batch Run Macro").ifPresent(macro -> {
+            String title = "Batch Run Macro";
+            if (Automate.selectInputAndOutputDir(false, title)) {
+                Automate.processEachFile(macro.asImageOperation(), title);
+            }
+        });
+    }
+
+    private static Optional<Macro> loadMacro(String dialogTitle) {
+        JFileChooser chooser = createChooser();
+        chooser.setDialogTitle(dialogTitle);
+        if (chooser.showOpenDialog(PixelitorWindow.getInstance()) != JFileChooser.APPROVE_OPTION) {
+            return Optional.empty();
+        }
+        File file = chooser.getSelectedFile();
+        lastMacroDir = file.getParentFile();
+        try {
+            return Optional.of(Macro.load(file));
+        } catch (IOException e) {
+            Messages.showError("Macro Error", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static JFileChooser createChooser() {
+        File dir = lastMacroDir != null ? lastMacroDir : FileChoosers.getLastOpenDir();
+        JFileChooser chooser = new JFileChooser(dir);
+        chooser.setFileFilter(macroFilter);
+        return chooser;
+    }
+}
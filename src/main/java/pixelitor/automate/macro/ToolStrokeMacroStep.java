@@ -17,12 +17,116 @@
 
 package pixelitor.automate.macro;
 
+import pixelitor.Composition;
+import pixelitor.FgBgColors;
+import pixelitor.tools.AbstractBrushTool;
+import pixelitor.tools.Tool;
+import pixelitor.tools.Tools;
+
+import java.awt.Color;
+import java.awt.EventQueue;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
 /**
- * Encapsulates a tool stroke:
+ * A brush stroke of a brush tool, with the points in image coordinates
  */
 public class ToolStrokeMacroStep implements MacroStep {
+    private static final long serialVersionUID = 1L;
+
+    private final String toolName;
+    private final int radius;
+    private final Color fgColor;
+    private final Color bgColor;
+
+    // x and y coordinates after each other
+    private float[] coords = new float[64];
+    private int numCoords = 0;
+
+    public ToolStrokeMacroStep(AbstractBrushTool tool, int radius, Color fgColor, Color bgColor) {
+        toolName = tool.getName();
+        this.radius = radius;
+        this.fgColor = fgColor;
+        this.bgColor = bgColor;
+    }
+
+    public void addPoint(double x, double y) {
+        if (numCoords == coords.length) {
+            coords = Arrays.copyOf(coords, 2 * coords.length);
+        }
+        coords[numCoords++] = (float) x;
+        coords[numCoords++] = (float) y;
+    }
+
+    public double getLastX() {
+        return coords[numCoords - 2];
+    }
+
+    public double getLastY() {
+        return coords[numCoords - 1];
+    }
+
+    /**
+     * The strokes run on the EDT, because they
+     * use the shared tool and color objects
+     */
     @Override
-    public void execute() {
+    public void execute(Composition comp, boolean fastPath) {
+        if (FgBgColors.getGUI() == null) {
+            throw new IllegalStateException("The brush strokes of macros can be replayed only in the GUI");
+        }
+        if (EventQueue.isDispatchThread()) {
+            replay(comp);
+            return;
+        }
+        try {
+            EventQueue.invokeAndWait(() -> replay(comp));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void replay(Composition comp) {
+        AbstractBrushTool tool = findTool();
+        double[] points = new double[numCoords];
+        for (int i = 0; i < numCoords; i++) {
+            points[i] = coords[i];
+        }
+
+        Color origFg = FgBgColors.getFG();
+        Color origBg = FgBgColors.getBG();
+        FgBgColors.setFG(fgColor);
+        FgBgColors.setBG(bgColor);
+        try {
+            tool.replayBrushStroke(comp, points, radius);
+        } finally {
+            FgBgColors.setFG(origFg);
+            FgBgColors.setBG(origBg);
+        }
+    }
 
+    private AbstractBrushTool findTool() {
+        for (Tool tool : Tools.getTools()) {
+            if (tool.getName().equals(toolName) && tool instanceof AbstractBrushTool) {
+                return (AbstractBrushTool) tool;
+            }
+        }
+        throw new IllegalStateException("The tool \"" + toolName + "\" is not available");
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the unused capacity is not saved
+        coords = Arrays.copyOf(coords, numCoords);
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public String toString() {
+        return toolName + " Stroke";
     }
 }
@@ -34,8 +34,8 @@ import java.awt.image.BufferedImage;
 public class Canny extends FilterWithParametrizedGUI {
     private final RangeParam lowThreshold = new RangeParam("Low Threshold", 1, 250, 1000);
     private final RangeParam highThreshold = new RangeParam("High Threshold", 1, 750, 1000);
-    private final RangeParam gaussianKernelWidth = new RangeParam("Gaussian Kernel Width", 2, 16, 50);
-    private final RangeParam gaussianKernelRadius = new RangeParam("Gaussian Kernel Radius", 1, 2, 10);
+    private final RangeParam gaussianKernelWidth = new RangeParam("Gaussian Kernel Width", 2, 16, 50).markAsDistance();
+    private final RangeParam gaussianKernelRadius = new RangeParam("Gaussian Kernel Radius", 1, 2, 10).markAsDistance();
     private final BooleanParam contrastNormalized = new BooleanParam("Contrast Normalized", false);
 
     public Canny() {
@@ -40,6 +40,11 @@ public class ExtractChannelFilter extends Filter {
         // no settings
     }
 
+    @Override
+    protected boolean isPointFilter() {
+        return true;
+    }
+
     // static factory methods from here
 
     public static FilterAction getValueChannelFA() {
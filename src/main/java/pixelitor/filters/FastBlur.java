@@ -33,7 +33,7 @@ import java.awt.image.BufferedImageOp;
  * Fast Blur
  */
 public class FastBlur extends FilterWithParametrizedGUI {
-    private final RangeParam radiusParam = new RangeParam("Radius", 0, 0, 100);
+    private final RangeParam radiusParam = new RangeParam("Radius", 0, 0, 100).markAsDistance();
     private final BooleanParam hpSharpening = BooleanParam.createParamForHPSharpening();
 
     private static final int METHOD_BETTER = 1;
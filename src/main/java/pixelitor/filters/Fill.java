@@ -45,4 +45,9 @@ public class Fill extends Filter {
     public void randomizeSettings() {
         // no settings
     }
+
+    @Override
+    protected boolean isPointFilter() {
+        return true;
+    }
 }
@@ -24,6 +24,7 @@ import pixelitor.ImageComponents;
 import pixelitor.ImageDisplay;
 import pixelitor.PixelitorWindow;
 import pixelitor.layers.Layer;
+import pixelitor.utils.BufferPool;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
 import pixelitor.utils.Utils;
@@ -58,11 +59,18 @@ public abstract class Filter implements Serializable {
      * This code is executed with busy cursor
      */
     public void runit(Composition comp, ChangeReason changeReason) {
+        if (isPointFilter() && !changeReason.isPreview()
+                && comp.filterOutOfCoreTiles(this::executeForOneLayer, changeReason, getName())) {
+            // a very large layer was filtered without loading it into memory
+            return;
+        }
+
         BufferedImage src = comp.getFilterSource();
         BufferedImage dest;
 
         try {
-            dest = executeForOneLayer(src);
+            // the previews are recycled by the layer
+            dest = executeForOneLayer(src, changeReason.isPreview());
         } catch (Exception e) {
             Layer activeLayer = comp.getActiveLayer();
             String msg = String.format(
@@ -102,14 +110,30 @@ public abstract class Filter implements Serializable {
     }
 
     public BufferedImage executeForOneLayer(BufferedImage src) {
+        return executeForOneLayer(src, false);
+    }
+
+    private BufferedImage executeForOneLayer(BufferedImage src, boolean pooledDest) {
         BufferedImage dest = null;
         if (createDefaultDestBuffer()) {
-            dest = ImageUtils.createCompatibleDest(src);
+            if (pooledDest) {
+                dest = BufferPool.borrowCompatibleImage(src);
+            } else {
+                dest = ImageUtils.createCompatibleDest(src);
+            }
         }
+        BufferedImage defaultDest = dest;
+        int numBorrowedBefore = BufferPool.getNumBorrowedArrays();
 
         dest = transform(src, dest);
         runCount++;
 
+        assert BufferPool.getNumBorrowedArrays() == numBorrowedBefore :
+                getName() + " did not return the buffers borrowed at" + BufferPool.describeBorrowedArrays();
+        if (pooledDest && dest != defaultDest) {
+            BufferPool.returnImage(defaultDest);
+        }
+
         if (dest == null) {
             if (Build.CURRENT == Build.DEVELOPMENT) {
                 System.out.println(String.format("Filter::executeForOneLayer: '%s' returned null dest", getName()));
@@ -122,6 +146,14 @@ public abstract class Filter implements Serializable {
 
     protected abstract BufferedImage transform(BufferedImage src, BufferedImage dest);
 
+    /**
+     * Returns true if each output pixel depends only on the input pixel
+     * at the same position, so that the filter can run tile by tile
+     */
+    protected boolean isPointFilter() {
+        return false;
+    }
+
     public abstract void randomizeSettings();
 
     public void setFilterAction(FilterAction filterAction) {
@@ -17,7 +17,7 @@ import java.awt.image.BufferedImage;
  */
 public class Flashlight extends FilterWithParametrizedGUI {
     private final ImagePositionParam center = new ImagePositionParam("Center");
-    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 1, 200, 1000, false);
+    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 1, 200, 1000, false).markAsDistance();
     private final RangeParam softness = new RangeParam("Softness", 0, 20, 100);
     private final IntChoiceParam bg = new IntChoiceParam("Background",
             new IntChoiceParam.Value[]{
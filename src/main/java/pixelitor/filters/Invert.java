@@ -93,4 +93,9 @@ public class Invert extends Filter {
     public void randomizeSettings() {
         // nothing to randomize
     }
+
+    @Override
+    protected boolean isPointFilter() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -23,4 +23,9 @@ public class InvertTransparency extends Filter {
     public void randomizeSettings() {
 
     }
+
+    @Override
+    protected boolean isPointFilter() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -42,8 +42,8 @@ import static pixelitor.filters.gui.ColorParam.OpacitySetting.FREE_OPACITY;
  * Draw Grid
  */
 public class RenderGrid extends FilterWithParametrizedGUI {
-    private final RangeParam spacingParam = new RangeParam("Spacing", 1, 40, 100);
-    private final RangeParam widthParam = new RangeParam("Width", 1, 20, 100);
+    private final RangeParam spacingParam = new RangeParam("Spacing", 1, 40, 100).markAsDistance();
+    private final RangeParam widthParam = new RangeParam("Width", 1, 20, 100).markAsDistance();
     private final ColorParam colorParam = new ColorParam("Color", BLACK, FREE_OPACITY);
     private final BooleanParam emptyIntersectionsParam = new BooleanParam("Empty Intersections", false);
     private final RangeParam opacityParam = new RangeParam("Opacity (%)", 0, 100, 100);
@@ -17,35 +17,110 @@
 package pixelitor.filters.animation;
 
 import pd.AnimatedGifEncoder;
+import pixelitor.ThreadPool;
+import pixelitor.utils.SwapFile;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * An AnimationWriter implementation that writes an animated GIF file
+ * An AnimationWriter implementation that writes an animated GIF file.
+ * The frames are quantized and compressed in parallel, and only the
+ * pixels that changed since the previous frame are encoded.
  */
 public class AnimGIFWriter implements AnimationWriter {
+    // the number of frames used for calculating a shared palette
+    private static final int NUM_PALETTE_SAMPLES = 8;
+
     private final AnimatedGifEncoder encoder;
 
+    // with a shared palette the frames are kept here until all of them are known
+    private SwapFile swapFile;
+    private final List<Long> swappedFrames = new ArrayList<>();
+
     public AnimGIFWriter(File file, int delayMillis) {
+        this(file, delayMillis, false);
+    }
+
+    /**
+     * If sharedPalette is true, one color table is calculated from frames
+     * sampled from the whole animation, otherwise each frame has its own
+     */
+    public AnimGIFWriter(File file, int delayMillis, boolean sharedPalette) {
         encoder = new AnimatedGifEncoder();
         encoder.start(file);
         encoder.setDelay(delayMillis);
         encoder.setRepeat(0);
+        encoder.setNumThreads(ThreadPool.NUM_AVAILABLE_PROCESSORS);
+        encoder.setFrameDifferencing(true);
+
+        if (sharedPalette) {
+            try {
+                swapFile = SwapFile.create(SwapFile.getDefaultDir());
+            } catch (IOException e) {
+                // each frame will have its own palette
+                swapFile = null;
+            }
+        }
     }
 
     @Override
-    public void addFrame(BufferedImage image) {
-        encoder.addFrame(image);
+    public void addFrame(BufferedImage image) throws IOException {
+        if (swapFile != null) {
+            swappedFrames.add(swapFile.write(image));
+        } else if (!encoder.addFrame(image)) {
+            throw new IOException("Could not write the animated GIF frame");
+        }
     }
 
     @Override
     public void finish() {
+        if (swapFile != null) {
+            try {
+                encodeSwappedFrames();
+            } catch (IOException e) {
+                cancel();
+                throw new IllegalStateException(e);
+            } finally {
+                closeSwapFile();
+            }
+        }
         encoder.finish();
     }
 
+    private void encodeSwappedFrames() throws IOException {
+        int numFrames = swappedFrames.size();
+        int numSamples = Math.min(NUM_PALETTE_SAMPLES, numFrames);
+        List<BufferedImage> samples = new ArrayList<>(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            // evenly spaced, including the first and the last frame
+            int frameIndex = numSamples == 1 ? 0 : i * (numFrames - 1) / (numSamples - 1);
+            samples.add(swapFile.read(swappedFrames.get(frameIndex)));
+        }
+        encoder.setGlobalPalette(samples);
+        samples.clear();
+
+        for (Long pos : swappedFrames) {
+            if (!encoder.addFrame(swapFile.read(pos))) {
+                throw new IOException("Could not write the animated GIF frame");
+            }
+        }
+    }
+
     @Override
     public void cancel() {
+        closeSwapFile();
         encoder.cancel();
     }
+
+    private void closeSwapFile() {
+        if (swapFile != null) {
+            swapFile.close();
+            swapFile = null;
+            swappedFrames.clear();
+        }
+    }
 }
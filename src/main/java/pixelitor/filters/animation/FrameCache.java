@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.animation;
+
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.SwapFile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The rendered frames of a tweening animation, so that no frame has to
+ * be rendered twice. The most recently used frames are kept in memory
+ * up to a limit, the others are moved into a swap file.
+ */
+class FrameCache {
+    private final long maxMemoryBytes;
+    private long memoryBytes = 0;
+
+    // in access order, the first one is the least recently used
+    private final LinkedHashMap<Integer, BufferedImage> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the frames kept in memory after the rendering, until the memory is needed
+    private final Map<Integer, SoftReference<BufferedImage>> released = new HashMap<>();
+
+    // the positions of the frames in the swap file
+    private final Map<Integer, Long> onDisk = new HashMap<>();
+    private SwapFile swapFile;
+    private boolean diskFailed = false;
+
+    FrameCache(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * The frames must not be modified after they are added
+     */
+    synchronized void put(int frameNr, BufferedImage frame) {
+        if (contains(frameNr)) {
+            return;
+        }
+        inMemory.put(frameNr, frame);
+        memoryBytes += ImageUtils.getMemoryBytes(frame);
+
+        Iterator<Map.Entry<Integer, BufferedImage>> it = inMemory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && inMemory.size() > 1) {
+            Map.Entry<Integer, BufferedImage> eldest = it.next();
+            it.remove();
+            memoryBytes -= ImageUtils.getMemoryBytes(eldest.getValue());
+            moveToDisk(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void moveToDisk(int frameNr, BufferedImage frame) {
+        if (diskFailed) {
+            return; // it will be rendered again if needed
+        }
+        try {
+            if (swapFile == null) {
+                swapFile = SwapFile.create(SwapFile.getDefaultDir());
+            }
+            onDisk.put(frameNr, swapFile.write(frame));
+        } catch (IOException e) {
+            diskFailed = true;
+        }
+    }
+
+    /**
+     * Returns the cached frame or null if it has to be rendered
+     */
+    synchronized BufferedImage get(int frameNr) {
+        BufferedImage frame = inMemory.get(frameNr);
+        if (frame != null) {
+            return frame;
+        }
+        SoftReference<BufferedImage> ref = released.get(frameNr);
+        if (ref != null) {
+            frame = ref.get();
+            if (frame != null) {
+                return frame;
+            }
+            released.remove(frameNr);
+        }
+        Long pos = onDisk.get(frameNr);
+        if (pos != null) {
+            try {
+                return swapFile.read(pos);
+            } catch (IOException e) {
+                onDisk.remove(frameNr);
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean contains(int frameNr) {
+        if (inMemory.containsKey(frameNr) || onDisk.containsKey(frameNr)) {
+            return true;
+        }
+        SoftReference<BufferedImage> ref = released.get(frameNr);
+        return ref != null && ref.get() != null;
+    }
+
+    /**
+     * Called after the rendering: the frames still in memory
+     * can be freed by the garbage collector if it needs the memory
+     */
+    synchronized void releaseMemory() {
+        for (Map.Entry<Integer, BufferedImage> entry : inMemory.entrySet()) {
+            released.put(entry.getKey(), new SoftReference<>(entry.getValue()));
+        }
+        inMemory.clear();
+        memoryBytes = 0;
+    }
+
+    /**
+     * Deletes the swap file
+     */
+    synchronized void dispose() {
+        inMemory.clear();
+        released.clear();
+        onDisk.clear();
+        memoryBytes = 0;
+        if (swapFile != null) {
+            swapFile.close();
+            swapFile = null;
+        }
+    }
+}
@@ -50,6 +50,7 @@ public class OutputSettingsPanel extends ValidatedForm implements TextFieldValid
     private JComboBox<Interpolation> ipCB;
     private JComboBox<TweenOutputType> outputTypeCB;
     private JCheckBox pingPongCB = new JCheckBox();
+    private final JCheckBox sharedPaletteCB = new JCheckBox();
     private final BrowseFilesSupport browseFilesSupport = new BrowseFilesSupport(FileChoosers.getLastSaveDir().getAbsolutePath());
     private JTextField fileNameTF;
     private String errorMessage;
@@ -66,6 +67,7 @@ public class OutputSettingsPanel extends ValidatedForm implements TextFieldValid
         addAnimationLengthSelector(tfLayerUI, gbHelper);
         addInterpolationSelector(gbHelper);
         addPingPongSelector(gbHelper);
+        addSharedPaletteSelector(gbHelper);
         addFileSelector(tfLayerUI, gbHelper);
     }
 
@@ -113,6 +115,12 @@ public class OutputSettingsPanel extends ValidatedForm implements TextFieldValid
         pingPongCB.addActionListener(e -> updateCalculations());
     }
 
+    private void addSharedPaletteSelector(GridBagHelper gbHelper) {
+        sharedPaletteCB.setToolTipText("<html>Use the same colors in all frames." +
+                "<br>This avoids color flickering and makes the file smaller.");
+        gbHelper.addLabelWithControl("Shared Color Palette:", sharedPaletteCB);
+    }
+
     private void addFileSelector(LayerUI<JTextField> tfLayerUI, GridBagHelper gbHelper) {
         JPanel filePanel = new JPanel(new FlowLayout());
         filePanel.setBorder(BorderFactory.createTitledBorder("Output File/Folder"));
@@ -132,6 +140,7 @@ public class OutputSettingsPanel extends ValidatedForm implements TextFieldValid
             browseFilesSupport.setDialogTitle("Select Output File");
             browseFilesSupport.setFileFilter(selected.getFileFilter());
         }
+        sharedPaletteCB.setEnabled(selected.hasPalette());
         if (fileNameTF != null) { // not the initial setup
             fileNameTF.repaint();
         }
@@ -210,6 +219,7 @@ public class OutputSettingsPanel extends ValidatedForm implements TextFieldValid
         animation.setMillisBetweenFrames((int) (1000.0 / fps));
         animation.setInterpolation((Interpolation) ipCB.getSelectedItem());
         animation.setPingPong(pingPongCB.isSelected());
+        animation.setSharedPalette(type.hasPalette() && sharedPaletteCB.isSelected());
 
         if (output.isDirectory()) {
             FileChoosers.setLastSaveDir(output);
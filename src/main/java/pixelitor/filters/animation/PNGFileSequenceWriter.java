@@ -14,40 +14,163 @@
  * You should have received a copy of the GNU General Public License
  * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
  */
-
 package pixelitor.filters.animation;
 
-import javax.imageio.ImageIO;
+import pixelitor.ThreadPool;
+import pixelitor.io.PngOutput;
+import pixelitor.utils.Messages;
+
+import javax.swing.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * An AnimationWriter implementation that writes a sequence of PNG files
+ * An AnimationWriter implementation that writes a sequence of PNG files.
+ * The frames are queued and encoded by several threads, so that the
+ * rendering only waits for the encoding if the queue is full.
+ * The added frames must not be modified later.
  */
 public class PNGFileSequenceWriter implements AnimationWriter {
+    private static final long MB = 1024 * 1024;
+
     private final File outputDir;
     private int fileSequenceNumber;
 
+    private final ExecutorService encoders;
+
+    // the frames that are waiting or being encoded
+    private final int maxQueued;
+    private final Semaphore queueSlots;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicReference<IOException> firstError = new AtomicReference<>();
+
+    // statistics
+    private final long startTime = System.nanoTime();
+    private long waitingNanos = 0; // the time addFrame waited for a free slot
+    private long sumQueueDepth = 0;
+    private final AtomicInteger numWritten = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
     public PNGFileSequenceWriter(File outputDir) {
+        this(outputDir, ThreadPool.NUM_AVAILABLE_PROCESSORS);
+    }
+
+    public PNGFileSequenceWriter(File outputDir, int numEncoders) {
         this.outputDir = outputDir;
+        numEncoders = Math.max(1, numEncoders);
+        maxQueued = 2 * numEncoders;
+        queueSlots = new Semaphore(maxQueued);
+        encoders = Executors.newFixedThreadPool(numEncoders, r -> {
+            Thread thread = new Thread(r, "PNG Sequence Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void addFrame(BufferedImage image) throws IOException {
+        IOException error = firstError.get();
+        if (error != null) {
+            throw error;
+        }
+
+        // the numbers are given in the order of the frames
         String fileName = String.format("frame_%05d.png", fileSequenceNumber);
         fileSequenceNumber++;
         File outputFile = new File(outputDir, fileName);
-        ImageIO.write(image, "PNG", outputFile);
+
+        long waitStart = System.nanoTime();
+        try {
+            queueSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + fileName, e);
+        }
+        waitingNanos += System.nanoTime() - waitStart;
+        sumQueueDepth += queueDepth.incrementAndGet();
+
+        encoders.execute(() -> {
+            try {
+                if (firstError.get() == null) {
+                    writeFrame(image, outputFile);
+                }
+            } catch (IOException e) {
+                firstError.compareAndSet(null, e);
+            } finally {
+                queueDepth.decrementAndGet();
+                queueSlots.release();
+            }
+        });
+    }
+
+    private void writeFrame(BufferedImage image, File outputFile) throws IOException {
+        // the frames are usually processed further, so the size matters less
+        PngOutput.Preset preset = PngOutput.Preset.FAST;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+            // the frames are already encoded in parallel, the stripes of a frame are not
+            PngOutput.write(image, out, preset.getCompressionLevel(), preset.getFilter(), false);
+        }
+        numWritten.incrementAndGet();
+        bytesWritten.addAndGet(outputFile.length());
+    }
+
+    /**
+     * Returns the number of frames that are waiting or being encoded
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the number of written frames, the throughput and the
+     * average queue depth. If the queue is usually full, then the
+     * encoding or the disk is slower than the rendering.
+     */
+    public String getStatistics() {
+        double seconds = (System.nanoTime() - startTime) / 1.0e9;
+        int written = numWritten.get();
+        double avgQueueDepth = fileSequenceNumber == 0 ? 0 : sumQueueDepth / (double) fileSequenceNumber;
+        return String.format("%d frames written in %.1f s (%.1f frames/s, %.1f MB/s), " +
+                        "average queue depth %.1f of %d, rendering waited %.1f s for the encoders",
+                written, seconds, written / seconds, bytesWritten.get() / (double) MB / seconds,
+                avgQueueDepth, maxQueued, waitingNanos / 1.0e9);
     }
 
     @Override
     public void finish() {
-
+        awaitEncoders();
+        IOException error = firstError.get();
+        if (error != null) {
+            SwingUtilities.invokeLater(() -> Messages.showException(error));
+        } else {
+            Messages.showStatusMessage(getStatistics());
+        }
     }
 
     @Override
     public void cancel() {
+        // the already written frames are kept
+        encoders.shutdownNow();
+        awaitEncoders();
+    }
 
+    private void awaitEncoders() {
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
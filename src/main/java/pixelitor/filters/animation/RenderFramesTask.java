@@ -18,21 +18,50 @@
 package pixelitor.filters.animation;
 
 import pixelitor.ChangeReason;
+import pixelitor.Composition;
 import pixelitor.ImageComponents;
 import pixelitor.ImageDisplay;
-import pixelitor.PixelitorWindow;
-import pixelitor.filters.Filter;
+import pixelitor.ThreadPool;
 import pixelitor.filters.FilterWithParametrizedGUI;
+import pixelitor.filters.gui.ParamSet;
 import pixelitor.filters.gui.ParamSetState;
+import pixelitor.filters.gui.ParamState;
+import pixelitor.history.History;
 import pixelitor.layers.ImageLayer;
 import pixelitor.utils.Messages;
-import pixelitor.utils.Utils;
 
 import javax.swing.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Renders the frames of a tweening animation. Several frames are
+ * calculated at the same time by copies of the filter, and the
+ * finished frames are cached, so that the backwards frames of a
+ * ping-pong animation and a repeated export with the same
+ * settings don't have to be calculated again.
+ */
 class RenderFramesTask extends SwingWorker<Void, Void> {
+    private static final int MAX_WORKERS = 4;
+
+    // the frames of the last rendering, reused if nothing changed since
+    private static FrameCache lastFrames;
+    private static RenderKey lastKey;
+
     private final TweenAnimation animation;
 
     public RenderFramesTask(TweenAnimation tweenAnimation) {
@@ -58,46 +87,75 @@ class RenderFramesTask extends SwingWorker<Void, Void> {
         AnimationWriter animationWriter = animation.createAnimationWriter();
         boolean canceled = false;
 
+        Composition comp = ImageComponents.getActiveComp().get();
         ImageLayer activeImageLayer = ImageComponents.getActiveImageLayerOrMask().get();
-        PixelitorWindow busyCursorParent = PixelitorWindow.getInstance();
+        FrameCache frames = getFrameCache(comp, activeImageLayer, filter);
 
         activeImageLayer.tweenCalculatingStarted();
 
+        // the source image is only read by the workers
+        BufferedImage src = comp.getFilterSource();
+        BlockingQueue<FilterWithParametrizedGUI> filters = createFilterCopies(filter);
+        int numWorkers = filters.size();
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread thread = new Thread(r, "Tween Frame Renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<Integer, Future<BufferedImage>> pending = new HashMap<>();
+
         int numTotalFrames = numFrames;
         boolean pingPong = animation.isPingPong() && numFrames > 2;
         if (pingPong) {
             numTotalFrames = 2 * numFrames - 2;
         }
 
-        for (int frameNr = 0; frameNr < numTotalFrames; frameNr++) {
-            if (isCancelled()) {
-                canceled = true;
-                break;
-            }
-            int percentProgress = (int) ((100.0 * frameNr) / numTotalFrames);
-            setProgress(percentProgress);
-
-            double time;
-            if (frameNr < numFrames) { // ping: normal animation forwards
-                time = ((double) frameNr) / numFrames;
-            } else { // pong: animating backwards
-                // TODO we are calculating the same frames again
-                // they could be cached somewhere
-                // perhaps in an array of soft references with the calculated frames
-                // or on the disk
-                int effectiveFrame = 2 * (numFrames - 1) - frameNr;
-                time = ((double) effectiveFrame) / numFrames;
-            }
+        try {
+            for (int frameNr = 0; frameNr < numTotalFrames; frameNr++) {
+                if (isCancelled()) {
+                    canceled = true;
+                    break;
+                }
+                int percentProgress = (int) ((100.0 * frameNr) / numTotalFrames);
+                setProgress(percentProgress);
 
-            BufferedImage image = renderFrame(filter, time, busyCursorParent);
+                // the next few frames are calculated in the background
+                for (int ahead = frameNr; ahead < numTotalFrames && ahead <= frameNr + numWorkers; ahead++) {
+                    int effectiveAhead = getEffectiveFrame(ahead, numFrames);
+                    if (!pending.containsKey(effectiveAhead) && !frames.contains(effectiveAhead)) {
+                        double time = ((double) effectiveAhead) / numFrames;
+                        pending.put(effectiveAhead, workers.submit(() -> renderLayerImage(filters, src, time)));
+                    }
+                }
 
-            try {
-                animationWriter.addFrame(image);
-            } catch (IOException e) {
-                canceled = true;
-                Messages.showException(e);
-                break;
+                int effectiveFrame = getEffectiveFrame(frameNr, numFrames);
+                BufferedImage image = frames.get(effectiveFrame);
+                if (image == null) {
+                    Future<BufferedImage> future = pending.remove(effectiveFrame);
+                    if (future == null) { // the cached frame was freed in the meantime
+                        double time = ((double) effectiveFrame) / numFrames;
+                        future = workers.submit(() -> renderLayerImage(filters, src, time));
+                    }
+                    image = showFrame(comp, filter, future.get());
+                    frames.put(effectiveFrame, image);
+                }
+
+                try {
+                    animationWriter.addFrame(image);
+                } catch (IOException e) {
+                    canceled = true;
+                    Messages.showException(e);
+                    break;
+                }
             }
+        } catch (InterruptedException e) {
+            canceled = true;
+        } catch (ExecutionException e) {
+            canceled = true;
+            SwingUtilities.invokeLater(() -> Messages.showException(e.getCause()));
+        } finally {
+            workers.shutdownNow();
+            frames.releaseMemory();
         }
 
         setProgress(100);
@@ -110,24 +168,151 @@ class RenderFramesTask extends SwingWorker<Void, Void> {
         }
     }
 
-    private BufferedImage renderFrame(FilterWithParametrizedGUI filter, double time, PixelitorWindow busyCursorParent) {
-        long runCountBefore = Filter.runCount;
+    /**
+     * Returns the frame number in the forward animation
+     * that is shown at the given position
+     */
+    private static int getEffectiveFrame(int frameNr, int numFrames) {
+        if (frameNr < numFrames) { // ping: normal animation forwards
+            return frameNr;
+        }
+        // pong: animating backwards
+        return 2 * (numFrames - 1) - frameNr;
+    }
 
+    /**
+     * Calculates the filtered layer image at the given time in a worker thread
+     */
+    private BufferedImage renderLayerImage(BlockingQueue<FilterWithParametrizedGUI> filters,
+                                           BufferedImage src, double time) throws InterruptedException {
         ParamSetState intermediateState = animation.tween(time);
-        filter.getParamSet().setState(intermediateState);
+        FilterWithParametrizedGUI filter = filters.take();
+        try {
+            filter.getParamSet().setState(intermediateState);
+            return filter.executeForOneLayer(src);
+        } finally {
+            filters.put(filter);
+        }
+    }
 
-        Utils.executeFilterWithBusyCursor(filter, ChangeReason.TWEEN_PREVIEW, busyCursorParent);
+    /**
+     * Shows the filtered layer image in the active image and returns the composite image
+     */
+    private static BufferedImage showFrame(Composition comp, FilterWithParametrizedGUI filter, BufferedImage layerImage) {
+        comp.changePreviewImage(layerImage, filter.getName(), ChangeReason.TWEEN_PREVIEW);
 
-        long runCountAfter = Filter.runCount;
-        assert runCountAfter == runCountBefore + 1;
+        ImageDisplay ic = comp.getIC();
+        if (ic != null) {
+            ic.repaint();
+        }
+
+        return comp.getCompositeImage();
+    }
 
-        ImageDisplay ic = ImageComponents.getActiveIC();
-        ic.repaint();
+    /**
+     * Each worker thread uses its own copy of the filter. If the filter
+     * can't be copied with all its settings, the frames are calculated
+     * one after the other by the original filter.
+     */
+    private static BlockingQueue<FilterWithParametrizedGUI> createFilterCopies(FilterWithParametrizedGUI filter) {
+        int numWorkers = Math.max(1, Math.min(ThreadPool.NUM_AVAILABLE_PROCESSORS, MAX_WORKERS));
+        List<FilterWithParametrizedGUI> copies = new ArrayList<>(numWorkers);
 
-        return ImageComponents.getActiveCompositeImage().get();
+        ParamSet paramSet = filter.getParamSet();
+        Map<String, ParamState> states = paramSet.copyAllStates();
+        if (numWorkers > 1 && states.size() == paramSet.getParamList().size()) {
+            try {
+                for (int i = 0; i < numWorkers; i++) {
+                    FilterWithParametrizedGUI copy = filter.getClass().newInstance();
+                    copy.getParamSet().setAllStates(states);
+                    copies.add(copy);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                copies.clear();
+            }
+        }
+        if (copies.isEmpty()) {
+            copies.add(filter);
+        }
+        return new ArrayBlockingQueue<>(copies.size(), false, copies);
     }
 
-    @Override
-    protected void done() {
+    /**
+     * Returns the frames of the last rendering if they were rendered
+     * with the same settings from the same image, or a new cache
+     */
+    private FrameCache getFrameCache(Composition comp, ImageLayer layer, FilterWithParametrizedGUI filter) {
+        RenderKey key = RenderKey.create(comp, layer, filter, animation);
+        synchronized (RenderFramesTask.class) {
+            if (lastFrames != null && key != null && key.equals(lastKey)) {
+                return lastFrames;
+            }
+            if (lastFrames != null) {
+                lastFrames.dispose();
+            }
+            long maxMemory = Math.min(Runtime.getRuntime().maxMemory() / 8, 256L * 1024 * 1024);
+            lastFrames = new FrameCache(maxMemory);
+            lastKey = key;
+            return lastFrames;
+        }
+    }
+
+    /**
+     * Identifies the input of a rendering: the image and its
+     * history, the filter and all the animation settings
+     */
+    private static class RenderKey {
+        private final WeakReference<Composition> comp;
+        private final WeakReference<BufferedImage> layerImage;
+        private final WeakReference<Object> lastEdit;
+        private final byte[] settings;
+
+        private RenderKey(Composition comp, BufferedImage layerImage, Object lastEdit, byte[] settings) {
+            this.comp = new WeakReference<>(comp);
+            this.layerImage = new WeakReference<>(layerImage);
+            this.lastEdit = new WeakReference<>(lastEdit);
+            this.settings = settings;
+        }
+
+        /**
+         * Returns null if the settings can't be captured
+         */
+        static RenderKey create(Composition comp, ImageLayer layer,
+                                FilterWithParametrizedGUI filter, TweenAnimation animation) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(filter.getClass().getName());
+                out.writeObject(new HashMap<>(filter.getParamSet().copyAllStates()));
+                out.writeObject(animation.getInterpolation());
+                out.writeInt(animation.getNumFrames());
+                // the intermediate states are determined by the first and the last one
+                for (ParamState state : animation.tween(0.0)) {
+                    out.writeObject(state);
+                }
+                for (ParamState state : animation.tween(1.0)) {
+                    out.writeObject(state);
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return new RenderKey(comp, layer.getImage(), History.getLastEdit(), bytes.toByteArray());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RenderKey)) {
+                return false;
+            }
+            RenderKey other = (RenderKey) o;
+            return comp.get() != null && comp.get() == other.comp.get()
+                    && layerImage.get() != null && layerImage.get() == other.layerImage.get()
+                    && lastEdit.get() == other.lastEdit.get()
+                    && Arrays.equals(settings, other.settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(settings);
+        }
     }
 }
@@ -34,6 +34,7 @@ public class TweenAnimation {
     private TweenOutputType outputType;
     private File output; // file or directory
     private boolean pingPong;
+    private boolean sharedPalette;
 
     public FilterWithParametrizedGUI getFilter() {
         return filter;
@@ -81,7 +82,7 @@ public class TweenAnimation {
 
     public AnimationWriter createAnimationWriter() {
         return outputType.createAnimationWriter(
-                output, millisBetweenFrames);
+                output, millisBetweenFrames, sharedPalette);
     }
 
     public ParamSetState tween(double time) {
@@ -122,4 +123,8 @@ public class TweenAnimation {
     public boolean isPingPong() {
         return pingPong;
     }
+
+    public void setSharedPalette(boolean sharedPalette) {
+        this.sharedPalette = sharedPalette;
+    }
 }
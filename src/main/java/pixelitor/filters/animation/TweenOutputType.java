@@ -28,7 +28,7 @@ import java.io.File;
 public enum TweenOutputType {
     PNG_FILE_SEQUENCE("PNG File Sequence") {
         @Override
-        AnimationWriter createAnimationWriter(File file, int delayMillis) {
+        AnimationWriter createAnimationWriter(File file, int delayMillis, boolean sharedPalette) {
             return new PNGFileSequenceWriter(file);
         }
 
@@ -48,8 +48,8 @@ public enum TweenOutputType {
         }
     }, ANIM_GIF("Animated GIF File") {
         @Override
-        AnimationWriter createAnimationWriter(File file, int delayMillis) {
-            return new AnimGIFWriter(file, delayMillis);
+        AnimationWriter createAnimationWriter(File file, int delayMillis, boolean sharedPalette) {
+            return new AnimGIFWriter(file, delayMillis, sharedPalette);
         }
 
         @Override
@@ -66,9 +66,14 @@ public enum TweenOutputType {
         public FileNameExtensionFilter getFileFilter() {
             return FileChoosers.gifFilter;
         }
+
+        @Override
+        public boolean hasPalette() {
+            return true;
+        }
     };
 
-    abstract AnimationWriter createAnimationWriter(File file, int delayMillis);
+    abstract AnimationWriter createAnimationWriter(File file, int delayMillis, boolean sharedPalette);
 
     /**
      * Returns the error message or null if the argument is OK as output
@@ -77,6 +82,13 @@ public enum TweenOutputType {
 
     public abstract boolean needsDirectory();
 
+    /**
+     * Returns true if the output has a limited number of colors
+     */
+    public boolean hasPalette() {
+        return false;
+    }
+
     private static String expectFileInExistingDir(File output, TweenOutputType type, String fileType) {
         if (output.exists()) {
             if (output.isDirectory()) {
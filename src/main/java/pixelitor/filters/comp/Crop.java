@@ -62,6 +62,9 @@ public class Crop implements CompAction {
 
         MultiLayerEdit edit = new MultiLayerEdit(comp, "Crop", backup);
         History.addEdit(edit);
+        if (comp.getProxy() != null) {
+            comp.getProxy().cropped(cropRect, edit);
+        }
 
         int cropRectWidth = (int) cropRect.getWidth();
         int cropRectHeight = (int) cropRect.getHeight();
@@ -53,6 +53,9 @@ public class EnlargeCanvas implements CompAction {
             }
         }
 
+        // the enlarged areas are transparent
+        comp.packLayers(false);
+
         Selection selection = comp.getSelectionOrNull();
         if (selection != null && (north > 0 || west > 0)) {
             selection.transform(
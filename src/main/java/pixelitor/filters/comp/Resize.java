@@ -2,13 +2,20 @@ package pixelitor.filters.comp;
 
 import pixelitor.AppLogic;
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
 import pixelitor.history.History;
 import pixelitor.history.MultiLayerBackup;
 import pixelitor.history.MultiLayerEdit;
+import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
 import pixelitor.selection.Selection;
 
 import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static pixelitor.Composition.ImageChangeActions.INVALIDATE_CACHE;
 
@@ -47,11 +54,6 @@ public class Resize implements CompAction {
             targetHeight = (int) (scale * (double) actualHeight);
         }
 
-        boolean progressiveBilinear = false;
-        if ((targetWidth < (actualWidth / 2)) || (targetHeight < (actualHeight / 2))) {
-            progressiveBilinear = true;
-        }
-
         String editName = "Resize";
         MultiLayerBackup backup = new MultiLayerBackup(comp, editName, true);
 
@@ -64,14 +66,7 @@ public class Resize implements CompAction {
             selection.transform(tx);
         }
 
-        int nrLayers = comp.getNrLayers();
-        for (int i = 0; i < nrLayers; i++) {
-            Layer layer = comp.getLayer(i);
-            layer.resize(targetWidth, targetHeight, progressiveBilinear);
-            if (layer.hasMask()) {
-                layer.getMask().resize(targetWidth, targetHeight, progressiveBilinear);
-            }
-        }
+        resizeLayers(comp, targetWidth, targetHeight);
 
         MultiLayerEdit edit = new MultiLayerEdit(comp, editName, backup);
         History.addEdit(edit);
@@ -88,4 +83,41 @@ public class Resize implements CompAction {
 
         AppLogic.activeCompSizeChanged(comp);
     }
+
+    /**
+     * The image layers and masks are resampled concurrently,
+     * but their new images are set in this thread
+     */
+    private static void resizeLayers(Composition comp, int targetWidth, int targetHeight) {
+        List<ImageLayer> imageLayers = new ArrayList<>();
+        int nrLayers = comp.getNrLayers();
+        for (int i = 0; i < nrLayers; i++) {
+            Layer layer = comp.getLayer(i);
+            if (layer instanceof ImageLayer) {
+                imageLayers.add((ImageLayer) layer);
+            } else {
+                layer.resize(targetWidth, targetHeight);
+            }
+            if (layer.hasMask()) {
+                imageLayers.add(layer.getMask());
+            }
+        }
+
+        if (imageLayers.size() == 1) {
+            // a single image is resampled in parallel bands
+            imageLayers.get(0).resize(targetWidth, targetHeight);
+            return;
+        }
+        List<Callable<Runnable>> tasks = new ArrayList<>();
+        for (ImageLayer layer : imageLayers) {
+            tasks.add(() -> layer.prepareResize(targetWidth, targetHeight, false));
+        }
+        try {
+            for (Future<Runnable> future : ThreadPool.executorService.invokeAll(tasks)) {
+                future.get().run();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
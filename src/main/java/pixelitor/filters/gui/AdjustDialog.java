@@ -20,6 +20,8 @@ package pixelitor.filters.gui;
 import pixelitor.Composition;
 import pixelitor.ImageComponents;
 import pixelitor.filters.Filter;
+import pixelitor.history.History;
+import pixelitor.history.PixelitorEdit;
 import pixelitor.utils.OKCancelDialog;
 
 /**
@@ -42,7 +44,9 @@ public class AdjustDialog extends OKCancelDialog {
     @Override
     public void dialogAccepted() {
         Composition comp = ImageComponents.getActiveComp().get();
+        PixelitorEdit lastEditBefore = History.getLastEdit();
         comp.okPressedInDialog(activeFilter.getName());
+        comp.filterApplied(activeFilter, lastEditBefore);
 
         close();
     }
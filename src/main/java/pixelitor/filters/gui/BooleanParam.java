@@ -110,12 +110,13 @@ public class BooleanParam extends AbstractFilterParam {
 
     @Override
     public ParamState copyState() {
-        throw new UnsupportedOperationException();
+        return new StepParamState<>(currentValue);
     }
 
     @Override
     public void setState(ParamState state) {
-        throw new UnsupportedOperationException();
+        boolean value = ((StepParamState<?>) state).getValue(Boolean.class);
+        setValue(value, UpdateGUI.YES, false);
     }
 
     @Override
@@ -116,6 +116,8 @@ public class ColorParam extends AbstractFilterParam {
     }
 
     private static class CState implements ParamState {
+        private static final long serialVersionUID = 1L;
+
         private final Color color;
 
         public CState(Color color) {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.gui;
+
+/**
+ * The state of a parameter composed of other parameters
+ */
+class CompositeParamState implements ParamState {
+    private static final long serialVersionUID = 1L;
+
+    private final ParamState[] childStates;
+
+    private CompositeParamState(ParamState[] childStates) {
+        this.childStates = childStates;
+    }
+
+    static CompositeParamState of(FilterParam[] children) {
+        ParamState[] states = new ParamState[children.length];
+        for (int i = 0; i < children.length; i++) {
+            states[i] = children[i].copyState();
+        }
+        return new CompositeParamState(states);
+    }
+
+    void restore(FilterParam[] children) {
+        for (int i = 0; i < children.length; i++) {
+            if (childStates[i] != null) {
+                children[i].setState(childStates[i]);
+            }
+        }
+    }
+
+    @Override
+    public ParamState interpolate(ParamState endState, double progress) {
+        ParamState[] endStates = ((CompositeParamState) endState).childStates;
+        ParamState[] interpolated = new ParamState[childStates.length];
+        for (int i = 0; i < childStates.length; i++) {
+            if (childStates[i] != null && endStates[i] != null) {
+                interpolated[i] = childStates[i].interpolate(endStates[i], progress);
+            }
+        }
+        return new CompositeParamState(interpolated);
+    }
+}
@@ -57,12 +57,12 @@ public class DialogParam extends AbstractFilterParam {
 
     @Override
     public ParamState copyState() {
-        return null;
+        return CompositeParamState.of(children);
     }
 
     @Override
     public void setState(ParamState state) {
-
+        ((CompositeParamState) state).restore(children);
     }
 
     @Override
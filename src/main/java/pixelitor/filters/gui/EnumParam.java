@@ -64,12 +64,12 @@ public class EnumParam<E extends Enum<E>> extends AbstractFilterParam implements
 
     @Override
     public ParamState copyState() {
-        return null;
+        return new StepParamState<>(getSelected());
     }
 
     @Override
     public void setState(ParamState state) {
-
+        setSelectedItem(((StepParamState<?>) state).getValue(enumConstants[0].getDeclaringClass()), false);
     }
 
     @Override
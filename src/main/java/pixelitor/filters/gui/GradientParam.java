@@ -207,6 +207,8 @@ public class GradientParam extends AbstractFilterParam {
     }
 
     private static class GState implements ParamState {
+        private static final long serialVersionUID = 1L;
+
         final float[] thumbPositions;
         final Color[] colors;
 
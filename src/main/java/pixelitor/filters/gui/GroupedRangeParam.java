@@ -197,6 +197,19 @@ public class GroupedRangeParam extends AbstractFilterParam implements RangeBased
         return this;
     }
 
+    public GroupedRangeParam markAsDistance() {
+        for (RangeParam param : rangeParams) {
+            param.markAsDistance();
+        }
+        return this;
+    }
+
+    public void scaleDistance(double factor) {
+        for (RangeParam param : rangeParams) {
+            param.scaleDistance(factor);
+        }
+    }
+
     public float getValueAsPercentage(int index) {
         return rangeParams[index].getValueAsPercentage();
     }
@@ -241,6 +254,8 @@ public class GroupedRangeParam extends AbstractFilterParam implements RangeBased
     }
 
     private static class GRState implements ParamState {
+        private static final long serialVersionUID = 1L;
+
         private final double[] values;
 
         public GRState(double[] values) {
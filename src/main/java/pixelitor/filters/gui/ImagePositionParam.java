@@ -131,6 +131,8 @@ public class ImagePositionParam extends AbstractFilterParam {
     }
 
     private static class IPPState implements ParamState {
+        private static final long serialVersionUID = 1L;
+
         private final double relativeX;
         private final double relativeY;
 
@@ -319,12 +319,18 @@ public class IntChoiceParam extends AbstractFilterParam implements ComboBoxModel
 
     @Override
     public ParamState copyState() {
-        throw new UnsupportedOperationException();
+        return new StepParamState<>(currentChoice.getIntValue());
     }
 
     @Override
     public void setState(ParamState state) {
-        throw new UnsupportedOperationException();
+        int value = ((StepParamState<?>) state).getValue(Integer.class);
+        for (Value choice : choicesList) {
+            if (choice.getIntValue() == value) {
+                setSelectedItem(choice, false);
+                return;
+            }
+        }
     }
 
     @Override
@@ -24,7 +24,9 @@ import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static pixelitor.filters.gui.FilterSetting.EnabledReason.FINAL_ANIMATION_SETTING;
 
@@ -151,6 +153,69 @@ public class ParamSet {
                 });
     }
 
+    /**
+     * Returns the state with the distances multiplied by the given factor,
+     * which has the same effect on an image resized by that factor
+     */
+    public ParamSetState copyStateWithScaledDistances(double factor) {
+        ParamSetState original = copyState();
+        for (FilterParam param : paramList) {
+            if (param instanceof RangeParam) {
+                ((RangeParam) param).scaleDistance(factor);
+            } else if (param instanceof GroupedRangeParam) {
+                ((GroupedRangeParam) param).scaleDistance(factor);
+            }
+        }
+        ParamSetState scaled = copyState();
+        setState(original);
+        return scaled;
+    }
+
+    /**
+     * Unlike copyState(), captures also the params that can't be animated,
+     * keyed by the param names. The params whose state can't be captured
+     * are left out.
+     */
+    public Map<String, ParamState> copyAllStates() {
+        Map<String, ParamState> states = new LinkedHashMap<>();
+        for (FilterParam param : paramList) {
+            try {
+                ParamState state = param.copyState();
+                if (state != null) {
+                    states.put(param.getName(), state);
+                }
+            } catch (UnsupportedOperationException e) {
+                // this param keeps its current value when restored
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Restores the states captured by copyAllStates() without triggering the filter
+     */
+    public void setAllStates(Map<String, ParamState> states) {
+        for (FilterParam param : paramList) {
+            ParamState state = states.get(param.getName());
+            if (state != null) {
+                param.setState(state);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the state returned by copyState()
+     * contains the values of all parameters
+     */
+    public boolean isStateComplete() {
+        for (FilterParam param : paramList) {
+            if (!param.canBeAnimated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * A ParamSet can be animated if at least one contained filter parameter can be
      */
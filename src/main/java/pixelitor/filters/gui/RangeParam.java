@@ -58,6 +58,9 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
     private boolean adjustMaxAccordingToImage = false;
     private double maxToImageSizeRatio;
 
+    // the value is a distance in pixels
+    private boolean distance = false;
+
     public RangeParam(String name, int minValue, int defaultValue, int maxValue) {
         this(name, minValue, defaultValue, maxValue, AddDefaultButton.YES, BORDER);
     }
@@ -312,6 +315,33 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
         return this;
     }
 
+    /**
+     * Marks the value as a distance in pixels, which
+     * depends on the resolution of the image
+     */
+    public RangeParam markAsDistance() {
+        distance = true;
+        return this;
+    }
+
+    /**
+     * Returns true if the value is a distance in pixels. The values
+     * with a range based on the image size are also distances.
+     */
+    public boolean isDistance() {
+        return distance || adjustMaxAccordingToImage;
+    }
+
+    /**
+     * Multiplies the value by the given factor if it is
+     * a distance, without considering the range
+     */
+    public void scaleDistance(double factor) {
+        if (isDistance()) {
+            value *= factor;
+        }
+    }
+
     @Override
     public boolean canBeAnimated() {
         return true;
@@ -334,6 +364,8 @@ public class RangeParam extends AbstractFilterParam implements BoundedRangeModel
     }
 
     private static class RPState implements ParamState {
+        private static final long serialVersionUID = 1L;
+
         final double value;
 
         public RPState(double value) {
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.filters.gui;
+
+import java.io.Serializable;
+
+/**
+ * The state of a parameter with discrete values, which can't be
+ * interpolated: the value jumps in the middle of the transition
+ */
+class StepParamState<T extends Serializable> implements ParamState {
+    private static final long serialVersionUID = 1L;
+
+    private final T value;
+
+    StepParamState(T value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns the value, checking that it has the type of the
+     * parameter, because the states are not typed in FilterParam
+     */
+    <V> V getValue(Class<V> type) {
+        return type.cast(value);
+    }
+
+    @Override
+    public ParamState interpolate(ParamState endState, double progress) {
+        return progress < 0.5 ? this : endState;
+    }
+}
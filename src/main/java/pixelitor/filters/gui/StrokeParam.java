@@ -134,12 +134,12 @@ public class StrokeParam extends AbstractFilterParam {
 
     @Override
     public ParamState copyState() {
-        throw new UnsupportedOperationException();
+        return CompositeParamState.of(allParams);
     }
 
     @Override
     public void setState(ParamState state) {
-        throw new UnsupportedOperationException();
+        ((CompositeParamState) state).restore(allParams);
     }
 
     @Override
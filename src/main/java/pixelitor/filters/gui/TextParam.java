@@ -107,12 +107,14 @@ public class TextParam extends AbstractFilterParam {
 
     @Override
     public ParamState copyState() {
-        throw new UnsupportedOperationException();
+        return new StepParamState<>(getValue());
     }
 
     @Override
     public void setState(ParamState state) {
-        throw new UnsupportedOperationException();
+        trigger = false;
+        setValue(((StepParamState<?>) state).getValue(String.class));
+        trigger = true;
     }
 
     @Override
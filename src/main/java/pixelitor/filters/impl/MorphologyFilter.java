@@ -51,7 +51,7 @@ public class MorphologyFilter extends WholeImageFilter {
 
     @Override
     protected int[] filterPixels(int width, int height, int[] inPixels, Rectangle transformedSpace) {
-        int[] outPixels = new int[width * height];
+        int[] outPixels = createOutPixels(width * height);
         int numPixels = inPixels.length;
         short[] inA = new short[numPixels];
         short[] inR = new short[numPixels];
@@ -15,7 +15,7 @@ import java.awt.image.BufferedImage;
  * Contours filter
  */
 public class Contours extends FilterWithParametrizedGUI {
-    private final RangeParam lineThickness = new RangeParam("Increase Line Thickness", 0, 0, 20);
+    private final RangeParam lineThickness = new RangeParam("Increase Line Thickness", 0, 0, 20).markAsDistance();
 
     public Contours() {
         super(ShowOriginal.YES);
@@ -32,7 +32,7 @@ import java.awt.image.BufferedImage;
  */
 public class JHBoxBlur extends FilterWithParametrizedGUI {
 
-    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 0, 0, 100);
+    private final GroupedRangeParam radius = new GroupedRangeParam("Radius", 0, 0, 100).markAsDistance();
 
     private final RangeParam numberOfIterations = new RangeParam("Number of Iterations", 1, 3, 10);
 
@@ -35,9 +35,9 @@ import java.awt.image.BufferedImage;
 public class JHFocus extends FilterWithParametrizedGUI {
     private final ImagePositionParam center = new ImagePositionParam("Focused Area Center");
 
-    private final GroupedRangeParam radius = new GroupedRangeParam("Focused Area Radius (Pixels)", 1, 200, 1000, false);
+    private final GroupedRangeParam radius = new GroupedRangeParam("Focused Area Radius (Pixels)", 1, 200, 1000, false).markAsDistance();
     private final RangeParam softness = new RangeParam("Transition Softness", 0, 20, 100);
-    private final GroupedRangeParam blurRadius = new GroupedRangeParam("Blur Radius", 0, 10, 50);
+    private final GroupedRangeParam blurRadius = new GroupedRangeParam("Blur Radius", 0, 10, 50).markAsDistance();
     private final RangeParam numberOfIterations = new RangeParam("Number of Blur Iterations", 1, 3, 10);
     private final BooleanParam invert = new BooleanParam("Invert", false);
     private final BooleanParam hpSharpening = BooleanParam.createParamForHPSharpening();
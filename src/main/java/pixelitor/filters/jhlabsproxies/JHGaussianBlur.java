@@ -31,7 +31,7 @@ import java.awt.image.BufferedImage;
  * Gaussian Blur based on JHLabs GaussianFilter
  */
 public class JHGaussianBlur extends FilterWithParametrizedGUI {
-    private final RangeParam radius = new RangeParam("Radius", 0, 0, 100);
+    private final RangeParam radius = new RangeParam("Radius", 0, 0, 100).markAsDistance();
     private final BooleanParam hpSharpening = BooleanParam.createParamForHPSharpening();
 
     private GaussianFilter filter;
@@ -35,8 +35,8 @@ public class JHGlint extends FilterWithParametrizedGUI {
     private final RangeParam coverage = new RangeParam("Coverage (%)", 0, 50, 100);
     private final RangeParam intensity = new RangeParam("Intensity (%)", 0, 15, 100);
 
-    private final RangeParam lengthParam = new RangeParam("Length", 0, 20, 100);
-    private final RangeParam blur = new RangeParam("Blur", 0, 1, 20);
+    private final RangeParam lengthParam = new RangeParam("Length", 0, 20, 100).markAsDistance();
+    private final RangeParam blur = new RangeParam("Blur", 0, 1, 20).markAsDistance();
 //    private BooleanParam glintOnly = new BooleanParam("Glint Only", false);
 
     private final GradientParam colors = new GradientParam("Colors", WHITE, WHITE);
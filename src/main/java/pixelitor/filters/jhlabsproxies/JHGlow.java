@@ -29,7 +29,7 @@ import java.awt.image.BufferedImage;
  */
 public class JHGlow extends FilterWithParametrizedGUI {
     private final RangeParam amount = new RangeParam("Amount", 0, 15, 100);
-    private final RangeParam softness = new RangeParam("Softness (Blur Radius)", 0, 20, 100);
+    private final RangeParam softness = new RangeParam("Softness (Blur Radius)", 0, 20, 100).markAsDistance();
 
     private GlowFilter filter;
 
@@ -30,7 +30,7 @@ import java.awt.image.BufferedImage;
  * Lens Blur based on the JHLabs LensBlurFilter
  */
 public class JHLensBlur extends FilterWithParametrizedGUI {
-    private final RangeParam amount = new RangeParam("Amount (Radius)", 0, 0, 100);
+    private final RangeParam amount = new RangeParam("Amount (Radius)", 0, 0, 100).markAsDistance();
     private final RangeParam numberOfSides = new RangeParam("Number of Sides of the Aperture", 3, 5, 12);
     private final RangeParam bloomFactor = new RangeParam("Bloom Factor", 1, 1, 8);
     private final RangeParam bloomThreshold = new RangeParam("Bloom Threshold", 0, 200, 255);
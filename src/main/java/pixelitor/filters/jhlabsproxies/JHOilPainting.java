@@ -31,7 +31,7 @@ import java.awt.image.BufferedImage;
  * Oil Painting based on the JHLabs OilFilter
  */
 public class JHOilPainting extends FilterWithParametrizedGUI {
-    private final GroupedRangeParam brushSize = new GroupedRangeParam("Brush Size", 0, 1, 10, false);
+    private final GroupedRangeParam brushSize = new GroupedRangeParam("Brush Size", 0, 1, 10, false).markAsDistance();
     private final RangeParam coarseness = new RangeParam("Coarseness", 2, 25, 255);
     private final IntChoiceParam detailQuality = ResizingFilterHelper.createQualityParam();
 
@@ -30,7 +30,7 @@ import java.awt.image.BufferedImage;
  * Smart Blur based on the JHLabs SmartBlurFilter
  */
 public class JHSmartBlur extends FilterWithParametrizedGUI {
-    private final RangeParam radiusParam = new RangeParam("Radius", 0, 0, 100);
+    private final RangeParam radiusParam = new RangeParam("Radius", 0, 0, 100).markAsDistance();
     private final RangeParam threshold = new RangeParam("Threshold", 0, 50, 255);
     private final BooleanParam hpSharpening = BooleanParam.createParamForHPSharpening();
 
@@ -30,7 +30,7 @@ import java.awt.image.BufferedImage;
 public class JHUnsharpMask extends FilterWithParametrizedGUI {
 
     private final RangeParam amount = new RangeParam("Amount", 1, 50, 100);
-    private final RangeParam radius = new RangeParam("Radius", 0, 2, 100);
+    private final RangeParam radius = new RangeParam("Radius", 0, 2, 100).markAsDistance();
     private final RangeParam threshold = new RangeParam("Threshold", 0, 0, 100);
 
     private UnsharpFilter filter;
@@ -15,7 +15,7 @@ import java.awt.image.BufferedImage;
 public class Morphology extends FilterWithParametrizedGUI {
     private final MorphologyFilter filter = new MorphologyFilter();
 
-    private final RangeParam radius = new RangeParam("Radius", 1, 1, 20);
+    private final RangeParam radius = new RangeParam("Radius", 1, 1, 20).markAsDistance();
     private final IntChoiceParam kernel = new IntChoiceParam("Kernel Shape", new IntChoiceParam.Value[]{
             new IntChoiceParam.Value("Diamond", MorphologyFilter.KERNEL_DIAMOND),
             new IntChoiceParam.Value("Square", MorphologyFilter.KERNEL_SQUARE),
@@ -19,6 +19,7 @@ package pixelitor.history;
 import pixelitor.Composition;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.LayerMask;
+import pixelitor.utils.ImageUtils;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
@@ -77,4 +78,9 @@ public class ApplyLayerMaskEdit extends PixelitorEdit {
     public boolean canRepeat() {
         return false;
     }
+
+    @Override
+    public long getMemoryBytes() {
+        return ImageUtils.getMemoryBytes(oldImage);
+    }
 }
\ No newline at end of file
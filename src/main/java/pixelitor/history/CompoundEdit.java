@@ -1,9 +1,11 @@
 package pixelitor.history;
 
 import pixelitor.Composition;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
+import java.io.IOException;
 
 /**
  * A PixelitorEdit that represents two edits
@@ -67,4 +69,20 @@ public class CompoundEdit extends PixelitorEdit {
     public boolean canRepeat() {
         return first.canRepeat() && second.canRepeat();
     }
+
+    @Override
+    public long getMemoryBytes() {
+        return first.getMemoryBytes() + second.getMemoryBytes();
+    }
+
+    @Override
+    public long hibernate(SwapFile swapFile) throws IOException {
+        return first.hibernate(swapFile) + second.hibernate(swapFile);
+    }
+
+    @Override
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        first.wakeUp(swapFile);
+        second.wakeUp(swapFile);
+    }
 }
\ No newline at end of file
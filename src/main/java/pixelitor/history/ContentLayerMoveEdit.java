@@ -19,10 +19,12 @@ package pixelitor.history;
 import pixelitor.layers.ContentLayer;
 import pixelitor.layers.ImageLayer;
 import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 
 import static pixelitor.Composition.ImageChangeActions.FULL;
 
@@ -98,4 +100,27 @@ public class ContentLayerMoveEdit extends PixelitorEdit {
     public boolean canRepeat() {
         return false;
     }
+
+    @Override
+    public long getMemoryBytes() {
+        if (imageEdit != null) {
+            return imageEdit.getMemoryBytes();
+        }
+        return 0;
+    }
+
+    @Override
+    public long hibernate(SwapFile swapFile) throws IOException {
+        if (imageEdit != null) {
+            return imageEdit.hibernate(swapFile);
+        }
+        return 0;
+    }
+
+    @Override
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        if (imageEdit != null) {
+            imageEdit.wakeUp(swapFile);
+        }
+    }
 }
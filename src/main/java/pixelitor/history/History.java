@@ -24,6 +24,7 @@ import pixelitor.ImageComponents;
 import pixelitor.menus.MenuAction;
 import pixelitor.utils.AppPreferences;
 import pixelitor.utils.Messages;
+import pixelitor.utils.SwapFile;
 import pixelitor.utils.VisibleForTesting;
 import pixelitor.utils.test.DebugEventQueue;
 import pixelitor.utils.test.HistoryEvent;
@@ -33,6 +34,7 @@ import javax.swing.event.UndoableEditListener;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoableEditSupport;
+import java.io.IOException;
 import java.util.Optional;
 import java.util.function.Supplier;
 
@@ -43,7 +45,7 @@ public class History {
     private static final UndoableEditSupport undoableEditSupport = new UndoableEditSupport();
     private static final PixelitorUndoManager undoManager = new PixelitorUndoManager();
     private static int numUndoneEdits = 0;
-    private static boolean suspended = false;
+    private static volatile boolean suspended = false;
 
     static {
         setUndoLevels(AppPreferences.loadUndoLevels());
@@ -84,6 +86,12 @@ public class History {
         if (suspended) {
             return;
         }
+        Composition comp = edit.getComp();
+        if (comp != null && comp.getIC() == null) {
+            // compositions without a window (for example the
+            // ones processed by macros) have no undo history
+            return;
+        }
 
         if (edit.canUndo()) {
             undoManager.addEdit(edit);
@@ -91,6 +99,10 @@ public class History {
             undoManager.discardAllEdits();
         }
 
+        if (comp != null && comp.getProxy() != null) {
+            comp.getProxy().editAdded(edit);
+        }
+
         numUndoneEdits = 0; // reset BEFORE posting, so that the fade menu item can become enabled
         undoableEditSupport.postEdit(edit);
 
@@ -226,6 +238,39 @@ public class History {
         undoableEditSupport.postEdit(null);
     }
 
+    /**
+     * Returns the number of bytes of pixel data used by the undo/redo history
+     */
+    public static long getMemoryBytes() {
+        return undoManager.getMemoryBytes();
+    }
+
+    /**
+     * Called by the MemoryManager under memory pressure.
+     * Returns the number of freed bytes.
+     */
+    public static long discardOldestEdits(long bytesToFree) {
+        int sizeBefore = undoManager.getSize();
+        long freed = undoManager.discardOldestEdits(bytesToFree);
+        if (undoManager.getSize() != sizeBefore) {
+            numUndoneEdits = Math.min(numUndoneEdits, undoManager.getSize());
+            undoableEditSupport.postEdit(null); // update the menus
+        }
+        return freed;
+    }
+
+    /**
+     * Called when the given composition is hibernated.
+     * Returns the number of freed bytes.
+     */
+    public static long hibernateEdits(Composition comp, SwapFile swapFile) throws IOException {
+        return undoManager.hibernateEdits(comp, swapFile);
+    }
+
+    public static void wakeUpEdits(Composition comp, SwapFile swapFile) throws IOException {
+        undoManager.wakeUpEdits(comp, swapFile);
+    }
+
     public static void showHistory() {
         undoManager.showHistory();
     }
@@ -238,9 +283,15 @@ public class History {
     @VisibleForTesting
     public static void clear() {
         undoManager.discardAllEdits();
+        numUndoneEdits = 0;
         assertNumEditsIs(0);
     }
 
+    @VisibleForTesting
+    static int getNumUndoneEdits() {
+        return numUndoneEdits;
+    }
+
     @VisibleForTesting
     public static void assertNumEditsIs(int expectedEdits) {
         int numEdits = undoManager.getSize();
@@ -264,4 +315,8 @@ public class History {
     public static void setSuspended(boolean suspended) {
         History.suspended = suspended;
     }
+
+    public static boolean isSuspended() {
+        return suspended;
+    }
 }
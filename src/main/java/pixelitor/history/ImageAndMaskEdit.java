@@ -3,10 +3,12 @@ package pixelitor.history;
 import pixelitor.Composition;
 import pixelitor.layers.ImageLayer;
 import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 
 import static pixelitor.Composition.ImageChangeActions.FULL;
 
@@ -62,6 +64,22 @@ public class ImageAndMaskEdit extends ImageEdit {
         maskImageEdit.die();
     }
 
+    @Override
+    public long getMemoryBytes() {
+        return super.getMemoryBytes() + maskImageEdit.getMemoryBytes();
+    }
+
+    @Override
+    public long hibernate(SwapFile swapFile) throws IOException {
+        return super.hibernate(swapFile) + maskImageEdit.hibernate(swapFile);
+    }
+
+    @Override
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        super.wakeUp(swapFile);
+        maskImageEdit.wakeUp(swapFile);
+    }
+
     private void updateGUI() {
         // the two edits are set to embedded, so we update - except
         // if this edit is also embedded
@@ -20,10 +20,13 @@ package pixelitor.history;
 import pixelitor.Composition;
 import pixelitor.layers.ImageLayer;
 import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.lang.ref.SoftReference;
 
 import static pixelitor.Composition.ImageChangeActions.FULL;
@@ -38,6 +41,10 @@ public class ImageEdit extends FadeableEdit {
 
     private final boolean canRepeat;
 
+    // the position of the backup image in the swap file
+    // while the composition is hibernated, or -1
+    private long swapPos = -1;
+
     public ImageEdit(Composition comp, String name, ImageLayer layer,
                      BufferedImage backupImage,
                      IgnoreSelection ignoreSelection, boolean canRepeat) {
@@ -87,6 +94,9 @@ public class ImageEdit extends FadeableEdit {
      * Returns true if successful
      */
     private boolean swapImages()  {
+        // the backup image might be in the swap file
+        comp.wakeUp();
+
         BufferedImage backupImage = imgRef.get();
         if(backupImage == null) {
             return false;
@@ -140,4 +150,31 @@ public class ImageEdit extends FadeableEdit {
     public boolean canRepeat() {
         return canRepeat;
     }
+
+    @Override
+    public long getMemoryBytes() {
+        return ImageUtils.getMemoryBytes(getBackupImage());
+    }
+
+    @Override
+    public long hibernate(SwapFile swapFile) throws IOException {
+        BufferedImage backupImage = getBackupImage();
+        if (backupImage == null) {
+            return 0;
+        }
+        long freed = ImageUtils.getMemoryBytes(backupImage);
+        swapPos = swapFile.write(backupImage);
+        imgRef = new SoftReference<>(null);
+        backupImage.flush();
+        return freed;
+    }
+
+    @Override
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        if (swapPos == -1) {
+            return;
+        }
+        imgRef = new SoftReference<>(swapFile.read(swapPos));
+        swapPos = -1;
+    }
 }
@@ -19,9 +19,11 @@ package pixelitor.history;
 
 import pixelitor.Composition;
 import pixelitor.layers.ImageLayer;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
+import java.io.IOException;
 
 import static pixelitor.Composition.ImageChangeActions.FULL;
 
@@ -89,6 +91,29 @@ public class MultiLayerEdit extends PixelitorEdit {
         return false;
     }
 
+    @Override
+    public long getMemoryBytes() {
+        if (imageEdit != null) {
+            return imageEdit.getMemoryBytes();
+        }
+        return 0;
+    }
+
+    @Override
+    public long hibernate(SwapFile swapFile) throws IOException {
+        if (imageEdit != null) {
+            return imageEdit.hibernate(swapFile);
+        }
+        return 0;
+    }
+
+    @Override
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        if (imageEdit != null) {
+            imageEdit.wakeUp(swapFile);
+        }
+    }
+
     @Override
     public void undo() throws CannotUndoException {
         super.undo();
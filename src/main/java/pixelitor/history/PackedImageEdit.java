@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.history;
+
+import pixelitor.Composition;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.PackedImage;
+import pixelitor.utils.Messages;
+
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import java.io.IOException;
+
+import static pixelitor.Composition.ImageChangeActions.FULL;
+
+/**
+ * A PixelitorEdit that represents the changes made to the
+ * out-of-core pixels of a layer by a tile-wise filter.
+ * The backup is also kept out of the heap.
+ */
+public class PackedImageEdit extends PixelitorEdit {
+    private static final long serialVersionUID = 1L;
+
+    private ImageLayer layer;
+    private PackedImage backup;
+
+    public PackedImageEdit(Composition comp, String name, ImageLayer layer, PackedImage backup) {
+        super(comp, name);
+        this.layer = layer;
+        this.backup = backup;
+
+        comp.setDirty(true);
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+
+        if (!swapImages()) {
+            throw new CannotUndoException();
+        }
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+
+        if (!swapImages()) {
+            throw new CannotRedoException();
+        }
+    }
+
+    /**
+     * Returns true if successful
+     */
+    private boolean swapImages() {
+        try {
+            backup = layer.swapPacked(backup);
+        } catch (IOException e) {
+            Messages.showException(e);
+            return false;
+        }
+
+        comp.imageChanged(FULL);
+        layer.updateIconImage();
+        History.notifyMenus(this);
+        return true;
+    }
+
+    @Override
+    public void die() {
+        super.die();
+
+        if (backup != null) {
+            backup.dispose();
+            backup = null;
+        }
+        layer = null;
+    }
+
+    @Override
+    public boolean canRepeat() {
+        // only filters create this edit
+        return true;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return backup == null ? 0 : backup.getMemoryBytes();
+    }
+}
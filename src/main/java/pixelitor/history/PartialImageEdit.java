@@ -124,6 +124,11 @@ public class PartialImageEdit extends FadeableEdit {
         return canRepeat;
     }
 
+    @Override
+    public long getMemoryBytes() {
+        return ImageUtils.getMemoryBytes(backupRaster);
+    }
+
     @Override
     public BufferedImage getBackupImage() {
         // recreate the full image as if it was backed up entirely
@@ -17,8 +17,10 @@
 package pixelitor.history;
 
 import pixelitor.Composition;
+import pixelitor.utils.SwapFile;
 
 import javax.swing.undo.AbstractUndoableEdit;
+import java.io.IOException;
 
 /**
  * The abstract superclass for all edits in Pixelitor
@@ -77,4 +79,27 @@ public abstract class PixelitorEdit extends AbstractUndoableEdit {
         this.embedded = embedded;
         return this;
     }
+
+    /**
+     * Returns the number of bytes used by the pixel data
+     * that is kept alive only by this edit
+     */
+    public long getMemoryBytes() {
+        return 0;
+    }
+
+    /**
+     * Moves the pixel data kept by this edit into the swap file
+     * while the composition is hibernated.
+     * Returns the number of freed bytes.
+     */
+    public long hibernate(SwapFile swapFile) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Restores the pixel data moved out by hibernate
+     */
+    public void wakeUp(SwapFile swapFile) throws IOException {
+    }
 }
@@ -17,8 +17,11 @@
 
 package pixelitor.history;
 
+import pixelitor.Composition;
 import pixelitor.PixelitorWindow;
 import pixelitor.utils.GUIUtils;
+import pixelitor.utils.SwapFile;
+import pixelitor.utils.VisibleForTesting;
 
 import javax.swing.*;
 import javax.swing.event.EventListenerList;
@@ -29,6 +32,7 @@ import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoManager;
 import javax.swing.undo.UndoableEdit;
 import java.awt.BorderLayout;
+import java.io.IOException;
 
 /**
  * An undo manager that is also a list model for debugging history
@@ -72,8 +76,14 @@ public class PixelitorUndoManager extends UndoManager implements ListModel<Pixel
 
     @Override
     public void undo() throws CannotUndoException {
+        PixelitorEdit edit = (PixelitorEdit) editToBeUndone();
+        Composition comp = edit == null ? null : edit.getComp();
+
         // 1. do the actual undo
         super.undo();
+        if (comp != null && comp.getProxy() != null) {
+            comp.getProxy().editUndone(edit);
+        }
 
         // 2. update the selection model
         manualUserJump = false;
@@ -88,8 +98,14 @@ public class PixelitorUndoManager extends UndoManager implements ListModel<Pixel
 
     @Override
     public void redo() throws CannotRedoException {
+        PixelitorEdit edit = (PixelitorEdit) editToBeRedone();
+        Composition comp = edit == null ? null : edit.getComp();
+
         // 1. do the actual redo
         super.redo();
+        if (comp != null && comp.getProxy() != null) {
+            comp.getProxy().editRedone(edit);
+        }
 
         // 2. update the selection model
         manualUserJump = false;
@@ -102,6 +118,17 @@ public class PixelitorUndoManager extends UndoManager implements ListModel<Pixel
         manualUserJump = true;
     }
 
+    /**
+     * Returns the index of the last edit that is not undone, or -1
+     */
+    @VisibleForTesting
+    int getSelectedIndex() {
+        if (selectionModel.isSelectionEmpty()) {
+            return -1;
+        }
+        return selectionModel.getLeadSelectionIndex();
+    }
+
     // ListModel methods
 
     @Override
@@ -138,6 +165,95 @@ public class PixelitorUndoManager extends UndoManager implements ListModel<Pixel
         }
     }
 
+    protected void fireIntervalRemoved(Object source, int index0, int index1) {
+        Object[] listeners = listenerList.getListenerList();
+        ListDataEvent e = null;
+
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == ListDataListener.class) {
+                if (e == null) {
+                    e = new ListDataEvent(source, ListDataEvent.INTERVAL_REMOVED, index0, index1);
+                }
+                ((ListDataListener) listeners[i + 1]).intervalRemoved(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of pixel data kept alive by all edits
+     */
+    public long getMemoryBytes() {
+        long sum = 0;
+        for (UndoableEdit edit : edits) {
+            sum += ((PixelitorEdit) edit).getMemoryBytes();
+        }
+        return sum;
+    }
+
+    /**
+     * Moves the pixel data of the edits belonging
+     * to the given composition into the swap file
+     */
+    public long hibernateEdits(Composition comp, SwapFile swapFile) throws IOException {
+        long freed = 0;
+        for (UndoableEdit edit : edits) {
+            PixelitorEdit pe = (PixelitorEdit) edit;
+            if (pe.getComp() == comp) {
+                freed += pe.hibernate(swapFile);
+            }
+        }
+        return freed;
+    }
+
+    public void wakeUpEdits(Composition comp, SwapFile swapFile) throws IOException {
+        for (UndoableEdit edit : edits) {
+            PixelitorEdit pe = (PixelitorEdit) edit;
+            if (pe.getComp() == comp) {
+                pe.wakeUp(swapFile);
+            }
+        }
+    }
+
+    /**
+     * Discards the oldest edits until at least the given number
+     * of bytes is freed or there is nothing more to discard.
+     * Returns the number of freed bytes.
+     */
+    public long discardOldestEdits(long bytesToFree) {
+        long freed = 0;
+        int numToDiscard = 0;
+        int numEdits = edits.size();
+        while (numToDiscard < numEdits && freed < bytesToFree) {
+            freed += ((PixelitorEdit) edits.get(numToDiscard)).getMemoryBytes();
+            numToDiscard++;
+        }
+        if (numToDiscard == 0) {
+            return 0;
+        }
+
+        // the edits are killed by trimEdits
+        trimEdits(0, numToDiscard - 1);
+
+        // the selection follows the undo/redo calls, and
+        // it must point to the same edit after the removal
+        int selectedIndex = getSelectedIndex();
+
+        manualUserJump = false;
+        fireIntervalRemoved(this, 0, numToDiscard - 1);
+        int newIndex = selectedIndex - numToDiscard;
+        if (newIndex >= 0) {
+            selectionModel.setSelectionInterval(newIndex, newIndex);
+        } else {
+            selectionModel.clearSelection();
+        }
+        if (!edits.contains(selectedEdit)) {
+            selectedEdit = null;
+        }
+        manualUserJump = true;
+
+        return freed;
+    }
+
     /**
      * Jumps in the history so that we have the state after the given edit
      */
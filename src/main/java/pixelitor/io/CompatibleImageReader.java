@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * Reads image files directly into the compatible image type used by the
+ * layers, avoiding a second full-size image and the slow generic
+ * color conversion whenever possible.
+ */
+public final class CompatibleImageReader {
+    // the formats whose reader is known to decode correctly
+    // into a TYPE_INT_ARGB destination with fewer source bands
+    private static final String DIRECT_DECODE_FORMAT = "png";
+
+    /**
+     * Utility class with static methods
+     */
+    private CompatibleImageReader() {
+    }
+
+    /**
+     * Like ImageIO.read, returns null if the file is not an image file
+     */
+    public static BufferedImage read(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new IOException("Can't read " + file.getAbsolutePath());
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            return read(in, true);
+        }
+    }
+
+    /**
+     * Like ImageIO.read, returns null if the stream doesn't contain an image.
+     * The conversion runs in the calling thread, because the layers
+     * read from streams are already decoded in parallel.
+     */
+    public static BufferedImage read(InputStream stream) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(stream)) {
+            return read(in, false);
+        }
+    }
+
+    private static BufferedImage read(ImageInputStream in, boolean parallel) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            return read(reader, reader.getDefaultReadParam(), parallel);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Decodes the first image of the reader's input with the given
+     * parameters, which can specify subsampling and a source region
+     */
+    public static BufferedImage read(ImageReader reader, ImageReadParam param, boolean parallel) throws IOException {
+        if (ImageUtils.createCompatibleImage(1, 1).getType() != TYPE_INT_ARGB) {
+            // unusual screen, let Java2D do the conversion
+            return ImageUtils.toCompatibleImage(reader.read(0, param));
+        }
+
+        ImageTypeSpecifier intArgbType = findType(reader, TYPE_INT_ARGB);
+        if (intArgbType != null) {
+            // decoded straight into the final type
+            param.setDestinationType(intArgbType);
+            return reader.read(0, param);
+        }
+
+        ImageTypeSpecifier rawType = reader.getRawImageType(0);
+        if (DIRECT_DECODE_FORMAT.equalsIgnoreCase(reader.getFormatName())
+                && rawType != null && isInterleavedSRGB(rawType.getColorModel())) {
+            int numBands = rawType.getNumBands();
+            BufferedImage dest = createDestination(reader, param);
+            param.setDestination(dest);
+            if (numBands == 3) {
+                // the alpha band is left out, and set to opaque later
+                param.setDestinationBands(new int[]{0, 1, 2});
+            }
+            reader.read(0, param);
+            if (numBands == 3) {
+                setOpaque(dest, parallel);
+            }
+            return dest;
+        }
+
+        return toIntArgb(reader.read(0, param), parallel);
+    }
+
+    private static ImageTypeSpecifier findType(ImageReader reader, int type) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier spec = types.next();
+            if (spec.getBufferedImageType() == type) {
+                return spec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true for 8 bit RGB and non-premultiplied RGBA images
+     */
+    private static boolean isInterleavedSRGB(ColorModel cm) {
+        if (!(cm instanceof ComponentColorModel) || !cm.getColorSpace().isCS_sRGB()
+                || cm.isAlphaPremultiplied() || cm.getTransferType() != DataBuffer.TYPE_BYTE) {
+            return false;
+        }
+        int numComponents = cm.getNumComponents();
+        return numComponents == 3 || (numComponents == 4 && cm.hasAlpha());
+    }
+
+    private static BufferedImage createDestination(ImageReader reader, ImageReadParam param) throws IOException {
+        Rectangle region = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+        if (param.getSourceRegion() != null) {
+            region = region.intersection(param.getSourceRegion());
+        }
+        int periodX = param.getSourceXSubsampling();
+        int periodY = param.getSourceYSubsampling();
+        int width = (region.width - param.getSubsamplingXOffset() + periodX - 1) / periodX;
+        int height = (region.height - param.getSubsamplingYOffset() + periodY - 1) / periodY;
+        return new BufferedImage(width, height, TYPE_INT_ARGB);
+    }
+
+    /**
+     * Converts the image to TYPE_INT_ARGB. The common byte layouts
+     * are converted directly, the others with Java2D.
+     */
+    static BufferedImage toIntArgb(BufferedImage img, boolean parallel) {
+        int type = img.getType();
+        if (type == TYPE_INT_ARGB) {
+            return img;
+        }
+        WritableRaster raster = img.getRaster();
+        if (type == TYPE_INT_RGB && raster.getParent() == null
+                && raster.getDataBuffer().getOffset() == 0
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == img.getWidth()) {
+            // the same pixels, only the alpha bits have to be set
+            WritableRaster argbRaster = Raster.createPackedRaster(raster.getDataBuffer(),
+                    img.getWidth(), img.getHeight(), img.getWidth(),
+                    new int[]{0xFF_00_00, 0xFF_00, 0xFF, 0xFF_00_00_00}, null);
+            BufferedImage argb = new BufferedImage(ColorModel.getRGBdefault(), argbRaster, false, null);
+            setOpaque(argb, parallel);
+            return argb;
+        }
+
+        ColorModel cm = img.getColorModel();
+        if (raster.getParent() != null || !(raster.getSampleModel() instanceof ComponentSampleModel)
+                || !(raster.getDataBuffer() instanceof DataBufferByte)) {
+            return ImageUtils.toCompatibleImage(img);
+        }
+        int numBands = raster.getNumBands();
+        int[] grayLookup = null;
+        if (numBands == 1 && cm instanceof ComponentColorModel && cm.getPixelSize() == 8) {
+            // the gray values are converted like Java2D would do it
+            grayLookup = new int[256];
+            for (int i = 0; i < 256; i++) {
+                grayLookup[i] = cm.getRGB(i);
+            }
+        } else if (!isInterleavedSRGB(cm)) {
+            return ImageUtils.toCompatibleImage(img);
+        }
+
+        BufferedImage out = new BufferedImage(img.getWidth(), img.getHeight(), TYPE_INT_ARGB);
+        int[] lookup = grayLookup;
+        forEachStripe(img.getHeight(), parallel, (startY, endY) ->
+                convertRows(raster, lookup, out, startY, endY));
+        return out;
+    }
+
+    private static void convertRows(WritableRaster raster, int[] grayLookup,
+                                    BufferedImage out, int startY, int endY) {
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int[] dest = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+        int pixelStride = sm.getPixelStride();
+        int scanlineStride = sm.getScanlineStride();
+        int offset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateX() * pixelStride
+                - raster.getSampleModelTranslateY() * scanlineStride;
+        int[] bandOffsets = sm.getBandOffsets();
+        int width = out.getWidth();
+        boolean hasAlpha = bandOffsets.length == 4;
+
+        for (int y = startY; y < endY; y++) {
+            int srcIndex = offset + y * scanlineStride;
+            int destIndex = y * width;
+            for (int x = 0; x < width; x++) {
+                if (grayLookup != null) {
+                    dest[destIndex + x] = grayLookup[src[srcIndex + bandOffsets[0]] & 0xFF];
+                } else {
+                    int r = src[srcIndex + bandOffsets[0]] & 0xFF;
+                    int g = src[srcIndex + bandOffsets[1]] & 0xFF;
+                    int b = src[srcIndex + bandOffsets[2]] & 0xFF;
+                    int a = hasAlpha ? src[srcIndex + bandOffsets[3]] & 0xFF : 0xFF;
+                    dest[destIndex + x] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+                srcIndex += pixelStride;
+            }
+        }
+    }
+
+    private static void setOpaque(BufferedImage img, boolean parallel) {
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        int width = img.getWidth();
+        forEachStripe(img.getHeight(), parallel, (startY, endY) -> {
+            for (int i = startY * width, end = endY * width; i < end; i++) {
+                pixels[i] |= 0xFF000000;
+            }
+        });
+    }
+
+    private interface RowsTask {
+        void process(int startY, int endY);
+    }
+
+    /**
+     * Divides the rows into stripes, processed in parallel if requested
+     */
+    private static void forEachStripe(int height, boolean parallel, RowsTask task) {
+        int numStripes = parallel ? Math.min(ThreadPool.NUM_AVAILABLE_PROCESSORS, height) : 1;
+        if (numStripes <= 1) {
+            task.process(0, height);
+            return;
+        }
+        Future<?>[] futures = new Future<?>[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            int startY = i * height / numStripes;
+            int endY = (i + 1) * height / numStripes;
+            futures[i] = ThreadPool.executorService.submit(() -> task.process(startY, endY));
+        }
+        ThreadPool.waitForFutures(futures);
+    }
+}
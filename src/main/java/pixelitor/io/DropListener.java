@@ -29,6 +29,7 @@ import java.awt.dnd.DropTargetAdapter;
 import java.awt.dnd.DropTargetDropEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -67,6 +68,7 @@ public class DropListener extends DropTargetAdapter {
     }
 
     private static void dropFiles(List<File> list) {
+        List<File> files = new ArrayList<>();
         for (File file : list) {
             if (file.isDirectory()) {
                 String question = String.format("You have dropped the folder \"%s\". " +
@@ -80,8 +82,11 @@ public class DropListener extends DropTargetAdapter {
                     // do nothing
                 }
             } else if (file.isFile()) {
-                OpenSaveManager.openFile(file);
+                files.add(file);
             }
         }
+        if (!files.isEmpty()) {
+            OpenSaveManager.openFiles(files);
+        }
     }
 }
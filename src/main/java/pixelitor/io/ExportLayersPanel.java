@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.PixelitorWindow;
+import pixelitor.utils.BrowseFilesSupport;
+import pixelitor.utils.GridBagHelper;
+import pixelitor.utils.ValidatedDialog;
+import pixelitor.utils.ValidatedForm;
+
+import javax.swing.*;
+import java.awt.GridBagLayout;
+import java.io.File;
+
+import static pixelitor.utils.BrowseFilesSupport.SelectionMode.DIRECTORY;
+
+/**
+ * The settings of the "Export Layers to PNG" action
+ */
+class ExportLayersPanel extends ValidatedForm {
+    private static final long serialVersionUID = 1L;
+
+    private static boolean skipEmptyLayers = true;
+    private static boolean cropLayers = false;
+
+    private final BrowseFilesSupport directoryChooser;
+    private final JCheckBox skipEmptyCB = new JCheckBox("", skipEmptyLayers);
+    private final JCheckBox cropCB = new JCheckBox("", cropLayers);
+    private String errorMessage;
+
+    private ExportLayersPanel() {
+        super(new GridBagLayout());
+        directoryChooser = new BrowseFilesSupport(FileChoosers.getLastSaveDir().getAbsolutePath(),
+                "Select Output Folder", DIRECTORY);
+
+        GridBagHelper gbHelper = new GridBagHelper(this);
+        gbHelper.addLabelWithTwoControls("Output Folder:",
+                directoryChooser.getNameTF(), directoryChooser.getBrowseButton());
+        gbHelper.addLabelWithControl("Skip Empty Layers:", skipEmptyCB);
+
+        cropCB.setToolTipText("Leave out the fully transparent borders of the layers");
+        gbHelper.addLabelWithControl("Crop to Content:", cropCB);
+    }
+
+    @Override
+    public boolean isDataValid() {
+        File dir = directoryChooser.getSelectedFile();
+        if (!dir.isDirectory()) {
+            errorMessage = dir.getAbsolutePath() + " is not a folder.";
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * Returns true if the settings were accepted. The selected
+     * folder becomes the last save folder.
+     */
+    static boolean showDialog() {
+        ExportLayersPanel panel = new ExportLayersPanel();
+        ValidatedDialog dialog = new ValidatedDialog(panel, PixelitorWindow.getInstance(), "Export Layers to PNG");
+        dialog.setVisible(true);
+        if (!dialog.isOkPressed()) {
+            return false;
+        }
+        skipEmptyLayers = panel.skipEmptyCB.isSelected();
+        cropLayers = panel.cropCB.isSelected();
+        FileChoosers.setLastSaveDir(panel.directoryChooser.getSelectedFile());
+        return true;
+    }
+
+    static boolean skipEmptyLayers() {
+        return skipEmptyLayers;
+    }
+
+    static boolean cropLayers() {
+        return cropLayers;
+    }
+}
@@ -28,6 +28,8 @@ import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileChoosers {
     private static JFileChooser openFileChooser;
@@ -56,6 +58,7 @@ public class FileChoosers {
             //noinspection NonThreadSafeLazyInitialization
             openFileChooser = new JFileChooser(lastOpenDir);
             openFileChooser.setName("open");
+            openFileChooser.setMultiSelectionEnabled(true);
 
             setDefaultOpenExtensions();
 
@@ -78,20 +81,41 @@ public class FileChoosers {
     }
 
     public static void open() {
+        open(false);
+    }
+
+    /**
+     * Opens a large image file as a reduced-resolution proxy
+     */
+    public static void openAsProxy() {
+        open(true);
+    }
+
+    private static void open(boolean asProxy) {
         initOpenFileChooser();
 
         int status = openFileChooser.showOpenDialog(PixelitorWindow.getInstance());
 
         if (status == JFileChooser.APPROVE_OPTION) {
-            File selectedFile = openFileChooser.getSelectedFile();
-            String fileName = selectedFile.getName();
-
-            lastOpenDir = selectedFile.getParentFile();
-
-            if (FileExtensionUtils.isSupportedExtension(fileName, FileExtensionUtils.SUPPORTED_INPUT_EXTENSIONS)) {
-                OpenSaveManager.openFile(selectedFile);
-            } else { // unsupported extension
-                handleUnsupportedExtensionLoading(fileName);
+            File[] selectedFiles = openFileChooser.getSelectedFiles();
+            if (selectedFiles.length == 0) {
+                selectedFiles = new File[]{openFileChooser.getSelectedFile()};
+            }
+            lastOpenDir = selectedFiles[0].getParentFile();
+
+            List<File> supportedFiles = new ArrayList<>();
+            for (File selectedFile : selectedFiles) {
+                String fileName = selectedFile.getName();
+                if (!FileExtensionUtils.isSupportedExtension(fileName, FileExtensionUtils.SUPPORTED_INPUT_EXTENSIONS)) {
+                    handleUnsupportedExtensionLoading(fileName);
+                } else if (asProxy) {
+                    OpenSaveManager.openAsProxy(selectedFile);
+                } else {
+                    supportedFiles.add(selectedFile);
+                }
+            }
+            if (!supportedFiles.isEmpty()) {
+                OpenSaveManager.openFiles(supportedFiles);
             }
         } else if (status == JFileChooser.CANCEL_OPTION) {
             // cancelled
@@ -118,7 +142,7 @@ public class FileChoosers {
 //            OutputFormat outputFormat = saveFileChooser.getOutputFormat();
             String extension = saveFileChooser.getExtension();
             OutputFormat outputFormat =  OutputFormat.valueFromExtension(extension);
-            outputFormat.saveComposition(comp, selectedFile, true);
+            outputFormat.saveCompositionInBackground(comp, selectedFile, true);
             return true;
         }
         return false;
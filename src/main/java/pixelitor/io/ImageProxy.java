@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.filters.Filter;
+import pixelitor.filters.FilterWithParametrizedGUI;
+import pixelitor.filters.gui.FilterWithGUI;
+import pixelitor.filters.gui.ParamSet;
+import pixelitor.filters.gui.ParamSetState;
+import pixelitor.history.PixelitorEdit;
+import pixelitor.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A reduced-resolution working copy of a large image file.
+ * The filters and crops applied to the composition are recorded,
+ * so that they can be applied again to the full resolution image.
+ */
+public class ImageProxy {
+    // the proxy images have at most this many pixels
+    private static final long MAX_PROXY_PIXELS = 4_000_000L;
+
+    private final File sourceFile;
+    private final int fullWidth;
+    private final int fullHeight;
+    private final int subsampling;
+
+    // the edits of the composition in the order they were made, with
+    // the operation that repeats them at full resolution, if any.
+    // The undone edits are dropped when they can't be redone anymore.
+    private final List<RecordedEdit> edits = new ArrayList<>();
+
+    private ImageProxy(File sourceFile, int fullWidth, int fullHeight, int subsampling) {
+        this.sourceFile = sourceFile;
+        this.fullWidth = fullWidth;
+        this.fullHeight = fullHeight;
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * Opens the file as a proxy composition, decoding only every
+     * n-th pixel of every n-th row, or returns null if the
+     * image is small enough to be opened normally.
+     */
+    public static Composition open(File file) throws IOException {
+        return open(file, 0);
+    }
+
+    /**
+     * If the given subsampling is 0, it is calculated from the image size
+     */
+    static Composition open(File file, int subsampling) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = getReader(in, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (subsampling == 0) {
+                    subsampling = calcSubsampling(width, height);
+                }
+                if (subsampling == 1) {
+                    return null;
+                }
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage img = CompatibleImageReader.read(reader, param, true);
+
+                ImageProxy proxy = new ImageProxy(file, width, height, subsampling);
+                Composition comp = Composition.fromImage(img, null, String.format(
+                        "%s (proxy 1:%d)", file.getName(), subsampling));
+                comp.setProxy(proxy);
+                return comp;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    static int calcSubsampling(int width, int height) {
+        long numPixels = (long) width * height;
+        return (int) Math.ceil(Math.sqrt(numPixels / (double) MAX_PROXY_PIXELS));
+    }
+
+    private static ImageReader getReader(ImageInputStream in, File file) throws IOException {
+        if (in == null) {
+            throw new IOException("Could not open " + file.getName());
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Could not load \"" + file.getName() + "\" as an image file");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    /**
+     * Called for every new edit of the proxy composition
+     */
+    public void editAdded(PixelitorEdit edit) {
+        // a new edit discards the undone edits from the history
+        edits.removeIf(e -> !e.done);
+        edits.add(new RecordedEdit(edit));
+    }
+
+    public void editUndone(PixelitorEdit edit) {
+        findEdit(edit).ifPresent(e -> e.done = false);
+    }
+
+    public void editRedone(PixelitorEdit edit) {
+        findEdit(edit).ifPresent(e -> e.done = true);
+    }
+
+    private Optional<RecordedEdit> findEdit(PixelitorEdit edit) {
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            RecordedEdit recorded = edits.get(i);
+            if (recorded.edit.get() == edit) {
+                return Optional.of(recorded);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Records the filter that has just run on the proxy composition,
+     * if it added the given edit and its settings can be restored later
+     */
+    public void filterApplied(Composition comp, Filter filter, PixelitorEdit edit) {
+        if (comp.getNrLayers() != 1 || comp.hasSelection()
+                || comp.getActiveLayer().isMaskEditing()) {
+            return;
+        }
+        ParamSetState state = null;
+        if (filter instanceof FilterWithParametrizedGUI) {
+            ParamSet paramSet = ((FilterWithParametrizedGUI) filter).getParamSet();
+            if (!paramSet.isStateComplete()) {
+                return;
+            }
+            // the distances are measured on the subsampled image
+            state = paramSet.copyStateWithScaledDistances(subsampling);
+        } else if (filter instanceof FilterWithGUI) {
+            // the settings can't be captured
+            return;
+        }
+        record(edit, new FilterOperation(filter, state));
+    }
+
+    /**
+     * Records a crop of the proxy composition
+     */
+    public void cropped(Rectangle2D cropRect, PixelitorEdit edit) {
+        Rectangle r = cropRect.getBounds();
+        record(edit, new CropOperation(new Rectangle(
+                r.x * subsampling, r.y * subsampling,
+                r.width * subsampling, r.height * subsampling)));
+    }
+
+    private void record(PixelitorEdit edit, Operation op) {
+        findEdit(edit).ifPresent(e -> e.op = op);
+    }
+
+    /**
+     * Returns the number of current edits that can't be
+     * repeated on the full resolution image
+     */
+    public int getNumUnrecordedEdits() {
+        int count = 0;
+        for (RecordedEdit e : edits) {
+            if (e.done && e.op == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the full resolution image and applies the recorded
+     * operations. The leading crops are done while decoding,
+     * so that only the cropped region is read.
+     */
+    public BufferedImage renderFullResolution() throws IOException {
+        List<Operation> ops = new ArrayList<>();
+        for (RecordedEdit e : edits) {
+            if (e.done && e.op != null) {
+                ops.add(e.op);
+            }
+        }
+
+        Rectangle region = new Rectangle(0, 0, fullWidth, fullHeight);
+        int firstOp = 0;
+        while (firstOp < ops.size() && ops.get(firstOp) instanceof CropOperation) {
+            region = ((CropOperation) ops.get(firstOp)).cropRegion(region);
+            firstOp++;
+        }
+
+        BufferedImage img = readRegion(region);
+        for (int i = firstOp; i < ops.size(); i++) {
+            img = ops.get(i).apply(img);
+        }
+        return img;
+    }
+
+    private BufferedImage readRegion(Rectangle region) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(sourceFile)) {
+            ImageReader reader = getReader(in, sourceFile);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                return CompatibleImageReader.read(reader, param, true);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Something that can be repeated on the full resolution image
+     */
+    private interface Operation {
+        BufferedImage apply(BufferedImage img);
+    }
+
+    private static class FilterOperation implements Operation {
+        private final Filter filter;
+        private final ParamSetState state;
+
+        private FilterOperation(Filter filter, ParamSetState state) {
+            this.filter = filter;
+            this.state = state;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage img) {
+            if (state == null) {
+                return filter.executeForOneLayer(img);
+            }
+            // the filter objects are shared, their current settings are restored
+            ParamSet paramSet = ((FilterWithParametrizedGUI) filter).getParamSet();
+            ParamSetState currentState = paramSet.copyState();
+            paramSet.setState(state);
+            try {
+                return filter.executeForOneLayer(img);
+            } finally {
+                paramSet.setState(currentState);
+            }
+        }
+    }
+
+    private static class CropOperation implements Operation {
+        // in full resolution coordinates, relative to the image before the crop
+        private final Rectangle rect;
+
+        private CropOperation(Rectangle rect) {
+            this.rect = rect;
+        }
+
+        /**
+         * Returns the region of the original image that remains
+         * after this crop, if it follows the given region
+         */
+        private Rectangle cropRegion(Rectangle region) {
+            Rectangle r = new Rectangle(rect);
+            r.translate(region.x, region.y);
+            return r.intersection(region);
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage img) {
+            Rectangle r = rect.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+            return ImageUtils.crop(img, r.x, r.y, r.width, r.height);
+        }
+    }
+
+    private static class RecordedEdit {
+        // only identifies the edit, which can be discarded by the history
+        // (and garbage collected) while the operation is still needed
+        private final WeakReference<PixelitorEdit> edit;
+        private Operation op;
+        private boolean done = true;
+
+        private RecordedEdit(PixelitorEdit edit) {
+            this.edit = new WeakReference<>(edit);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package pixelitor.io;
 
 import pd.AnimatedGifEncoder;
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
 import pixelitor.utils.Utils;
@@ -63,6 +64,8 @@ public class LayerAnimationFrames {
         e.start(f);
         e.setDelay(delayMillis);
         e.setRepeat(0);
+        e.setNumThreads(ThreadPool.NUM_AVAILABLE_PROCESSORS);
+        e.setFrameDifferencing(true);
         images.forEach(e::addFrame);
         boolean ok = e.finish();
         // TODO handle ok status
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.ThreadPool;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.Layer;
+import pixelitor.layers.PackedImage;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.Messages;
+import pixelitor.utils.Utils;
+import pixelitor.utils.VisibleForTesting;
+
+import javax.swing.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import static pixelitor.layers.SparseImage.TILE_SIZE;
+
+/**
+ * Writes each image layer of a composition into a separate PNG file.
+ * The layers are encoded in parallel in the background, so that the
+ * editing can continue. The pixels of a layer are taken in the EDT only
+ * when its encoding starts, so only a few layers are copied at a time.
+ * The packed layers are not copied, their tiles are read directly.
+ */
+public class LayerPNGExport {
+    private final List<LayerTask> layers = new ArrayList<>();
+    private final File outputDir;
+    private final boolean skipEmptyLayers;
+    private final boolean cropLayers;
+
+    private int numWritten = 0;
+    private int numSkipped = 0;
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * The status of a single layer
+     */
+    enum LayerResult {WRITTEN, SKIPPED}
+
+    public LayerPNGExport(Composition comp, File outputDir, boolean skipEmptyLayers, boolean cropLayers) {
+        this.outputDir = outputDir;
+        this.skipEmptyLayers = skipEmptyLayers;
+        this.cropLayers = cropLayers;
+
+        int nrLayers = comp.getNrLayers();
+        for (int i = 0; i < nrLayers; i++) {
+            Layer layer = comp.getLayer(i);
+            if (layer instanceof ImageLayer) {
+                String fileName = String.format("%03d_%s.%s", i, Utils.toFileName(layer.getName()), "png");
+                layers.add(new LayerTask((ImageLayer) layer, new File(outputDir, fileName)));
+            }
+        }
+    }
+
+    /**
+     * Runs the export in the background with a progress dialog
+     */
+    public void start() {
+        ProgressMonitor progressMonitor = Utils.createPercentageProgressMonitor("Exporting Layers to PNG");
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws InterruptedException {
+                encodeLayers(progress -> SwingUtilities.invokeLater(
+                        () -> progressMonitor.setProgress(progress)), progressMonitor::isCanceled);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                progressMonitor.close();
+                showResult(progressMonitor.isCanceled());
+            }
+        };
+        worker.execute();
+    }
+
+    @VisibleForTesting
+    void encodeLayers(IntConsumer progressListener, BooleanSupplier canceled) throws InterruptedException {
+        int numLayers = layers.size();
+        if (numLayers == 0) {
+            return;
+        }
+        ExecutorService encoders = Executors.newFixedThreadPool(
+                Math.min(numLayers, ThreadPool.NUM_AVAILABLE_PROCESSORS), r -> {
+                    Thread thread = new Thread(r, "Layer Export");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        CompletionService<LayerResult> completed = new ExecutorCompletionService<>(encoders);
+        List<Future<LayerResult>> futures = new ArrayList<>();
+        for (LayerTask layer : layers) {
+            futures.add(completed.submit(layer::write));
+        }
+
+        try {
+            for (int i = 0; i < numLayers; i++) {
+                Future<LayerResult> future = completed.take();
+                try {
+                    if (future.get() == LayerResult.WRITTEN) {
+                        numWritten++;
+                    } else {
+                        numSkipped++;
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    errors.add(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+                }
+
+                int progress = (i + 1) * 100 / numLayers;
+                progressListener.accept(progress);
+                if (canceled.getAsBoolean()) {
+                    // the layers that are already being encoded are finished
+                    break;
+                }
+            }
+        } finally {
+            // the waiting layers are not started, but the running ones are not
+            // interrupted, because they could be waiting for the EDT
+            for (Future<LayerResult> future : futures) {
+                future.cancel(false);
+            }
+            encoders.shutdown();
+        }
+    }
+
+    private void showResult(boolean canceled) {
+        String summary = String.format("%d layers exported to %s", numWritten, outputDir.getAbsolutePath());
+        if (numSkipped > 0) {
+            summary += String.format(", %d empty layers skipped", numSkipped);
+        }
+        if (canceled) {
+            summary += " (canceled)";
+        }
+        if (errors.isEmpty()) {
+            Messages.showStatusMessage(summary);
+        } else {
+            Messages.showError("Export Layers to PNG", summary + "\n" + errors.size()
+                    + " layers could not be exported:\n" + errors.get(0));
+        }
+    }
+
+    /**
+     * Runs the given task in the EDT, and waits for its result
+     */
+    private static <T> T callInEDT(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<>(task);
+        SwingUtilities.invokeLater(future);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private class LayerTask {
+        private final ImageLayer layer;
+        private final File file;
+
+        private LayerTask(ImageLayer layer, File file) {
+            this.layer = layer;
+            this.file = file;
+        }
+
+        private LayerResult write() throws Exception {
+            PackedImage packed = callInEDT(layer::startReadingPacked);
+            if (packed != null) {
+                try {
+                    return writePacked(packed);
+                } finally {
+                    packed.endRead();
+                }
+            }
+            return writeImage(callInEDT(layer::copyPixels));
+        }
+
+        private LayerResult writeImage(BufferedImage image) throws IOException {
+            BufferedImage out = image;
+            if (skipEmptyLayers || cropLayers) {
+                Rectangle bounds = ImageUtils.getNonTransparentBounds(out);
+                if (bounds == null) {
+                    if (skipEmptyLayers) {
+                        return LayerResult.SKIPPED;
+                    }
+                } else if (cropLayers) {
+                    out = out.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+                }
+            }
+
+            BufferedImage finalImage = out;
+            writePNG(stream -> {
+                // the layers are encoded in parallel, the stripes of a layer are not
+                PngOutput.Preset preset = PngOutput.Preset.NORMAL;
+                PngOutput.write(finalImage, stream, preset.getCompressionLevel(), preset.getFilter(), false);
+            });
+            return LayerResult.WRITTEN;
+        }
+
+        /**
+         * Writes the packed pixels in strips of tiles, without
+         * creating a full-sized image
+         */
+        private LayerResult writePacked(PackedImage packed) throws IOException {
+            Rectangle area = new Rectangle(0, 0, packed.getWidth(), packed.getHeight());
+            if (skipEmptyLayers || cropLayers) {
+                Rectangle bounds = getNonTransparentBounds(packed);
+                if (bounds == null) {
+                    if (skipEmptyLayers) {
+                        return LayerResult.SKIPPED;
+                    }
+                } else if (cropLayers) {
+                    area = bounds;
+                }
+            }
+
+            Rectangle finalArea = area;
+            boolean hasAlpha = new BufferedImage(1, 1, packed.getType()).getColorModel().hasAlpha();
+            writePNG(stream -> {
+                PngOutput.Preset preset = PngOutput.Preset.NORMAL;
+                PngOutput.write(finalArea.width, finalArea.height, hasAlpha,
+                        new PackedStrips(packed, finalArea), stream,
+                        preset.getCompressionLevel(), preset.getFilter());
+            });
+            return LayerResult.WRITTEN;
+        }
+
+        private void writePNG(PNGEncoding writer) throws IOException {
+            OpenSaveManager.writeAtomically(tmp -> {
+                try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                    writer.write(stream);
+                }
+            }, file);
+        }
+    }
+
+    private interface PNGEncoding {
+        void write(OutputStream stream) throws IOException;
+    }
+
+    /**
+     * Returns the bounds of the non-transparent pixels, or null
+     * if all of them are transparent. Reads the tiles one by one.
+     */
+    private static Rectangle getNonTransparentBounds(PackedImage packed) {
+        int numTilesX = (packed.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        int numTilesY = (packed.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        Rectangle bounds = null;
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                BufferedImage tile = packed.readTile(tx, ty);
+                if (tile == null) {
+                    continue;
+                }
+                Rectangle tileBounds = ImageUtils.getNonTransparentBounds(tile);
+                if (tileBounds != null) {
+                    tileBounds.translate(tx * TILE_SIZE, ty * TILE_SIZE);
+                    if (bounds == null) {
+                        bounds = tileBounds;
+                    } else {
+                        bounds.add(tileBounds);
+                    }
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Supplies the strips of an area of the packed pixels,
+     * following the rows of the tiles
+     */
+    private static class PackedStrips implements PngOutput.StripSupplier {
+        private final PackedImage packed;
+        private final Rectangle area;
+        private int y;
+
+        private PackedStrips(PackedImage packed, Rectangle area) {
+            this.packed = packed;
+            this.area = area;
+            y = area.y;
+        }
+
+        @Override
+        public BufferedImage nextStrip() {
+            int ty = y / TILE_SIZE;
+            int endY = Math.min((ty + 1) * TILE_SIZE, area.y + area.height);
+            BufferedImage strip = new BufferedImage(area.width, endY - y, packed.getType());
+            WritableRaster raster = strip.getRaster();
+            int firstTX = area.x / TILE_SIZE;
+            int lastTX = (area.x + area.width - 1) / TILE_SIZE;
+            for (int tx = firstTX; tx <= lastTX; tx++) {
+                BufferedImage tile = packed.readTile(tx, ty);
+                if (tile != null) {
+                    // the parts outside the strip are clipped
+                    raster.setRect(tx * TILE_SIZE - area.x, ty * TILE_SIZE - y, tile.getRaster());
+                }
+            }
+            y = endY;
+            return strip;
+        }
+    }
+}
@@ -19,24 +19,31 @@ package pixelitor.io;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import pixelitor.Composition;
+import pixelitor.ThreadPool;
 import pixelitor.history.AddToHistory;
 import pixelitor.layers.BlendingMode;
 import pixelitor.layers.ImageLayer;
 import pixelitor.layers.Layer;
+import pixelitor.layers.LazyImage;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.UpdateGUI;
 import pixelitor.utils.Utils;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -44,80 +51,185 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+
 public class OpenRaster {
+    // ORA files are working files like the pxc files,
+    // so the speed of saving matters more than the size
+    private static final PngOutput.Preset PNG_PRESET = PngOutput.Preset.FAST;
+
     private OpenRaster() {
     }
 
     public static void writeOpenRaster(Composition comp, File outFile, boolean addMergedImage) throws IOException {
-        FileOutputStream fos = new FileOutputStream(outFile);
-        ZipOutputStream zos = new ZipOutputStream(fos);
+        createSnapshot(comp, addMergedImage, false).write(outFile);
+    }
 
-        String stackXML = String.format("<?xml version='1.0' encoding='UTF-8'?>\n" +
-                "<image w=\"%d\" h=\"%d\">\n" +
-                "<stack>\n", comp.getCanvasWidth(), comp.getCanvasHeight());
+    /**
+     * Returns a snapshot of the composition, which can be written outside
+     * the EDT while the composition is edited. The images are copied,
+     * and their encoding starts right away in the background.
+     */
+    static SnapshotWriter createSnapshot(Composition comp, boolean addMergedImage) {
+        return createSnapshot(comp, addMergedImage, true);
+    }
 
-        int nrLayers = comp.getNrLayers();
+    /**
+     * Like createSnapshot, but the images are not copied, therefore
+     * the writer must run before the composition is changed
+     */
+    static SnapshotWriter createDirectWriter(Composition comp, boolean addMergedImage) {
+        return createSnapshot(comp, addMergedImage, false);
+    }
 
-        // Reverse iteration: in stack.xml the first element in a stack is the uppermost.
-        for (int i = nrLayers - 1; i >= 0; i--) {
+    private static SnapshotWriter createSnapshot(Composition comp, boolean addMergedImage, boolean copyImages) {
+        // the file might be the source of the lazily loaded layers
+        comp.decodeLazyLayers();
+
+        // the PNG files are encoded in parallel into memory,
+        // and then written into the zip file in the stack order
+        int nrLayers = comp.getNrLayers();
+        List<Future<byte[]>> encodedLayers = new ArrayList<>(nrLayers);
+        List<String> layerElements = new ArrayList<>(nrLayers);
+        for (int i = 0; i < nrLayers; i++) {
             Layer layer = comp.getLayer(i);
-            stackXML += writeLayer(zos, i, layer);
+            if (layer instanceof ImageLayer) {
+                ImageLayer imageLayer = (ImageLayer) layer;
+                BufferedImage image = imageLayer.getImage();
+                if (copyImages) {
+                    image = ImageUtils.copyImage(image);
+                }
+                encodedLayers.add(encodeInBackground(image));
+                layerElements.add(createLayerElement(i, imageLayer));
+            } else {
+                // currently only image layers are supported
+                encodedLayers.add(null);
+                layerElements.add(null);
+            }
         }
-
-        if(addMergedImage) {
-            zos.putNextEntry(new ZipEntry("mergedimage.png"));
-            ImageIO.write(comp.getCompositeImage(), "PNG", zos);
-            zos.closeEntry();
+        Future<byte[]> encodedMergedImage = null;
+        if (addMergedImage) {
+            BufferedImage mergedImage = comp.getCompositeImage();
+            if (copyImages) {
+                mergedImage = ImageUtils.copyImage(mergedImage);
+            }
+            encodedMergedImage = encodeInBackground(mergedImage);
         }
 
-        stackXML += "</stack>\n</image>";
-
-        // write the stack.xml file
-        zos.putNextEntry(new ZipEntry("stack.xml"));
-        zos.write(stackXML.getBytes("UTF-8"));
-        zos.closeEntry();
+        String stackStart = String.format("<?xml version='1.0' encoding='UTF-8'?>\n" +
+                "<image w=\"%d\" h=\"%d\">\n" +
+                "<stack>\n", comp.getCanvasWidth(), comp.getCanvasHeight());
 
-        // write the mimetype
-        zos.putNextEntry(new ZipEntry("mimetype"));
-        zos.write("image/openraster".getBytes("UTF-8"));
-        zos.closeEntry();
-        zos.close();
+        Future<byte[]> finalEncodedMergedImage = encodedMergedImage;
+        return outFile -> writeZip(outFile, stackStart, layerElements, encodedLayers, finalEncodedMergedImage);
     }
 
-    private static String writeLayer(ZipOutputStream zos, int layerIndex, Layer layer) throws IOException {
-        if (!(layer instanceof ImageLayer)) {
-            return ""; // currently only image layers are supported
+    private static void writeZip(File outFile, String stackStart, List<String> layerElements,
+                                 List<Future<byte[]>> encodedLayers, Future<byte[]> encodedMergedImage) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outFile))) {
+            String stackXML = stackStart;
+
+            // Reverse iteration: in stack.xml the first element in a stack is the uppermost.
+            for (int i = layerElements.size() - 1; i >= 0; i--) {
+                Future<byte[]> encodedLayer = encodedLayers.get(i);
+                if (encodedLayer != null) {
+                    putStoredEntry(zos, String.format("data/%d.png", i), PXCFormat.getResult(encodedLayer));
+                    stackXML += layerElements.get(i);
+                }
+            }
+
+            if (encodedMergedImage != null) {
+                putStoredEntry(zos, "mergedimage.png", PXCFormat.getResult(encodedMergedImage));
+            }
+
+            stackXML += "</stack>\n</image>";
+
+            // write the stack.xml file
+            zos.putNextEntry(new ZipEntry("stack.xml"));
+            zos.write(stackXML.getBytes("UTF-8"));
+            zos.closeEntry();
+
+            // write the mimetype
+            zos.putNextEntry(new ZipEntry("mimetype"));
+            zos.write("image/openraster".getBytes("UTF-8"));
+            zos.closeEntry();
         }
-        ImageLayer imageLayer = (ImageLayer) layer;
+    }
 
-        String stackXML = String.format(Locale.ENGLISH, "<layer name=\"%s\" visibility=\"%s\" composite-op=\"%s\" opacity=\"%f\" src=\"data/%d.png\" x=\"%d\" y=\"%d\"/>\n",
+    private static Future<byte[]> encodeInBackground(BufferedImage image) {
+        return ThreadPool.executorService.submit(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // already in the thread pool, so the encoding itself is not parallel
+            PngOutput.write(image, out, PNG_PRESET.getCompressionLevel(), PNG_PRESET.getFilter(), false);
+            return out.toByteArray();
+        });
+    }
+
+    private static String createLayerElement(int layerIndex, ImageLayer layer) {
+        return String.format(Locale.ENGLISH, "<layer name=\"%s\" visibility=\"%s\" composite-op=\"%s\" opacity=\"%f\" src=\"data/%d.png\" x=\"%d\" y=\"%d\"/>\n",
                 layer.getName(),
                 layer.getVisibilityAsORAString(),
                 layer.getBlendingMode().toSVGName(),
                 layer.getOpacity(),
                 layerIndex,
-                imageLayer.getTX(),
-                imageLayer.getTX());
-        ZipEntry entry = new ZipEntry(String.format("data/%d.png", layerIndex));
+                layer.getTX(),
+                layer.getTY());
+    }
+
+    /**
+     * Writes an uncompressed zip entry. PNG files are already
+     * compressed, deflating them again would only waste time.
+     */
+    private static void putStoredEntry(ZipOutputStream zos, String name, byte[] data) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+
         zos.putNextEntry(entry);
-        BufferedImage image = imageLayer.getImage();
-        ImageIO.write(image, "PNG", zos);
+        zos.write(data);
         zos.closeEntry();
-        return stackXML;
     }
 
     public static Composition readOpenRaster(File file) throws IOException, ParserConfigurationException, SAXException {
+        return decodeOpenRaster(file).toComposition();
+    }
+
+    /**
+     * Returns the flattened image of the file. The layers are not
+     * created, so that it can run outside the EDT.
+     */
+    public static BufferedImage readFlattened(File file) throws IOException, ParserConfigurationException, SAXException {
+        return decodeOpenRaster(file).flatten();
+    }
+
+    /**
+     * Reads the stack and the merged image, which can run outside the EDT.
+     * The layers, whose images are decoded only when they are needed,
+     * are created by the returned object.
+     */
+    static DecodedStack decodeOpenRaster(File file) throws IOException, ParserConfigurationException, SAXException {
         boolean DEBUG = System.getProperty("openraster.debug", "false").equals("true");
 
         String stackXML = null;
-        Map<String, BufferedImage> images = new HashMap<>();
+        BufferedImage mergedImage = null;
+        // the layer images are only decoded when they are needed
+        Map<String, Dimension> imageSizes = new HashMap<>();
         try (ZipFile zipFile = new ZipFile(file)) {
             Enumeration<? extends ZipEntry> fileEntries = zipFile.entries();
             while (fileEntries.hasMoreElements()) {
@@ -127,12 +239,12 @@ public class OpenRaster {
                 if (name.equalsIgnoreCase("stack.xml")) {
                     stackXML = extractString(zipFile.getInputStream(entry));
                 } else if (name.equalsIgnoreCase("mergedimage.png")) {
-                    // no need for that
+                    // shown while the layers are decoded
+                    mergedImage = ImageIO.read(zipFile.getInputStream(entry));
                 } else {
                     String extension = FileExtensionUtils.getFileExtension(name);
                     if ("png".equalsIgnoreCase(extension)) {
-                        BufferedImage image = ImageIO.read(zipFile.getInputStream(entry));
-                        images.put(name, image);
+                        imageSizes.put(name, readImageSize(zipFile, entry));
                         if (DEBUG) {
                             System.out.println(String.format("OpenRaster::readOpenRaster: found png image in zip file at the path '%s'", name));
                         }
@@ -167,63 +279,190 @@ public class OpenRaster {
             System.out.println(String.format("OpenRaster::readOpenRaster: w = '%s', h = '%s', compWidth = %d, compHeight = %d", w, h, compWidth, compHeight));
         }
 
-        Composition comp = Composition.createEmpty(compWidth, compHeight);
-        comp.setFile(file);
+        // stack.xml contains layers in reverse order
+        NodeList layerNodes = docElement.getElementsByTagName("layer");
+        List<StackLayer> layers = new ArrayList<>(layerNodes.getLength());
+        for (int i = layerNodes.getLength() - 1; i >= 0; i--) {
+            layers.add(parseLayer((Element) layerNodes.item(i), imageSizes, DEBUG));
+        }
+        return new DecodedStack(file, compWidth, compHeight, layers, mergedImage);
+    }
 
-        NodeList layers = docElement.getElementsByTagName("layer");
-        for (int i = layers.getLength() - 1; i >= 0; i--) { // stack.xml contains layers in reverse order
-            Node node = layers.item(i);
-            Element element = (Element) node;
+    private static StackLayer parseLayer(Element element, Map<String, Dimension> imageSizes, boolean DEBUG) {
+        String layerName = element.getAttribute("name");
+        String layerVisibility = element.getAttribute("visibility");
+        String layerVisible = element.getAttribute("visible");
+        String layerBlendingMode = element.getAttribute("composite-op");
+        String layerOpacity = element.getAttribute("opacity");
+        String layerImageSource = element.getAttribute("src");
+        String layerX = element.getAttribute("x");
+        String layerY = element.getAttribute("y");
+
+        Dimension imageSize = imageSizes.get(layerImageSource);
+        if (imageSize == null) {
+            throw new IllegalStateException(String.format("No image found at '%s'.", layerImageSource));
+        }
 
-            String layerName = element.getAttribute("name");
-            String layerVisibility = element.getAttribute("visibility");
-            String layerVisible = element.getAttribute("visible");
-            String layerBlendingMode = element.getAttribute("composite-op");
-            String layerOpacity = element.getAttribute("opacity");
-            String layerImageSource = element.getAttribute("src");
-            String layerX = element.getAttribute("x");
-            String layerY = element.getAttribute("y");
+        if(DEBUG) {
+            System.out.println("OpenRaster::readOpenRaster: imgWidth = " + imageSize.width + ", imgHeight = " + imageSize.height);
+        }
 
-            BufferedImage image = images.get(layerImageSource);
-            image = ImageUtils.toCompatibleImage(image);
+        if(layerVisibility == null || layerVisibility.isEmpty()) {
+            //workaround: paint.net exported files use "visible" attribute instead of "visibility"
+            layerVisibility = layerVisible;
+        }
+        boolean visibility = layerVisibility == null ? true : layerVisibility.equals("visible");
 
-            if(DEBUG) {
-                int imgWidth = image.getWidth();
-                int imgHeight = image.getHeight();
-                System.out.println("OpenRaster::readOpenRaster: imgWidth = " + imgWidth + ", imgHeight = " + imgHeight);
-//                Utils.debugImage(image, layerImageSource);
-            }
+        BlendingMode blendingMode = BlendingMode.fromSVGName(layerBlendingMode);
 
-            if(layerVisibility == null || layerVisibility.isEmpty()) {
-                //workaround: paint.net exported files use "visible" attribute instead of "visibility"
-                layerVisibility = layerVisible;
-            }
-            boolean visibility = layerVisibility == null ? true : layerVisibility.equals("visible");
+        if(DEBUG) {
+            System.out.println("OpenRaster::readOpenRaster: blendingMode = " + blendingMode);
+        }
+
+        float opacity = Utils.parseFloat(layerOpacity, 1.0f);
+        int tX = Utils.parseInt(layerX, 0);
+        int tY = Utils.parseInt(layerY, 0);
+
+        if(DEBUG) {
+            System.out.println(String.format("OpenRaster::readOpenRaster: opacity = %.2f, tX = %d, tY = %d", opacity, tX, tY));
+        }
+
+        return new StackLayer(layerName, layerImageSource, imageSize, visibility, blendingMode, opacity, tX, tY);
+    }
 
-            ImageLayer layer = new ImageLayer(comp, image, layerName, null);
-            layer.setVisible(visibility, AddToHistory.NO);
-            BlendingMode blendingMode = BlendingMode.fromSVGName(layerBlendingMode);
+    /**
+     * A layer element of stack.xml
+     */
+    private static class StackLayer {
+        private final String name;
+        private final String imageSource;
+        private final Dimension imageSize;
+        private final boolean visible;
+        private final BlendingMode blendingMode;
+        private final float opacity;
+        private final int tX;
+        private final int tY;
+
+        private StackLayer(String name, String imageSource, Dimension imageSize, boolean visible,
+                           BlendingMode blendingMode, float opacity, int tX, int tY) {
+            this.name = name;
+            this.imageSource = imageSource;
+            this.imageSize = imageSize;
+            this.visible = visible;
+            this.blendingMode = blendingMode;
+            this.opacity = opacity;
+            this.tX = tX;
+            this.tY = tY;
+        }
+    }
 
-            if(DEBUG) {
-                System.out.println("OpenRaster::readOpenRaster: blendingMode = " + blendingMode);
+    /**
+     * The parsed stack.xml of an OpenRaster file
+     */
+    static class DecodedStack implements DecodedFile {
+        private final File file;
+        private final int compWidth;
+        private final int compHeight;
+        private final List<StackLayer> layers; // from the bottom to the top
+        private final BufferedImage mergedImage;
+
+        private DecodedStack(File file, int compWidth, int compHeight,
+                             List<StackLayer> layers, BufferedImage mergedImage) {
+            this.file = file;
+            this.compWidth = compWidth;
+            this.compHeight = compHeight;
+            this.layers = layers;
+            this.mergedImage = mergedImage;
+        }
+
+        @Override
+        public Composition toComposition() {
+            Composition comp = Composition.createEmpty(compWidth, compHeight);
+            comp.setFile(file);
+
+            // the type of the images created by ImageUtils.toCompatibleImage
+            int imageType = ImageUtils.createCompatibleImage(1, 1).getType();
+
+            for (StackLayer stackLayer : layers) {
+                String imageSource = stackLayer.imageSource;
+                LazyImage pixels = new LazyImage(stackLayer.imageSize.width, stackLayer.imageSize.height, imageType,
+                        () -> readLayerImage(file, imageSource));
+                ImageLayer layer = new ImageLayer(comp, pixels, stackLayer.name);
+                layer.setVisible(stackLayer.visible, AddToHistory.NO);
+                layer.setBlendingMode(stackLayer.blendingMode, UpdateGUI.NO, AddToHistory.NO, false);
+                layer.setOpacity(stackLayer.opacity, UpdateGUI.NO, AddToHistory.NO, false);
+                // TODO assuming that there is no layer mask
+                layer.setTranslation(stackLayer.tX, stackLayer.tY);
+
+                comp.addLayerNoGUI(layer);
+            }
+            comp.setActiveLayer(comp.getLayer(0), AddToHistory.NO);
+            if (mergedImage != null) {
+                comp.setLoadingPreview(mergedImage);
+            }
+            return comp;
+        }
+
+        /**
+         * Returns the flattened image without creating the layers,
+         * so that it can run outside the EDT
+         */
+        BufferedImage flatten() throws IOException {
+            if (mergedImage != null && mergedImage.getWidth() == compWidth && mergedImage.getHeight() == compHeight) {
+                return mergedImage;
             }
 
-            layer.setBlendingMode(blendingMode, UpdateGUI.NO, AddToHistory.NO, false);
-            float opacity = Utils.parseFloat(layerOpacity, 1.0f);
-            layer.setOpacity(opacity, UpdateGUI.NO, AddToHistory.NO, false);
-            int tX = Utils.parseInt(layerX, 0);
-            int tY = Utils.parseInt(layerY, 0);
-            // TODO assuming that there is no layer mask
-            layer.setTranslation(tX, tY);
+            // painted like the image layers of a composition
+            BufferedImage flattened = new BufferedImage(compWidth, compHeight, TYPE_INT_ARGB_PRE);
+            Graphics2D g = flattened.createGraphics();
+            boolean firstVisibleLayer = true;
+            for (StackLayer stackLayer : layers) {
+                if (stackLayer.visible) {
+                    if (firstVisibleLayer) {
+                        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, stackLayer.opacity));
+                        firstVisibleLayer = false;
+                    } else {
+                        g.setComposite(stackLayer.blendingMode.getComposite(stackLayer.opacity));
+                    }
+                    g.drawImage(readLayerImage(file, stackLayer.imageSource), stackLayer.tX, stackLayer.tY, null);
+                }
+            }
+            g.dispose();
+            return flattened;
+        }
+    }
 
-            if(DEBUG) {
-                System.out.println(String.format("OpenRaster::readOpenRaster: opacity = %.2f, tX = %d, tY = %d", opacity, tX, tY));
+    /**
+     * Reads only the size of an image from its header
+     */
+    private static Dimension readImageSize(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(zipFile.getInputStream(entry))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Could not read " + entry.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
             }
+        }
+    }
 
-            comp.addLayerNoGUI(layer);
+    /**
+     * Decodes the image of a lazily loaded layer, reopening the file
+     */
+    private static BufferedImage readLayerImage(File file, String imageSource) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            ZipEntry entry = zipFile.getEntry(imageSource);
+            BufferedImage image = entry == null ? null : CompatibleImageReader.read(zipFile.getInputStream(entry));
+            if (image == null) {
+                throw new IOException("Could not read " + imageSource + " from " + file.getName());
+            }
+            return image;
         }
-        comp.setActiveLayer(comp.getLayer(0), AddToHistory.NO);
-        return comp;
     }
 
     private static Document loadXMLFromString(String xml) throws ParserConfigurationException, IOException, SAXException {
@@ -24,10 +24,12 @@ import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
 import pixelitor.ImageDisplay;
 import pixelitor.PixelitorWindow;
+import pixelitor.ThreadPool;
 import pixelitor.automate.SingleDirChooserPanel;
 import pixelitor.layers.ImageLayer;
-import pixelitor.layers.Layer;
+import pixelitor.layers.PackedImage;
 import pixelitor.menus.file.RecentFilesMenu;
+import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
 import pixelitor.utils.Utils;
 
@@ -36,24 +38,44 @@ import javax.swing.*;
 import javax.xml.parsers.ParserConfigurationException;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 public class OpenSaveManager {
-    private static final int CURRENT_PXC_VERSION_NUMBER = 0x03;
     private static final float DEFAULT_JPEG_QUALITY = 0.87f;
     private static float jpegQuality = DEFAULT_JPEG_QUALITY;
 
+    // limits the memory used by the images decoded at the same time
+    private static final int MAX_PARALLEL_LOADS = 4;
+
+    // the snapshots of the saved compositions are written in this thread
+    private static final ExecutorService backgroundSaver = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Background Saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // several files are decoded in parallel in these threads
+    private static final ExecutorService fileLoader = Executors.newFixedThreadPool(
+            Math.min(ThreadPool.NUM_AVAILABLE_PROCESSORS, MAX_PARALLEL_LOADS), r -> {
+        Thread thread = new Thread(r, "File Loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Utility class with static methods
      */
@@ -65,7 +87,104 @@ public class OpenSaveManager {
         Runnable r = () -> {
             Composition comp = createCompositionFromFile(file);
             if(comp != null) { // there was no decoding problem
-                AppLogic.addComposition(comp);
+                // very large layers are moved out of the heap right away
+                comp.packLayers(true);
+                addOpenedComposition(comp);
+            }
+        };
+        Utils.executeWithBusyCursor(r);
+
+        RecentFilesMenu.getInstance().addFile(file);
+    }
+
+    private static void addOpenedComposition(Composition comp) {
+        AppLogic.addComposition(comp);
+        if (comp.isLoading()) {
+            // the stored preview is shown until the layers are decoded
+            comp.decodeLayersInBackground();
+        }
+    }
+
+    /**
+     * Opens the files by decoding several of them at the same time
+     * outside the EDT. The compositions are created and added on the
+     * EDT in the order of the files, each as soon as it and the
+     * previous ones are decoded.
+     */
+    public static void openFiles(List<File> files) {
+        assert SwingUtilities.isEventDispatchThread();
+        if (files.size() == 1) {
+            openFile(files.get(0));
+            return;
+        }
+
+        Messages.showStatusMessage("Opening " + files.size() + " files...");
+        List<CompletableFuture<DecodedFile>> futures = new ArrayList<>(files.size());
+        int[] nextToAdd = {0}; // only accessed in the EDT
+        Runnable addReadyComps = () -> {
+            while (nextToAdd[0] < futures.size() && futures.get(nextToAdd[0]).isDone()) {
+                int index = nextToAdd[0]++;
+                addLoadedComposition(futures.get(index), files.get(index));
+            }
+        };
+        for (File file : files) {
+            CompletableFuture<DecodedFile> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return decodeFile(file);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, fileLoader);
+            futures.add(future);
+            // invokeLater also makes sure that all futures are in the list
+            future.whenComplete((decoded, e) -> SwingUtilities.invokeLater(addReadyComps));
+        }
+    }
+
+    private static void addLoadedComposition(CompletableFuture<DecodedFile> future, File file) {
+        Composition comp;
+        try {
+            DecodedFile decoded = future.join();
+            if (decoded == null) {
+                showNotAnImageError(file);
+                return;
+            }
+            comp = decoded.toComposition();
+        } catch (CompletionException e) {
+            Messages.showException(e.getCause());
+            return;
+        } catch (IOException | ClassNotFoundException e) {
+            Messages.showException(e);
+            return;
+        }
+        comp.packLayers(true);
+        addOpenedComposition(comp);
+        RecentFilesMenu.getInstance().addFile(file);
+    }
+
+    /**
+     * Opens a large image file as a reduced-resolution proxy.
+     * Small images and layered files are opened normally.
+     */
+    public static void openAsProxy(File file) {
+        assert SwingUtilities.isEventDispatchThread();
+        String ext = FileExtensionUtils.getFileExtension(file.getName());
+        if ("pxc".equals(ext) || "ora".equals(ext)) {
+            openFile(file);
+            return;
+        }
+
+        Runnable r = () -> {
+            try {
+                Composition comp = ImageProxy.open(file);
+                if (comp == null) { // small enough to be opened normally
+                    comp = createCompositionFromFile(file);
+                }
+                if (comp != null) {
+                    AppLogic.addComposition(comp);
+                }
+            } catch (IOException e) {
+                Messages.showException(e);
             }
         };
         Utils.executeWithBusyCursor(r);
@@ -73,52 +192,125 @@ public class OpenSaveManager {
         RecentFilesMenu.getInstance().addFile(file);
     }
 
+    /**
+     * Opens the full resolution version of a proxy composition
+     * in a new window, with the recorded operations applied
+     */
+    public static void openFullResolution(Composition proxyComp) {
+        ImageProxy proxy = proxyComp.getProxy();
+        if (proxy == null) {
+            Messages.showInfo("Not a proxy", proxyComp.getName() + " is not a proxy of a larger image.");
+            return;
+        }
+        Runnable r = () -> {
+            try {
+                BufferedImage img = proxy.renderFullResolution();
+                AppLogic.addComposition(Composition.fromImage(img, null, proxy.getSourceFile().getName()));
+            } catch (IOException e) {
+                Messages.showException(e);
+            }
+        };
+        Utils.executeWithBusyCursor(r);
+    }
+
     public static Composition createCompositionFromFile(File file) {
+        Composition comp;
+        try {
+            comp = readComposition(file);
+        } catch (NotPxcFormatException | ClassNotFoundException | ParserConfigurationException
+                | IOException | SAXException e) {
+            Messages.showException(e);
+            return null;
+        }
+        if (comp == null) {
+            showNotAnImageError(file);
+        }
+        return comp;
+    }
+
+    /**
+     * Reads the file without showing errors.
+     * Returns null if the file is not an image file.
+     */
+    public static Composition readComposition(File file) throws IOException, NotPxcFormatException,
+            ClassNotFoundException, ParserConfigurationException, SAXException {
+        DecodedFile decoded = decodeFile(file);
+        if (decoded == null) {
+            return null;
+        }
+        return decoded.toComposition();
+    }
+
+    /**
+     * Reads the file and decodes its pixels without showing errors or
+     * creating the composition, so that it can run outside the EDT.
+     * Returns null if the file is not an image file.
+     */
+    private static DecodedFile decodeFile(File file) throws IOException, NotPxcFormatException,
+            ParserConfigurationException, SAXException {
         String ext = FileExtensionUtils.getFileExtension(file.getName());
         if ("pxc".equals(ext)) {
-            return openLayered(file, "pxc");
+            return PXCFormat.decode(file, true);
         } else if ("ora".equals(ext)) {
-            return openLayered(file, "ora");
-        } else {
-            return openSimpleFile(file);
+            return OpenRaster.decodeOpenRaster(file);
+        }
+
+        // a file with a single-layer image format
+        BufferedImage img = CompatibleImageReader.read(file);
+        if (img == null) {
+            return null;
+        }
+        BufferedImage compatibleImg = ImageUtils.toCompatibleImage(img);
+        PackedImage packed = packImage(compatibleImg);
+        if (packed == null) {
+            return () -> Composition.fromImage(compatibleImg, file, null);
         }
+        return () -> {
+            Composition comp = Composition.createEmpty(packed.getWidth(), packed.getHeight());
+            comp.setFile(file);
+            comp.addLayerNoGUI(new ImageLayer(comp, packed, comp.generateNewLayerName()));
+            return comp;
+        };
     }
 
-    // opens an a file with a single-layer image format
-    private static Composition openSimpleFile(File file) {
-        BufferedImage img = null;
-        try {
-            img = ImageIO.read(file);
-        } catch (IOException ex) {
-            Messages.showException(ex);
+    /**
+     * Returns the flattened image of the file without creating any
+     * Swing components, so that it can run outside the EDT, for
+     * example in batch processing. Returns null if the file
+     * is not an image file.
+     */
+    public static BufferedImage readFlattened(File file) throws IOException, NotPxcFormatException,
+            ClassNotFoundException, ParserConfigurationException, SAXException {
+        String ext = FileExtensionUtils.getFileExtension(file.getName());
+        BufferedImage img;
+        if ("pxc".equals(ext)) {
+            img = PXCFormat.readFlattened(file);
+        } else if ("ora".equals(ext)) {
+            img = OpenRaster.readFlattened(file);
+        } else {
+            img = CompatibleImageReader.read(file);
         }
         if (img == null) {
-            String message = String.format("Could not load \"%s\" as an image file", file.getName());
-            Messages.showError("Error", message);
             return null;
         }
-
-        Composition comp = Composition.fromImage(img, file, null);
-        return comp;
+        return ImageUtils.toCompatibleImage(img);
     }
 
-    private static Composition openLayered(File selectedFile, String type) {
-        Composition comp = null;
+    /**
+     * Very large images are moved out of the heap right away.
+     * Returns null if the image is not packed.
+     */
+    private static PackedImage packImage(BufferedImage img) {
         try {
-            switch (type) {
-                case "pxc":
-                    comp = deserializeComposition(selectedFile);
-                    break;
-                case "ora":
-                    comp = OpenRaster.readOpenRaster(selectedFile);
-                    break;
-                default:
-                    throw new IllegalStateException("type = " + type);
-            }
-        } catch (NotPxcFormatException | ParserConfigurationException | IOException | SAXException e) {
-            Messages.showException(e);
+            return ImageLayer.packImage(img);
+        } catch (IOException e) {
+            return null; // the image stays on the heap
         }
-        return comp;
+    }
+
+    private static void showNotAnImageError(File file) {
+        String message = String.format("Could not load \"%s\" as an image file", file.getName());
+        Messages.showError("Error", message);
     }
 
     public static boolean save(boolean saveAs) {
@@ -136,7 +328,7 @@ public class OpenSaveManager {
         } else {
             File file = comp.getFile();
             OutputFormat outputFormat = OutputFormat.valueFromFile(file);
-            outputFormat.saveComposition(comp, file, true);
+            outputFormat.saveCompositionInBackground(comp, file, true);
             return true;
         }
     }
@@ -146,26 +338,84 @@ public class OpenSaveManager {
         Objects.requireNonNull(image);
         Objects.requireNonNull(format);
 
+        float quality = jpegQuality;
         Runnable r = () -> {
             try {
-                if ("jpg".equals(format)) {
-                    JpegOutput.writeJPG(image, selectedFile, jpegQuality);
-                } else {
-                    ImageIO.write(image, format, selectedFile);
-                }
+                writeImage(image, selectedFile, format, quality);
             } catch (IOException e) {
-                if (e.getMessage().contains("another process")) {
-                    String msg = String.format("Cannot save to\n%s\nbecause this file is being used by another program.",
-                            selectedFile.getAbsolutePath());
-                    Messages.showError("Cannot save", msg);
-                } else {
-                    Messages.showException(e);
-                }
+                showSaveError(selectedFile, e);
             }
         };
         Utils.executeWithBusyCursor(r);
     }
 
+    static void writeImage(BufferedImage image, File file, String format, float jpegQuality) throws IOException {
+        if ("jpg".equals(format)) {
+            JpegOutput.writeJPG(image, file, jpegQuality);
+        } else if ("png".equals(format)) {
+            PngOutput.write(image, file, PngOutput.Preset.NORMAL);
+        } else {
+            ImageIO.write(image, format, file);
+        }
+    }
+
+    static float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    static void showSaveError(File file, IOException e) {
+        String errorMessage = e.getMessage();
+        if (errorMessage != null && errorMessage.contains("another process")) {
+            String msg = String.format("Cannot save to\n%s\nbecause this file is being used by another program.",
+                    file.getAbsolutePath());
+            Messages.showError("Cannot save", msg);
+        } else {
+            Messages.showException(e);
+        }
+    }
+
+    /**
+     * Writes into a temporary file in the same directory, which then
+     * replaces the target file, so that a failed or interrupted
+     * save can't leave behind a corrupted file.
+     */
+    static void writeAtomically(SnapshotWriter writer, File file) throws IOException {
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".saving");
+        try {
+            // some writers don't truncate existing files
+            Files.deleteIfExists(tmp.toPath());
+            writer.write(tmp);
+            try {
+                Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING);
+            }
+        } finally {
+            // does nothing if the file was moved
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    static void runInBackground(Runnable task) {
+        backgroundSaver.execute(task);
+    }
+
+    /**
+     * Waits until the saves running in the background are finished
+     */
+    public static void waitForBackgroundSaves() {
+        try {
+            // the tasks run in order, so this finishes last
+            backgroundSaver.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static void warnAndCloseImage(ImageDisplay ic) {
         try {
             Composition comp = ic.getComp();
@@ -207,90 +457,29 @@ public class OpenSaveManager {
     }
 
     public static void serializePXC(Composition comp, File f) {
-        try (FileOutputStream fos = new FileOutputStream(f)) {
-            fos.write(new byte[]{(byte) 0xAB, (byte) 0xC4, CURRENT_PXC_VERSION_NUMBER});
-
-            try (GZIPOutputStream gz = new GZIPOutputStream(fos)) {
-                try (ObjectOutput oos = new ObjectOutputStream(gz)) {
-                    oos.writeObject(comp);
-                    oos.flush();
-                }
-            }
+        try {
+            PXCFormat.write(comp, f);
         } catch (IOException e) {
             Messages.showException(e);
         }
     }
 
-    private static Composition deserializeComposition(File file) throws NotPxcFormatException {
-        Composition comp = null;
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int firstByte = fis.read();
-            int secondByte = fis.read();
-            if (firstByte == 0xAB && secondByte == 0xC4) {
-                // identification bytes OK
-            } else {
-                throw new NotPxcFormatException(file.getName() + " is not in the pxc format.");
-            }
-            int versionByte = fis.read();
-            if (versionByte == 0) {
-                throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old beta Pixelitor versions 0.9.2-0.9.7");
-            }
-            if (versionByte == 1) {
-                throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old beta Pixelitor version 0.9.8");
-            }
-            if (versionByte == 2) {
-                throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old Pixelitor versions 0.9.9-1.1.2");
-            }
-            if (versionByte > 3) {
-                throw new NotPxcFormatException(file.getName() + " has unknown version byte " + versionByte);
-            }
-
-            try (GZIPInputStream gs = new GZIPInputStream(fis)) {
-                try (ObjectInput ois = new ObjectInputStream(gs)) {
-                    comp = (Composition) ois.readObject();
-
-                    // file is transient in Composition because the pxc file can be renamed
-                    comp.setFile(file);
-                }
-            }
-        } catch (IOException | ClassNotFoundException e) {
-            Messages.showException(e);
-        }
-
-        return comp;
-    }
-
     public static void openAllImagesInDir(File dir) {
         File[] files = FileExtensionUtils.getAllSupportedFilesInDir(dir);
-        if (files != null) {
-            for (File file : files) {
-                openFile(file);
-            }
+        if (files != null && files.length > 0) {
+            openFiles(Arrays.asList(files));
         }
     }
 
     public static void exportLayersToPNG() {
-        boolean okPressed = SingleDirChooserPanel.selectOutputDir(false);
+        boolean okPressed = ExportLayersPanel.showDialog();
         if (!okPressed) {
             return;
         }
 
         Composition comp = ImageComponents.getActiveComp().get();
-        int nrLayers = comp.getNrLayers();
-        for (int i = 0; i < nrLayers; i++) {
-            Layer layer = comp.getLayer(i);
-            if (layer instanceof ImageLayer) {
-                ImageLayer imageLayer = (ImageLayer) layer;
-                BufferedImage image = imageLayer.getImage();
-
-                File outputDir = FileChoosers.getLastSaveDir();
-
-                String fileName = String.format("%03d_%s.%s", i, Utils.toFileName(layer.getName()), "png");
-
-                File file = new File(outputDir, fileName);
-                saveImageToFile(file, image, "png");
-            }
-        }
+        new LayerPNGExport(comp, FileChoosers.getLastSaveDir(),
+                ExportLayersPanel.skipEmptyLayers(), ExportLayersPanel.cropLayers()).start();
     }
 
     public static void saveCurrentImageInAllFormats() {
@@ -360,8 +549,18 @@ public class OpenSaveManager {
     }
 
     public static void afterSaveActions(Composition comp, File file, boolean addToRecentMenus) {
+        afterSaveActions(comp, file, addToRecentMenus, comp.getModificationCount());
+    }
+
+    /**
+     * The composition is marked as clean only if it wasn't
+     * modified since the given modification count
+     */
+    static void afterSaveActions(Composition comp, File file, boolean addToRecentMenus, int savedModificationCount) {
         // TODO for a multilayered image this should be set only if it was saved in a layered format?
-        comp.setDirty(false);
+        if (comp.getModificationCount() == savedModificationCount) {
+            comp.setDirty(false);
+        }
 
         comp.setFile(file);
         if(addToRecentMenus) {
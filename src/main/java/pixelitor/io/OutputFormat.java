@@ -17,9 +17,12 @@
 package pixelitor.io;
 
 import pixelitor.Composition;
+import pixelitor.utils.Dialogs;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Messages;
+import pixelitor.utils.Utils;
 
+import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -30,46 +33,93 @@ import java.io.IOException;
 public enum OutputFormat {
     JPG {
         @Override
-        public void doSaveComposition(Composition comp, File file) {
-            BufferedImage img = comp.getCompositeImage();
+        SnapshotWriter createSnapshot(Composition comp) {
+            return createImageWriter(comp.getCompositeImage(), comp.getName());
+        }
+
+        @Override
+        SnapshotWriter createImageWriter(BufferedImage img, String name) {
             BufferedImage finalImage = ImageUtils.convertToRGB(img, false); // no alpha support, convert first to RGB
-            OpenSaveManager.saveImageToFile(file, finalImage, toString());
+            float quality = OpenSaveManager.getJpegQuality();
+            return file -> OpenSaveManager.writeImage(finalImage, file, toString(), quality);
+        }
+
+        @Override
+        SnapshotWriter createStripWriter(Composition comp) {
+            if (!StripExport.fitsStreamedImage(comp.getCanvasWidth(), comp.getCanvasHeight())) {
+                return null;
+            }
+            float quality = OpenSaveManager.getJpegQuality();
+            return file -> StripExport.writeJPG(comp, file, quality);
         }
     }, PNG {
         @Override
-        public void doSaveComposition(Composition comp, File file) {
-            BufferedImage finalImage = comp.getCompositeImage(); // the format supports alpha, no need to convert ARGB to RGB
-            OpenSaveManager.saveImageToFile(file, finalImage, toString());
+        SnapshotWriter createSnapshot(Composition comp) {
+            // the format supports alpha, no need to convert ARGB to RGB,
+            // but a copy is needed, because the composite can be edited after flattening
+            BufferedImage finalImage = ImageUtils.copyImage(comp.getCompositeImage());
+            return createImageWriter(finalImage, comp.getName());
+        }
+
+        @Override
+        SnapshotWriter createImageWriter(BufferedImage img, String name) {
+            return file -> OpenSaveManager.writeImage(img, file, toString(), 0);
+        }
+
+        @Override
+        SnapshotWriter createStripWriter(Composition comp) {
+            return file -> StripExport.writePNG(comp, file);
         }
     }, GIF {
         @Override
-        public void doSaveComposition(Composition comp, File file) {
-            BufferedImage img = comp.getCompositeImage();
+        SnapshotWriter createSnapshot(Composition comp) {
+            return createImageWriter(comp.getCompositeImage(), comp.getName());
+        }
+
+        @Override
+        SnapshotWriter createImageWriter(BufferedImage img, String name) {
             // the format supports alpha, but the default encoder has bugs
             BufferedImage finalImage = ImageUtils.convertToRGB(img, false);
-
-            OpenSaveManager.saveImageToFile(file, finalImage, toString());
+            return file -> OpenSaveManager.writeImage(finalImage, file, toString(), 0);
         }
     }, BMP {
         @Override
-        public void doSaveComposition(Composition comp, File file) {
-            BufferedImage compositeImage = comp.getCompositeImage();
-            BufferedImage finalImage = ImageUtils.convertToRGB(compositeImage, false); // no alpha support, convert first to RGB
-            OpenSaveManager.saveImageToFile(file, finalImage, toString());
+        SnapshotWriter createSnapshot(Composition comp) {
+            return createImageWriter(comp.getCompositeImage(), comp.getName());
+        }
+
+        @Override
+        SnapshotWriter createImageWriter(BufferedImage img, String name) {
+            BufferedImage finalImage = ImageUtils.convertToRGB(img, false); // no alpha support, convert first to RGB
+            return file -> OpenSaveManager.writeImage(finalImage, file, toString(), 0);
+        }
+
+        @Override
+        SnapshotWriter createStripWriter(Composition comp) {
+            if (!StripExport.fitsStreamedImage(comp.getCanvasWidth(), comp.getCanvasHeight())) {
+                return null;
+            }
+            return file -> StripExport.writeBMP(comp, file);
         }
     }, PXC {
         @Override
-        public void doSaveComposition(Composition comp, File file) {
-            OpenSaveManager.serializePXC(comp, file);
+        SnapshotWriter createSnapshot(Composition comp) throws IOException {
+            return PXCFormat.createSnapshot(comp);
+        }
+
+        @Override
+        SnapshotWriter createDirectWriter(Composition comp) throws IOException {
+            return PXCFormat.createDirectWriter(comp);
         }
     }, ORA {
         @Override
-        void doSaveComposition(Composition comp, File file) {
-            try {
-                OpenRaster.writeOpenRaster(comp, file, false);
-            } catch (IOException e) {
-                Messages.showException(e);
-            }
+        SnapshotWriter createSnapshot(Composition comp) {
+            return OpenRaster.createSnapshot(comp, false);
+        }
+
+        @Override
+        SnapshotWriter createDirectWriter(Composition comp) {
+            return OpenRaster.createDirectWriter(comp, false);
         }
     };
 
@@ -106,11 +156,149 @@ public enum OutputFormat {
     }
 
     public void saveComposition(Composition comp, File file, boolean addToRecentMenus) {
-        doSaveComposition(comp, file);
-        OpenSaveManager.afterSaveActions(comp, file, addToRecentMenus);
+        if (confirmProxySave(comp)) {
+            writeComposition(comp, file, addToRecentMenus);
+        }
     }
 
-    abstract void doSaveComposition(Composition comp, File file);
+    private void writeComposition(Composition comp, File file, boolean addToRecentMenus) {
+        int modificationCount = comp.getModificationCount();
+        try {
+            OpenSaveManager.writeAtomically(createSnapshotToSave(comp), file);
+        } catch (IOException e) {
+            OpenSaveManager.showSaveError(file, e);
+            return;
+        }
+        OpenSaveManager.afterSaveActions(comp, file, addToRecentMenus, modificationCount);
+    }
+
+    /**
+     * Writes the composition in the calling thread, without any
+     * dialogs or messages, for example in batch processing
+     */
+    public void write(Composition comp, File file) throws IOException {
+        OpenSaveManager.writeAtomically(createWriter(comp), file);
+    }
+
+    /**
+     * Writes a single image in the calling thread without creating
+     * any Swing components, for example in batch processing
+     */
+    public void write(BufferedImage img, File file) throws IOException {
+        OpenSaveManager.writeAtomically(createImageWriter(img, file.getName()), file);
+    }
+
+    /**
+     * Takes a snapshot of the composition in the EDT, and writes it
+     * in a background thread, so that the editing can continue.
+     */
+    public void saveCompositionInBackground(Composition comp, File file, boolean addToRecentMenus) {
+        assert SwingUtilities.isEventDispatchThread();
+
+        if (!confirmProxySave(comp)) {
+            return;
+        }
+        if (comp.hasOutOfCoreLayers() || comp.getProxy() != null || exportsInStrips(comp)) {
+            // the out-of-core pixels are written directly, because copying them
+            // for a snapshot would be too slow, the full resolution image of a proxy is rendered with shared filters,
+            // and a snapshot would need the full composite, which the strips avoid
+            Utils.executeWithBusyCursor(() -> writeComposition(comp, file, addToRecentMenus));
+            return;
+        }
+
+        int modificationCount = comp.getModificationCount();
+        SnapshotWriter snapshot;
+        try {
+            snapshot = createSnapshot(comp);
+        } catch (IOException e) {
+            OpenSaveManager.showSaveError(file, e);
+            return;
+        }
+
+        Messages.showStatusMessage("Saving " + file.getAbsolutePath() + "...");
+        OpenSaveManager.runInBackground(() -> {
+            try {
+                OpenSaveManager.writeAtomically(snapshot, file);
+                SwingUtilities.invokeLater(() ->
+                        OpenSaveManager.afterSaveActions(comp, file, addToRecentMenus, modificationCount));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> OpenSaveManager.showSaveError(file, e));
+            }
+        });
+    }
+
+    /**
+     * Returns false if the composition is a proxy with changes that can't be
+     * applied to the full resolution image, and the user cancels the saving
+     */
+    private static boolean confirmProxySave(Composition comp) {
+        ImageProxy proxy = comp.getProxy();
+        if (proxy == null || proxy.getNumUnrecordedEdits() == 0) {
+            return true;
+        }
+        String msg = String.format("%d changes of %s can't be applied to the full resolution image.\n" +
+                "Only the filters and crops of the single layer are repeated.\n" +
+                "Save without the other changes?", proxy.getNumUnrecordedEdits(), comp.getName());
+        return Dialogs.showYesNoWarningDialog("Proxy", msg);
+    }
+
+    /**
+     * For proxies the full resolution image is written
+     */
+    private SnapshotWriter createSnapshotToSave(Composition comp) throws IOException {
+        ImageProxy proxy = comp.getProxy();
+        if (proxy == null) {
+            return createWriter(comp);
+        }
+        BufferedImage img = proxy.renderFullResolution();
+        return createSnapshot(Composition.fromImage(img, null, comp.getName()));
+    }
+
+    /**
+     * Returns a writer for the current state of the composition. It can
+     * run in another thread, while the composition is modified.
+     */
+    abstract SnapshotWriter createSnapshot(Composition comp) throws IOException;
+
+    /**
+     * Returns a writer for the given image, which must not be modified later.
+     * The layered formats write a single-layer composition with the given name.
+     */
+    SnapshotWriter createImageWriter(BufferedImage img, String name) throws IOException {
+        return createDirectWriter(Composition.fromImageWithoutGUI(img, name));
+    }
+
+    /**
+     * Returns a writer which reads the composition while writing, therefore it
+     * must run before the composition is changed. Unlike the snapshots, it
+     * doesn't copy the pixels, and it supports the out-of-core layers.
+     */
+    SnapshotWriter createDirectWriter(Composition comp) throws IOException {
+        return createSnapshot(comp);
+    }
+
+    /**
+     * Returns a writer which calculates and encodes the composite image
+     * in strips, or null if the format has no such writer for the size
+     * of the composition. Unlike the snapshots, it reads the layers while writing.
+     */
+    SnapshotWriter createStripWriter(Composition comp) {
+        return null;
+    }
+
+    private boolean exportsInStrips(Composition comp) {
+        return createStripWriter(comp) != null && StripExport.isUseful(comp);
+    }
+
+    /**
+     * Returns a writer which runs in the calling thread
+     */
+    private SnapshotWriter createWriter(Composition comp) throws IOException {
+        if (exportsInStrips(comp)) {
+            return createStripWriter(comp);
+        }
+        return createDirectWriter(comp);
+    }
 
     private static OutputFormat lastOutputFormat = JPG;
 
@@ -0,0 +1,1119 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.ThreadPool;
+import pixelitor.layers.LazyImage;
+import pixelitor.layers.MappedImage;
+import pixelitor.layers.PackedImage;
+import pixelitor.layers.SparseImage;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_BGR;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * Reading and writing the pxc (Pixelitor's native) file format.
+ * <p>
+ * Version 3 files contain the GZIP-compressed Java serialization
+ * of the whole composition. In version 4 files only the structure
+ * of the document is serialized in this way, the pixels of the
+ * image layers and masks follow it as independently compressed
+ * tiles, which are compressed and decompressed in parallel.
+ * <p>
+ * The layout of a version 4 file: the 0xAB 0xC4 magic bytes, the
+ * version byte, the header version (int), the tile size (int), the
+ * position of the table of contents (long), the length of the
+ * structure (int), the structure, the tiles and finally the table of
+ * contents with the size and type of each image, the position, length
+ * and checksum of each tile, and the index of the preview image.
+ * Fully transparent tiles are not stored. The last image is a flattened
+ * preview, which can be shown while the layers are decoded on demand.
+ * The checksum is calculated from the uncompressed pixels of the tile.
+ * When a file is saved again, the tiles with unchanged pixels are copied from the
+ * previous file instead of compressing them again. The checksum only
+ * finds the candidate tiles, which are decompressed and compared.
+ */
+public class PXCFormat {
+    private static final int MAGIC_1 = 0xAB;
+    private static final int MAGIC_2 = 0xC4;
+
+    public static final int CURRENT_VERSION = 4;
+
+    // the layout described above, files with other
+    // header versions are rejected
+    private static final int HEADER_VERSION = 1;
+
+    // the maximal width or height of the stored preview
+    private static final int PREVIEW_SIZE = 2048;
+    private static final int TILE_SIZE = SparseImage.TILE_SIZE;
+
+    // the tiles are filtered before compression, so
+    // the fastest level already compresses well
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    // limits the memory used by the tiles waiting to be written or stored
+    private static final int MAX_TILES_IN_FLIGHT = 4 * ThreadPool.NUM_AVAILABLE_PROCESSORS;
+
+    /**
+     * Utility class with static methods
+     */
+    private PXCFormat() {
+    }
+
+    public static void write(Composition comp, File file) throws IOException {
+        write(comp, file, CURRENT_VERSION);
+    }
+
+    /**
+     * The existing file is replaced only after the new one was written
+     */
+    static void write(Composition comp, File file, int version) throws IOException {
+        if (version == 3) {
+            OpenSaveManager.writeAtomically(tmp -> writeVersion3(comp, tmp), file);
+        } else if (version == 4) {
+            OpenSaveManager.writeAtomically(createSnapshot(comp, false), file);
+        } else {
+            throw new IllegalArgumentException("version = " + version);
+        }
+    }
+
+    private static void writeVersion3(Composition comp, File file) throws IOException {
+        // the file might be the source of the lazily loaded layers
+        comp.decodeLazyLayers();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(new byte[]{(byte) MAGIC_1, (byte) MAGIC_2, 3});
+
+            try (GZIPOutputStream gz = new GZIPOutputStream(fos)) {
+                try (ObjectOutputStream oos = new ObjectOutputStream(gz)) {
+                    oos.writeObject(comp);
+                    oos.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the composition in the current version, copying the unchanged
+     * tiles from the given previous file. Returns the number of copied tiles.
+     */
+    static int writeIncrementally(Composition comp, File file, File previousFile) throws IOException {
+        comp.decodeLazyLayers();
+        Structure structure = serializeStructure(comp, false);
+        OpenSaveManager.writeAtomically(tmp -> writeVersion4(tmp, structure, previousFile), file);
+        return structure.countCopiedTiles();
+    }
+
+    /**
+     * Returns a snapshot of the composition, which can be written in the current
+     * version outside the EDT while the composition is edited. The structure is
+     * serialized right away and the pixels are copied, except for the sparse images,
+     * which are never modified. Out-of-core images are not supported here.
+     */
+    static SnapshotWriter createSnapshot(Composition comp) throws IOException {
+        return createSnapshot(comp, true);
+    }
+
+    /**
+     * Like createSnapshot, but the pixels are not copied, therefore the
+     * writer must run before the composition is changed. It also
+     * supports the out-of-core images.
+     */
+    static SnapshotWriter createDirectWriter(Composition comp) throws IOException {
+        return createSnapshot(comp, false);
+    }
+
+    private static SnapshotWriter createSnapshot(Composition comp, boolean copyPixels) throws IOException {
+        Structure structure = serializeStructure(comp, copyPixels);
+        // the tiles of the file from which the composition was opened or
+        // where it was last saved can be reused, unless it is overwritten
+        File previousFile = comp.getFile();
+        return file -> writeVersion4(file, structure, isSameFile(previousFile, file) ? null : previousFile);
+    }
+
+    /**
+     * The serialized structure of a composition and the pixels of its images
+     */
+    private static class Structure {
+        private final byte[] bytes;
+        private final List<TiledImage> images;
+
+        private Structure(byte[] bytes, List<TiledImage> images) {
+            this.bytes = bytes;
+            this.images = images;
+        }
+
+        /**
+         * Returns the number of tiles which were copied
+         * from the previous file while writing
+         */
+        private int countCopiedTiles() {
+            int count = 0;
+            for (TiledImage image : images) {
+                for (boolean copied : image.copied) {
+                    if (copied) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    private static Structure serializeStructure(Composition comp, boolean copyPixels) throws IOException {
+        // the image layers only register their pixels here
+        ByteArrayOutputStream structure = new ByteArrayOutputStream();
+        List<TiledImage> images;
+        try (TiledOutput out = new TiledOutput(new GZIPOutputStream(structure), copyPixels)) {
+            out.writeObject(comp);
+            out.flush();
+            images = out.images;
+        }
+        byte[] structureBytes = structure.toByteArray();
+
+        int maxSize = Math.max(comp.getCanvasWidth(), comp.getCanvasHeight());
+        BufferedImage preview = comp.createScaledComposite(Math.min(1.0, PREVIEW_SIZE / (double) maxSize));
+        TiledImage tiledPreview = new TiledImage(preview.getWidth(), preview.getHeight(), preview.getType());
+        tiledPreview.image = preview;
+        images.add(tiledPreview);
+
+        return new Structure(structureBytes, images);
+    }
+
+    private static boolean isSameFile(File a, File b) throws IOException {
+        return a == null || a.getCanonicalFile().equals(b.getCanonicalFile());
+    }
+
+    private static void writeVersion4(File file, Structure structure, File previousFile) throws IOException {
+        byte[] structureBytes = structure.bytes;
+        List<TiledImage> images = structure.images;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             PreviousTiles previous = PreviousTiles.open(previousFile)) {
+            raf.setLength(0);
+            raf.write(new byte[]{(byte) MAGIC_1, (byte) MAGIC_2, CURRENT_VERSION});
+            raf.writeInt(HEADER_VERSION);
+            raf.writeInt(TILE_SIZE);
+            long tocPosField = raf.getFilePointer();
+            raf.writeLong(0); // the position of the TOC is not known yet
+            raf.writeInt(structureBytes.length);
+            raf.write(structureBytes);
+
+            for (TiledImage image : images) {
+                writeTiles(raf, image, previous);
+            }
+
+            long tocPos = raf.getFilePointer();
+            ByteArrayOutputStream toc = new ByteArrayOutputStream();
+            try (DataOutputStream tocOut = new DataOutputStream(toc)) {
+                tocOut.writeInt(images.size());
+                for (TiledImage image : images) {
+                    image.writeTOCEntry(tocOut);
+                }
+                tocOut.writeInt(images.size() - 1); // the index of the preview
+            }
+            raf.write(toc.toByteArray());
+
+            raf.seek(tocPosField);
+            raf.writeLong(tocPos);
+        }
+    }
+
+    /**
+     * Compresses the tiles of an image in parallel (or copies them from
+     * the previous file), and writes them in order as they are ready
+     */
+    private static void writeTiles(RandomAccessFile raf, TiledImage image, PreviousTiles previous) throws IOException {
+        int numTiles = image.getNumTiles();
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        int nextToSubmit = 0;
+        for (int tileIndex = 0; tileIndex < numTiles; tileIndex++) {
+            while (nextToSubmit < numTiles && inFlight.size() < MAX_TILES_IN_FLIGHT) {
+                int submitted = nextToSubmit++;
+                inFlight.addLast(submit(() -> image.compressTile(submitted, previous)));
+            }
+            byte[] compressed = getResult(inFlight.removeFirst());
+            if (compressed != null) {
+                image.offsets[tileIndex] = raf.getFilePointer();
+                image.lengths[tileIndex] = compressed.length;
+                raf.write(compressed);
+            }
+        }
+    }
+
+    public static Composition read(File file) throws NotPxcFormatException, IOException, ClassNotFoundException {
+        return read(file, true);
+    }
+
+    /**
+     * If lazy is true, the layers of version 4 files are decoded only
+     * when they are needed, and until then the stored preview is shown.
+     */
+    static Composition read(File file, boolean lazy) throws NotPxcFormatException, IOException, ClassNotFoundException {
+        return decode(file, lazy).toComposition();
+    }
+
+    /**
+     * Reads the file and decodes the pixels of the version 4 files, which
+     * can run outside the EDT. The layers are deserialized by the returned
+     * object. The pixels of version 3 files are also read only then,
+     * because they are serialized together with the layers.
+     */
+    static DecodedFile decode(File file, boolean lazy) throws NotPxcFormatException, IOException {
+        DecodedFile decoded;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int version = readVersion(raf, file);
+            if (version == 3) {
+                long length = raf.length() - raf.getFilePointer();
+                if (length > Integer.MAX_VALUE) {
+                    throw new NotPxcFormatException(file.getName() + " is too large for a version 3 pxc file");
+                }
+                byte[] compressed = new byte[(int) length];
+                raf.readFully(compressed);
+                decoded = () -> {
+                    InputStream in = new ByteArrayInputStream(compressed);
+                    try (ObjectInputStream ois = new CompositionInput(new GZIPInputStream(in), true)) {
+                        return (Composition) ois.readObject();
+                    }
+                };
+            } else {
+                decoded = decodeVersion4(raf, file, lazy);
+            }
+        }
+
+        return () -> {
+            Composition comp = decoded.toComposition();
+            // file is transient in Composition because the pxc file can be renamed
+            comp.setFile(file);
+            return comp;
+        };
+    }
+
+    private static int readVersion(RandomAccessFile raf, File file) throws IOException, NotPxcFormatException {
+        int firstByte = raf.read();
+        int secondByte = raf.read();
+        if (firstByte == MAGIC_1 && secondByte == MAGIC_2) {
+            // identification bytes OK
+        } else {
+            throw new NotPxcFormatException(file.getName() + " is not in the pxc format.");
+        }
+        int versionByte = raf.read();
+        if (versionByte == 0) {
+            throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old beta Pixelitor versions 0.9.2-0.9.7");
+        }
+        if (versionByte == 1) {
+            throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old beta Pixelitor version 0.9.8");
+        }
+        if (versionByte == 2) {
+            throw new NotPxcFormatException(file.getName() + " is in an obsolete pxc format, it can only be opened in the old Pixelitor versions 0.9.9-1.1.2");
+        }
+        if (versionByte > CURRENT_VERSION) {
+            throw new NotPxcFormatException(file.getName() + " has unknown version byte " + versionByte);
+        }
+        return versionByte;
+    }
+
+    private static DecodedFile decodeVersion4(RandomAccessFile raf, File file, boolean lazy) throws IOException, NotPxcFormatException {
+        Contents contents = readContents(raf, file);
+        boolean hasLazyImages = decodeImages(raf, file, contents.images, contents.preview, lazy);
+
+        TiledImage preview = contents.preview;
+        boolean showPreview = hasLazyImages && preview != null && preview.image != null;
+        return () -> {
+            Composition comp;
+            try {
+                comp = deserialize(contents, true);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                disposePacked(contents.images);
+                throw e;
+            }
+            if (showPreview) {
+                comp.setLoadingPreview(preview.image);
+            }
+            return comp;
+        };
+    }
+
+    /**
+     * Returns the flattened image of the file. The layers are created
+     * without their Swing components, so that it can run outside the EDT.
+     */
+    public static BufferedImage readFlattened(File file) throws NotPxcFormatException, IOException, ClassNotFoundException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int version = readVersion(raf, file);
+            if (version == 3) {
+                InputStream in = Channels.newInputStream(raf.getChannel());
+                try (ObjectInputStream ois = new CompositionInput(new GZIPInputStream(in), false)) {
+                    return ((Composition) ois.readObject()).getCompositeImage();
+                }
+            }
+
+            Contents contents = readContents(raf, file);
+            decodeImages(raf, file, contents.images, contents.preview, false);
+            try {
+                return deserialize(contents, false).getCompositeImage();
+            } finally {
+                // the out-of-core images are not needed after flattening
+                disposePacked(contents.images);
+            }
+        }
+    }
+
+    /**
+     * Decodes the pixels of the images, except for the lazily decoded ones.
+     * Returns true if there are lazily decoded images.
+     */
+    private static boolean decodeImages(RandomAccessFile raf, File file, List<TiledImage> images,
+                                        TiledImage preview, boolean lazy) throws IOException {
+        boolean hasLazyImages = false;
+        try {
+            for (TiledImage image : images) {
+                if (MappedImage.shouldStore(image.width, image.height, image.type)) {
+                    // very large images are not decoded on the heap
+                    MappedImage mapped = MappedImage.createEmpty(image.width, image.height, image.type);
+                    image.packed = mapped;
+                    readTiles(raf.getChannel(), image, null, mapped);
+                } else if (lazy && image != preview) {
+                    image.packed = new LazyImage(image.width, image.height, image.type,
+                            () -> decodeLazily(file, image));
+                    hasLazyImages = true;
+                } else {
+                    image.image = new BufferedImage(image.width, image.height, image.type);
+                    readTiles(raf.getChannel(), image, image.image, null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            disposePacked(images);
+            throw e;
+        }
+        return hasLazyImages;
+    }
+
+    private static Composition deserialize(Contents contents, boolean withLayerGUI) throws IOException, ClassNotFoundException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(contents.structureBytes));
+        try (TiledInput tiledIn = new TiledInput(in, contents.images, withLayerGUI)) {
+            return (Composition) tiledIn.readObject();
+        }
+    }
+
+    private static void disposePacked(List<TiledImage> images) {
+        for (TiledImage image : images) {
+            if (image.packed != null) {
+                image.packed.dispose();
+            }
+        }
+    }
+
+    /**
+     * The parts of a version 4 file that are read before the tiles
+     */
+    private static class Contents {
+        private final byte[] structureBytes;
+        private final List<TiledImage> images;
+        private final TiledImage preview;
+
+        private Contents(byte[] structureBytes, List<TiledImage> images, TiledImage preview) {
+            this.structureBytes = structureBytes;
+            this.images = images;
+            this.preview = preview;
+        }
+    }
+
+    /**
+     * Reads the header, the structure and the table
+     * of contents, after the version byte
+     */
+    private static Contents readContents(RandomAccessFile raf, File file) throws IOException, NotPxcFormatException {
+        int headerVersion = raf.readInt();
+        if (headerVersion > HEADER_VERSION) {
+            throw new NotPxcFormatException(file.getName() + " was saved by a newer Pixelitor version");
+        }
+        if (headerVersion != HEADER_VERSION) {
+            throw new NotPxcFormatException(file.getName() + " has unsupported header version " + headerVersion);
+        }
+        int tileSize = raf.readInt();
+        if (tileSize != TILE_SIZE) {
+            throw new NotPxcFormatException(file.getName() + " has unsupported tile size " + tileSize);
+        }
+        long tocPos = raf.readLong();
+        int structureLength = raf.readInt();
+        long structureEnd = raf.getFilePointer() + structureLength;
+
+        // the offsets are checked before allocating anything with them
+        long fileLength = raf.length();
+        if (tocPos < structureEnd || tocPos > fileLength || fileLength - tocPos > Integer.MAX_VALUE) {
+            throw new NotPxcFormatException(file.getName() + " has an invalid table of contents position " + tocPos);
+        }
+        if (structureLength < 0) {
+            throw new NotPxcFormatException(file.getName() + " has an invalid structure length " + structureLength);
+        }
+        byte[] structureBytes = new byte[structureLength];
+        raf.readFully(structureBytes);
+
+        byte[] tocBytes = new byte[(int) (fileLength - tocPos)];
+        raf.seek(tocPos);
+        raf.readFully(tocBytes);
+        List<TiledImage> images = new ArrayList<>();
+        TiledImage preview = null;
+        try (DataInputStream tocIn = new DataInputStream(new ByteArrayInputStream(tocBytes))) {
+            int numImages = tocIn.readInt();
+            for (int i = 0; i < numImages; i++) {
+                images.add(TiledImage.readTOCEntry(tocIn, structureEnd, tocPos, file));
+            }
+            int previewIndex = tocIn.readInt();
+            if (previewIndex >= numImages) {
+                throw new NotPxcFormatException(file.getName() + " has an invalid preview index " + previewIndex);
+            }
+            if (previewIndex >= 0) {
+                preview = images.get(previewIndex);
+            }
+        }
+        return new Contents(structureBytes, images, preview);
+    }
+
+    /**
+     * Decodes the pixels of a lazily loaded image, reopening the file
+     */
+    private static BufferedImage decodeLazily(File file, TiledImage image) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            BufferedImage img = new BufferedImage(image.width, image.height, image.type);
+            readTiles(raf.getChannel(), image, img, null);
+            return img;
+        }
+    }
+
+    /**
+     * Decompresses the tiles of an image in parallel, and stores them
+     * in order either in the given image or in the given out-of-core image
+     */
+    private static void readTiles(FileChannel channel, TiledImage image,
+                                  BufferedImage dest, MappedImage mapped) throws IOException {
+        int numTiles = image.getNumTiles();
+        Deque<Future<BufferedImage>> inFlight = new ArrayDeque<>();
+        int nextToSubmit = 0;
+        for (int tileIndex = 0; tileIndex < numTiles; tileIndex++) {
+            while (nextToSubmit < numTiles && inFlight.size() < MAX_TILES_IN_FLIGHT) {
+                int submitted = nextToSubmit++;
+                inFlight.addLast(submit(() -> image.decompressTile(channel, submitted)));
+            }
+            BufferedImage tile = getResult(inFlight.removeFirst());
+            if (tile == null) {
+                continue; // fully transparent
+            }
+            int tx = tileIndex % image.numTilesX;
+            int ty = tileIndex / image.numTilesX;
+            if (mapped != null) {
+                mapped.putTile(tx, ty, tile);
+            } else {
+                dest.getRaster().setRect(tx * TILE_SIZE, ty * TILE_SIZE, tile.getRaster());
+            }
+        }
+    }
+
+    private static <T> Future<T> submit(Callable<T> task) {
+        return ThreadPool.executorService.submit(task);
+    }
+
+    /**
+     * Waits for the result of a task that can throw an IOException
+     */
+    static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the compressed form of the given pixels (an int[] or
+     * a byte[] array), or null if all the pixels are zero
+     */
+    static byte[] compressPixels(Object pixels, int width, int height) {
+        byte[] bytes = toBytes(pixels);
+        if (isAllZero(bytes)) {
+            return null;
+        }
+        return compressBytes(bytes, width, height, pixels instanceof int[] ? 4 : 1);
+    }
+
+    /**
+     * Returns a new byte array with the given pixels (an int[] or a byte[] array)
+     */
+    private static byte[] toBytes(Object pixels) {
+        if (pixels instanceof int[]) {
+            int[] ints = (int[]) pixels;
+            byte[] bytes = new byte[4 * ints.length];
+            ByteBuffer.wrap(bytes).asIntBuffer().put(ints);
+            return bytes;
+        }
+        return ((byte[]) pixels).clone();
+    }
+
+    private static boolean isAllZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a 64 bit checksum (CRC-32 and Adler-32) of the uncompressed pixels
+     */
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Filters and compresses the given bytes, modifying them
+     */
+    private static byte[] compressBytes(byte[] bytes, int width, int height, int bytesPerPixel) {
+        // the difference from the left neighbor (as in the PNG "Sub"
+        // filter) makes smooth areas much more compressible
+        int rowBytes = width * bytesPerPixel;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * rowBytes;
+            for (int i = rowStart + rowBytes - 1; i >= rowStart + bytesPerPixel; i--) {
+                bytes[i] -= bytes[i - bytesPerPixel];
+            }
+        }
+
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses pixels created by compressPixels into the given
+     * new image with TYPE_BYTE_GRAY or with a packed int type
+     */
+    static void decompressPixels(byte[] compressed, BufferedImage dest) throws IOException {
+        int width = dest.getWidth();
+        int height = dest.getHeight();
+        int bytesPerPixel = dest.getType() == TYPE_BYTE_GRAY ? 1 : 4;
+        byte[] bytes = decompressBytes(compressed, width, height, bytesPerPixel);
+
+        if (bytesPerPixel == 1) {
+            byte[] destPixels = ((DataBufferByte) dest.getRaster().getDataBuffer()).getData();
+            System.arraycopy(bytes, 0, destPixels, 0, bytes.length);
+        } else {
+            int[] destPixels = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+            ByteBuffer.wrap(bytes).asIntBuffer().get(destPixels);
+        }
+    }
+
+    /**
+     * Returns the unfiltered bytes of the pixels compressed by compressBytes
+     */
+    private static byte[] decompressBytes(byte[] compressed, int width, int height, int bytesPerPixel) throws IOException {
+        byte[] bytes = new byte[width * height * bytesPerPixel];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int filled = 0;
+            while (filled < bytes.length) {
+                int length = inflater.inflate(bytes, filled, bytes.length - filled);
+                if (length == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("truncated tile");
+                }
+                filled += length;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        int rowBytes = width * bytesPerPixel;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * rowBytes;
+            for (int i = rowStart + bytesPerPixel; i < rowStart + rowBytes; i++) {
+                bytes[i] += bytes[i - bytesPerPixel];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Saves and reopens the given composition in both the version 3
+     * and the version 4 format, and returns the timings and file sizes
+     */
+    public static String benchmark(Composition comp) throws IOException, NotPxcFormatException, ClassNotFoundException {
+        StringBuilder sb = new StringBuilder();
+        for (int version = 3; version <= 4; version++) {
+            File tmp = File.createTempFile("pxc_benchmark", ".pxc");
+            try {
+                long startTime = System.nanoTime();
+                write(comp, tmp, version);
+                long saveTime = (System.nanoTime() - startTime) / 1_000_000;
+
+                startTime = System.nanoTime();
+                read(tmp, false);
+                long loadTime = (System.nanoTime() - startTime) / 1_000_000;
+
+                sb.append(String.format("Version %d: saved in %d ms, loaded in %d ms, size = %d KB%n",
+                        version, saveTime, loadTime, tmp.length() / 1024));
+            } finally {
+                tmp.delete();
+            }
+        }
+
+        // saving again with no changes, reusing the tiles of the previous file
+        File previous = File.createTempFile("pxc_benchmark", ".pxc");
+        File tmp = File.createTempFile("pxc_benchmark", ".pxc");
+        try {
+            write(comp, previous);
+            long startTime = System.nanoTime();
+            int numCopiedTiles = writeIncrementally(comp, tmp, previous);
+            long saveTime = (System.nanoTime() - startTime) / 1_000_000;
+            sb.append(String.format("Incremental: saved in %d ms, %d tiles reused%n", saveTime, numCopiedTiles));
+        } finally {
+            previous.delete();
+            tmp.delete();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The pixels of an image layer or mask, and
+     * the position of their tiles in the file
+     */
+    private static class TiledImage {
+        private final int width;
+        private final int height;
+        private final int type;
+        private final int numTilesX;
+        private final int numTilesY;
+
+        // a zero length means a fully transparent tile
+        private final long[] offsets;
+        private final int[] lengths;
+
+        // the checksums of the uncompressed tiles, and whether they were
+        // copied from the previous file. Zero means no known checksum.
+        private final long[] checksums;
+        private final boolean[] copied;
+
+        // exactly one of them is set, the packed image
+        // can be out-of-core or lazily decoded
+        private BufferedImage image;
+        private PackedImage packed;
+
+        private TiledImage(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            numTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            numTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            offsets = new long[numTilesX * numTilesY];
+            lengths = new int[numTilesX * numTilesY];
+            checksums = new long[numTilesX * numTilesY];
+            copied = new boolean[numTilesX * numTilesY];
+        }
+
+        private int getNumTiles() {
+            return offsets.length;
+        }
+
+        private Rectangle getTileBounds(int tileIndex) {
+            int x = (tileIndex % numTilesX) * TILE_SIZE;
+            int y = (tileIndex / numTilesX) * TILE_SIZE;
+            return new Rectangle(x, y,
+                    Math.min(TILE_SIZE, width - x),
+                    Math.min(TILE_SIZE, height - y));
+        }
+
+        /**
+         * Returns the compressed tile or null if the tile is transparent.
+         * If the previous file has a tile with the same pixels, its compressed
+         * bytes are returned without compressing the pixels again.
+         */
+        private byte[] compressTile(int tileIndex, PreviousTiles previous) throws IOException {
+            Rectangle r = getTileBounds(tileIndex);
+            Object pixels;
+            if (packed != null) {
+                BufferedImage tile = packed.readTile(tileIndex % numTilesX, tileIndex / numTilesX);
+                if (tile == null) {
+                    return null;
+                }
+                pixels = tile.getRaster().getDataElements(0, 0, r.width, r.height, null);
+            } else {
+                pixels = image.getRaster().getDataElements(r.x, r.y, r.width, r.height, null);
+            }
+
+            byte[] bytes = toBytes(pixels);
+            if (isAllZero(bytes)) {
+                return null;
+            }
+            long checksum = checksum(bytes);
+            checksums[tileIndex] = checksum;
+            if (previous != null) {
+                byte[] stored = previous.find(checksum, bytes, r.width, r.height, type);
+                if (stored != null) {
+                    copied[tileIndex] = true;
+                    return stored;
+                }
+            }
+            return compressBytes(bytes, r.width, r.height, pixels instanceof int[] ? 4 : 1);
+        }
+
+        private BufferedImage decompressTile(FileChannel channel, int tileIndex) throws IOException {
+            int length = lengths[tileIndex];
+            if (length == 0) {
+                return null;
+            }
+            ByteBuffer compressed = ByteBuffer.allocate(length);
+            while (compressed.hasRemaining()) {
+                int read = channel.read(compressed, offsets[tileIndex] + compressed.position());
+                if (read < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+            }
+            Rectangle r = getTileBounds(tileIndex);
+            BufferedImage tile = new BufferedImage(r.width, r.height, type);
+            decompressPixels(compressed.array(), tile);
+            return tile;
+        }
+
+        private void writeTOCEntry(DataOutputStream out) throws IOException {
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(type);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeLong(checksums[i]);
+            }
+        }
+
+        /**
+         * Reads an entry of the table of contents. The tiles
+         * must be between the given positions of the file.
+         */
+        private static TiledImage readTOCEntry(DataInputStream in, long tilesStart, long tilesEnd, File file)
+                throws IOException, NotPxcFormatException {
+            int width = in.readInt();
+            int height = in.readInt();
+            int type = in.readInt();
+            if (width <= 0 || height <= 0) {
+                throw new NotPxcFormatException(file.getName() + " has an invalid image size " + width + "x" + height);
+            }
+            if (type != TYPE_BYTE_GRAY && (type < TYPE_INT_RGB || type > TYPE_INT_BGR)) {
+                throw new NotPxcFormatException(file.getName() + " has an unsupported image type " + type);
+            }
+            // the position, length and checksum of a tile take 20 bytes
+            long numTiles = ((width + (long) TILE_SIZE - 1) / TILE_SIZE) * ((height + (long) TILE_SIZE - 1) / TILE_SIZE);
+            if (numTiles * 20 > in.available()) {
+                throw new NotPxcFormatException(file.getName() + " has a truncated table of contents");
+            }
+            TiledImage image = new TiledImage(width, height, type);
+            for (int i = 0; i < image.offsets.length; i++) {
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || (length > 0 && (offset < tilesStart || offset > tilesEnd - length))) {
+                    throw new NotPxcFormatException(file.getName() + " has an invalid tile at position " + offset);
+                }
+                image.offsets[i] = offset;
+                image.lengths[i] = length;
+                image.checksums[i] = in.readLong();
+            }
+            return image;
+        }
+    }
+
+    /**
+     * The compressed tiles of a previously saved version 4 file,
+     * found by the checksum of their uncompressed pixels
+     */
+    private static class PreviousTiles implements Closeable {
+        private final RandomAccessFile raf;
+        private final Map<TileKey, TiledImage> tileImages = new HashMap<>();
+        private final Map<TileKey, Integer> tileIndices = new HashMap<>();
+
+        private PreviousTiles(RandomAccessFile raf, List<TiledImage> images) {
+            this.raf = raf;
+            for (TiledImage image : images) {
+                for (int i = 0; i < image.getNumTiles(); i++) {
+                    if (image.lengths[i] != 0 && image.checksums[i] != 0) {
+                        Rectangle r = image.getTileBounds(i);
+                        TileKey key = new TileKey(image.checksums[i], r.width, r.height, image.type);
+                        tileImages.put(key, image);
+                        tileIndices.put(key, i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns null if the file can't be used, for example
+         * because it doesn't exist or it has an older format
+         */
+        private static PreviousTiles open(File file) {
+            if (file == null || !file.exists()) {
+                return null;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                if (readVersion(raf, file) == 4) {
+                    Contents contents = readContents(raf, file);
+                    return new PreviousTiles(raf, contents.images);
+                }
+            } catch (IOException | NotPxcFormatException | RuntimeException e) {
+                // everything will be compressed again
+            }
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // nothing useful can be done here
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the compressed bytes of a stored tile with the given
+         * uncompressed bytes, or null if there is no such tile. The checksum
+         * only finds a candidate tile, which is decompressed and compared,
+         * because different pixels can have the same checksum.
+         */
+        private byte[] find(long checksum, byte[] bytes, int width, int height, int type) throws IOException {
+            TileKey key = new TileKey(checksum, width, height, type);
+            TiledImage image = tileImages.get(key);
+            if (image == null) {
+                return null;
+            }
+            int tileIndex = tileIndices.get(key);
+            ByteBuffer buffer = ByteBuffer.allocate(image.lengths[tileIndex]);
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, image.offsets[tileIndex] + buffer.position());
+                if (read < 0) {
+                    return null; // the file was truncated since
+                }
+            }
+            byte[] compressed = buffer.array();
+            int bytesPerPixel = type == TYPE_BYTE_GRAY ? 1 : 4;
+            byte[] storedBytes;
+            try {
+                storedBytes = decompressBytes(compressed, width, height, bytesPerPixel);
+            } catch (IOException e) {
+                return null; // the stored tile is corrupt
+            }
+            // decompressing is much faster than compressing again
+            if (!Arrays.equals(storedBytes, bytes)) {
+                return null;
+            }
+            return compressed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private static class TileKey {
+        private final long checksum;
+        private final int width;
+        private final int height;
+        private final int type;
+
+        private TileKey(long checksum, int width, int height, int type) {
+            this.checksum = checksum;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return checksum == other.checksum && width == other.width
+                    && height == other.height && type == other.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(checksum);
+        }
+    }
+
+    /**
+     * The stream used for serializing the structure of a
+     * version 4 file. The image layers register their pixels
+     * here instead of writing them into the stream.
+     */
+    public static class TiledOutput extends ObjectOutputStream {
+        private final List<TiledImage> images = new ArrayList<>();
+        private final boolean copyPixels;
+
+        private TiledOutput(OutputStream out, boolean copyPixels) throws IOException {
+            super(out);
+            this.copyPixels = copyPixels;
+        }
+
+        /**
+         * Registers the pixels given either as an image or as a packed
+         * image. Returns the index that has to be serialized, or -1
+         * if the pixels have to be serialized in the old way.
+         */
+        public int addPixels(BufferedImage image, PackedImage packed) {
+            if (packed instanceof LazyImage) {
+                // decoded now, because the file it comes from might be overwritten
+                image = ((LazyImage) packed).decode();
+                packed = null;
+            }
+            TiledImage tiledImage;
+            if (packed != null) {
+                tiledImage = new TiledImage(packed.getWidth(), packed.getHeight(), packed.getType());
+                tiledImage.packed = packed;
+            } else {
+                tiledImage = new TiledImage(image.getWidth(), image.getHeight(), image.getType());
+                tiledImage.image = image;
+            }
+            // the same types as the out-of-core images
+            if (!MappedImage.supportsType(tiledImage.type)) {
+                return -1;
+            }
+            if (copyPixels) {
+                assert packed == null || packed instanceof SparseImage : "cannot copy " + packed;
+                if (image != null) {
+                    tiledImage.image = ImageUtils.copyImage(image);
+                }
+            }
+            images.add(tiledImage);
+            return images.size() - 1;
+        }
+    }
+
+    /**
+     * Reads a composition. If withLayerGUI is false, the layers are created
+     * without their Swing components, because the composition is only flattened.
+     */
+    public static class CompositionInput extends ObjectInputStream {
+        private final boolean withLayerGUI;
+
+        private CompositionInput(InputStream in, boolean withLayerGUI) throws IOException {
+            super(in);
+            this.withLayerGUI = withLayerGUI;
+        }
+
+        public boolean createsLayerGUI() {
+            return withLayerGUI;
+        }
+    }
+
+    /**
+     * The stream used for deserializing the structure of a version 4
+     * file, the pixels are already decompressed or will be decoded lazily.
+     */
+    public static class TiledInput extends CompositionInput {
+        private final List<TiledImage> images;
+
+        private TiledInput(InputStream in, List<TiledImage> images, boolean withLayerGUI) throws IOException {
+            super(in, withLayerGUI);
+            this.images = images;
+        }
+
+        /**
+         * Returns the pixels with the given index, or null
+         * if they are out-of-core or lazily decoded
+         */
+        public BufferedImage getImage(int index) {
+            return images.get(index).image;
+        }
+
+        /**
+         * Returns the out-of-core or lazily decoded pixels with
+         * the given index, or null if they are in a normal image
+         */
+        public PackedImage getPacked(int index) {
+            return images.get(index).packed;
+        }
+    }
+}
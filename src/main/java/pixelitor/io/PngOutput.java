@@ -0,0 +1,610 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.ThreadPool;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * A PNG writer with a selectable compression level and filter strategy.
+ * <p>
+ * The image is divided into horizontal stripes, which are filtered and
+ * compressed independently (in parallel if possible). Each stripe gets
+ * the end of the previous one as a preset dictionary, so the compression
+ * ratio is almost the same as with a single deflate stream, and the
+ * concatenated stripes still form one standard zlib stream.
+ */
+public final class PngOutput {
+    /**
+     * The PNG row filters
+     */
+    public enum FilterStrategy {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Chooses the filter for each row with the usual
+         * "minimum sum of absolute differences" heuristic
+         */
+        ADAPTIVE
+    }
+
+    public enum Preset {
+        /**
+         * For intermediate files, where the speed matters more than the size
+         */
+        FAST(Deflater.BEST_SPEED, FilterStrategy.SUB),
+        NORMAL(6, FilterStrategy.ADAPTIVE),
+        SMALLEST(Deflater.BEST_COMPRESSION, FilterStrategy.ADAPTIVE);
+
+        private final int compressionLevel;
+        private final FilterStrategy filter;
+
+        Preset(int compressionLevel, FilterStrategy filter) {
+            this.compressionLevel = compressionLevel;
+            this.filter = filter;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public FilterStrategy getFilter() {
+            return filter;
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int COLOR_TYPE_GRAY = 0;
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    // the approximate uncompressed size of a stripe
+    private static final int STRIPE_BYTES = 256 * 1024;
+
+    // the size of the deflate window
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+
+    private static final int MAX_STRIPES_IN_FLIGHT = 4 * ThreadPool.NUM_AVAILABLE_PROCESSORS;
+
+    /**
+     * Utility class with static methods
+     */
+    private PngOutput() {
+    }
+
+    public static void write(BufferedImage image, File file, Preset preset) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            write(image, out, preset.getCompressionLevel(), preset.getFilter(), true);
+        }
+    }
+
+    /**
+     * Writes the image into the given stream without closing it. If parallel
+     * is false, everything runs in the calling thread, which is necessary
+     * if the calling thread is already in the thread pool.
+     */
+    public static void write(BufferedImage image, OutputStream out,
+                             int compressionLevel, FilterStrategy filter, boolean parallel) throws IOException {
+        Encoder encoder = new Encoder(image.getWidth(), image.getHeight(),
+                image.getType() == TYPE_BYTE_GRAY, image.getColorModel().hasAlpha(),
+                compressionLevel, filter);
+        writeStripes(encoder, out, parallel,
+                stripeIndex -> () -> encoder.encodeStripe(stripeIndex, image, 0));
+    }
+
+    /**
+     * Supplies the consecutive horizontal strips of an image from the top
+     */
+    public interface StripSupplier {
+        /**
+         * Returns the next strip, which has the full width of the image
+         * and the same type as the previous strips
+         */
+        BufferedImage nextStrip() throws IOException;
+    }
+
+    /**
+     * Writes an image which is not available at once, but only as consecutive
+     * strips. Only a few stripes are kept in memory, and they are compressed
+     * in parallel while the next strips are supplied.
+     */
+    public static void write(int width, int height, boolean hasAlpha, StripSupplier strips,
+                             OutputStream out, int compressionLevel, FilterStrategy filter) throws IOException {
+        Encoder encoder = new Encoder(width, height, false, hasAlpha, compressionLevel, filter);
+        StripeBands bands = new StripeBands(strips, width);
+        writeStripes(encoder, out, true, stripeIndex -> {
+            // the stripe is filtered starting with the row before its dictionary
+            int firstY = Math.max(0, encoder.getFirstDictionaryRow(stripeIndex) - 1);
+            int endY = encoder.getEndRow(stripeIndex);
+            BufferedImage band = bands.getRows(firstY, endY);
+            return () -> encoder.encodeStripe(stripeIndex, band, firstY);
+        });
+    }
+
+    private interface StripeTaskFactory {
+        /**
+         * Called in the order of the stripes
+         */
+        Supplier<Stripe> createTask(int stripeIndex) throws IOException;
+    }
+
+    private static void writeStripes(Encoder encoder, OutputStream out, boolean parallel,
+                                     StripeTaskFactory taskFactory) throws IOException {
+        int compressionLevel = encoder.compressionLevel;
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.write(SIGNATURE);
+        writeHeader(dataOut, encoder);
+
+        int numStripes = encoder.getNumStripes();
+        Deque<Future<Stripe>> inFlight = new ArrayDeque<>();
+        int nextToSubmit = 0;
+        long adler = 1; // the Adler-32 checksum of an empty stream
+        for (int i = 0; i < numStripes; i++) {
+            Stripe stripe;
+            if (parallel) {
+                while (nextToSubmit < numStripes && inFlight.size() < MAX_STRIPES_IN_FLIGHT) {
+                    Supplier<Stripe> task = taskFactory.createTask(nextToSubmit++);
+                    inFlight.addLast(ThreadPool.executorService.submit((Callable<Stripe>) task::get));
+                }
+                stripe = PXCFormat.getResult(inFlight.removeFirst());
+            } else {
+                stripe = taskFactory.createTask(i).get();
+            }
+            adler = combineAdler32(adler, stripe.adler, stripe.uncompressedLength);
+
+            ByteArrayOutputStream idat = new ByteArrayOutputStream(stripe.compressed.length + 6);
+            if (i == 0) {
+                writeZlibHeader(idat, compressionLevel);
+            }
+            idat.write(stripe.compressed);
+            if (i == numStripes - 1) {
+                idat.write((int) (adler >>> 24));
+                idat.write((int) (adler >>> 16));
+                idat.write((int) (adler >>> 8));
+                idat.write((int) adler);
+            }
+            writeChunk(dataOut, "IDAT", idat.toByteArray());
+        }
+
+        writeChunk(dataOut, "IEND", new byte[0]);
+        dataOut.flush();
+    }
+
+    private static void writeHeader(DataOutputStream out, Encoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(encoder.width);
+        header.writeInt(encoder.height);
+        header.writeByte(8); // bit depth
+        header.writeByte(encoder.colorType);
+        header.writeByte(0); // deflate compression
+        header.writeByte(0); // adaptive filtering
+        header.writeByte(0); // no interlace
+        writeChunk(out, "IHDR", bytes.toByteArray());
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeZlibHeader(OutputStream out, int compressionLevel) throws IOException {
+        int cmf = 0x78; // deflate with a 32K window
+        int levelFlag;
+        if (compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6) {
+            levelFlag = 2;
+        } else if (compressionLevel <= 1) {
+            levelFlag = 0;
+        } else if (compressionLevel <= 5) {
+            levelFlag = 1;
+        } else {
+            levelFlag = 3;
+        }
+        int flg = levelFlag << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        out.write(cmf);
+        out.write(flg);
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two concatenated
+     * byte sequences (the same algorithm as in zlib)
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static class Stripe {
+        private final byte[] compressed;
+        private final long adler;
+        private final int uncompressedLength;
+
+        private Stripe(byte[] compressed, long adler, int uncompressedLength) {
+            this.compressed = compressed;
+            this.adler = adler;
+            this.uncompressedLength = uncompressedLength;
+        }
+    }
+
+    /**
+     * Collects the rows needed by the stripes from the supplied strips.
+     * The requested row ranges must advance from the top, but they can
+     * overlap with the previous range.
+     */
+    private static class StripeBands {
+        private final StripSupplier strips;
+        private final int width;
+
+        private BufferedImage prevBand;
+        private int prevBandY;
+
+        private BufferedImage strip;
+        private int stripY;
+
+        private StripeBands(StripSupplier strips, int width) {
+            this.strips = strips;
+            this.width = width;
+        }
+
+        private BufferedImage getRows(int startY, int endY) throws IOException {
+            if (strip == null) {
+                strip = nextStrip();
+                stripY = 0;
+            }
+            BufferedImage band = new BufferedImage(strip.getColorModel(),
+                    strip.getRaster().createCompatibleWritableRaster(width, endY - startY),
+                    strip.isAlphaPremultiplied(), null);
+            int y = startY;
+            if (prevBand != null) {
+                int prevEndY = prevBandY + prevBand.getHeight();
+                if (y < prevEndY) {
+                    y = copyRows(prevBand, prevBandY, band, startY, y, Math.min(endY, prevEndY));
+                }
+            }
+            while (y < endY) {
+                int stripEndY = stripY + strip.getHeight();
+                if (y >= stripEndY) {
+                    stripY = stripEndY;
+                    strip = nextStrip();
+                    continue;
+                }
+                y = copyRows(strip, stripY, band, startY, y, Math.min(endY, stripEndY));
+            }
+            prevBand = band;
+            prevBandY = startY;
+            return band;
+        }
+
+        private BufferedImage nextStrip() throws IOException {
+            BufferedImage next = strips.nextStrip();
+            if (next.getWidth() != width) {
+                throw new IllegalStateException("width = " + next.getWidth() + ", expected " + width);
+            }
+            return next;
+        }
+
+        /**
+         * Copies the rows [fromY, toY) and returns toY
+         */
+        private static int copyRows(BufferedImage src, int srcY, BufferedImage dest, int destY,
+                                    int fromY, int toY) {
+            Raster rows = src.getRaster().createChild(0, fromY - srcY, src.getWidth(), toY - fromY, 0, 0, null);
+            dest.getRaster().setDataElements(0, fromY - destY, rows);
+            return toY;
+        }
+    }
+
+    /**
+     * Converts, filters and compresses the rows of an image.
+     * The stripes can be encoded in any order and in parallel.
+     */
+    private static class Encoder {
+        private final int width;
+        private final int height;
+        private final int colorType;
+        private final int bytesPerPixel;
+        private final int compressionLevel;
+        private final FilterStrategy filter;
+        private final int rowsPerStripe;
+        private final int dictionaryRows;
+
+        private Encoder(int width, int height, boolean gray, boolean hasAlpha,
+                        int compressionLevel, FilterStrategy filter) {
+            this.width = width;
+            this.height = height;
+            this.compressionLevel = compressionLevel;
+            this.filter = filter;
+
+            if (gray) {
+                colorType = COLOR_TYPE_GRAY;
+                bytesPerPixel = 1;
+            } else if (hasAlpha) {
+                colorType = COLOR_TYPE_RGBA;
+                bytesPerPixel = 4;
+            } else {
+                colorType = COLOR_TYPE_RGB;
+                bytesPerPixel = 3;
+            }
+
+            // each filtered row starts with the filter type byte
+            int filteredRowBytes = width * bytesPerPixel + 1;
+            rowsPerStripe = Math.max(1, STRIPE_BYTES / filteredRowBytes);
+            dictionaryRows = (DICTIONARY_BYTES + filteredRowBytes - 1) / filteredRowBytes;
+        }
+
+        private int getNumStripes() {
+            return (height + rowsPerStripe - 1) / rowsPerStripe;
+        }
+
+        private int getEndRow(int stripeIndex) {
+            return Math.min(height, (stripeIndex + 1) * rowsPerStripe);
+        }
+
+        // the end of the previous stripe is filtered again for the dictionary
+        private int getFirstDictionaryRow(int stripeIndex) {
+            return Math.max(0, stripeIndex * rowsPerStripe - dictionaryRows);
+        }
+
+        /**
+         * Encodes a stripe, reading its rows from the given image, whose
+         * first row is the row srcY of the whole image. The image must contain
+         * the rows from the one before the dictionary to the end of the stripe.
+         */
+        private Stripe encodeStripe(int stripeIndex, BufferedImage src, int srcY) {
+            int startY = stripeIndex * rowsPerStripe;
+            int endY = getEndRow(stripeIndex);
+            int firstY = getFirstDictionaryRow(stripeIndex);
+
+            int rowBytes = width * bytesPerPixel;
+            byte[] filtered = new byte[(endY - firstY) * (rowBytes + 1)];
+            byte[] prevRow = new byte[rowBytes];
+            byte[] row = new byte[rowBytes];
+            if (firstY > 0) {
+                readRow(src, firstY - 1 - srcY, prevRow);
+            }
+            RowFilter rowFilter = new RowFilter(rowBytes, bytesPerPixel);
+            for (int y = firstY; y < endY; y++) {
+                readRow(src, y - srcY, row);
+                rowFilter.filter(filter, row, prevRow, filtered, (y - firstY) * (rowBytes + 1));
+                byte[] tmp = prevRow;
+                prevRow = row;
+                row = tmp;
+            }
+
+            int dataStart = (startY - firstY) * (rowBytes + 1);
+            int dataLength = filtered.length - dataStart;
+
+            Adler32 adler = new Adler32();
+            adler.update(filtered, dataStart, dataLength);
+
+            boolean last = endY == height;
+            Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                if (dataStart > 0) {
+                    int dictLength = Math.min(DICTIONARY_BYTES, dataStart);
+                    deflater.setDictionary(filtered, dataStart - dictLength, dictLength);
+                }
+                deflater.setInput(filtered, dataStart, dataLength);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(dataLength / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int length = deflater.deflate(buffer);
+                        out.write(buffer, 0, length);
+                    }
+                } else {
+                    // the sync flush ends the stripe on a byte boundary
+                    // without ending the deflate stream
+                    int length;
+                    do {
+                        length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, length);
+                    } while (length == buffer.length);
+                }
+                return new Stripe(out.toByteArray(), adler.getValue(), dataLength);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Reads the non-premultiplied bytes of a row in the PNG order
+         */
+        private void readRow(BufferedImage image, int y, byte[] dest) {
+            int type = image.getType();
+            Raster raster = image.getRaster();
+            if (type == TYPE_BYTE_GRAY) {
+                raster.getDataElements(0, y, width, 1, dest);
+                return;
+            }
+
+            int[] pixels;
+            if (type == TYPE_INT_ARGB || type == TYPE_INT_RGB) {
+                pixels = (int[]) raster.getDataElements(0, y, width, 1, null);
+            } else {
+                pixels = image.getRGB(0, y, width, 1, null, 0, width);
+            }
+
+            int i = 0;
+            if (bytesPerPixel == 4) {
+                for (int pixel : pixels) {
+                    dest[i++] = (byte) (pixel >>> 16);
+                    dest[i++] = (byte) (pixel >>> 8);
+                    dest[i++] = (byte) pixel;
+                    dest[i++] = (byte) (pixel >>> 24);
+                }
+            } else {
+                for (int pixel : pixels) {
+                    dest[i++] = (byte) (pixel >>> 16);
+                    dest[i++] = (byte) (pixel >>> 8);
+                    dest[i++] = (byte) pixel;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the PNG filters to a row, writing the filter type
+     * byte and the filtered bytes into the destination
+     */
+    private static class RowFilter {
+        private final int rowBytes;
+        private final int bpp;
+
+        // only used by the adaptive strategy
+        private byte[] candidate;
+        private byte[] best;
+
+        private RowFilter(int rowBytes, int bpp) {
+            this.rowBytes = rowBytes;
+            this.bpp = bpp;
+        }
+
+        private void filter(FilterStrategy strategy, byte[] row, byte[] prev, byte[] dest, int destPos) {
+            if (strategy != FilterStrategy.ADAPTIVE) {
+                dest[destPos] = (byte) strategy.ordinal();
+                applyFilter(strategy, row, prev, dest, destPos + 1);
+                return;
+            }
+
+            if (candidate == null) {
+                candidate = new byte[rowBytes];
+                best = new byte[rowBytes];
+            }
+            FilterStrategy bestFilter = null;
+            long bestSum = Long.MAX_VALUE;
+            for (FilterStrategy f : FilterStrategy.values()) {
+                if (f == FilterStrategy.ADAPTIVE) {
+                    continue;
+                }
+                applyFilter(f, row, prev, candidate, 0);
+                long sum = 0;
+                for (byte b : candidate) {
+                    sum += Math.abs(b);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    bestFilter = f;
+                    byte[] tmp = best;
+                    best = candidate;
+                    candidate = tmp;
+                }
+            }
+            dest[destPos] = (byte) bestFilter.ordinal();
+            System.arraycopy(best, 0, dest, destPos + 1, rowBytes);
+        }
+
+        private void applyFilter(FilterStrategy f, byte[] row, byte[] prev, byte[] dest, int destPos) {
+            switch (f) {
+                case NONE:
+                    System.arraycopy(row, 0, dest, destPos, rowBytes);
+                    break;
+                case SUB:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= bpp ? row[i - bpp] : 0;
+                        dest[destPos + i] = (byte) (row[i] - left);
+                    }
+                    break;
+                case UP:
+                    for (int i = 0; i < rowBytes; i++) {
+                        dest[destPos + i] = (byte) (row[i] - prev[i]);
+                    }
+                    break;
+                case AVERAGE:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        int up = prev[i] & 0xFF;
+                        dest[destPos + i] = (byte) (row[i] - ((left + up) >>> 1));
+                    }
+                    break;
+                case PAETH:
+                    for (int i = 0; i < rowBytes; i++) {
+                        int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        int up = prev[i] & 0xFF;
+                        int upLeft = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                        dest[destPos + i] = (byte) (row[i] - paethPredictor(left, up, upLeft));
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("filter = " + f);
+            }
+        }
+
+        private static int paethPredictor(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            }
+            if (pb <= pc) {
+                return b;
+            }
+            return c;
+        }
+    }
+}
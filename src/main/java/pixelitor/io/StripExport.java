@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.io;
+
+import pixelitor.Composition;
+import pixelitor.utils.VisibleForTesting;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Exports the flattened image of large compositions without a canvas-sized
+ * composite image: the composite is calculated in horizontal strips in the
+ * calling thread, and the strips are encoded in another thread meanwhile.
+ */
+final class StripExport {
+    // smaller images are composited and encoded at once
+    private static long minPixels = 16_000_000L;
+
+    // the approximate number of pixels in a strip
+    private static final int STRIP_PIXELS = 1024 * 1024;
+
+    // the number of strips waiting for the encoder
+    private static final int QUEUE_CAPACITY = 2;
+
+    private static final ExecutorService encoderThreads = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Strip Encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Utility class with static methods
+     */
+    private StripExport() {
+    }
+
+    /**
+     * Returns true if the composition is big enough for a strip-wise
+     * export, and its composite can be calculated in strips
+     */
+    static boolean isUseful(Composition comp) {
+        if (!comp.canCompositeInStrips()) {
+            return false;
+        }
+        long numPixels = (long) comp.getCanvasWidth() * comp.getCanvasHeight();
+        return comp.hasOutOfCoreLayers() || numPixels >= minPixels;
+    }
+
+    /**
+     * Returns true if the RGB bytes of an image with the given size
+     * can be indexed by the int element index of a DataBuffer.
+     * The JPG and BMP strip writers need this, the PNG writer doesn't.
+     */
+    static boolean fitsStreamedImage(int width, int height) {
+        return 3L * width * height <= Integer.MAX_VALUE;
+    }
+
+    static void writePNG(Composition comp, File file) throws IOException {
+        int width = comp.getCanvasWidth();
+        int height = comp.getCanvasHeight();
+        PngOutput.Preset preset = PngOutput.Preset.NORMAL;
+        encode(comp, false, false, strips -> {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                PngOutput.write(width, height, true, strips::take, out,
+                        preset.getCompressionLevel(), preset.getFilter());
+            }
+        });
+    }
+
+    static void writeJPG(Composition comp, File file, float quality) throws IOException {
+        encode(comp, true, false, strips ->
+                JpegOutput.writeJPG(createStreamedImage(comp, false, strips), file, quality));
+    }
+
+    static void writeBMP(Composition comp, File file) throws IOException {
+        // the rows of a BMP file are stored from the bottom
+        encode(comp, true, true, strips -> {
+            if (!ImageIO.write(createStreamedImage(comp, true, strips), "bmp", file)) {
+                throw new IOException("No BMP writer found");
+            }
+        });
+    }
+
+    private interface Encoding {
+        void encode(StripQueue strips) throws IOException;
+    }
+
+    /**
+     * Calculates the strips of the composite image and passes them
+     * to the encoding, which runs in another thread
+     */
+    private static void encode(Composition comp, boolean toRGB, boolean bottomUp,
+                               Encoding encoding) throws IOException {
+        int width = comp.getCanvasWidth();
+        int height = comp.getCanvasHeight();
+        int stripHeight = Math.max(1, Math.min(height, STRIP_PIXELS / width));
+        int numStrips = (height + stripHeight - 1) / stripHeight;
+
+        StripQueue strips = new StripQueue();
+        Future<Void> encoder = encoderThreads.submit((Callable<Void>) () -> {
+            encoding.encode(strips);
+            return null;
+        });
+        try {
+            for (int i = 0; i < numStrips && !encoder.isDone(); i++) {
+                int y = (bottomUp ? numStrips - 1 - i : i) * stripHeight;
+                BufferedImage strip = comp.getCompositeStrip(y, Math.min(stripHeight, height - y));
+                if (toRGB) {
+                    strip = toBGRBytes(strip);
+                }
+                strips.put(strip, encoder);
+            }
+            encoder.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The export was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // stops the encoder if the compositing failed
+            encoder.cancel(true);
+        }
+    }
+
+    /**
+     * Converts the strip once, so that the encoder
+     * can read its bytes without further conversions
+     */
+    private static BufferedImage toBGRBytes(BufferedImage strip) {
+        BufferedImage dest = new BufferedImage(strip.getWidth(), strip.getHeight(), TYPE_3BYTE_BGR);
+        Graphics2D g = dest.createGraphics();
+        g.drawImage(strip, 0, 0, null);
+        g.dispose();
+        return dest;
+    }
+
+    /**
+     * Creates an RGB image, whose pixels are taken from the strips only when
+     * the encoder reads them. The rows must be read in the order of the strips.
+     */
+    private static BufferedImage createStreamedImage(Composition comp, boolean bottomUp, StripQueue strips) {
+        int width = comp.getCanvasWidth();
+        int height = comp.getCanvasHeight();
+        DataBuffer buffer = new StripDataBuffer(width, height, bottomUp, strips);
+        ComponentSampleModel sampleModel = new ComponentSampleModel(DataBuffer.TYPE_BYTE,
+                width, height, 3, 3 * width, new int[]{2, 1, 0});
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Hands over the strips from the compositing thread to the encoder
+     */
+    private static class StripQueue {
+        private final BlockingQueue<BufferedImage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        /**
+         * Waits for a free place in the queue, unless the encoder has stopped
+         */
+        private void put(BufferedImage strip, Future<?> encoder) throws InterruptedException {
+            while (!queue.offer(strip, 100, MILLISECONDS)) {
+                if (encoder.isDone()) {
+                    return;
+                }
+            }
+        }
+
+        private BufferedImage take() throws IOException {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("The export was interrupted");
+            }
+        }
+    }
+
+    /**
+     * The interleaved BGR bytes of an image, which
+     * are taken from the current TYPE_3BYTE_BGR strip
+     */
+    private static class StripDataBuffer extends DataBuffer {
+        private final int height;
+        private final int rowBytes;
+        private final boolean bottomUp;
+        private final StripQueue strips;
+
+        private byte[] stripBytes;
+        private int stripY;
+        private int stripHeight = 0;
+
+        // the element indices of the current strip
+        private int stripStart = 0;
+        private int stripEnd = 0;
+
+        private StripDataBuffer(int width, int height, boolean bottomUp, StripQueue strips) {
+            // throws an exception instead of overflowing for too large images
+            super(TYPE_BYTE, Math.toIntExact(3L * width * height));
+            this.height = height;
+            this.bottomUp = bottomUp;
+            this.strips = strips;
+            rowBytes = 3 * width;
+            stripY = bottomUp ? height : 0;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            if (i < stripStart || i >= stripEnd) {
+                advanceTo(i / rowBytes);
+            }
+            return stripBytes[i - stripStart] & 0xFF;
+        }
+
+        private void advanceTo(int y) {
+            while (bottomUp ? y < stripY : y >= stripY + stripHeight) {
+                BufferedImage strip;
+                try {
+                    strip = strips.take();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                stripBytes = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+                stripY = bottomUp ? stripY - strip.getHeight() : stripY + stripHeight;
+                stripHeight = strip.getHeight();
+            }
+            if (y < stripY || y >= stripY + stripHeight) {
+                throw new IllegalStateException("Row " + y + " of " + height + " was read out of order");
+            }
+            stripStart = stripY * rowBytes;
+            stripEnd = stripStart + stripHeight * rowBytes;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @VisibleForTesting
+    static void setMinPixels(long minPixels) {
+        StripExport.minPixels = minPixels;
+    }
+}
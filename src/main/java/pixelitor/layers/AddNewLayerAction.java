@@ -20,12 +20,16 @@ import pixelitor.Build;
 import pixelitor.Composition;
 import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
+import pixelitor.automate.macro.MacroRecorder;
 import pixelitor.utils.IconUtils;
 import pixelitor.utils.ImageSwitchListener;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 
+import static pixelitor.automate.macro.LayerMacroStep.ADD_NEW_LAYER;
+import static pixelitor.automate.macro.LayerMacroStep.ADD_NEW_LAYER_BELOW;
+
 /**
  * An Action that adds a new layer
  */
@@ -48,6 +52,7 @@ public class AddNewLayerAction extends AbstractAction implements ImageSwitchList
         Composition comp = ImageComponents.getActiveComp().get();
         boolean addBellowActive = ((e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK);
         comp.addNewEmptyLayer(null, addBellowActive);
+        MacroRecorder.record(addBellowActive ? ADD_NEW_LAYER_BELOW : ADD_NEW_LAYER);
     }
 
     @Override
@@ -21,6 +21,7 @@ import pixelitor.Composition;
 import pixelitor.ConsistencyChecks;
 import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
+import pixelitor.automate.macro.MacroRecorder;
 import pixelitor.history.AddToHistory;
 import pixelitor.utils.IconUtils;
 import pixelitor.utils.ImageSwitchListener;
@@ -29,6 +30,8 @@ import pixelitor.utils.UpdateGUI;
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 
+import static pixelitor.automate.macro.LayerMacroStep.DELETE_LAYER;
+
 /**
  * An Action that deletes the active layer
  */
@@ -47,6 +50,7 @@ public class DeleteActiveLayerAction extends AbstractAction implements ImageSwit
     public void actionPerformed(ActionEvent e) {
         Composition comp = ImageComponents.getActiveComp().get();
         comp.deleteActiveLayer(UpdateGUI.YES, AddToHistory.YES);
+        MacroRecorder.record(DELETE_LAYER);
     }
 
     @Override
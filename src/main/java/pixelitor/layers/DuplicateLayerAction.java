@@ -19,12 +19,15 @@ package pixelitor.layers;
 import pixelitor.Composition;
 import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
+import pixelitor.automate.macro.MacroRecorder;
 import pixelitor.utils.IconUtils;
 import pixelitor.utils.ImageSwitchListener;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 
+import static pixelitor.automate.macro.LayerMacroStep.DUPLICATE_LAYER;
+
 /**
  * An Action that duplicates a layer
  */
@@ -42,6 +45,7 @@ public class DuplicateLayerAction extends AbstractAction implements ImageSwitchL
     public void actionPerformed(ActionEvent e) {
         Composition comp = ImageComponents.getActiveComp().get();
         comp.duplicateLayer();
+        MacroRecorder.record(DUPLICATE_LAYER);
     }
 
     @Override
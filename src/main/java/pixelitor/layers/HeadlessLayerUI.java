@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+/**
+ * The UI of the layers of a composition that is only flattened or written,
+ * possibly outside the EDT. It has no Swing components.
+ */
+class HeadlessLayerUI implements LayerUI {
+    private final Layer layer;
+
+    HeadlessLayerUI(Layer layer) {
+        this.layer = layer;
+    }
+
+    @Override
+    public void setOpenEye(boolean newVisibility) {
+    }
+
+    @Override
+    public Layer getLayer() {
+        return layer;
+    }
+
+    @Override
+    public String getLayerName() {
+        return layer.getName();
+    }
+
+    @Override
+    public boolean isVisibilityChecked() {
+        return layer.isVisible();
+    }
+
+    @Override
+    public void changeNameProgrammatically(String newName) {
+    }
+
+    @Override
+    public void updateLayerIconImage(ImageLayer layer) {
+    }
+
+    @Override
+    public void addMaskIconLabel() {
+    }
+
+    @Override
+    public void deleteMaskIconLabel() {
+    }
+
+    @Override
+    public void setSelected(boolean b) {
+    }
+
+    @Override
+    public LayerButton getLayerButton() {
+        return null;
+    }
+
+    @Override
+    public void setUIOpacity(float newOpacity) {
+    }
+}
@@ -27,13 +27,20 @@ import pixelitor.history.ApplyLayerMaskEdit;
 import pixelitor.history.ContentLayerMoveEdit;
 import pixelitor.history.History;
 import pixelitor.history.ImageEdit;
+import pixelitor.history.PackedImageEdit;
 import pixelitor.history.PixelitorEdit;
+import pixelitor.io.PXCFormat;
 import pixelitor.selection.IgnoreSelection;
 import pixelitor.selection.Selection;
 import pixelitor.tools.Tools;
+import pixelitor.utils.BufferPool;
 import pixelitor.utils.Dialogs;
 import pixelitor.utils.ImageUtils;
+import pixelitor.utils.MemoryInfo;
+import pixelitor.utils.MemoryManager;
 import pixelitor.utils.Messages;
+import pixelitor.utils.Resampler;
+import pixelitor.utils.SwapFile;
 import pixelitor.utils.UpdateGUI;
 import pixelitor.utils.Utils;
 
@@ -52,10 +59,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 import static java.awt.RenderingHints.KEY_INTERPOLATION;
-import static java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC;
 import static java.awt.RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
 import static java.util.Objects.requireNonNull;
 import static pixelitor.ChangeReason.REPEAT_LAST;
 import static pixelitor.Composition.ImageChangeActions.FULL;
@@ -136,6 +145,22 @@ public class ImageLayer extends ContentLayer {
      */
     private transient BufferedImage filterSourceImage;
 
+    /**
+     * The position of the image in the swap file while
+     * the composition is hibernated, or -1
+     */
+    private transient long swapPos = -1;
+
+    /**
+     * If not null, the pixels are stored here (and image is null)
+     * until something needs the image as a normal BufferedImage
+     */
+    protected transient volatile PackedImage packed;
+
+    // true if the pixels were saved in sparse form,
+    // it is missing (and false) in older pxc files
+    private boolean serializedAsSparse;
+
     /**
      * Creates a new layer with the given image
      */
@@ -149,6 +174,18 @@ public class ImageLayer extends ContentLayer {
         checkConstructorPostConditions();
     }
 
+    /**
+     * Creates a new layer with packed pixels, for example
+     * with pixels that are decoded only when they are needed
+     */
+    public ImageLayer(Composition comp, PackedImage pixels, String name) {
+        super(comp, name, null);
+
+        setPacked(requireNonNull(pixels));
+        updateIconImage();
+        checkConstructorPostConditions();
+    }
+
     /**
      * Creates a new layer with the given image and size.
      * Used when an image is pasted into a layer
@@ -202,31 +239,92 @@ public class ImageLayer extends ContentLayer {
     public ImageLayer(Composition comp, String name) {
         super(comp, name == null ? comp.generateNewLayerName() : name, null);
 
-        BufferedImage emptyImage = createEmptyImageForLayer(canvas.getWidth(), canvas.getHeight());
-        setImage(emptyImage);
+        // the pixels of an empty layer are not allocated
+        // until something is drawn on it
+        int imageType = ImageUtils.createCompatibleImage(1, 1).getType();
+        if (SparseImage.supportsType(imageType)) {
+            setPacked(SparseImage.createEmpty(canvas.getWidth(), canvas.getHeight(), imageType));
+        } else {
+            BufferedImage emptyImage = createEmptyImageForLayer(canvas.getWidth(), canvas.getHeight());
+            setImage(emptyImage);
+        }
         checkConstructorPostConditions();
     }
 
     private void checkConstructorPostConditions() {
         assert canvas != null;
-        assert image != null;
+        assert image != null || packed != null;
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
+        if (image == null && comp.isHibernated()) {
+            comp.wakeUp();
+        }
+        int tilesIndex = -1;
+        if (out instanceof PXCFormat.TiledOutput) {
+            // the pixels are saved after the structure in compressed tiles
+            tilesIndex = ((PXCFormat.TiledOutput) out).addPixels(image, packed);
+        }
+        serializedAsSparse = tilesIndex == -1 && packed instanceof SparseImage;
         out.defaultWriteObject();
-        ImageUtils.serializeImage(out, image);
+        if (out instanceof PXCFormat.TiledOutput) {
+            out.writeInt(tilesIndex);
+        }
+
+        if (tilesIndex != -1) {
+            // already registered
+        } else if (serializedAsSparse) {
+            // the transparent tiles are not saved
+            ((SparseImage) packed).write(out);
+        } else if (packed instanceof MappedImage && ((MappedImage) packed).getType() != TYPE_BYTE_GRAY) {
+            // streamed in the normal format without loading the whole image
+            MappedImage mapped = (MappedImage) packed;
+            out.writeInt(mapped.getWidth());
+            out.writeInt(mapped.getHeight());
+            out.writeInt(mapped.getType());
+            mapped.writePixels(out);
+        } else if (packed != null) {
+            ImageUtils.serializeImage(out, packed.toImage());
+        } else {
+            ImageUtils.serializeImage(out, image);
+        }
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         state = NORMAL;
         in.defaultReadObject();
-        setImage(ImageUtils.deserializeImage(in));
+        int tilesIndex = -1;
+        if (in instanceof PXCFormat.TiledInput) {
+            tilesIndex = in.readInt();
+        }
+
+        if (tilesIndex != -1) {
+            PXCFormat.TiledInput tiledIn = (PXCFormat.TiledInput) in;
+            PackedImage tiledPacked = tiledIn.getPacked(tilesIndex);
+            if (tiledPacked != null) {
+                setPacked(tiledPacked);
+            } else {
+                setImage(tiledIn.getImage(tilesIndex));
+            }
+        } else if (serializedAsSparse) {
+            setPacked(SparseImage.read(in));
+        } else {
+            int width = in.readInt();
+            int height = in.readInt();
+            int type = in.readInt();
+            if (type != TYPE_BYTE_GRAY && MappedImage.shouldStore(width, height, type)) {
+                // very large layers are read directly out of the heap
+                setPacked(MappedImage.readPixels(in, width, height, type));
+            } else {
+                setImage(ImageUtils.deserializeImage(in, width, height, type));
+            }
+        }
         imageContentChanged = false;
     }
 
     @Override
     public ImageLayer duplicate() {
-        BufferedImage imageCopy = ImageUtils.copyImage(image);
+        BufferedImage imageCopy = ImageUtils.copyImage(getImage());
         String duplicateLayerName = getDuplicateLayerName();
         ImageLayer d = new ImageLayer(comp, imageCopy, duplicateLayerName, null);
         d.setOpacity(opacity, UpdateGUI.NO, AddToHistory.NO, true);
@@ -241,9 +339,239 @@ public class ImageLayer extends ContentLayer {
     }
 
     public BufferedImage getImage() {
+        if (image == null) {
+            if (comp.isHibernated()) {
+                // something needs the pixels of an inactive composition
+                comp.wakeUp();
+            }
+            if (packed != null) {
+                // something wants to read or edit the pixels directly
+                checkImageFits(packed);
+                image = packed.toImage();
+                packed.dispose();
+                packed = null;
+                imageRefChanged();
+            }
+        }
         return image;
     }
 
+    /**
+     * Refuses to load the packed pixels into the heap if they don't fit,
+     * the callers show the out of memory dialog as for other allocations.
+     * The point operations can still run tile by tile, see filterTiles.
+     */
+    private void checkImageFits(PackedImage pixels) {
+        long bytesPerPixel = pixels.getType() == TYPE_BYTE_GRAY ? 1 : 4;
+        long bytes = bytesPerPixel * pixels.getWidth() * pixels.getHeight();
+        if (!MemoryManager.canAllocate(bytes)) {
+            throw new OutOfMemoryError(String.format(
+                    "The layer \"%s\" needs %d megabytes to be loaded into memory.",
+                    getName(), bytes / MemoryInfo.ONE_MEGABYTE));
+        }
+    }
+
+    private int getImageWidth() {
+        if (packed != null) {
+            return packed.getWidth();
+        }
+        return getImage().getWidth();
+    }
+
+    private int getImageHeight() {
+        if (packed != null) {
+            return packed.getHeight();
+        }
+        return getImage().getHeight();
+    }
+
+    /**
+     * Decodes the pixels of an opened file if they were not decoded
+     * yet. Returns true if something was decoded. Can be called
+     * outside the EDT.
+     */
+    public boolean decodeLazyPixels() {
+        PackedImage pixels = packed;
+        if (pixels instanceof LazyImage && !((LazyImage) pixels).isDecoded()) {
+            ((LazyImage) pixels).decodeIfUsed();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the packed pixels for reading outside the EDT without unpacking
+     * them, or null if the pixels are not packed in a form that supports it.
+     * The returned pixels must be released with PackedImage.endRead.
+     */
+    public PackedImage startReadingPacked() {
+        PackedImage pixels = packed;
+        if (pixels != null && pixels.startRead()) {
+            return pixels;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the pixels without unpacking them
+     */
+    public BufferedImage copyPixels() {
+        PackedImage pixels = packed;
+        if (pixels instanceof LazyImage) {
+            // the decoded image becomes the image of the layer when it is unpacked
+            return ImageUtils.copyImage(pixels.toImage());
+        } else if (pixels != null) {
+            // the other packed forms create a new image
+            return pixels.toImage();
+        }
+        return ImageUtils.copyImage(getImage());
+    }
+
+    /**
+     * Returns true if the pixels are currently stored out of the heap
+     */
+    public boolean isOutOfCore() {
+        return packed instanceof MappedImage;
+    }
+
+    private void setPacked(PackedImage newPacked) {
+        if (image != null) {
+            image.flush();
+            image = null;
+        }
+        if (packed != null && packed != newPacked) {
+            packed.dispose();
+        }
+        packed = newPacked;
+        filterSourceImage = null;
+        imageReleased();
+        comp.imageChanged(INVALIDATE_CACHE);
+    }
+
+    /**
+     * Converts the image into sparse form if it is transparent enough,
+     * or moves it out of the heap if it is very large.
+     * Returns the number of freed bytes.
+     */
+    public long pack() {
+        if (image == null || state != NORMAL || tmpDrawingLayer != null) {
+            return 0;
+        }
+        PackedImage newPacked = null;
+        try {
+            newPacked = packImage(image);
+        } catch (IOException e) {
+            Messages.showStatusMessage("Could not move " + getName() + " out of memory: " + e.getMessage());
+        }
+        if (newPacked == null) {
+            return 0;
+        }
+        long freed = ImageUtils.getMemoryBytes(image) - newPacked.getMemoryBytes();
+        setPacked(newPacked);
+        return freed;
+    }
+
+    /**
+     * Returns the mostly transparent images in sparse form and the very
+     * large images out of the heap, or null if the image should not be
+     * packed. Can be called outside the EDT.
+     */
+    public static PackedImage packImage(BufferedImage image) throws IOException {
+        PackedImage packed = SparseImage.fromImage(image);
+        if (packed == null && MappedImage.shouldStore(image.getWidth(), image.getHeight(), image.getType())) {
+            packed = MappedImage.fromImage(image);
+        }
+        return packed;
+    }
+
+    /**
+     * Replaces the pixels with the given packed pixels, and returns
+     * the previous pixels in packed form without disposing them.
+     * Used by the undo of the tile-wise filters.
+     */
+    public PackedImage swapPacked(PackedImage newPacked) throws IOException {
+        PackedImage oldPacked = packed;
+        if (oldPacked == null) {
+            // the image was loaded into memory since the filter
+            oldPacked = MappedImage.fromImage(getImage());
+        }
+        packed = null;
+        setPacked(newPacked);
+        return oldPacked;
+    }
+
+    /**
+     * Runs the given operation tile by tile on out-of-core pixels,
+     * without loading the whole image into memory. The operation
+     * must be a point operation. Returns false if this is not
+     * possible, and then the operation should run normally.
+     */
+    public boolean filterTiles(UnaryOperator<BufferedImage> op, ChangeReason changeReason, String opName) {
+        if (!(packed instanceof MappedImage) || state != NORMAL || tmpDrawingLayer != null) {
+            return false;
+        }
+        MappedImage oldPixels = (MappedImage) packed;
+        MappedImage newPixels;
+        try {
+            newPixels = oldPixels.mapTiles(op);
+        } catch (IOException e) {
+            return false;
+        }
+
+        packed = null;
+        setPacked(newPixels);
+        if (changeReason.needsUndo()) {
+            History.addEdit(new PackedImageEdit(comp, opName, this, oldPixels));
+        } else {
+            oldPixels.dispose();
+        }
+        updateIconImage();
+        return true;
+    }
+
+    /**
+     * Moves the image into the swap file.
+     * Returns the number of freed bytes.
+     */
+    public long hibernate(SwapFile swapFile) throws IOException {
+        if (image == null) { // already hibernated or packed
+            return 0;
+        }
+        assert state == NORMAL : "state was " + state;
+        assert tmpDrawingLayer == null;
+
+        long freed = ImageUtils.getMemoryBytes(image);
+        swapPos = swapFile.write(image);
+        image.flush();
+        image = null;
+        filterSourceImage = null;
+        imageReleased();
+        return freed;
+    }
+
+    /**
+     * Reads back the image moved out by hibernate
+     */
+    public void wakeUp(SwapFile swapFile) throws IOException {
+        if (swapPos == -1) {
+            return;
+        }
+        image = swapFile.read(swapPos);
+        swapPos = -1;
+        imageRefChanged();
+    }
+
+    /**
+     * Returns the number of bytes used by the image,
+     * or 0 if it is in the swap file
+     */
+    public long getImageMemoryBytes() {
+        if (packed != null) {
+            return packed.getMemoryBytes();
+        }
+        return ImageUtils.getMemoryBytes(image);
+    }
+
     /**
      * If there is no selection, returns the newImage
      * If there is a selection, copies newImage into src according to the selection, and returns src
@@ -279,7 +607,7 @@ public class ImageLayer extends ContentLayer {
     }
 
     private void setImageWithSelection(BufferedImage newImage) {
-        image = replaceImageWithSelection(image, newImage);
+        image = replaceImageWithSelection(getImage(), newImage);
         imageRefChanged();
 
         comp.imageChanged(INVALIDATE_CACHE);
@@ -289,6 +617,10 @@ public class ImageLayer extends ContentLayer {
     public void setImage(BufferedImage newImage) {
         BufferedImage oldRef = image;
         image = requireNonNull(newImage);
+        if (packed != null) {
+            packed.dispose();
+            packed = null;
+        }
         imageRefChanged();
 
         assert Utils.checkRasterMinimum(newImage);
@@ -310,11 +642,11 @@ public class ImageLayer extends ContentLayer {
             // if we have a selection, then the preview image reference cannot be simply
             // the image reference, because when we draw into the preview image, we would
             // also draw on the real image, and after cancel we would still have the changed version.
-            previewImage = ImageUtils.copyImage(image);
+            previewImage = ImageUtils.copyImage(getImage());
         } else {
             // if there is no selection, then there is no problem, because
             // the previewImage reference will be overwritten
-            previewImage = image;
+            previewImage = getImage();
         }
         setState(PREVIEW);
     }
@@ -330,6 +662,7 @@ public class ImageLayer extends ContentLayer {
         }
 
         image = previewImage;
+        BufferPool.keepImage(image);
         imageRefChanged();
 
         if (imageContentChanged) {
@@ -407,6 +740,9 @@ public class ImageLayer extends ContentLayer {
             // because the preview image can be different from the image
             // (the user does something, but then resets the params to a do-nothing state)
             boolean shouldRefresh = image != previewImage;
+            if (shouldRefresh) {
+                BufferPool.returnImage(previewImage);
+            }
             previewImage = image;
 
             if (shouldRefresh) {
@@ -416,7 +752,14 @@ public class ImageLayer extends ContentLayer {
         } else {
             imageContentChanged = true; // history will be necessary
 
+            BufferedImage oldPreview = previewImage;
             setPreviewWithSelection(img);
+            if (previewImage == oldPreview) {
+                // the new image was copied into the selection
+                BufferPool.returnImage(img);
+            } else if (oldPreview != image) {
+                BufferPool.returnImage(oldPreview);
+            }
             setState(PREVIEW);
             visibleImageChanged(); // so that layer mask previews work
             comp.imageChanged(FULL);
@@ -476,7 +819,7 @@ public class ImageLayer extends ContentLayer {
 
     // returns the image bounds relative to the canvas
     public Rectangle getImageBounds() {
-        return new Rectangle(translationX, translationY, image.getWidth(), image.getHeight());
+        return new Rectangle(translationX, translationY, getImageWidth(), getImageHeight());
     }
 
     public boolean checkImageDoesNotCoverCanvas() {
@@ -501,7 +844,7 @@ public class ImageLayer extends ContentLayer {
             Graphics2D g = bi.createGraphics();
             int drawX = imageBounds.x - targetImageBounds.x;
             int drawY = imageBounds.y - targetImageBounds.y;
-            g.drawImage(image, drawX, drawY, null);
+            g.drawImage(getImage(), drawX, drawY, null);
             g.dispose();
 
             translationX = targetImageBounds.x - canvasBounds.x;
@@ -520,11 +863,11 @@ public class ImageLayer extends ContentLayer {
     public BufferedImage getImageForFilterDialogs() {
         Optional<Selection> selection = comp.getSelection();
         if (!selection.isPresent()) {
-            return image;
+            return getImage();
         }
 
         Rectangle selectionBounds = selection.get().getShapeBounds();
-        return image.getSubimage(selectionBounds.x, selectionBounds.y, selectionBounds.width, selectionBounds.height);
+        return getImage().getSubimage(selectionBounds.x, selectionBounds.y, selectionBounds.width, selectionBounds.height);
     }
 
     @Override
@@ -537,10 +880,10 @@ public class ImageLayer extends ContentLayer {
 
         int canvasWidth = canvas.getWidth();
         int canvasHeight = canvas.getHeight();
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+        int imageWidth = getImageWidth();
+        int imageHeight = getImageHeight();
 
-        BufferedImage dest = ImageUtils.createCompatibleDest(image);
+        BufferedImage dest = ImageUtils.createCompatibleDest(getImage());
         Graphics2D g2 = dest.createGraphics();
 
         if (direction == HORIZONTAL) {
@@ -552,7 +895,7 @@ public class ImageLayer extends ContentLayer {
         }
 
         g2.setTransform(imageTx);
-        g2.drawImage(image, 0, 0, imageWidth, imageHeight, null);
+        g2.drawImage(getImage(), 0, 0, imageWidth, imageHeight, null);
         g2.dispose();
 
         setTranslation(-newTXAbs, -newTYAbs);
@@ -569,8 +912,8 @@ public class ImageLayer extends ContentLayer {
         int newTXAbs = 0;
         int newTYAbs = 0;
 
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+        int imageWidth = getImageWidth();
+        int imageHeight = getImageHeight();
 
         int canvasWidth = canvas.getWidth();
         int canvasHeight = canvas.getHeight();
@@ -587,7 +930,7 @@ public class ImageLayer extends ContentLayer {
             newTYAbs = imageHeight - canvasHeight - tYAbs;
         }
 
-        BufferedImage dest = angle.createDestImage(image);
+        BufferedImage dest = angle.createDestImage(getImage());
 
         Graphics2D g2 = dest.createGraphics();
         // nearest neighbor should be ok for 90, 180, 270 degrees
@@ -595,7 +938,7 @@ public class ImageLayer extends ContentLayer {
 
         g2.setTransform(angle.getImageTX(this));
 
-        g2.drawImage(image, 0, 0, imageWidth, imageHeight, null);
+        g2.drawImage(getImage(), 0, 0, imageWidth, imageHeight, null);
         g2.dispose();
 
         setTranslation(-newTXAbs, -newTYAbs);
@@ -630,7 +973,7 @@ public class ImageLayer extends ContentLayer {
         if (tmpDrawingLayer == null) {
             return;
         }
-        Graphics2D g = image.createGraphics();
+        Graphics2D g = getImage().createGraphics();
 
         tmpDrawingLayer.paintLayer(g, -getTX(), -getTY());
         g.dispose();
@@ -638,7 +981,10 @@ public class ImageLayer extends ContentLayer {
         tmpDrawingLayer.dispose();
         tmpDrawingLayer = null;
 
-        updateIconImage();
+        if (!comp.areRepaintsDeferred()) {
+            // otherwise it is updated at the end
+            updateIconImage();
+        }
     }
 
     public BufferedImage createCompositionSizedTmpImage() {
@@ -657,17 +1003,17 @@ public class ImageLayer extends ContentLayer {
         int canvasHeight = canvas.getHeight();
 
         if (!isBigLayer()) {
-            return image;
+            return getImage();
         }
 
         assert ConsistencyChecks.imageCoversCanvasCheck(this);
 
         BufferedImage subImage;
         try {
-            subImage = image.getSubimage(x, y, canvasWidth, canvasHeight);
+            subImage = getImage().getSubimage(x, y, canvasWidth, canvasHeight);
         } catch (RasterFormatException e) {
             System.out.println("ImageLayer.getCanvasSizedSubImage x = " + x + ", y = " + y + ", canvasWidth = " + canvasWidth + ", canvasHeight = " + canvasHeight);
-            WritableRaster raster = image.getRaster();
+            WritableRaster raster = getImage().getRaster();
             int minX = raster.getMinX();
             int minY = raster.getMinY();
             System.out.println("ImageLayer.getCanvasSizedSubImage minX = " + minX + ", minY = " + minY);
@@ -697,12 +1043,12 @@ public class ImageLayer extends ContentLayer {
         Optional<Selection> selection = comp.getSelection();
         if (!selection.isPresent()) {
             if (copyIfNoSelection) {
-                return ImageUtils.copyImage(image);
+                return ImageUtils.copyImage(getImage());
             }
-            return image;
+            return getImage();
         }
 
-        return getSelectionSizedPartFrom(image, selection.get(), copyAndTranslateIfSelected);
+        return getSelectionSizedPartFrom(getImage(), selection.get(), copyAndTranslateIfSelected);
     }
 
     public BufferedImage getSelectionSizedPartFrom(BufferedImage src, Selection selection, boolean copyAndTranslateIfSelected) {
@@ -739,15 +1085,15 @@ public class ImageLayer extends ContentLayer {
      * Returns true if something was changed
      */
     public boolean cropToCanvasSize() {
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+        int imageWidth = getImageWidth();
+        int imageHeight = getImageHeight();
         int canvasWidth = canvas.getWidth();
         int canvasHeight = canvas.getHeight();
 
         if ((imageWidth > canvasWidth) || (imageHeight > canvasHeight)) {
-            BufferedImage newImage = ImageUtils.crop(image, -getTX(), -getTY(), canvasWidth, canvasHeight);
+            BufferedImage newImage = ImageUtils.crop(getImage(), -getTX(), -getTY(), canvasWidth, canvasHeight);
 
-            BufferedImage tmp = image;
+            BufferedImage tmp = getImage();
             setImage(newImage);
             tmp.flush();
 
@@ -795,7 +1141,16 @@ public class ImageLayer extends ContentLayer {
     }
 
     @Override
-    public void resize(int targetWidth, int targetHeight, boolean progressiveBilinear) {
+    public void resize(int targetWidth, int targetHeight) {
+        prepareResize(targetWidth, targetHeight, true).run();
+    }
+
+    /**
+     * Resamples the image for the given canvas size without changing the
+     * layer, so that several layers can be resampled concurrently.
+     * The returned task sets the result.
+     */
+    public Runnable prepareResize(int targetWidth, int targetHeight, boolean parallel) {
         // the layer size can be bigger than the canvas size, and it can have a negative
         // translation value
         boolean bigLayer = isBigLayer();
@@ -807,19 +1162,21 @@ public class ImageLayer extends ContentLayer {
         if (bigLayer) {
             horizontalResizeRatio = ((double) targetWidth) / canvas.getWidth();
             verticalResizeRatio = ((double) targetHeight) / canvas.getHeight();
-            resizeWidth = (int) (image.getWidth() * horizontalResizeRatio);
-            resizeHeight = (int) (image.getHeight() * verticalResizeRatio);
+            resizeWidth = (int) (getImageWidth() * horizontalResizeRatio);
+            resizeHeight = (int) (getImageHeight() * verticalResizeRatio);
         }
 
-        BufferedImage resizedImg = ImageUtils.getFasterScaledInstance(image, resizeWidth, resizeHeight, VALUE_INTERPOLATION_BICUBIC, progressiveBilinear);
-        setImage(resizedImg);
+        BufferedImage resizedImg = Resampler.resize(getImage(), resizeWidth, resizeHeight,
+                Resampler.DEFAULT_KERNEL, parallel);
+        int newTX = (int) (getTX() * horizontalResizeRatio);
+        int newTY = (int) (getTY() * verticalResizeRatio);
 
-        if (bigLayer) {
-            setTranslation(
-                    (int) (getTX() * horizontalResizeRatio),
-                    (int) (getTY() * verticalResizeRatio)
-            );
-        }
+        return () -> {
+            setImage(resizedImg);
+            if (bigLayer) {
+                setTranslation(newTX, newTY);
+            }
+        };
     }
 
     public boolean isBigLayer() {
@@ -849,6 +1206,15 @@ public class ImageLayer extends ContentLayer {
 
     @Override
     public void paintLayerOnGraphics(Graphics2D g, boolean firstVisibleLayer) {
+        // read only once, because it can be set to null by a brush stroke in another thread
+        TmpDrawingLayer tmpDrawingLayer = this.tmpDrawingLayer;
+
+        if (packed != null && tmpDrawingLayer == null && !(Tools.isShapesDrawing() && isActive())) {
+            // only the needed tiles are painted
+            packed.paint(g, getTX(), getTY());
+            return;
+        }
+
         BufferedImage visibleImage = getVisibleImage();
 
         if (tmpDrawingLayer == null) {
@@ -859,14 +1225,19 @@ public class ImageLayer extends ContentLayer {
                 tmpDrawingLayer.paintLayer(g, 0, 0);
             } else { // layer is not in normal mode
                 // first create a merged layer-brush image
-                BufferedImage mergedLayerBrushImg = ImageUtils.copyImage(visibleImage); // TODO a canvas-sized image is enough and then less translating is necessary
+                // TODO a canvas-sized image is enough and then less translating is necessary
+                BufferedImage mergedLayerBrushImg = BufferPool.borrowCompatibleImage(visibleImage);
                 Graphics2D mergedLayerBrushG = mergedLayerBrushImg.createGraphics();
+                mergedLayerBrushG.setComposite(AlphaComposite.Src);
+                mergedLayerBrushG.drawImage(visibleImage, 0, 0, null);
+                mergedLayerBrushG.setComposite(AlphaComposite.SrcOver);
 
                 tmpDrawingLayer.paintLayer(mergedLayerBrushG, -getTX(), -getTY()); // draw the brush on the layer
                 mergedLayerBrushG.dispose();
 
                 // now draw the merged layer-brush on the target Graphics with the layer composite
                 g.drawImage(mergedLayerBrushImg, getTX(), getTY(), null);
+                BufferPool.returnImage(mergedLayerBrushImg);
             }
         }
     }
@@ -917,7 +1288,7 @@ public class ImageLayer extends ContentLayer {
 
         switch (state) {
             case NORMAL:
-                visibleImage = image;
+                visibleImage = getImage();
                 break;
             case PREVIEW:
                 assert previewImage != null : "no preview image in state " + state;
@@ -951,13 +1322,17 @@ public class ImageLayer extends ContentLayer {
     private void setState(State newState) {
         state = newState;
         if (newState == NORMAL) { // back to normal: cleanup
+            if (previewImage != image) {
+                // the preview was not accepted
+                BufferPool.returnImage(previewImage);
+            }
             previewImage = null;
             filterSourceImage = null;
         }
     }
 
     public void debugImages() {
-        Utils.debugImage(image, "image");
+        Utils.debugImage(getImage(), "image");
         if (previewImage != null) {
             Utils.debugImage(previewImage, "previewImage");
         } else {
@@ -969,6 +1344,17 @@ public class ImageLayer extends ContentLayer {
         return state;
     }
 
+    /**
+     * Returns the number of bytes used by the preview image,
+     * if it is a separate image
+     */
+    public long getPreviewMemoryBytes() {
+        if (previewImage == null || previewImage == image) {
+            return 0;
+        }
+        return ImageUtils.getMemoryBytes(previewImage);
+    }
+
     // every image creation in this class should use this method
     // which is overridden by the LayerMask subclass
     // because normal image layers are enlarged with transparent pixels
@@ -985,15 +1371,39 @@ public class ImageLayer extends ContentLayer {
         // does something only in the LayerMask subclass
     }
 
+    /**
+     * Called when the image was packed or moved into the swap file
+     */
+    protected void imageReleased() {
+        // does something only in the LayerMask subclass
+    }
+
     public void updateIconImage() {
         getUI().updateLayerIconImage(this);
     }
 
+    /**
+     * Returns a task that creates the layer icon with the given size.
+     * The task can run outside the EDT.
+     */
+    public Supplier<BufferedImage> createIconTask(int size) {
+        if (packed != null) {
+            PackedImage pixels = packed;
+            int x = -getTX();
+            int y = -getTY();
+            int width = canvas.getWidth();
+            int height = canvas.getHeight();
+            return () -> pixels.createThumbnail(x, y, width, height, size);
+        }
+        BufferedImage img = getCanvasSizedSubImage();
+        return () -> ImageUtils.createThumbnail(img, size);
+    }
+
     public void applyLayerMask(AddToHistory addToHistory) {
-        BufferedImage backupImage = ImageUtils.copyImage(image);
+        BufferedImage backupImage = ImageUtils.copyImage(getImage());
         LayerMask oldMask = mask;
 
-        mask.applyToImage(image);
+        mask.applyToImage(getImage());
         deleteMask(AddToHistory.NO, true);
 
         History.addEdit(addToHistory, () -> new ApplyLayerMaskEdit(comp, this, oldMask, backupImage));
@@ -1020,8 +1430,8 @@ public class ImageLayer extends ContentLayer {
         int canvasWidth = canvas.getWidth();
         int canvasHeight = canvas.getHeight();
         System.out.println("ImageLayer::debugTranslation: canvasWidth = " + canvasWidth + ", canvasHeight = " + canvasHeight);
-        int imageWidth = image.getWidth();
-        int imageHeight = image.getHeight();
+        int imageWidth = getImageWidth();
+        int imageHeight = getImageHeight();
         System.out.println("ImageLayer::debugTranslation: imageWidth = " + imageWidth + ", imageHeight = " + imageHeight);
         System.out.println();
     }
@@ -1031,8 +1441,8 @@ public class ImageLayer extends ContentLayer {
                 + ", canvasHeight=" + canvas.getHeight()
                 + ", tx=" + translationX
                 + ", ty=" + translationY
-                + ", imgWidth=" + image.getWidth()
-                + ", imgHeight=" + image.getHeight()
+                + ", imgWidth=" + getImageWidth()
+                + ", imgHeight=" + getImageHeight()
                 + '}';
     }
 
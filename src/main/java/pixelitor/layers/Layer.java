@@ -33,7 +33,9 @@ import pixelitor.history.LayerOpacityEdit;
 import pixelitor.history.LayerRenameEdit;
 import pixelitor.history.LayerVisibilityChangeEdit;
 import pixelitor.history.PixelitorEdit;
+import pixelitor.io.PXCFormat;
 import pixelitor.selection.Selection;
+import pixelitor.utils.BufferPool;
 import pixelitor.utils.HistogramsPanel;
 import pixelitor.utils.Messages;
 import pixelitor.utils.UpdateGUI;
@@ -41,7 +43,9 @@ import pixelitor.utils.UpdateGUI;
 import java.awt.AlphaComposite;
 import java.awt.Composite;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Shape;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
@@ -95,8 +99,10 @@ public abstract class Layer implements Serializable {
 
         if (parent != null) { // this is a layer mask
             ui = parent.getUI();
-        } else { // normal layer
+        } else if (comp.createsLayerGUI()) { // normal layer
             ui = new LayerGUI(this);
+        } else {
+            ui = new HeadlessLayerUI(this);
         }
         layerChangeObservers = new ArrayList<>();
     }
@@ -108,7 +114,13 @@ public abstract class Layer implements Serializable {
         // We create a layer button only for real layers.
         // For layer masks, we share the button of the real layer.
         if (parent == null) { // not mask
-            ui = new LayerGUI(this);
+            if (in instanceof PXCFormat.CompositionInput
+                    && !((PXCFormat.CompositionInput) in).createsLayerGUI()) {
+                // the composition is only flattened, possibly outside the EDT
+                ui = new HeadlessLayerUI(this);
+            } else {
+                ui = new LayerGUI(this);
+            }
 
             if (mask != null) {
                 mask.setUI(ui);
@@ -122,6 +134,14 @@ public abstract class Layer implements Serializable {
         return visible;
     }
 
+    /**
+     * Returns true for the layers that change the image below
+     * them instead of painting on it (see applyLayer)
+     */
+    public boolean isAdjustment() {
+        return isAdjustment;
+    }
+
     public void setVisible(boolean newVisibility, AddToHistory addToHistory) {
         if (this.visible == newVisibility) {
             return;
@@ -342,7 +362,7 @@ public abstract class Layer implements Serializable {
      */
     public BufferedImage applyLayer(Graphics2D g, boolean firstVisibleLayer, BufferedImage imageSoFar) {
         if (isAdjustment) { // adjustment layer or watermarked text layers
-            return adjustImageWithMasksAndBlending(imageSoFar, firstVisibleLayer);
+            return adjustImageWithMasksAndBlending(imageSoFar, firstVisibleLayer, g.getTransform());
         } else {
             if (!useMask()) {
                 setupDrawingComposite(g, firstVisibleLayer);
@@ -361,37 +381,58 @@ public abstract class Layer implements Serializable {
 
     /**
      * Returns the masked image for the non-adjustment case.
-     * The returned image is canvas-sized, and the masks and the
-     * translations are taken into account
+     * The masked image covers the clipped canvas in the device space
+     * of the given Graphics (typically it is canvas-sized), and the
+     * masks and the translations are taken into account
      */
     void paintLayerOnGraphicsWithMask(boolean firstVisibleLayer, Graphics2D g) {
-//        Canvas canvas = comp.getCanvas();
+        Rectangle area = canvas.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(clip);
+        }
+        AffineTransform at = g.getTransform();
+        Rectangle deviceArea = at.createTransformedShape(area).getBounds();
+        if (deviceArea.isEmpty()) {
+            return;
+        }
 
         // 1. create the masked image
         // TODO the masked image should be cached
-        BufferedImage maskedImage = new BufferedImage(canvas.getWidth(), canvas.getHeight(), TYPE_INT_ARGB);
+        BufferedImage maskedImage = BufferPool.borrowImage(deviceArea.width, deviceArea.height, TYPE_INT_ARGB);
         Graphics2D mig = maskedImage.createGraphics();
+        mig.translate(-deviceArea.x, -deviceArea.y);
+        mig.transform(at);
+        mig.clip(area);
         paintLayerOnGraphics(mig, firstVisibleLayer);
         mig.setComposite(DstIn);
-        mig.drawImage(mask.getTransparencyImage(), mask.getTX(), mask.getTY(), null);
+        mask.paintTransparency(mig);
         mig.dispose();
 
         // 2. paint the masked image onto the graphics
 //            g.drawImage(maskedImage, getTX(), getTY(), null);
         setupDrawingComposite(g, firstVisibleLayer);
-        g.drawImage(maskedImage, 0, 0, null);
+        g.setTransform(new AffineTransform());
+        g.drawImage(maskedImage, deviceArea.x, deviceArea.y, null);
+        g.setTransform(at);
+        BufferPool.returnImage(maskedImage);
     }
 
     /**
      * Used by adjustment layers and watermarked text layers
      */
-    protected BufferedImage adjustImageWithMasksAndBlending(BufferedImage imgSoFar, boolean isFirstVisibleLayer) {
+    protected BufferedImage adjustImageWithMasksAndBlending(BufferedImage imgSoFar, boolean isFirstVisibleLayer, AffineTransform canvasToImage) {
         if (isFirstVisibleLayer) {
             return imgSoFar; // there's nothing we can do
         }
         BufferedImage transformed = adjustImage(imgSoFar);
         if (useMask()) {
-            mask.applyToImage(transformed);
+            // imgSoFar can also be a part of the canvas at a different scale
+            Graphics2D mg = transformed.createGraphics();
+            mg.transform(canvasToImage);
+            mg.setComposite(DstIn);
+            mask.paintTransparency(mg);
+            mg.dispose();
         }
         if (!useMask() && isNormalAndOpaque()) {
             return transformed;
@@ -409,7 +450,7 @@ public abstract class Layer implements Serializable {
      */
     protected abstract BufferedImage adjustImage(BufferedImage src);
 
-    public abstract void resize(int targetWidth, int targetHeight, boolean progressiveBilinear);
+    public abstract void resize(int targetWidth, int targetHeight);
 
     public abstract void crop(Rectangle2D cropRect);
 
@@ -30,6 +30,7 @@ import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.util.function.Supplier;
 
 /**
  * A GUI element representing a layer in an image
@@ -193,10 +194,10 @@ public class LayerButton extends JToggleButton {
 
 //        System.out.println("LayerButton::updateLayerIconImage: CALLED, updateMask = " + updateMask);
 
-        BufferedImage img = layer.getCanvasSizedSubImage();
+        Supplier<BufferedImage> iconTask = layer.createIconTask(LayerButtonLayout.ICON_SIZE);
 
         Runnable notEDT = () -> {
-            BufferedImage thumb = ImageUtils.createThumbnail(img, LayerButtonLayout.ICON_SIZE);
+            BufferedImage thumb = iconTask.get();
             Runnable edt = () -> {
                 if (updateMask) {
                     if (maskIconLabel == null) {
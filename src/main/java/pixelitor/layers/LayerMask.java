@@ -69,14 +69,14 @@ public class LayerMask extends ImageLayer {
     public void updateFromBWImage() {
 //        System.out.println("LayerMask::updateFromBWImage: CALLED");
 
-        assert image.getType() == BufferedImage.TYPE_BYTE_GRAY;
-        assert image.getColorModel() != transparencyColorModel;
-
         // The transparency image shares the raster data with the BW image,
         // but interprets the bytes differently.
         // Therefore this method needs to be called only when
         // the visible image reference changes.
         WritableRaster raster = getVisibleImage().getRaster();
+
+        assert image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+        assert image.getColorModel() != transparencyColorModel;
 //        WritableRaster raster = image.getRaster();
         this.transparencyImage = new BufferedImage(transparencyColorModel, raster, false, null);
     }
@@ -104,6 +104,12 @@ public class LayerMask extends ImageLayer {
 //        updateIconImage();
     }
 
+    @Override
+    protected void imageReleased() {
+        // shares the raster with the BW image, it is recreated when needed
+        transparencyImage = null;
+    }
+
     @Override
     protected void visibleImageChanged() {
         // so that we have previews in Ctrl-3 mode
@@ -119,7 +125,7 @@ public class LayerMask extends ImageLayer {
     }
 
     public LayerMask duplicate(Layer original) {
-        LayerMask d = new LayerMask(comp, ImageUtils.copyImage(image), original);
+        LayerMask d = new LayerMask(comp, ImageUtils.copyImage(getImage()), original);
         if (original instanceof ContentLayer) {
             ContentLayer originalContent = (ContentLayer) original;
             int otx = originalContent.getTX();
@@ -166,17 +172,34 @@ public class LayerMask extends ImageLayer {
         Tools.SHAPES.paintOverLayer(g, comp);
     }
 
+    /**
+     * Paints the transparency image at the position of the mask.
+     * An out-of-core mask is painted without loading it into memory.
+     */
+    public void paintTransparency(Graphics2D g) {
+        if (packed instanceof MappedImage && !(parent.isMaskEditing() && Tools.isShapesDrawing())) {
+            ((MappedImage) packed).paint(g, getTX(), getTY(), transparencyColorModel);
+        } else {
+            g.drawImage(getTransparencyImage(), getTX(), getTY(), null);
+        }
+    }
+
     public BufferedImage getTransparencyImage() {
         if(!parent.isMaskEditing() || !Tools.isShapesDrawing()) {
             // simple case
+            if (transparencyImage == null) {
+                // loads the packed image, and this recreates the transparency image
+                getImage();
+            }
             return transparencyImage;
         } else { // drawing with the shapes tool while in Ctrl-3 mode
 
             // Create a temporary image that shows how the image would look like
             // if the shapes tool would draw directly into the mask image
-            BufferedImage tmp = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            BufferedImage bwImage = getImage();
+            BufferedImage tmp = new BufferedImage(bwImage.getWidth(), bwImage.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
             Graphics2D tmpG = tmp.createGraphics();
-            tmpG.drawImage(image, 0, 0, null);
+            tmpG.drawImage(bwImage, 0, 0, null);
             Tools.SHAPES.paintOverLayer(tmpG, comp);
             tmpG.dispose();
 
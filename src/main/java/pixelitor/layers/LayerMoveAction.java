@@ -20,12 +20,16 @@ import pixelitor.AppLogic;
 import pixelitor.Composition;
 import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
+import pixelitor.automate.macro.MacroRecorder;
 import pixelitor.utils.IconUtils;
 import pixelitor.utils.ImageSwitchListener;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 
+import static pixelitor.automate.macro.LayerMacroStep.MOVE_LAYER_DOWN;
+import static pixelitor.automate.macro.LayerMacroStep.MOVE_LAYER_UP;
+
 /**
  * An Action that moves the active layer up or down in the layer stack
  */
@@ -47,8 +51,10 @@ public class LayerMoveAction extends AbstractAction implements ImageSwitchListen
         Composition comp = ImageComponents.getActiveComp().get();
         if(up) {
             comp.moveActiveLayerUp();
+            MacroRecorder.record(MOVE_LAYER_UP);
         } else {
             comp.moveActiveLayerDown();
+            MacroRecorder.record(MOVE_LAYER_DOWN);
         }
     }
 
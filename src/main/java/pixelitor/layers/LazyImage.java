@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import pixelitor.ThreadPool;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.Messages;
+
+import javax.swing.*;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The pixels of a layer in an opened file, which are decoded only
+ * when something needs them, or earlier in the background.
+ * Until then only the size and the type of the image are known.
+ */
+public class LazyImage implements PackedImage {
+    /**
+     * Reads the pixels from the file
+     */
+    public interface Decoder {
+        BufferedImage decode() throws IOException;
+    }
+
+    // low-priority threads decoding several images in parallel. They are separate
+    // from the thread pool, because some decoders wait for tasks in that pool.
+    private static final ExecutorService backgroundDecoder = Executors.newFixedThreadPool(
+            ThreadPool.NUM_AVAILABLE_PROCESSORS, r -> {
+        Thread thread = new Thread(r, "Background Decoder");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final int width;
+    private final int height;
+    private final int type;
+    private Decoder decoder;
+    private BufferedImage decoded;
+    private boolean disposed;
+
+    public LazyImage(int width, int height, int type, Decoder decoder) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.decoder = decoder;
+    }
+
+    public static Future<?> runInBackground(Runnable task) {
+        return backgroundDecoder.submit(task);
+    }
+
+    public synchronized boolean isDecoded() {
+        return decoded != null;
+    }
+
+    /**
+     * Returns the decoded pixels, decoding them if necessary. If the
+     * decoding fails, the error is shown and the pixels are transparent.
+     */
+    public synchronized BufferedImage decode() {
+        if (disposed) {
+            throw new IllegalStateException("disposed");
+        }
+        if (decoded == null) {
+            try {
+                decoded = decoder.decode();
+            } catch (IOException e) {
+                if (SwingUtilities.isEventDispatchThread()) {
+                    Messages.showException(e);
+                } else {
+                    SwingUtilities.invokeLater(() -> Messages.showException(e));
+                }
+                decoded = new BufferedImage(width, height, type);
+            }
+            decoder = null;
+        }
+        return decoded;
+    }
+
+    /**
+     * Decodes the pixels if this object is still in use
+     */
+    public synchronized void decodeIfUsed() {
+        if (!disposed) {
+            decode();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public void paint(Graphics2D g, int x, int y) {
+        g.drawImage(decode(), x, y, null);
+    }
+
+    /**
+     * Returns the decoded image itself, the layer takes it over
+     */
+    @Override
+    public BufferedImage toImage() {
+        return decode();
+    }
+
+    @Override
+    public BufferedImage readTile(int tx, int ty) {
+        int x = tx * SparseImage.TILE_SIZE;
+        int y = ty * SparseImage.TILE_SIZE;
+        return decode().getSubimage(x, y,
+                Math.min(SparseImage.TILE_SIZE, width - x),
+                Math.min(SparseImage.TILE_SIZE, height - y));
+    }
+
+    /**
+     * Until the pixels are decoded, the thumbnail is transparent
+     */
+    @Override
+    public BufferedImage createThumbnail(int areaX, int areaY, int areaWidth, int areaHeight, int size) {
+        BufferedImage img;
+        synchronized (this) {
+            img = decoded;
+        }
+        if (img != null) {
+            Rectangle area = new Rectangle(areaX, areaY, areaWidth, areaHeight)
+                    .intersection(new Rectangle(0, 0, width, height));
+            if (!area.isEmpty()) {
+                return ImageUtils.createThumbnail(img.getSubimage(area.x, area.y, area.width, area.height), size);
+            }
+        }
+
+        int thumbWidth;
+        int thumbHeight;
+        if (areaWidth > areaHeight) {
+            thumbWidth = size;
+            thumbHeight = (int) (size * areaHeight / (float) areaWidth);
+        } else {
+            thumbHeight = size;
+            thumbWidth = (int) (size * areaWidth / (float) areaHeight);
+        }
+        return new BufferedImage(Math.max(1, thumbWidth), Math.max(1, thumbHeight), type);
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return ImageUtils.getMemoryBytes(decoded);
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        decoder = null;
+        decoded = null;
+    }
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import pixelitor.utils.AppPreferences;
+import pixelitor.utils.ImageUtils;
+import pixelitor.utils.SwapFile;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import static java.awt.RenderingHints.KEY_INTERPOLATION;
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * The pixels of a very large image layer or layer mask stored
+ * out of the heap, in a memory-mapped temporary file.
+ * <p>
+ * The file is organized in tiles, and only the recently used tiles
+ * are kept in memory (in a global LRU cache with a fixed budget).
+ * A downscaled overview is also kept in memory, it is painted
+ * instead of the tiles when the image is zoomed out.
+ * The tiles are never modified in place: the tile-wise
+ * filters create a new MappedImage.
+ */
+public class MappedImage implements PackedImage {
+    private static final int TILE_SIZE = SparseImage.TILE_SIZE;
+
+    // a single mapping is limited to 2 GB
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    // the overview is at most this big in both directions
+    private static final int OVERVIEW_SIZE = 2048;
+
+    private static final long TILE_CACHE_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * The recently painted tiles of all mapped images in access
+     * order. The keys contain the image id and the tile index.
+     */
+    private static final Map<Long, BufferedImage> residentTiles = new LinkedHashMap<>(64, 0.75f, true);
+    private static long residentBytes = 0;
+
+    private static final AtomicInteger idCounter = new AtomicInteger();
+
+    /**
+     * Layers with at least this many megapixels are stored
+     * out of the heap, 0 means that they never are
+     */
+    private static int minMegapixels = AppPreferences.loadOutOfCoreMegapixels();
+
+    private final int id = idCounter.incrementAndGet();
+    private final int width;
+    private final int height;
+    private final int type;
+    private final int bytesPerPixel;
+    private final int numTilesX;
+    private final int numTilesY;
+    private final int slotBytes;
+    private final int tilesPerChunk;
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer[] chunks;
+
+    // the disposal is deferred while there are readers outside the EDT
+    private int numReaders = 0;
+    private boolean disposed = false;
+
+    // the size reduction factor of the overview, 1 if there is none
+    private final int overviewFactor;
+    private final BufferedImage overview;
+
+    private MappedImage(int width, int height, int type) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        bytesPerPixel = type == TYPE_BYTE_GRAY ? 1 : 4;
+        numTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        numTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        slotBytes = TILE_SIZE * TILE_SIZE * bytesPerPixel;
+        tilesPerChunk = (int) (MAX_CHUNK_BYTES / slotBytes);
+
+        int numTiles = numTilesX * numTilesY;
+        int numChunks = (numTiles + tilesPerChunk - 1) / tilesPerChunk;
+
+        file = File.createTempFile("pixelitor_", ".tiles", SwapFile.getDefaultDir());
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            chunks = new MappedByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                long start = (long) i * tilesPerChunk * slotBytes;
+                long size = (long) Math.min(tilesPerChunk, numTiles - i * tilesPerChunk) * slotBytes;
+                // mapping beyond the end of the file grows it
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        } catch (IOException e) {
+            dispose();
+            throw e;
+        }
+
+        int factor = 1;
+        while (Math.max(width, height) / factor > OVERVIEW_SIZE) {
+            factor *= 2;
+        }
+        overviewFactor = factor;
+        if (factor > 1) {
+            overview = new BufferedImage(
+                    Math.max(1, width / factor),
+                    Math.max(1, height / factor), type);
+        } else {
+            overview = null;
+        }
+    }
+
+    public static boolean supportsType(int type) {
+        return type == TYPE_INT_ARGB_PRE || type == TYPE_INT_ARGB
+                || type == TYPE_INT_RGB || type == TYPE_BYTE_GRAY;
+    }
+
+    public static int getMinMegapixels() {
+        return minMegapixels;
+    }
+
+    public static void setMinMegapixels(int minMegapixels) {
+        MappedImage.minMegapixels = minMegapixels;
+    }
+
+    /**
+     * Returns true if an image with the given
+     * properties should be stored out of the heap
+     */
+    public static boolean shouldStore(int width, int height, int type) {
+        return minMegapixels > 0
+                && supportsType(type)
+                && (long) width * height >= minMegapixels * 1_000_000L;
+    }
+
+    /**
+     * Creates a fully transparent image, which can be
+     * filled with putTile before it is used
+     */
+    public static MappedImage createEmpty(int width, int height, int type) throws IOException {
+        return new MappedImage(width, height, type);
+    }
+
+    /**
+     * Copies the given image into a new memory-mapped file
+     */
+    public static MappedImage fromImage(BufferedImage src) throws IOException {
+        int srcType = src.getType();
+        if (!supportsType(srcType)) {
+            throw new IllegalArgumentException("type = " + srcType);
+        }
+        MappedImage mapped = new MappedImage(src.getWidth(), src.getHeight(), srcType);
+        for (int ty = 0; ty < mapped.numTilesY; ty++) {
+            for (int tx = 0; tx < mapped.numTilesX; tx++) {
+                Rectangle r = mapped.getTileBounds(tx, ty);
+                BufferedImage tile = new BufferedImage(r.width, r.height, srcType);
+                tile.getRaster().setRect(-r.x, -r.y, src.getRaster());
+                mapped.storeTile(tx, ty, tile);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Reads row-major pixels in the format of ImageUtils.serializeImage
+     * (without the header) directly into a new memory-mapped file.
+     * Only a row of tiles is in memory at any time.
+     */
+    public static MappedImage readPixels(DataInput in, int width, int height, int type) throws IOException {
+        assert type != TYPE_BYTE_GRAY;
+        MappedImage mapped = new MappedImage(width, height, type);
+        BufferedImage[] tileRow = new BufferedImage[mapped.numTilesX];
+        int[][] tileRowPixels = new int[mapped.numTilesX][];
+        for (int ty = 0; ty < mapped.numTilesY; ty++) {
+            for (int tx = 0; tx < mapped.numTilesX; tx++) {
+                Rectangle r = mapped.getTileBounds(tx, ty);
+                tileRow[tx] = new BufferedImage(r.width, r.height, type);
+                tileRowPixels[tx] = ((DataBufferInt) tileRow[tx].getRaster().getDataBuffer()).getData();
+            }
+            int rowsInTile = tileRow[0].getHeight();
+            for (int y = 0; y < rowsInTile; y++) {
+                for (int tx = 0; tx < mapped.numTilesX; tx++) {
+                    int[] pixels = tileRowPixels[tx];
+                    int tileWidth = tileRow[tx].getWidth();
+                    int offset = y * tileWidth;
+                    for (int x = 0; x < tileWidth; x++) {
+                        pixels[offset + x] = in.readInt();
+                    }
+                }
+            }
+            for (int tx = 0; tx < mapped.numTilesX; tx++) {
+                mapped.storeTile(tx, ty, tileRow[tx]);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Writes the pixels in row-major order in the format of
+     * ImageUtils.serializeImage (without the header).
+     * Only a row of tiles is loaded into memory at any time.
+     */
+    public void writePixels(DataOutput out) throws IOException {
+        assert type != TYPE_BYTE_GRAY;
+        BufferedImage[] tileRow = new BufferedImage[numTilesX];
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                tileRow[tx] = loadTile(ty * numTilesX + tx);
+            }
+            int rowsInTile = tileRow[0].getHeight();
+            for (int y = 0; y < rowsInTile; y++) {
+                for (BufferedImage tile : tileRow) {
+                    int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                    int tileWidth = tile.getWidth();
+                    int offset = y * tileWidth;
+                    for (int x = 0; x < tileWidth; x++) {
+                        out.writeInt(pixels[offset + x]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new image by applying the given operation on each tile.
+     * The operation must not depend on the position of the pixels
+     * or on their neighbors, and must not modify its argument.
+     */
+    public MappedImage mapTiles(UnaryOperator<BufferedImage> op) throws IOException {
+        MappedImage result = new MappedImage(width, height, type);
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                BufferedImage tile = loadTile(ty * numTilesX + tx);
+                BufferedImage transformed = op.apply(tile);
+                if (transformed.getType() != type) {
+                    BufferedImage converted = new BufferedImage(tile.getWidth(), tile.getHeight(), type);
+                    Graphics2D g = converted.createGraphics();
+                    g.setComposite(AlphaComposite.Src);
+                    g.drawImage(transformed, 0, 0, null);
+                    g.dispose();
+                    transformed = converted;
+                }
+                result.storeTile(tx, ty, transformed);
+            }
+        }
+        return result;
+    }
+
+    private Rectangle getTileBounds(int tx, int ty) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        return new Rectangle(x, y,
+                Math.min(TILE_SIZE, width - x),
+                Math.min(TILE_SIZE, height - y));
+    }
+
+    private ByteBuffer getSlot(int tileIndex) {
+        ByteBuffer buf = chunks[tileIndex / tilesPerChunk].duplicate();
+        int offset = (tileIndex % tilesPerChunk) * slotBytes;
+        buf.position(offset);
+        buf.limit(offset + slotBytes);
+        return buf.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Writes the pixels of the given tile into the file
+     * and updates the overview
+     */
+    private void storeTile(int tx, int ty, BufferedImage tile) {
+        ByteBuffer slot = getSlot(ty * numTilesX + tx);
+        DataBuffer dataBuffer = tile.getRaster().getDataBuffer();
+        if (bytesPerPixel == 1) {
+            slot.put(((DataBufferByte) dataBuffer).getData());
+        } else {
+            slot.asIntBuffer().put(((DataBufferInt) dataBuffer).getData());
+        }
+
+        if (overview != null) {
+            int f = overviewFactor;
+            Graphics2D g = overview.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+            int x = tx * TILE_SIZE / f;
+            int y = ty * TILE_SIZE / f;
+            g.drawImage(tile, x, y,
+                    Math.max(1, (tile.getWidth() + f - 1) / f),
+                    Math.max(1, (tile.getHeight() + f - 1) / f), null);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Sets the pixels of a tile of a new image created by createEmpty.
+     * Not thread-safe, because the overview is also updated.
+     */
+    public void putTile(int tx, int ty, BufferedImage tile) {
+        assert tile.getType() == type;
+        storeTile(tx, ty, tile);
+    }
+
+    /**
+     * Reads a tile from the file, bypassing the cache
+     */
+    private BufferedImage loadTile(int tileIndex) {
+        Rectangle r = getTileBounds(tileIndex % numTilesX, tileIndex / numTilesX);
+        BufferedImage tile = new BufferedImage(r.width, r.height, type);
+        ByteBuffer slot = getSlot(tileIndex);
+        DataBuffer dataBuffer = tile.getRaster().getDataBuffer();
+        if (bytesPerPixel == 1) {
+            slot.get(((DataBufferByte) dataBuffer).getData());
+        } else {
+            slot.asIntBuffer().get(((DataBufferInt) dataBuffer).getData());
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the given tile from the cache, loading it if necessary
+     */
+    private BufferedImage getTile(int tileIndex) {
+        Long key = ((long) id << 32) | tileIndex;
+        synchronized (residentTiles) {
+            BufferedImage tile = residentTiles.get(key);
+            if (tile != null) {
+                return tile;
+            }
+        }
+
+        BufferedImage tile = loadTile(tileIndex);
+        long tileBytes = ImageUtils.getMemoryBytes(tile);
+        synchronized (residentTiles) {
+            if (residentTiles.put(key, tile) == null) {
+                residentBytes += tileBytes;
+            }
+            Iterator<BufferedImage> it = residentTiles.values().iterator();
+            while (residentBytes > TILE_CACHE_BUDGET && it.hasNext()) {
+                BufferedImage eldest = it.next();
+                if (eldest == tile) {
+                    break;
+                }
+                residentBytes -= ImageUtils.getMemoryBytes(eldest);
+                it.remove();
+            }
+        }
+        return tile;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Reads the tile from the file without caching it, so that
+     * the tiles can be read in parallel while the image is saved
+     */
+    @Override
+    public BufferedImage readTile(int tx, int ty) {
+        return loadTile(ty * numTilesX + tx);
+    }
+
+    @Override
+    public void paint(Graphics2D g, int x, int y) {
+        paint(g, x, y, null);
+    }
+
+    /**
+     * Paints the image interpreting the pixels with the given color
+     * model, or with the color model of the image type if it is null
+     */
+    public void paint(Graphics2D g, int x, int y, ColorModel cm) {
+        if (overview != null && isZoomedOut(g.getTransform())) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(withColorModel(overview, cm), x, y, width, height, null);
+            g2.dispose();
+            return;
+        }
+
+        Rectangle visible = new Rectangle(x, y, width, height);
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            visible = visible.intersection(clip);
+            if (visible.isEmpty()) {
+                return;
+            }
+        }
+
+        int minTX = (visible.x - x) / TILE_SIZE;
+        int minTY = (visible.y - y) / TILE_SIZE;
+        int maxTX = Math.min(numTilesX - 1, (visible.x + visible.width - 1 - x) / TILE_SIZE);
+        int maxTY = Math.min(numTilesY - 1, (visible.y + visible.height - 1 - y) / TILE_SIZE);
+        for (int ty = minTY; ty <= maxTY; ty++) {
+            for (int tx = minTX; tx <= maxTX; tx++) {
+                BufferedImage tile = getTile(ty * numTilesX + tx);
+                g.drawImage(withColorModel(tile, cm), x + tx * TILE_SIZE, y + ty * TILE_SIZE, null);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the overview has at least as many
+     * pixels as needed by the given transform
+     */
+    private boolean isZoomedOut(AffineTransform at) {
+        double scale = Math.max(
+                Math.hypot(at.getScaleX(), at.getShearY()),
+                Math.hypot(at.getShearX(), at.getScaleY()));
+        return scale * overviewFactor <= 1.0;
+    }
+
+    private static BufferedImage withColorModel(BufferedImage img, ColorModel cm) {
+        if (cm == null) {
+            return img;
+        }
+        // shares the raster, only the interpretation of the pixels changes
+        return new BufferedImage(cm, img.getRaster(), false, null);
+    }
+
+    @Override
+    public BufferedImage toImage() {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                BufferedImage tile = loadTile(ty * numTilesX + tx);
+                img.getRaster().setRect(tx * TILE_SIZE, ty * TILE_SIZE, tile.getRaster());
+            }
+        }
+        return img;
+    }
+
+    @Override
+    public BufferedImage createThumbnail(int areaX, int areaY, int areaWidth, int areaHeight, int size) {
+        // the overview (or the image itself, if it is small)
+        // is scaled down, the tiles are not loaded
+        BufferedImage source = overview != null ? overview : toImage();
+        int f = overviewFactor;
+        Rectangle area = new Rectangle(areaX / f, areaY / f,
+                Math.max(1, areaWidth / f), Math.max(1, areaHeight / f))
+                .intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+        if (area.isEmpty()) {
+            area = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+        }
+        BufferedImage areaImage = source.getSubimage(area.x, area.y, area.width, area.height);
+        return ImageUtils.createThumbnail(areaImage, size);
+    }
+
+    /**
+     * Only the overview is on the heap, the tiles
+     * in the cache have a global budget
+     */
+    @Override
+    public long getMemoryBytes() {
+        return ImageUtils.getMemoryBytes(overview);
+    }
+
+    @Override
+    public synchronized boolean startRead() {
+        if (disposed) {
+            return false;
+        }
+        numReaders++;
+        return true;
+    }
+
+    @Override
+    public void endRead() {
+        boolean release;
+        synchronized (this) {
+            assert numReaders > 0;
+            numReaders--;
+            release = numReaders == 0 && disposed;
+        }
+        if (release) {
+            releaseFile();
+        }
+    }
+
+    /**
+     * Closes and deletes the file, unless it is still read
+     * outside the EDT, in which case the last reader does it
+     */
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            disposed = true;
+            if (numReaders > 0) {
+                return;
+            }
+        }
+        releaseFile();
+    }
+
+    private void releaseFile() {
+        synchronized (residentTiles) {
+            Iterator<Map.Entry<Long, BufferedImage>> it = residentTiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, BufferedImage> entry = it.next();
+                if ((int) (entry.getKey() >>> 32) == id) {
+                    residentBytes -= ImageUtils.getMemoryBytes(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        // the mapping itself is released only when the buffers
+        // are garbage collected, but on most platforms the file
+        // can be deleted while it is still mapped
+        chunks = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing useful can be done here
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
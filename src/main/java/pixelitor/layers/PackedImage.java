@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * The pixels of an image layer stored in some other form than a
+ * single BufferedImage while they are not edited. They can be
+ * painted tile by tile, and converted back into a BufferedImage
+ * when something needs to edit the pixels.
+ */
+public interface PackedImage {
+    int getWidth();
+
+    int getHeight();
+
+    int getType();
+
+    /**
+     * Paints the pixels with the current composite of the Graphics.
+     * Only the parts within the clip bounds are painted.
+     */
+    void paint(Graphics2D g, int x, int y);
+
+    /**
+     * Creates a normal BufferedImage with the same content
+     */
+    BufferedImage toImage();
+
+    /**
+     * Returns the pixels of a tile in the grid of SparseImage.TILE_SIZE
+     * sized tiles, or null if the tile is known to be fully transparent.
+     * The returned image must not be modified.
+     */
+    BufferedImage readTile(int tx, int ty);
+
+    /**
+     * Creates a thumbnail of the given area (which is typically the
+     * canvas) in the same way as ImageUtils.createThumbnail,
+     * but without creating a full-sized image first
+     */
+    BufferedImage createThumbnail(int areaX, int areaY, int areaWidth, int areaHeight, int size);
+
+    /**
+     * Returns the number of heap bytes used only by this object
+     */
+    long getMemoryBytes();
+
+    /**
+     * Releases the resources, after this the object cannot be used
+     */
+    void dispose();
+
+    /**
+     * Starts reading the pixels outside the EDT, and returns false if
+     * this is not supported. If it returns true, the pixels can be read
+     * until the matching endRead call, even if the layer is changed or
+     * this object is disposed meanwhile.
+     */
+    default boolean startRead() {
+        return false;
+    }
+
+    /**
+     * Ends a read started with a successful startRead call
+     */
+    default void endRead() {
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.layers;
+
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static java.awt.RenderingHints.KEY_INTERPOLATION;
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+
+/**
+ * The pixels of an image layer stored in tiles, where the fully
+ * transparent tiles are not allocated at all. The tiles are never
+ * modified, an image layer edits its pixels by converting this
+ * back into a normal BufferedImage.
+ */
+public class SparseImage implements PackedImage {
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * A layer is stored in sparse form only if at least
+     * this ratio of the tiles is fully transparent
+     */
+    private static final double MIN_EMPTY_RATIO = 0.5;
+
+    private final int width;
+    private final int height;
+    private final int type;
+    private final int numTilesX;
+    private final int numTilesY;
+
+    // null where the tile is fully transparent
+    private final BufferedImage[] tiles;
+
+    private SparseImage(int width, int height, int type) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        numTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        numTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new BufferedImage[numTilesX * numTilesY];
+    }
+
+    public static boolean supportsType(int type) {
+        return type == TYPE_INT_ARGB_PRE || type == TYPE_INT_ARGB;
+    }
+
+    /**
+     * Creates a fully transparent image without allocating any pixels
+     */
+    public static SparseImage createEmpty(int width, int height, int type) {
+        return new SparseImage(width, height, type);
+    }
+
+    /**
+     * Returns the sparse version of the given image, or null if
+     * the image has no alpha channel or is not transparent enough
+     * to make the sparse storage worth it.
+     */
+    public static SparseImage fromImage(BufferedImage src) {
+        int srcType = src.getType();
+        if (!supportsType(srcType)) {
+            return null;
+        }
+
+        SparseImage sparse = new SparseImage(src.getWidth(), src.getHeight(), srcType);
+        int numEmpty = 0;
+        for (int ty = 0; ty < sparse.numTilesY; ty++) {
+            for (int tx = 0; tx < sparse.numTilesX; tx++) {
+                Rectangle r = sparse.getTileBounds(tx, ty);
+                if (isTransparent(src, r)) {
+                    numEmpty++;
+                } else {
+                    BufferedImage tile = new BufferedImage(r.width, r.height, srcType);
+                    tile.getRaster().setRect(-r.x, -r.y, src.getRaster());
+                    sparse.tiles[ty * sparse.numTilesX + tx] = tile;
+                }
+            }
+        }
+
+        if (numEmpty < MIN_EMPTY_RATIO * sparse.tiles.length) {
+            return null;
+        }
+        return sparse;
+    }
+
+    private static boolean isTransparent(BufferedImage src, Rectangle r) {
+        Raster raster = src.getRaster();
+        int srcWidth = src.getWidth();
+        if (raster.getDataBuffer().getSize() == srcWidth * src.getHeight()) {
+            // fast path: look directly at the alpha bytes
+            int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            for (int y = r.y; y < r.y + r.height; y++) {
+                int offset = y * srcWidth;
+                for (int x = r.x; x < r.x + r.width; x++) {
+                    if ((pixels[offset + x] & 0xFF000000) != 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        for (int y = r.y; y < r.y + r.height; y++) {
+            for (int x = r.x; x < r.x + r.width; x++) {
+                if ((src.getRGB(x, y) & 0xFF000000) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Rectangle getTileBounds(int tx, int ty) {
+        int x = tx * TILE_SIZE;
+        int y = ty * TILE_SIZE;
+        return new Rectangle(x, y,
+                Math.min(TILE_SIZE, width - x),
+                Math.min(TILE_SIZE, height - y));
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Paints the allocated tiles with the current composite of the
+     * Graphics, the transparent tiles are skipped.
+     */
+    @Override
+    public void paint(Graphics2D g, int x, int y) {
+        Rectangle clip = g.getClipBounds();
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                BufferedImage tile = tiles[ty * numTilesX + tx];
+                if (tile == null) {
+                    continue;
+                }
+                int tileX = x + tx * TILE_SIZE;
+                int tileY = y + ty * TILE_SIZE;
+                if (clip != null && !clip.intersects(tileX, tileY, tile.getWidth(), tile.getHeight())) {
+                    continue;
+                }
+                g.drawImage(tile, tileX, tileY, null);
+            }
+        }
+    }
+
+    @Override
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public BufferedImage readTile(int tx, int ty) {
+        return tiles[ty * numTilesX + tx];
+    }
+
+    @Override
+    public BufferedImage toImage() {
+        BufferedImage img = new BufferedImage(width, height, type);
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                BufferedImage tile = tiles[ty * numTilesX + tx];
+                if (tile != null) {
+                    img.getRaster().setRect(tx * TILE_SIZE, ty * TILE_SIZE, tile.getRaster());
+                }
+            }
+        }
+        return img;
+    }
+
+    @Override
+    public BufferedImage createThumbnail(int areaX, int areaY, int areaWidth, int areaHeight, int size) {
+        int thumbWidth;
+        int thumbHeight;
+        if (areaWidth > areaHeight) {
+            thumbWidth = size;
+            thumbHeight = (int) (size * areaHeight / (float) areaWidth);
+        } else {
+            thumbHeight = size;
+            thumbWidth = (int) (size * areaWidth / (float) areaHeight);
+        }
+        thumbWidth = Math.max(1, thumbWidth);
+        thumbHeight = Math.max(1, thumbHeight);
+
+        BufferedImage thumb = new BufferedImage(thumbWidth, thumbHeight, type);
+        Graphics2D g = thumb.createGraphics();
+        g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g.scale(thumbWidth / (double) areaWidth, thumbHeight / (double) areaHeight);
+        paint(g, -areaX, -areaY);
+        g.dispose();
+        return thumb;
+    }
+
+    /**
+     * Returns the bounds of the allocated tiles, or
+     * an empty rectangle if there are no allocated tiles
+     */
+    public Rectangle getContentBounds() {
+        Rectangle bounds = new Rectangle();
+        for (int ty = 0; ty < numTilesY; ty++) {
+            for (int tx = 0; tx < numTilesX; tx++) {
+                if (tiles[ty * numTilesX + tx] != null) {
+                    Rectangle tileBounds = getTileBounds(tx, ty);
+                    if (bounds.isEmpty()) {
+                        bounds = tileBounds;
+                    } else {
+                        bounds.add(tileBounds);
+                    }
+                }
+            }
+        }
+        return bounds;
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        long sum = 0;
+        for (BufferedImage tile : tiles) {
+            sum += ImageUtils.getMemoryBytes(tile);
+        }
+        return sum;
+    }
+
+    @Override
+    public void dispose() {
+        // only heap memory is used
+    }
+
+    @Override
+    public boolean startRead() {
+        // the tiles are never modified, and they stay
+        // readable after the disposal
+        return true;
+    }
+
+    /**
+     * Writes only the allocated tiles
+     */
+    public void write(ObjectOutputStream out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(type);
+        for (BufferedImage tile : tiles) {
+            out.writeBoolean(tile != null);
+            if (tile != null) {
+                int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                for (int pixel : pixels) {
+                    out.writeInt(pixel);
+                }
+            }
+        }
+    }
+
+    public static SparseImage read(ObjectInputStream in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        int type = in.readInt();
+        SparseImage sparse = new SparseImage(width, height, type);
+        for (int ty = 0; ty < sparse.numTilesY; ty++) {
+            for (int tx = 0; tx < sparse.numTilesX; tx++) {
+                if (in.readBoolean()) {
+                    Rectangle r = sparse.getTileBounds(tx, ty);
+                    BufferedImage tile = new BufferedImage(r.width, r.height, type);
+                    int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] = in.readInt();
+                    }
+                    sparse.tiles[ty * sparse.numTilesX + tx] = tile;
+                }
+            }
+        }
+        return sparse;
+    }
+}
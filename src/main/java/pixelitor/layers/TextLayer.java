@@ -253,7 +253,7 @@ public class TextLayer extends ContentLayer {
     }
 
     @Override
-    public void resize(int targetWidth, int targetHeight, boolean progressiveBilinear) {
+    public void resize(int targetWidth, int targetHeight) {
         // TODO
     }
 
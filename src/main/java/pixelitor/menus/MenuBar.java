@@ -33,6 +33,9 @@ import pixelitor.TipsOfTheDay;
 import pixelitor.automate.AutoPaint;
 import pixelitor.automate.BatchFilterWizard;
 import pixelitor.automate.BatchResize;
+import pixelitor.automate.macro.LayerMacroStep;
+import pixelitor.automate.macro.MacroRecorder;
+import pixelitor.automate.macro.Macros;
 import pixelitor.filters.*;
 import pixelitor.filters.animation.TweenWizard;
 import pixelitor.filters.comp.EnlargeCanvas;
@@ -41,16 +44,18 @@ import pixelitor.filters.comp.Rotate;
 import pixelitor.filters.convolve.Convolve;
 import pixelitor.filters.gui.ResizePanel;
 import pixelitor.filters.jhlabsproxies.*;
-import pixelitor.filters.levels.Levels;
 import pixelitor.filters.levels.Levels2;
+import pixelitor.filters.levels.Levels;
 import pixelitor.filters.lookup.ColorBalance;
 import pixelitor.filters.lookup.Luminosity;
 import pixelitor.filters.painters.TextFilter;
 import pixelitor.history.AddToHistory;
 import pixelitor.history.History;
 import pixelitor.io.FileChoosers;
+import pixelitor.io.NotPxcFormatException;
 import pixelitor.io.OpenSaveManager;
 import pixelitor.io.OptimizedJpegSavePanel;
+import pixelitor.io.PXCFormat;
 import pixelitor.layers.AddAdjLayerAction;
 import pixelitor.layers.AddNewLayerAction;
 import pixelitor.layers.ContentLayer;
@@ -84,6 +89,7 @@ import pixelitor.utils.FilterCreator;
 import pixelitor.utils.HistogramsPanel;
 import pixelitor.utils.Messages;
 import pixelitor.utils.PerformanceTestingDialog;
+import pixelitor.utils.Resampler;
 import pixelitor.utils.Tests3x3;
 import pixelitor.utils.UpdateGUI;
 import pixelitor.utils.Utils;
@@ -99,6 +105,7 @@ import java.awt.Graphics2D;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.util.Optional;
 
@@ -207,6 +214,20 @@ public class MenuBar extends JMenuBar {
             }
         }).enableIf(ACTION_ENABLED).withKey(CTRL_O).add();
 
+        fileMenu.buildAction(new MenuAction("Open as Proxy...") {
+            @Override
+            public void onClick() {
+                FileChoosers.openAsProxy();
+            }
+        }).enableIf(ACTION_ENABLED).add();
+
+        fileMenu.addAction(new MenuAction("Open Proxy at Full Resolution") {
+            @Override
+            public void onClick() {
+                OpenSaveManager.openFullResolution(ImageComponents.getActiveComp().get());
+            }
+        });
+
         // recent files
         JMenu recentFiles = RecentFilesMenu.getInstance();
         fileMenu.add(recentFiles);
@@ -314,6 +335,38 @@ public class MenuBar extends JMenuBar {
             }
         }).enableIf(ACTION_ENABLED).add();
 
+        sub.addSeparator();
+
+        sub.addAction(new MenuAction("Start Recording Macro") {
+            @Override
+            public void onClick() {
+                Macros.startRecording();
+            }
+        });
+
+        sub.addAction(new MenuAction("Stop Recording and Save Macro...") {
+            @Override
+            public void onClick() {
+                Macros.stopRecordingAndSave();
+            }
+        });
+
+        sub.addAction(new MenuAction("Run Macro...", IS_IMAGE_LAYER) {
+            @Override
+            public void onClick() {
+                Macros.runOnActiveImage();
+            }
+        });
+
+        sub.buildAction(new MenuAction("Batch Run Macro...") {
+            @Override
+            public void onClick() {
+                Macros.batchRun();
+            }
+        }).enableIf(ACTION_ENABLED).add();
+
+        sub.addSeparator();
+
         sub.addAction(new MenuAction("Export Layers to PNG...") {
             @Override
             public void onClick() {
@@ -424,6 +477,7 @@ public class MenuBar extends JMenuBar {
             public void onClick() {
                 Composition comp = ImageComponents.getActiveComp().get();
                 comp.flattenImage(UpdateGUI.YES);
+                MacroRecorder.record(LayerMacroStep.FLATTEN_IMAGE);
             }
         });
 
@@ -432,6 +486,7 @@ public class MenuBar extends JMenuBar {
             public void onClick() {
                 Composition comp = ImageComponents.getActiveComp().get();
                 comp.mergeDown(UpdateGUI.YES);
+                MacroRecorder.record(LayerMacroStep.MERGE_DOWN);
             }
         }, CTRL_E);
 
@@ -1051,6 +1106,28 @@ public class MenuBar extends JMenuBar {
             }
         }).enableIf(ACTION_ENABLED).add();
 
+        developMenu.buildAction(new MenuAction("Benchmark PXC Versions") {
+            @Override
+            public void onClick() {
+                Composition comp = ImageComponents.getActiveComp().get();
+                try {
+                    String results = PXCFormat.benchmark(comp);
+                    Messages.showInfo("PXC Benchmark", results);
+                } catch (IOException | NotPxcFormatException | ClassNotFoundException e) {
+                    Messages.showException(e);
+                }
+            }
+        }).enableIf(ACTION_ENABLED).add();
+
+        developMenu.buildAction(new MenuAction("Benchmark Resampling") {
+            @Override
+            public void onClick() {
+                Composition comp = ImageComponents.getActiveComp().get();
+                String results = Resampler.benchmark(comp.getCompositeImage());
+                Messages.showInfo("Resampling Benchmark", results);
+            }
+        }).enableIf(ACTION_ENABLED).add();
+
         developMenu.addAction(new MenuAction("Dump Event Queue") {
             @Override
             public void onClick() {
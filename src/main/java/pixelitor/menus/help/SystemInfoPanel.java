@@ -17,11 +17,14 @@
 
 package pixelitor.menus.help;
 
+import pixelitor.utils.BufferPool;
 import pixelitor.utils.GridBagHelper;
 import pixelitor.utils.MemoryInfo;
+import pixelitor.utils.MemoryManager;
 
 import javax.swing.*;
 import java.awt.GridBagLayout;
+import java.util.Map;
 
 class SystemInfoPanel extends JPanel {
     private final GridBagHelper gridBagHelper;
@@ -51,5 +54,12 @@ class SystemInfoPanel extends JPanel {
         gridBagHelper.addTwoLabels("Used Memory:", usedMemoryMB + " megabytes");
         gridBagHelper.addTwoLabels("Free Memory:", freeMemoryMB + " megabytes");
         gridBagHelper.addTwoLabels("Max Memory:", maxMemoryMB + " megabytes");
+
+        Map<MemoryManager.Owner, Long> usage = MemoryManager.getUsageByOwner();
+        for (Map.Entry<MemoryManager.Owner, Long> entry : usage.entrySet()) {
+            long megabytes = entry.getValue() / MemoryInfo.ONE_MEGABYTE;
+            gridBagHelper.addTwoLabels(entry.getKey() + ":", megabytes + " megabytes");
+        }
+        gridBagHelper.addTwoLabels("Scratch Buffer Reuse:", BufferPool.getStatistics());
     }
 }
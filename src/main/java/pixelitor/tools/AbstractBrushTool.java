@@ -19,13 +19,17 @@ package pixelitor.tools;
 
 import org.jdesktop.swingx.combobox.EnumComboBoxModel;
 import pixelitor.Composition;
+import pixelitor.FgBgColors;
 import pixelitor.ImageComponent;
 import pixelitor.ImageComponents;
 import pixelitor.ImageDisplay;
 import pixelitor.PixelitorWindow;
+import pixelitor.automate.macro.MacroRecorder;
+import pixelitor.automate.macro.ToolStrokeMacroStep;
 import pixelitor.filters.gui.AddDefaultButton;
 import pixelitor.filters.gui.FilterSetting;
 import pixelitor.filters.gui.RangeParam;
+import pixelitor.history.History;
 import pixelitor.layers.ImageLayer;
 import pixelitor.tools.brushes.Brush;
 import pixelitor.tools.brushes.BrushAffectedArea;
@@ -35,6 +39,7 @@ import pixelitor.utils.OKDialog;
 import pixelitor.utils.SliderSpinner;
 
 import javax.swing.*;
+import java.awt.Color;
 import java.awt.Cursor;
 import java.awt.Graphics2D;
 import java.awt.Point;
@@ -73,6 +78,10 @@ public abstract class AbstractBrushTool extends Tool implements ImageSwitchListe
     private boolean firstMouseDown = true; // for the first click don't draw lines even if it is a shift-click
     private JButton brushSettingsButton;
 
+    // the current stroke while a macro is recorded
+    private ToolStrokeMacroStep recordedStroke;
+    private ToolStrokeMacroStep lastRecordedStroke;
+
     AbstractBrushTool(char activationKeyChar, String name, String iconFileName, String toolMessage, Cursor cursor) {
         super(activationKeyChar, name, iconFileName, toolMessage,
                 cursor, true, true, false, ClipStrategy.IMAGE_ONLY);
@@ -144,6 +153,18 @@ public abstract class AbstractBrushTool extends Tool implements ImageSwitchListe
         } else {
             brushAffectedArea.initAffectedCoordinates(x, y);
         }
+
+        if (MacroRecorder.isRecording() && canBeRecorded()) {
+            recordedStroke = new ToolStrokeMacroStep(this, getRadius(),
+                    getStrokeColor(), FgBgColors.getBG());
+            if (withLine && lastRecordedStroke != null) {
+                // the line starts at the end of the previous stroke
+                recordedStroke.addPoint(lastRecordedStroke.getLastX(), lastRecordedStroke.getLastY());
+            }
+            recordedStroke.addPoint(x, y);
+        } else {
+            recordedStroke = null;
+        }
     }
 
     protected boolean withLine(MouseEvent e) {
@@ -159,11 +180,56 @@ public abstract class AbstractBrushTool extends Tool implements ImageSwitchListe
         // (unlike e.getX(), e.getY())
 
         drawTo(ic.getComp(), x, y, false);
+
+        if (recordedStroke != null) {
+            recordedStroke.addPoint(x, y);
+        }
     }
 
     @Override
     public void mouseReleased(MouseEvent e, ImageDisplay ic) {
         finishBrushStroke(ic.getComp());
+
+        if (recordedStroke != null) {
+            MacroRecorder.record(recordedStroke);
+            lastRecordedStroke = recordedStroke;
+            recordedStroke = null;
+        }
+    }
+
+    /**
+     * Returns true if the strokes of this tool can be replayed by macros
+     */
+    protected boolean canBeRecorded() {
+        return true;
+    }
+
+    /**
+     * The color used by the current stroke, which will
+     * be the foreground color when the stroke is replayed
+     */
+    protected Color getStrokeColor() {
+        return FgBgColors.getFG();
+    }
+
+    /**
+     * Draws a stroke recorded by a macro through the given
+     * points (x1, y1, x2, y2...) with the given radius
+     */
+    public void replayBrushStroke(Composition comp, double[] coords, int radius) {
+        brush.setRadius(radius);
+        try {
+            double startX = coords[0];
+            double startY = coords[1];
+            drawTo(comp, startX, startY, false);
+            brushAffectedArea.initAffectedCoordinates(startX, startY);
+            for (int i = 2; i < coords.length; i += 2) {
+                drawTo(comp, coords[i], coords[i + 1], false);
+            }
+            finishBrushStroke(comp);
+        } finally {
+            setupDrawingRadius();
+        }
     }
 
     /**
@@ -177,7 +243,10 @@ public abstract class AbstractBrushTool extends Tool implements ImageSwitchListe
         int radius = getRadius();
         ToolAffectedArea affectedArea = new ToolAffectedArea(comp,
                 brushAffectedArea.getRectangleAffectedByBrush(radius), false);
-        saveSubImageForUndo(getOriginalImage(comp), affectedArea);
+        if (!History.isSuspended()) {
+            // there is no original image copy while the history is suspended
+            saveSubImageForUndo(getOriginalImage(comp), affectedArea);
+        }
 
         mergeTmpLayer(comp);
 
@@ -94,6 +94,17 @@ public class BrushTool extends TmpLayerBrushTool {
         }
     }
 
+    @Override
+    protected Color getStrokeColor() {
+        return drawingColor;
+    }
+
+    @Override
+    public void replayBrushStroke(Composition comp, double[] coords, int radius) {
+        drawingColor = FgBgColors.getFG();
+        super.replayBrushStroke(comp, coords, radius);
+    }
+
     @Override
     public void trace(Composition comp, Shape shape) {
         if (drawingColor == null) {
@@ -146,6 +146,12 @@ public class CloneTool extends TmpLayerBrushTool {
         }
     }
 
+    @Override
+    protected boolean canBeRecorded() {
+        // the cloning source is not recorded
+        return false;
+    }
+
     @Override
     public void mouseDragged(MouseEvent e, ImageDisplay ic) {
         if (state == CLONING) { // make sure that the first source-setting stroke does not clone
@@ -18,8 +18,8 @@
 package pixelitor.tools;
 
 import pixelitor.Composition;
-import pixelitor.ImageComponents;
 import pixelitor.ImageDisplay;
+import pixelitor.history.History;
 import pixelitor.layers.ImageLayer;
 import pixelitor.utils.ImageUtils;
 import pixelitor.utils.Utils;
@@ -49,12 +49,19 @@ public abstract class DirectBrushTool extends AbstractBrushTool {
         }
 
         super.mouseReleased(e, ic);
-        copyBeforeStart.flush();
-        copyBeforeStart = null;
+        flushCopyBeforeStart();
 
         ic.getComp().getActiveMaskOrImageLayer().updateIconImage();
     }
 
+    @Override
+    public void replayBrushStroke(Composition comp, double[] coords, int radius) {
+        super.replayBrushStroke(comp, coords, radius);
+        flushCopyBeforeStart();
+
+        comp.getActiveMaskOrImageLayer().updateIconImage();
+    }
+
     @Override
     void createGraphicsForNewBrushStroke(Composition comp, ImageLayer layer) {
         // uses the graphics of the buffered image contained in the layer
@@ -65,11 +72,24 @@ public abstract class DirectBrushTool extends AbstractBrushTool {
         }
         brush.setTarget(comp, graphics);
 
-        BufferedImage image = ImageComponents.getActiveImageLayerOrMask().get().getImage();
+        BufferedImage image = layer.getImage();
 
         assert Utils.checkRasterMinimum(image);
 
-        copyBeforeStart = ImageUtils.copyImage(image);
+        if (History.isSuspended()) {
+            // the copy would be used only for the undo
+            copyBeforeStart = null;
+        } else {
+            copyBeforeStart = ImageUtils.copyImage(image);
+        }
+    }
+
+    private void flushCopyBeforeStart() {
+        // it is null if the history was suspended
+        if (copyBeforeStart != null) {
+            copyBeforeStart.flush();
+            copyBeforeStart = null;
+        }
     }
 
     @Override
@@ -38,8 +38,9 @@ public class FgBgColorSelector extends JLayeredPane {
     private JButton fgButton;
     private JButton bgButton;
 
-    private Color fgColor = BLACK;
-    private Color bgColor = WHITE;
+    // volatile because they can be set outside the EDT
+    private volatile Color fgColor = BLACK;
+    private volatile Color bgColor = WHITE;
 
     private static final int BIG_BUTTON_SIZE = 30;
     private static final int SMALL_BUTTON_SIZE = 15;
@@ -203,6 +204,19 @@ public class FgBgColorSelector extends JLayeredPane {
 //        }
     }
 
+    /**
+     * Can be called outside the EDT: the tools use the new
+     * colors immediately, and the buttons are updated later
+     */
+    public void setColorsOutsideEDT(Color fg, Color bg) {
+        fgColor = fg;
+        bgColor = bg;
+        SwingUtilities.invokeLater(() -> {
+            fgButton.setBackground(getPossiblyGrayedColor(fgColor));
+            bgButton.setBackground(getPossiblyGrayedColor(bgColor));
+        });
+    }
+
     protected void setupKeyboardShortcuts() {
         GlobalKeyboardWatch.addKeyboardShortCut('d', true, "reset", resetToDefaultAction);
         GlobalKeyboardWatch.addKeyboardShortCut('x', true, "switch", swapColorsAction);
@@ -104,6 +104,13 @@ public class SmudgeTool extends DirectBrushTool {
         return smudgeBrush;
     }
 
+    @Override
+    public void replayBrushStroke(Composition comp, double[] coords, int radius) {
+        BufferedImage sourceImg = comp.getActiveMaskOrImageLayer().getImage();
+        initStroke(sourceImg, coords[0], coords[1]);
+        super.replayBrushStroke(comp, coords, radius);
+    }
+
     @Override
     protected void prepareProgrammaticBrushStroke(Composition comp, Point start) {
         super.prepareProgrammaticBrushStroke(comp, start);
@@ -228,7 +228,7 @@ public abstract class Tool {
     protected void saveSubImageForUndo(BufferedImage originalImage, ToolAffectedArea affectedArea) {
         assert (originalImage != null);
         Rectangle rectangleAffectedByTool = affectedArea.getRectangle();
-        if (rectangleAffectedByTool.isEmpty()) {
+        if (rectangleAffectedByTool.isEmpty() || History.isSuspended()) {
             return;
         }
 
@@ -19,11 +19,14 @@ package pixelitor.utils;
 
 import pixelitor.Desktop;
 import pixelitor.FgBgColors;
+import pixelitor.HibernationManager;
 import pixelitor.NewImage;
 import pixelitor.PixelitorWindow;
 import pixelitor.TipsOfTheDay;
 import pixelitor.history.History;
 import pixelitor.io.FileChoosers;
+import pixelitor.io.OpenSaveManager;
+import pixelitor.layers.MappedImage;
 import pixelitor.menus.file.RecentFileInfo;
 import pixelitor.menus.file.RecentFilesMenu;
 
@@ -68,6 +71,9 @@ public final class AppPreferences {
     private static final String STATUS_BAR_SHOWN_KEY = "status_bar_shown";
 
     private static final String UNDO_LEVELS_KEY = "undo_levels";
+    private static final String HIBERNATION_MINUTES_KEY = "hibernation_minutes";
+    private static final int DEFAULT_HIBERNATION_MINUTES = 30;
+    private static final String OUT_OF_CORE_MEGAPIXELS_KEY = "out_of_core_megapixels";
 
     /**
      * Utility class with static methods
@@ -199,6 +205,13 @@ public final class AppPreferences {
         return dir;
     }
 
+    /**
+     * Returns the directory for the files kept between sessions
+     */
+    public static File getConfigDir() {
+        return new File(System.getProperty("user.home"), ".pixelitor");
+    }
+
     private static File getDocumentsDir() {
         return FileSystemView.getFileSystemView().getDefaultDirectory();
     }
@@ -232,6 +245,23 @@ public final class AppPreferences {
         mainUserNode.putInt(UNDO_LEVELS_KEY, History.getUndoLevels());
     }
 
+    public static int loadHibernationMinutes() {
+        return mainUserNode.getInt(HIBERNATION_MINUTES_KEY, DEFAULT_HIBERNATION_MINUTES);
+    }
+
+    private static void saveHibernationMinutes() {
+        mainUserNode.putInt(HIBERNATION_MINUTES_KEY, HibernationManager.getIdleMinutes());
+    }
+
+    public static int loadOutOfCoreMegapixels() {
+        // 0 means that the layers are never stored out of the heap
+        return mainUserNode.getInt(OUT_OF_CORE_MEGAPIXELS_KEY, 0);
+    }
+
+    private static void saveOutOfCoreMegapixels() {
+        mainUserNode.putInt(OUT_OF_CORE_MEGAPIXELS_KEY, MappedImage.getMinMegapixels());
+    }
+
     private static void savePreferencesBeforeExit() {
         saveRecentFiles(RecentFilesMenu.getInstance().getRecentFileInfosForSaving());
         saveFramePosition(PixelitorWindow.getInstance());
@@ -240,6 +270,8 @@ public final class AppPreferences {
         saveFgBgColors();
         WorkSpace.saveVisibility();
         saveUndoLevels();
+        saveHibernationMinutes();
+        saveOutOfCoreMegapixels();
         TipsOfTheDay.saveNextTipNr();
         saveNewImageSize();
     }
@@ -278,6 +310,7 @@ public final class AppPreferences {
 
     public static void savePrefsAndExit() {
         savePreferencesBeforeExit();
+        OpenSaveManager.waitForBackgroundSaves();
         System.exit(0);
     }
 
@@ -380,6 +413,8 @@ public final class AppPreferences {
 
     public static class Panel extends JPanel {
         private final JTextField undoLevelsTF;
+        private final JTextField hibernationMinutesTF;
+        private final JTextField outOfCoreMegapixelsTF;
 
         Panel() {
             setLayout(new GridBagLayout());
@@ -388,6 +423,16 @@ public final class AppPreferences {
             undoLevelsTF = new IntTextField(3);
             undoLevelsTF.setText(String.valueOf(History.getUndoLevels()));
             gridBagHelper.addLabelWithControl("Undo/Redo Levels: ", undoLevelsTF);
+
+            hibernationMinutesTF = new IntTextField(3);
+            hibernationMinutesTF.setText(String.valueOf(HibernationManager.getIdleMinutes()));
+            hibernationMinutesTF.setToolTipText("Inactive images are moved to disk after this many minutes (0 = never)");
+            gridBagHelper.addLabelWithControl("Hibernate Inactive Images After (minutes): ", hibernationMinutesTF);
+
+            outOfCoreMegapixelsTF = new IntTextField(4);
+            outOfCoreMegapixelsTF.setText(String.valueOf(MappedImage.getMinMegapixels()));
+            outOfCoreMegapixelsTF.setToolTipText("Layers at least this big are stored on the disk (0 = never)");
+            gridBagHelper.addLabelWithControl("Out-of-Core Layers Above (megapixels): ", outOfCoreMegapixelsTF);
         }
 
         private int getUndoLevels() {
@@ -396,6 +441,18 @@ public final class AppPreferences {
             return retVal;
         }
 
+        private int getHibernationMinutes() {
+            String s = hibernationMinutesTF.getText();
+            int retVal = Integer.parseInt(s);
+            return retVal;
+        }
+
+        private int getOutOfCoreMegapixels() {
+            String s = outOfCoreMegapixelsTF.getText();
+            int retVal = Integer.parseInt(s);
+            return retVal;
+        }
+
         public static void showInDialog() {
             Panel p = new Panel();
             OKCancelDialog d = new OKCancelDialog(p, "Preferences") {
@@ -403,6 +460,8 @@ public final class AppPreferences {
                 protected void dialogAccepted() {
                     int undoLevels = p.getUndoLevels();
                     History.setUndoLevels(undoLevels);
+                    HibernationManager.setIdleMinutes(p.getHibernationMinutes());
+                    MappedImage.setMinMegapixels(p.getOutOfCoreMegapixels());
                     close();
                 }
             };
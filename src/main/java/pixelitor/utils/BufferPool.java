@@ -0,0 +1,384 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import pixelitor.Build;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory-bounded pool of the large scratch buffers (pixel arrays
+ * and images) used by the filters, the previews and the compositing.
+ * The free buffers are kept in buckets by their exact size, and when
+ * the pool is full, the least recently used buckets are dropped.
+ * <p>
+ * The borrowed buffers are cleared, just like new ones. A buffer
+ * must not be used after it was returned. The pixel arrays must be
+ * returned by the thread that borrowed them, in development builds
+ * this is checked after each filter run. An image can leave the pool
+ * for good by being kept, for example when a preview is accepted.
+ */
+public class BufferPool {
+    private static final long MAX_POOLED_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    private static final int KIND_INTS = -1;
+    private static final int KIND_FLOATS = -2;
+
+    // the free buffers by size, the buckets are in access order
+    private static final Map<Key, ArrayDeque<Object>> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private static long pooledBytes = 0;
+
+    // the images that were borrowed and can be returned
+    private static final Set<BufferedImage> lentImages = Collections.newSetFromMap(new WeakHashMap<>());
+
+    // the arrays that were borrowed and can be returned
+    private static final Set<Object> lentArrays = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private static final AtomicLong numAllocations = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong numReuses = new AtomicLong();
+    private static final AtomicLong reusedBytes = new AtomicLong();
+
+    // the arrays borrowed by the current thread and the stack traces
+    // of their borrowing, tracked only in development builds
+    private static final ThreadLocal<Map<Object, Throwable>> borrowedArrays =
+            ThreadLocal.withInitial(IdentityHashMap::new);
+
+    /**
+     * Utility class with static methods
+     */
+    private BufferPool() {
+    }
+
+    public static int[] borrowInts(int length) {
+        int[] array = (int[]) takeFree(new Key(KIND_INTS, length, 0));
+        if (array == null) {
+            array = new int[length];
+            countAllocation(4L * length);
+        } else {
+            Arrays.fill(array, 0);
+            countReuse(4L * length);
+        }
+        lendArray(array);
+        return array;
+    }
+
+    /**
+     * Gives back an array if it was borrowed from the pool,
+     * the other arrays are ignored
+     */
+    public static void returnInts(int[] array) {
+        if (!takeBackArray(array)) {
+            return;
+        }
+        giveBack(new Key(KIND_INTS, array.length, 0), array);
+    }
+
+    public static float[] borrowFloats(int length) {
+        float[] array = (float[]) takeFree(new Key(KIND_FLOATS, length, 0));
+        if (array == null) {
+            array = new float[length];
+            countAllocation(4L * length);
+        } else {
+            Arrays.fill(array, 0);
+            countReuse(4L * length);
+        }
+        lendArray(array);
+        return array;
+    }
+
+    /**
+     * Gives back an array if it was borrowed from the pool,
+     * the other arrays are ignored
+     */
+    public static void returnFloats(float[] array) {
+        if (!takeBackArray(array)) {
+            return;
+        }
+        giveBack(new Key(KIND_FLOATS, array.length, 0), array);
+    }
+
+    public static boolean supportsImageType(int type) {
+        return type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_BYTE_GRAY;
+    }
+
+    /**
+     * Returns a transparent image with the given size and type
+     */
+    public static BufferedImage borrowImage(int width, int height, int type) {
+        assert supportsImageType(type) : "type = " + type;
+        BufferedImage img = (BufferedImage) takeFree(new Key(type, width, height));
+        if (img == null) {
+            img = new BufferedImage(width, height, type);
+            countAllocation(ImageUtils.getMemoryBytes(img));
+        } else {
+            clear(img);
+            countReuse(ImageUtils.getMemoryBytes(img));
+        }
+        synchronized (BufferPool.class) {
+            lentImages.add(img);
+        }
+        return img;
+    }
+
+    /**
+     * Returns a transparent image with the size and type of the given
+     * image, or a new image if the pool cannot handle the given type
+     */
+    public static BufferedImage borrowCompatibleImage(BufferedImage src) {
+        int type = src.getType();
+        if (!supportsImageType(type)) {
+            return ImageUtils.createCompatibleDest(src);
+        }
+        return borrowImage(src.getWidth(), src.getHeight(), type);
+    }
+
+    /**
+     * Gives back an image if it was borrowed from the pool,
+     * the other images are ignored
+     */
+    public static void returnImage(BufferedImage img) {
+        if (img == null) {
+            return;
+        }
+        synchronized (BufferPool.class) {
+            if (!lentImages.remove(img)) {
+                return;
+            }
+        }
+        giveBack(new Key(img.getType(), img.getWidth(), img.getHeight()), img);
+    }
+
+    /**
+     * The given borrowed image will not be returned, it becomes
+     * for example the image of a layer
+     */
+    public static synchronized void keepImage(BufferedImage img) {
+        lentImages.remove(img);
+    }
+
+    private static synchronized Object takeFree(Key key) {
+        ArrayDeque<Object> bucket = buckets.get(key);
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        Object buffer = bucket.pollLast();
+        pooledBytes -= key.getBytes();
+        return buffer;
+    }
+
+    private static synchronized void giveBack(Key key, Object buffer) {
+        ArrayDeque<Object> bucket = buckets.computeIfAbsent(key, k -> new ArrayDeque<>());
+        assert !containsIdentity(bucket, buffer) : "the buffer was already returned";
+
+        long bytes = key.getBytes();
+        if (bytes > MAX_POOLED_BYTES) {
+            return; // let the GC collect it
+        }
+        bucket.addLast(buffer);
+        pooledBytes += bytes;
+
+        // drop the least recently used buffers of the other sizes
+        Iterator<Map.Entry<Key, ArrayDeque<Object>>> it = buckets.entrySet().iterator();
+        while (pooledBytes > MAX_POOLED_BYTES && it.hasNext()) {
+            Map.Entry<Key, ArrayDeque<Object>> entry = it.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            pooledBytes -= entry.getKey().getBytes() * entry.getValue().size();
+            it.remove();
+        }
+    }
+
+    private static boolean containsIdentity(ArrayDeque<Object> bucket, Object buffer) {
+        for (Object o : bucket) {
+            if (o == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void clear(BufferedImage img) {
+        DataBuffer dataBuffer = img.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            Arrays.fill(((DataBufferInt) dataBuffer).getData(), 0);
+        } else {
+            Arrays.fill(((DataBufferByte) dataBuffer).getData(), (byte) 0);
+        }
+    }
+
+    /**
+     * Releases all the free buffers. Returns the number of freed bytes.
+     */
+    public static synchronized long clear() {
+        long freed = pooledBytes;
+        buckets.clear();
+        pooledBytes = 0;
+        return freed;
+    }
+
+    public static synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private static void countAllocation(long bytes) {
+        numAllocations.incrementAndGet();
+        allocatedBytes.addAndGet(bytes);
+    }
+
+    private static void countReuse(long bytes) {
+        numReuses.incrementAndGet();
+        reusedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns a human-readable summary of the allocation counters
+     */
+    public static String getStatistics() {
+        return String.format("%d reused (%d MB), %d allocated (%d MB)",
+                numReuses.get(), reusedBytes.get() / MemoryInfo.ONE_MEGABYTE,
+                numAllocations.get(), allocatedBytes.get() / MemoryInfo.ONE_MEGABYTE);
+    }
+
+    public static void resetStatistics() {
+        numAllocations.set(0);
+        allocatedBytes.set(0);
+        numReuses.set(0);
+        reusedBytes.set(0);
+    }
+
+    public static long getNumAllocations() {
+        return numAllocations.get();
+    }
+
+    public static long getNumReuses() {
+        return numReuses.get();
+    }
+
+    private static void lendArray(Object array) {
+        synchronized (BufferPool.class) {
+            lentArrays.add(array);
+        }
+        trackBorrowing(array);
+    }
+
+    /**
+     * Returns false if the array was not borrowed from the pool
+     */
+    private static boolean takeBackArray(Object array) {
+        synchronized (BufferPool.class) {
+            if (!lentArrays.remove(array)) {
+                return false;
+            }
+        }
+        trackReturning(array);
+        return true;
+    }
+
+    private static void trackBorrowing(Object array) {
+        if (Build.CURRENT == Build.DEVELOPMENT) {
+            borrowedArrays.get().put(array, new Throwable("borrowed here"));
+        }
+    }
+
+    private static void trackReturning(Object array) {
+        if (Build.CURRENT == Build.DEVELOPMENT) {
+            Throwable borrowing = borrowedArrays.get().remove(array);
+            assert borrowing != null : "the array was not borrowed by this thread";
+        }
+    }
+
+    /**
+     * Returns the number of arrays borrowed and not yet returned by the
+     * current thread. It is always 0 outside of development builds.
+     */
+    public static int getNumBorrowedArrays() {
+        return borrowedArrays.get().size();
+    }
+
+    /**
+     * Describes where the not yet returned arrays
+     * of the current thread were borrowed
+     */
+    public static String describeBorrowedArrays() {
+        StringBuilder sb = new StringBuilder();
+        for (Throwable borrowing : borrowedArrays.get().values()) {
+            StackTraceElement[] trace = borrowing.getStackTrace();
+            // the first elements are trackBorrowing, lendArray and the borrow method
+            sb.append('\n').append(trace.length > 3 ? trace[3] : "?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Identifies a bucket, the kind is the image type for images
+     */
+    private static final class Key {
+        private final int kind;
+        private final int width;
+        private final int height;
+
+        private Key(int kind, int width, int height) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+        }
+
+        long getBytes() {
+            if (kind == KIND_INTS || kind == KIND_FLOATS) {
+                return 4L * width;
+            }
+            if (kind == BufferedImage.TYPE_BYTE_GRAY) {
+                return (long) width * height;
+            }
+            return 4L * width * height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * kind + width) + height;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Synthesizer;
 import javax.swing.*;
 import java.awt.Component;
+import java.awt.EventQueue;
 import java.awt.Frame;
 import java.awt.Toolkit;
 import java.lang.reflect.InvocationTargetException;
@@ -149,10 +150,20 @@ public class Dialogs {
         if (Build.CURRENT == Build.DEVELOPMENT) {
             e.printStackTrace();
         }
+
+        // release whatever can be released so that the user can continue
+        if (EventQueue.isDispatchThread()) {
+            MemoryManager.evictAll();
+        }
+
         String message = "<html><b>Out of memory error.</b> You can try <ul>" +
                 "<li>decreasing the undo levels" +
                 "<li>decreasing the number of layers" +
                 "<li>working with smaller images";
+        if (e.getMessage() != null && !e.getMessage().startsWith("Java heap")) {
+            // a refused allocation with an explanation
+            message += "</ul>" + e.getMessage();
+        }
         String title = "Out of memory error.";
         Dialogs.showErrorDialog(title, message);
     }
@@ -38,6 +38,9 @@ public class HistogramsPanel extends JPanel implements ImageSwitchListener {
     private final HistogramPainter blue;
     private static final int HISTOGRAM_RESOLUTION = 256;
 
+    // the size of the downscaled composite used for images with out-of-core layers
+    private static final int SAMPLED_IMAGE_SIZE = 1024;
+
     private HistogramsPanel() {
         setLayout(new BorderLayout());
 
@@ -86,7 +89,17 @@ public class HistogramsPanel extends JPanel implements ImageSwitchListener {
         if (!areHistogramsShown()) {
             return;
         }
-        BufferedImage image = comp.getCompositeImage();
+        BufferedImage image;
+        if (comp.isLoading()) {
+            // approximate histograms until the layers are decoded
+            image = comp.getLoadingPreview();
+        } else if (comp.hasOutOfCoreLayers()) {
+            // approximate histograms, the full composite is not kept in memory
+            int size = Math.max(comp.getCanvasWidth(), comp.getCanvasHeight());
+            image = comp.createScaledComposite(Math.min(1.0, SAMPLED_IMAGE_SIZE / (double) size));
+        } else {
+            image = comp.getCompositeImage();
+        }
 
         int[] redValues = new int[HISTOGRAM_RESOLUTION];
         int[] blueValues = new int[HISTOGRAM_RESOLUTION];
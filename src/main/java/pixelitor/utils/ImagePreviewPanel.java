@@ -18,8 +18,8 @@
 package pixelitor.utils;
 
 import pixelitor.io.FileExtensionUtils;
+import pixelitor.utils.ThumbnailCache.Thumbnail;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -28,7 +28,6 @@ import java.awt.Image;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.IOException;
 
 import static java.awt.Color.BLACK;
 import static java.awt.Color.WHITE;
@@ -41,6 +40,8 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
     private static final int EMPTY_SPACE_AT_LEFT = 5;
 
     private Image smallImage;
+    private String message;
+    private File selectedFile;
     private final Color backgroundColor;
     private int newImgWidth;
     private int newImgHeight;
@@ -58,8 +59,10 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
     @Override
     public void propertyChange(PropertyChangeEvent e) {
         File file = getFileFromFileChooserEvent(e);
+        selectedFile = file;
         if (file == null) {
             smallImage = null;
+            message = null;
             repaint();
             return;
         }
@@ -67,31 +70,41 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
         String fileName = file.getAbsolutePath();
 
         if (FileExtensionUtils.isSupportedExtension(fileName, FileExtensionUtils.SUPPORTED_INPUT_EXTENSIONS)) {
-            createThumbImage(file, fileName);
+            createThumbImage(file);
             repaint();
         }
     }
 
-    private void createThumbImage(File file, String fileName) {
-        // we read the whole image and downscale it to a thumb
-        // TODO perhaps it is possible to read a thumb directly
-
-        // TODO another problem is that ora and pxc files are reported as "Unrecognized"
-        Image bigImage = null;
-        if (fileName.toLowerCase().endsWith(".bmp")) {
-            try {
-                bigImage = ImageIO.read(file);
-            } catch (IOException ex) {
-                Messages.showException(ex);
-            }
-        } else {
-            // TODO: load all with ImageIO and cache
-            // it seems that ImageIcon loads slower but it is cached
-            ImageIcon icon = new ImageIcon(fileName);
-            bigImage = icon.getImage();
+    /**
+     * The thumbnails are created and cached in a background thread,
+     * so that browsing with the arrow keys never blocks
+     */
+    private void createThumbImage(File file) {
+        Thumbnail thumb = ThumbnailCache.getFromMemory(file);
+        if (thumb != null) {
+            showThumbnail(thumb);
+            return;
         }
+        smallImage = null;
+        message = "Loading...";
+        ThumbnailCache.request(file, t -> {
+            if (file.equals(selectedFile)) {
+                showThumbnail(t);
+                repaint();
+            }
+        });
+    }
 
-        smallImage = scaleImage(bigImage);
+    private void showThumbnail(Thumbnail thumb) {
+        if (thumb == null) {
+            smallImage = null;
+            message = "Unrecognized!";
+            return;
+        }
+        imgWidth = thumb.getOrigWidth();
+        imgHeight = thumb.getOrigHeight();
+        smallImage = scaleImage(thumb.getImage());
+        message = "Size: " + imgWidth + " x " + imgHeight + " pixels";
     }
 
     private static File getFileFromFileChooserEvent(PropertyChangeEvent e) {
@@ -111,23 +124,19 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
     }
 
     private Image scaleImage(Image img) {
-        if (img == null) {
-            return null;
-        }
-
-        imgWidth = img.getWidth(null);
-        imgHeight = img.getHeight(null);
+        int thumbWidth = img.getWidth(null);
+        int thumbHeight = img.getHeight(null);
 
         int availableWidth = getWidth() - EMPTY_SPACE_AT_LEFT;
         int availableHeight = getHeight();
 
-        double heightScale = availableHeight / (double) imgHeight;
-        double widthScale = availableWidth / (double) imgWidth;
+        double heightScale = availableHeight / (double) thumbHeight;
+        double widthScale = availableWidth / (double) thumbWidth;
 
         double scale = Math.min(heightScale, widthScale);
 
-        newImgWidth = (int) (scale * (double) imgWidth);
-        newImgHeight = (int) (scale * (double) imgHeight);
+        newImgWidth = Math.max(1, (int) (scale * (double) thumbWidth));
+        newImgHeight = Math.max(1, (int) (scale * (double) thumbHeight));
 
         return img.getScaledInstance(newImgWidth, newImgHeight, Image.SCALE_FAST);
     }
@@ -139,26 +148,22 @@ public class ImagePreviewPanel extends JPanel implements PropertyChangeListener
         int panelHeight = getHeight();
         g.fillRect(0, 0, panelWidth, panelHeight);
 
+        boolean doubleDrawMsg = false;
         if (smallImage != null) {
             int x = (panelWidth - newImgWidth) / 2 + EMPTY_SPACE_AT_LEFT;
             int y = (panelHeight - newImgHeight) / 2;
             g.drawImage(smallImage, x, y, this);
 
-            boolean doubleDrawMsg = y < MSG_STRING_Y - 10;
-
-            String msg = "Size: " + imgWidth + " x " + imgHeight + " pixels";
-            if (imgWidth == -1 || imgHeight == -1) {
-                msg = "Unrecognized!";
-                doubleDrawMsg = false;
-            }
+            doubleDrawMsg = y < MSG_STRING_Y - 10;
+        }
 
+        if (message != null) {
             g.setColor(BLACK);
-            g.drawString(msg, MSG_STRING_X, MSG_STRING_Y);
+            g.drawString(message, MSG_STRING_X, MSG_STRING_Y);
             if (doubleDrawMsg) {
                 g.setColor(WHITE);
-                g.drawString(msg, MSG_STRING_X - 1, MSG_STRING_Y - 1);
+                g.drawString(message, MSG_STRING_X - 1, MSG_STRING_Y - 1);
             }
-
         }
     }
 
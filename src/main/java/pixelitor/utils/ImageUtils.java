@@ -43,6 +43,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferInt;
 import java.awt.image.PixelGrabber;
 import java.awt.image.Raster;
@@ -79,16 +80,24 @@ public class ImageUtils {
     public static BufferedImage toCompatibleImage(BufferedImage input) {
         assert input != null;
 
-        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
-                .getDefaultScreenDevice().getDefaultConfiguration();
+        BufferedImage output;
+        if (GraphicsEnvironment.isHeadless()) {
+            if (input.getType() == TYPE_INT_ARGB) {
+                return input;
+            }
+            output = new BufferedImage(input.getWidth(), input.getHeight(), TYPE_INT_ARGB);
+        } else {
+            GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDefaultConfiguration();
 
-        if (input.getColorModel().equals(gc.getColorModel())) {
-            // already compatible
-            return input;
-        }
+            if (input.getColorModel().equals(gc.getColorModel())) {
+                // already compatible
+                return input;
+            }
 
-        int transparency = Transparency.TRANSLUCENT;
-        BufferedImage output = gc.createCompatibleImage(input.getWidth(), input.getHeight(), transparency);
+            int transparency = Transparency.TRANSLUCENT;
+            output = gc.createCompatibleImage(input.getWidth(), input.getHeight(), transparency);
+        }
         Graphics2D g = output.createGraphics();
         g.drawImage(input, 0, 0, null);
         g.dispose();
@@ -99,6 +108,11 @@ public class ImageUtils {
     public static BufferedImage createCompatibleImage(int width, int height) {
         assert (width > 0) && (height > 0);
 
+        if (GraphicsEnvironment.isHeadless()) {
+            // there is no screen to be compatible with
+            return new BufferedImage(width, height, TYPE_INT_ARGB);
+        }
+
         GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
         BufferedImage output = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
         return output;
@@ -504,6 +518,14 @@ public class ImageUtils {
         int width = in.readInt();
         int height = in.readInt();
         int type = in.readInt();
+        return deserializeImage(in, width, height, type);
+    }
+
+    /**
+     * Reads the rest of an image written by serializeImage
+     * after the width, height and type were already read
+     */
+    public static BufferedImage deserializeImage(ObjectInputStream in, int width, int height, int type) throws IOException {
         if (type == BufferedImage.TYPE_BYTE_GRAY) {
             return ImageIO.read(in);
         } else {
@@ -550,9 +572,31 @@ public class ImageUtils {
         return thumb;
     }
 
+    /**
+     * Returns the number of bytes in the data buffer of the given image,
+     * or 0 if the argument is null
+     */
+    public static long getMemoryBytes(BufferedImage img) {
+        if (img == null) {
+            return 0;
+        }
+        return getMemoryBytes(img.getRaster());
+    }
+
+    public static long getMemoryBytes(Raster raster) {
+        if (raster == null) {
+            return 0;
+        }
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        long bytesPerElem = DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        return bytesPerElem * dataBuffer.getSize() * dataBuffer.getNumBanks();
+    }
+
     public static BufferedImage copyImage(BufferedImage src) {
         assert src != null;
 
+        MemoryManager.ensureAvailable(getMemoryBytes(src));
+
         WritableRaster raster = null;
         try {
             raster = src.copyData(null);
@@ -606,6 +650,66 @@ public class ImageUtils {
         return image;
     }
 
+    /**
+     * Returns the bounding rectangle of the pixels that are not
+     * fully transparent, or null if the whole image is transparent
+     */
+    public static Rectangle getNonTransparentBounds(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        if (!img.getColorModel().hasAlpha()) {
+            return new Rectangle(0, 0, width, height);
+        }
+
+        int[] pixels = null;
+        if (hasPackedIntArray(img) && img.getRaster().getParent() == null
+                && img.getRaster().getDataBuffer().getSize() == width * height) {
+            pixels = getPixelsAsArray(img);
+        }
+        int[] row = pixels == null ? new int[width] : null;
+
+        int minX = width;
+        int maxX = -1;
+        int minY = -1;
+        int maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            int[] rowPixels = pixels;
+            if (pixels == null) {
+                img.getRGB(0, y, width, 1, row, 0, width);
+                rowPixels = row;
+                offset = 0;
+            }
+            int first = -1;
+            for (int x = 0; x < width; x++) {
+                if ((rowPixels[offset + x] >>> 24) != 0) {
+                    first = x;
+                    break;
+                }
+            }
+            if (first < 0) {
+                continue;
+            }
+            int last = first;
+            for (int x = width - 1; x > first; x--) {
+                if ((rowPixels[offset + x] >>> 24) != 0) {
+                    last = x;
+                    break;
+                }
+            }
+            if (minY < 0) {
+                minY = y;
+            }
+            maxY = y;
+            minX = Math.min(minX, first);
+            maxX = Math.max(maxX, last);
+        }
+        if (minY < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
     public static BufferedImage crop(BufferedImage input, int x, int y, int width, int height) {
         assert input != null;
 
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import pixelitor.Composition;
+import pixelitor.HibernationManager;
+import pixelitor.ImageComponent;
+import pixelitor.ImageComponents;
+import pixelitor.history.History;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.Layer;
+import pixelitor.layers.LayerButtonLayout;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Central accounting of the large pixel buffers and
+ * eviction of the caches when the heap is running low.
+ * <p>
+ * The heap pressure is tracked through the usage thresholds
+ * of the heap memory pools. When a threshold is exceeded, the
+ * caches are evicted in the order of the {@link Owner} constants,
+ * starting with the ones that are the cheapest to recreate. The
+ * inactive compositions are hibernated before the history is trimmed.
+ */
+public class MemoryManager {
+    /**
+     * The heap usage ratio above which the caches are evicted
+     */
+    private static final double PRESSURE_THRESHOLD = 0.8;
+
+    /**
+     * The eviction tries to bring the heap usage back to this ratio
+     */
+    private static final double COMFORTABLE_USAGE = 0.6;
+
+    private static final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    private static boolean monitoring = false;
+
+    /**
+     * The owners of the pixel buffers. The eviction happens in the
+     * declaration order, the owners which are not evictable are only
+     * accounted for.
+     */
+    public enum Owner {
+        SCRATCH_BUFFERS("Scratch Buffers") {
+            @Override
+            long countBytes(Composition comp) {
+                // the pool is shared between the compositions
+                return 0;
+            }
+
+            @Override
+            long countGlobalBytes() {
+                return BufferPool.getPooledBytes();
+            }
+
+            @Override
+            long evict(long bytesToFree) {
+                // the free buffers are the cheapest to recreate
+                return BufferPool.clear();
+            }
+        }, COMPOSITE_CACHE("Composite Caches") {
+            @Override
+            long countBytes(Composition comp) {
+                return comp.getCompositeCacheMemoryBytes();
+            }
+
+            @Override
+            long evict(long bytesToFree) {
+                // the inactive compositions are evicted first, because
+                // the active composite is probably needed again soon
+                Composition activeComp = ImageComponents.getActiveCompOrNull();
+                long freed = 0;
+                for (Composition comp : getOpenComps()) {
+                    if (freed >= bytesToFree) {
+                        return freed;
+                    }
+                    if (comp != activeComp) {
+                        freed += comp.evictCompositeCache();
+                    }
+                }
+                if (freed < bytesToFree && activeComp != null) {
+                    freed += activeComp.evictCompositeCache();
+                }
+                return freed;
+            }
+        }, THUMBNAILS("Layer Thumbnails") {
+            @Override
+            long countBytes(Composition comp) {
+                long thumbBytes = 4L * LayerButtonLayout.ICON_SIZE * LayerButtonLayout.ICON_SIZE;
+                long sum = 0;
+                int nrLayers = comp.getNrLayers();
+                for (int i = 0; i < nrLayers; i++) {
+                    Layer layer = comp.getLayer(i);
+                    if (layer instanceof ImageLayer) {
+                        sum += thumbBytes;
+                    }
+                    if (layer.hasMask()) {
+                        sum += thumbBytes;
+                    }
+                }
+                return sum;
+            }
+        }, PREVIEWS("Filter Previews") {
+            @Override
+            long countBytes(Composition comp) {
+                long sum = 0;
+                int nrLayers = comp.getNrLayers();
+                for (int i = 0; i < nrLayers; i++) {
+                    Layer layer = comp.getLayer(i);
+                    if (layer instanceof ImageLayer) {
+                        sum += ((ImageLayer) layer).getPreviewMemoryBytes();
+                    }
+                    if (layer.hasMask()) {
+                        sum += layer.getMask().getPreviewMemoryBytes();
+                    }
+                }
+                return sum;
+            }
+        }, MASKS("Layer Masks") {
+            @Override
+            long countBytes(Composition comp) {
+                long sum = 0;
+                int nrLayers = comp.getNrLayers();
+                for (int i = 0; i < nrLayers; i++) {
+                    Layer layer = comp.getLayer(i);
+                    if (layer.hasMask()) {
+                        sum += layer.getMask().getImageMemoryBytes();
+                    }
+                }
+                return sum;
+            }
+        }, LAYERS("Image Layers") {
+            @Override
+            long countBytes(Composition comp) {
+                long sum = 0;
+                int nrLayers = comp.getNrLayers();
+                for (int i = 0; i < nrLayers; i++) {
+                    Layer layer = comp.getLayer(i);
+                    if (layer instanceof ImageLayer) {
+                        sum += ((ImageLayer) layer).getImageMemoryBytes();
+                    }
+                }
+                return sum;
+            }
+
+            @Override
+            long evict(long bytesToFree) {
+                long freed = 0;
+                for (Composition comp : getOpenComps()) {
+                    if (freed >= bytesToFree) {
+                        return freed;
+                    }
+                    freed += comp.packLayers(false);
+                }
+
+                // the layers (and masks) of the inactive compositions
+                // are moved to the disk, this is still better than
+                // losing the undo history
+                return freed + HibernationManager.hibernateInactive(bytesToFree - freed);
+            }
+        }, HISTORY("Undo History") {
+            @Override
+            long countBytes(Composition comp) {
+                // the history is shared between the compositions
+                return 0;
+            }
+
+            @Override
+            long countGlobalBytes() {
+                return History.getMemoryBytes();
+            }
+
+            @Override
+            long evict(long bytesToFree) {
+                return History.discardOldestEdits(bytesToFree);
+            }
+        };
+
+        private final String displayName;
+
+        Owner(String displayName) {
+            this.displayName = displayName;
+        }
+
+        abstract long countBytes(Composition comp);
+
+        /**
+         * The bytes that do not belong to a particular composition
+         */
+        long countGlobalBytes() {
+            return 0;
+        }
+
+        /**
+         * Frees memory and returns the number of freed bytes.
+         * The owners that cannot be evicted return 0.
+         */
+        long evict(long bytesToFree) {
+            return 0;
+        }
+
+        public long countAllBytes() {
+            long sum = countGlobalBytes();
+            for (Composition comp : getOpenComps()) {
+                sum += countBytes(comp);
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Utility class with static methods
+     */
+    private MemoryManager() {
+    }
+
+    /**
+     * Starts listening to the heap usage threshold notifications
+     */
+    public static void startMonitoring() {
+        if (monitoring) {
+            return;
+        }
+        monitoring = true;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            long threshold = (long) (max * PRESSURE_THRESHOLD);
+            if (pool.isUsageThresholdSupported()) {
+                pool.setUsageThreshold(threshold);
+            }
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(threshold);
+            }
+        }
+
+        NotificationListener listener = (notification, handback) -> {
+            String type = notification.getType();
+            if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+                    || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+                scheduleEviction();
+            }
+        };
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(listener, null, null);
+    }
+
+    private static void scheduleEviction() {
+        // the notifications arrive on a JMX thread, but the
+        // caches are modified only on the EDT
+        if (evictionScheduled.compareAndSet(false, true)) {
+            EventQueue.invokeLater(() -> {
+                evictionScheduled.set(false);
+                relievePressure();
+            });
+        }
+    }
+
+    /**
+     * Evicts the caches until the estimated heap usage
+     * is back to a comfortable level
+     */
+    public static long relievePressure() {
+        long max = Runtime.getRuntime().maxMemory();
+        long target = (long) (max * COMFORTABLE_USAGE);
+        long used = getLiveHeapEstimate();
+        if (used <= target) {
+            return 0;
+        }
+        return evict(used - target);
+    }
+
+    /**
+     * Makes sure - as far as possible by evicting caches - that the
+     * given number of bytes can be allocated. This should be called
+     * before allocating very large images.
+     */
+    public static void ensureAvailable(long bytes) {
+        if (!EventQueue.isDispatchThread()) {
+            // the caches cannot be evicted safely from other threads
+            return;
+        }
+        long max = Runtime.getRuntime().maxMemory();
+        long available = max - getLiveHeapEstimate();
+        if (available < bytes) {
+            evict(bytes - available);
+        }
+    }
+
+    /**
+     * Returns true if the given number of bytes can probably be
+     * allocated, after evicting the caches if necessary
+     */
+    public static boolean canAllocate(long bytes) {
+        ensureAvailable(bytes);
+        long max = Runtime.getRuntime().maxMemory();
+        return max - getLiveHeapEstimate() >= bytes;
+    }
+
+    /**
+     * Evicts everything that can be evicted, it is
+     * called after an OutOfMemoryError was caught.
+     */
+    public static long evictAll() {
+        return evict(Long.MAX_VALUE);
+    }
+
+    /**
+     * Evicts the caches in the order of the Owner constants.
+     * Returns the number of freed bytes.
+     */
+    public static long evict(long bytesToFree) {
+        assert EventQueue.isDispatchThread();
+
+        long freed = 0;
+        for (Owner owner : Owner.values()) {
+            if (freed >= bytesToFree) {
+                break;
+            }
+            freed += owner.evict(bytesToFree - freed);
+        }
+
+        if (freed > 0) {
+            Messages.showStatusMessage(String.format(
+                    "Low memory: %d megabytes of cached data was released.",
+                    freed / MemoryInfo.ONE_MEGABYTE));
+        }
+        return freed;
+    }
+
+    /**
+     * Estimates the used heap without the garbage by looking at the
+     * pool usages after the last collection, where this is available.
+     */
+    private static long getLiveHeapEstimate() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage collectionUsage = pool.getCollectionUsage();
+            if (collectionUsage != null) {
+                sum += collectionUsage.getUsed();
+            } else {
+                sum += pool.getUsage().getUsed();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of bytes used by each owner
+     */
+    public static Map<Owner, Long> getUsageByOwner() {
+        Map<Owner, Long> map = new EnumMap<>(Owner.class);
+        for (Owner owner : Owner.values()) {
+            map.put(owner, owner.countAllBytes());
+        }
+        return map;
+    }
+
+    private static List<Composition> getOpenComps() {
+        List<ImageComponent> icList = ImageComponents.getICList();
+        List<Composition> comps = new ArrayList<>(icList.size());
+        for (ImageComponent ic : icList) {
+            comps.add(ic.getComp());
+        }
+        return comps;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+package pixelitor.utils;
+
+import pixelitor.ThreadPool;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * Resizes images with separable filter kernels, working directly on
+ * the pixel arrays. The kernel weights are calculated once for every
+ * output column and row, each source row is filtered horizontally only
+ * once, and the output rows are calculated in parallel bands.
+ */
+public final class Resampler {
+    public enum Kernel {
+        /**
+         * Averages the covered area when downscaling, fast and without moiré
+         */
+        BOX("Box (Area Average)", 0.5) {
+            @Override
+            double weight(double x, double halfPixel) {
+                // the part of the source pixel covered by the output pixel
+                return Math.max(0.0, Math.min(x + halfPixel, 0.5) - Math.max(x - halfPixel, -0.5));
+            }
+        },
+        /**
+         * A cubic kernel with B = C = 1/3, a good balance between sharpness and ringing
+         */
+        MITCHELL("Mitchell", 2.0) {
+            @Override
+            double weight(double x, double halfPixel) {
+                x = Math.abs(x);
+                if (x < 1.0) {
+                    return (7.0 * x * x * x - 12.0 * x * x + 16.0 / 3.0) / 6.0;
+                } else if (x < 2.0) {
+                    return (-7.0 / 3.0 * x * x * x + 12.0 * x * x - 20.0 * x + 32.0 / 3.0) / 6.0;
+                }
+                return 0.0;
+            }
+        },
+        /**
+         * The sharpest, with some ringing at the high contrast edges
+         */
+        LANCZOS3("Lanczos", 3.0) {
+            @Override
+            double weight(double x, double halfPixel) {
+                if (x == 0.0) {
+                    return 1.0;
+                }
+                if (x <= -3.0 || x >= 3.0) {
+                    return 0.0;
+                }
+                double px = Math.PI * x;
+                return 3.0 * Math.sin(px) * Math.sin(px / 3.0) / (px * px);
+            }
+        };
+
+        private final String guiName;
+        private final double radius;
+
+        Kernel(String guiName, double radius) {
+            this.guiName = guiName;
+            this.radius = radius;
+        }
+
+        /**
+         * The weight of a source pixel at the given distance, measured in
+         * output pixels. The half width of the source pixels, also measured
+         * in output pixels, is needed only for the area average.
+         */
+        abstract double weight(double x, double halfPixel);
+
+        @Override
+        public String toString() {
+            return guiName;
+        }
+    }
+
+    /**
+     * Used for resizing the layers
+     */
+    public static final Kernel DEFAULT_KERNEL = Kernel.MITCHELL;
+
+    /**
+     * Utility class with static methods
+     */
+    private Resampler() {
+    }
+
+    /**
+     * Returns a resized image of the same type. The uncommon image
+     * types are resized with {@link ImageUtils#getFasterScaledInstance}.
+     */
+    public static BufferedImage resize(BufferedImage src, int destWidth, int destHeight,
+                                       Kernel kernel, boolean parallel) {
+        assert destWidth > 0 && destHeight > 0;
+
+        Pixels srcPixels = Pixels.of(src);
+        if (srcPixels == null) {
+            boolean progressiveBilinear = destWidth < src.getWidth() / 2 || destHeight < src.getHeight() / 2;
+            return ImageUtils.getFasterScaledInstance(src, destWidth, destHeight,
+                    VALUE_INTERPOLATION_BICUBIC, progressiveBilinear);
+        }
+        BufferedImage dest = new BufferedImage(destWidth, destHeight, src.getType());
+        Pixels destPixels = Pixels.of(dest);
+
+        Weights xWeights = new Weights(src.getWidth(), destWidth, kernel);
+        Weights yWeights = new Weights(src.getHeight(), destHeight, kernel);
+
+        int numBands = parallel ? Math.min(ThreadPool.NUM_AVAILABLE_PROCESSORS, destHeight) : 1;
+        if (numBands <= 1) {
+            resizeRows(srcPixels, destPixels, xWeights, yWeights, 0, destHeight);
+            return dest;
+        }
+        Future<?>[] futures = new Future<?>[numBands];
+        for (int i = 0; i < numBands; i++) {
+            int startY = i * destHeight / numBands;
+            int endY = (i + 1) * destHeight / numBands;
+            futures[i] = ThreadPool.executorService.submit(() ->
+                    resizeRows(srcPixels, destPixels, xWeights, yWeights, startY, endY));
+        }
+        ThreadPool.waitForFutures(futures);
+        return dest;
+    }
+
+    /**
+     * Calculates the given output rows. The horizontally filtered source
+     * rows are kept in a ring buffer while the output rows need them.
+     */
+    private static void resizeRows(Pixels src, Pixels dest, Weights xWeights, Weights yWeights,
+                                   int startY, int endY) {
+        int numChannels = src.numChannels;
+        int rowLength = dest.width * numChannels;
+        int ringSize = yWeights.maxCount;
+        float[][] ring = new float[ringSize][rowLength];
+        int[] ringRows = new int[ringSize];
+        Arrays.fill(ringRows, -1);
+
+        float[] srcRow = new float[src.width * numChannels];
+        float[] destRow = new float[rowLength];
+        for (int y = startY; y < endY; y++) {
+            Arrays.fill(destRow, 0.0f);
+            int first = yWeights.starts[y];
+            int count = yWeights.counts[y];
+            int weightIndex = y * yWeights.maxCount;
+            for (int k = 0; k < count; k++) {
+                int srcY = first + k;
+                int slot = srcY % ringSize;
+                float[] filtered = ring[slot];
+                if (ringRows[slot] != srcY) {
+                    src.readRow(srcY, srcRow);
+                    filterRow(srcRow, filtered, xWeights, numChannels);
+                    ringRows[slot] = srcY;
+                }
+                float w = yWeights.weights[weightIndex + k];
+                for (int i = 0; i < rowLength; i++) {
+                    destRow[i] += w * filtered[i];
+                }
+            }
+            dest.writeRow(y, destRow);
+        }
+    }
+
+    private static void filterRow(float[] srcRow, float[] destRow, Weights xWeights, int numChannels) {
+        int destWidth = xWeights.starts.length;
+        int maxCount = xWeights.maxCount;
+        float[] weights = xWeights.weights;
+        if (numChannels == 1) {
+            for (int x = 0; x < destWidth; x++) {
+                int srcIndex = xWeights.starts[x];
+                int weightIndex = x * maxCount;
+                float sum = 0.0f;
+                for (int k = 0, count = xWeights.counts[x]; k < count; k++) {
+                    sum += weights[weightIndex + k] * srcRow[srcIndex + k];
+                }
+                destRow[x] = sum;
+            }
+            return;
+        }
+        for (int x = 0; x < destWidth; x++) {
+            int srcIndex = 4 * xWeights.starts[x];
+            int weightIndex = x * maxCount;
+            float a = 0.0f;
+            float r = 0.0f;
+            float g = 0.0f;
+            float b = 0.0f;
+            for (int k = 0, count = xWeights.counts[x]; k < count; k++) {
+                float w = weights[weightIndex + k];
+                a += w * srcRow[srcIndex];
+                r += w * srcRow[srcIndex + 1];
+                g += w * srcRow[srcIndex + 2];
+                b += w * srcRow[srcIndex + 3];
+                srcIndex += 4;
+            }
+            int destIndex = 4 * x;
+            destRow[destIndex] = a;
+            destRow[destIndex + 1] = r;
+            destRow[destIndex + 2] = g;
+            destRow[destIndex + 3] = b;
+        }
+    }
+
+    /**
+     * The normalized kernel weights of the source pixels
+     * for every output pixel along one axis
+     */
+    private static class Weights {
+        private final int[] starts;
+        private final int[] counts;
+        private final int maxCount;
+        private final float[] weights;
+
+        private Weights(int srcSize, int destSize, Kernel kernel) {
+            double scale = srcSize / (double) destSize;
+            // when downscaling, the kernel is stretched to cover all source pixels
+            double filterScale = Math.max(1.0, scale);
+            double support = kernel.radius * filterScale;
+            double halfPixel = 0.5 / filterScale;
+
+            maxCount = (int) Math.ceil(2 * support) + 2;
+            starts = new int[destSize];
+            counts = new int[destSize];
+            weights = new float[destSize * maxCount];
+            double[] tmp = new double[maxCount];
+
+            for (int i = 0; i < destSize; i++) {
+                double center = (i + 0.5) * scale;
+                int first = Math.max(0, (int) Math.floor(center - support));
+                int last = Math.min(srcSize - 1, (int) Math.ceil(center + support));
+
+                double sum = 0.0;
+                int count = 0;
+                int start = -1;
+                for (int j = first; j <= last && count < maxCount; j++) {
+                    double w = kernel.weight((j + 0.5 - center) / filterScale, halfPixel);
+                    if (start == -1) {
+                        if (w == 0.0) {
+                            continue;
+                        }
+                        start = j;
+                    }
+                    tmp[count++] = w;
+                    sum += w;
+                }
+                while (count > 1 && tmp[count - 1] == 0.0) {
+                    count--;
+                }
+                if (start == -1 || sum == 0.0) {
+                    // can happen only at extreme upscaling, use the nearest pixel
+                    start = Math.min(srcSize - 1, (int) center);
+                    tmp[0] = 1.0;
+                    count = 1;
+                    sum = 1.0;
+                }
+                starts[i] = start;
+                counts[i] = count;
+                for (int k = 0; k < count; k++) {
+                    weights[i * maxCount + k] = (float) (tmp[k] / sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and writes the rows of the supported image types as floats.
+     * The colors are premultiplied with the alpha while filtering, so
+     * that the transparent pixels don't bleed their hidden colors.
+     */
+    private static class Pixels {
+        private final int type;
+        private final int width;
+        private final int numChannels;
+        private final int[] intData;
+        private final byte[] byteData;
+        private final int offset;
+        private final int scanlineStride;
+
+        private Pixels(BufferedImage img, int[] intData, byte[] byteData, int offset, int scanlineStride) {
+            this.type = img.getType();
+            this.width = img.getWidth();
+            this.numChannels = byteData != null ? 1 : 4;
+            this.intData = intData;
+            this.byteData = byteData;
+            this.offset = offset;
+            this.scanlineStride = scanlineStride;
+        }
+
+        /**
+         * Returns null if the image type is not supported
+         */
+        private static Pixels of(BufferedImage img) {
+            int type = img.getType();
+            WritableRaster raster = img.getRaster();
+            SampleModel sm = raster.getSampleModel();
+            if (type == TYPE_INT_ARGB || type == TYPE_INT_ARGB_PRE || type == TYPE_INT_RGB) {
+                int stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                int offset = raster.getDataBuffer().getOffset()
+                        - raster.getSampleModelTranslateX()
+                        - raster.getSampleModelTranslateY() * stride;
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                return new Pixels(img, data, null, offset, stride);
+            } else if (type == TYPE_BYTE_GRAY && ((ComponentSampleModel) sm).getPixelStride() == 1) {
+                int stride = ((ComponentSampleModel) sm).getScanlineStride();
+                int offset = raster.getDataBuffer().getOffset()
+                        - raster.getSampleModelTranslateX()
+                        - raster.getSampleModelTranslateY() * stride;
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                return new Pixels(img, null, data, offset, stride);
+            }
+            return null;
+        }
+
+        private void readRow(int y, float[] row) {
+            int index = offset + y * scanlineStride;
+            if (byteData != null) {
+                for (int x = 0; x < width; x++) {
+                    row[x] = byteData[index + x] & 0xFF;
+                }
+                return;
+            }
+            boolean premultiply = type == TYPE_INT_ARGB;
+            for (int x = 0; x < width; x++) {
+                int pixel = intData[index + x];
+                int a = type == TYPE_INT_RGB ? 255 : pixel >>> 24;
+                float r = (pixel >>> 16) & 0xFF;
+                float g = (pixel >>> 8) & 0xFF;
+                float b = pixel & 0xFF;
+                if (premultiply && a != 255) {
+                    float alpha = a / 255.0f;
+                    r *= alpha;
+                    g *= alpha;
+                    b *= alpha;
+                }
+                int i = 4 * x;
+                row[i] = a;
+                row[i + 1] = r;
+                row[i + 2] = g;
+                row[i + 3] = b;
+            }
+        }
+
+        private void writeRow(int y, float[] row) {
+            int index = offset + y * scanlineStride;
+            if (byteData != null) {
+                for (int x = 0; x < width; x++) {
+                    byteData[index + x] = (byte) clamp(row[x], 255);
+                }
+                return;
+            }
+            for (int x = 0; x < width; x++) {
+                int i = 4 * x;
+                int a = clamp(row[i], 255);
+                float r = row[i + 1];
+                float g = row[i + 2];
+                float b = row[i + 3];
+                int pixel;
+                if (type == TYPE_INT_ARGB) {
+                    if (a == 0) {
+                        pixel = 0;
+                    } else {
+                        float unpremultiply = a == 255 ? 1.0f : 255.0f / row[i];
+                        pixel = (a << 24)
+                                | (clamp(r * unpremultiply, 255) << 16)
+                                | (clamp(g * unpremultiply, 255) << 8)
+                                | clamp(b * unpremultiply, 255);
+                    }
+                } else if (type == TYPE_INT_ARGB_PRE) {
+                    pixel = (a << 24) | (clamp(r, a) << 16) | (clamp(g, a) << 8) | clamp(b, a);
+                } else {
+                    pixel = 0xFF_00_00_00 | (clamp(r, 255) << 16) | (clamp(g, 255) << 8) | clamp(b, 255);
+                }
+                intData[index + x] = pixel;
+            }
+        }
+
+        private static int clamp(float value, int max) {
+            int rounded = (int) (value + 0.5f);
+            if (rounded < 0) {
+                return 0;
+            }
+            return rounded > max ? max : rounded;
+        }
+    }
+
+    /**
+     * Compares the speed and quality of the kernels with the progressive
+     * bilinear scaling, by downscaling the image to a third of its size.
+     * The quality is measured by scaling the result back to the original
+     * size with the same method, and comparing it with the original.
+     */
+    public static String benchmark(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int smallWidth = Math.max(1, width / 3);
+        int smallHeight = Math.max(1, height / 3);
+        StringBuilder sb = new StringBuilder();
+
+        long startTime = System.nanoTime();
+        BufferedImage small = ImageUtils.getFasterScaledInstance(img, smallWidth, smallHeight,
+                VALUE_INTERPOLATION_BICUBIC, true);
+        long time = (System.nanoTime() - startTime) / 1_000_000;
+        BufferedImage back = ImageUtils.getFasterScaledInstance(small, width, height,
+                VALUE_INTERPOLATION_BICUBIC, false);
+        sb.append(String.format("Progressive bilinear: %d ms, PSNR = %.2f dB%n", time, calcPSNR(img, back)));
+
+        for (Kernel kernel : Kernel.values()) {
+            startTime = System.nanoTime();
+            small = resize(img, smallWidth, smallHeight, kernel, true);
+            time = (System.nanoTime() - startTime) / 1_000_000;
+            back = resize(small, width, height, kernel, true);
+            sb.append(String.format("%s: %d ms, PSNR = %.2f dB%n", kernel, time, calcPSNR(img, back)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The peak signal-to-noise ratio of the color channels
+     */
+    static double calcPSNR(BufferedImage a, BufferedImage b) {
+        int width = a.getWidth();
+        int height = a.getHeight();
+        double sumSquares = 0.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p1 = a.getRGB(x, y);
+                int p2 = b.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = ((p1 >>> shift) & 0xFF) - ((p2 >>> shift) & 0xFF);
+                    sumSquares += diff * diff;
+                }
+            }
+        }
+        double mse = sumSquares / (3.0 * width * height);
+        if (mse == 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return 10.0 * Math.log10(255.0 * 255.0 / mse);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A temporary file where images are stored in compressed form
+ * while they are not needed in memory. The images are appended
+ * to the end of the file, and can be read back by their position.
+ */
+public class SwapFile implements Closeable {
+    private static final int TYPE_ENCODED_AS_PNG = -1;
+
+    private static final File DEFAULT_DIR = new File(System.getProperty("java.io.tmpdir"), "pixelitor_swap");
+
+    private final File file;
+    private final RandomAccessFile raf;
+
+    private SwapFile(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Creates a new swap file in the given directory, or in the
+     * default temporary directory if the argument is null.
+     */
+    public static SwapFile create(File dir) throws IOException {
+        File f = File.createTempFile("pixelitor_", ".swap", dir);
+        f.deleteOnExit();
+        return new SwapFile(f);
+    }
+
+    /**
+     * Returns the directory for the temporary files of Pixelitor,
+     * creating it if necessary, or null if it could not be created
+     */
+    public static File getDefaultDir() {
+        if (!DEFAULT_DIR.exists() && !DEFAULT_DIR.mkdirs()) {
+            return null;
+        }
+        return DEFAULT_DIR;
+    }
+
+    /**
+     * Compresses and appends the given image to the file.
+     * Returns the position that can be used to read it back.
+     */
+    public synchronized long write(BufferedImage img) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(
+                new DeflaterOutputStream(bytes, deflater, 64 * 1024))) {
+            writeImage(out, img);
+        } finally {
+            deflater.end();
+        }
+
+        long pos = raf.length();
+        raf.seek(pos);
+        raf.writeInt(bytes.size());
+        raf.write(bytes.toByteArray());
+        return pos;
+    }
+
+    /**
+     * Reads back the image written at the given position
+     */
+    public synchronized BufferedImage read(long pos) throws IOException {
+        raf.seek(pos);
+        int length = raf.readInt();
+        byte[] compressed = new byte[length];
+        raf.readFully(compressed);
+
+        Inflater inflater = new Inflater();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)))) {
+            return readImage(in);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Closes and deletes the file
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // nothing useful can be done here
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static void writeImage(DataOutputStream out, BufferedImage img) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int numPixels = width * height;
+        int type = img.getType();
+        boolean fastType = ImageUtils.hasPackedIntArray(img) || type == BufferedImage.TYPE_BYTE_GRAY;
+
+        if (fastType && img.getRaster().getDataBuffer().getSize() != numPixels) {
+            // a subimage: copy the raw samples without any color conversion
+            BufferedImage copy = new BufferedImage(width, height, type);
+            copy.getRaster().setRect(img.getRaster());
+            img = copy;
+        }
+        DataBuffer dataBuffer = img.getRaster().getDataBuffer();
+
+        out.writeInt(width);
+        out.writeInt(height);
+
+        if (ImageUtils.hasPackedIntArray(img)) {
+            out.writeInt(type);
+            int[] pixels = ((DataBufferInt) dataBuffer).getData();
+            byte[] buf = new byte[4 * Math.min(numPixels, 64 * 1024)];
+            IntBuffer intView = ByteBuffer.wrap(buf).asIntBuffer();
+            for (int i = 0; i < numPixels; i += buf.length / 4) {
+                int chunk = Math.min(buf.length / 4, numPixels - i);
+                intView.clear();
+                intView.put(pixels, i, chunk);
+                out.write(buf, 0, 4 * chunk);
+            }
+        } else if (type == BufferedImage.TYPE_BYTE_GRAY) {
+            out.writeInt(type);
+            out.write(((DataBufferByte) dataBuffer).getData());
+        } else {
+            out.writeInt(TYPE_ENCODED_AS_PNG);
+            ImageIO.write(img, "PNG", new BufferedOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    // only flush, the underlying stream is closed by the caller
+                    flush();
+                }
+            });
+        }
+        out.flush();
+    }
+
+    private static BufferedImage readImage(DataInputStream in) throws IOException {
+        int width = in.readInt();
+        int height = in.readInt();
+        int type = in.readInt();
+
+        if (type == TYPE_ENCODED_AS_PNG) {
+            return ImageIO.read(in);
+        }
+
+        BufferedImage img = new BufferedImage(width, height, type);
+        DataBuffer dataBuffer = img.getRaster().getDataBuffer();
+        if (type == BufferedImage.TYPE_BYTE_GRAY) {
+            in.readFully(((DataBufferByte) dataBuffer).getData());
+        } else {
+            int[] pixels = ((DataBufferInt) dataBuffer).getData();
+            int numPixels = pixels.length;
+            byte[] buf = new byte[4 * Math.min(numPixels, 64 * 1024)];
+            IntBuffer intView = ByteBuffer.wrap(buf).asIntBuffer();
+            for (int i = 0; i < numPixels; i += buf.length / 4) {
+                int chunk = Math.min(buf.length / 4, numPixels - i);
+                in.readFully(buf, 0, 4 * chunk);
+                intView.clear();
+                intView.get(pixels, i, chunk);
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pixelitor.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static java.awt.RenderingHints.KEY_INTERPOLATION;
+import static java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+
+/**
+ * The thumbnails of image files, cached on the disk, so that they
+ * don't have to be decoded again when the file is selected again
+ */
+public final class ThumbnailCache {
+    // the maximal width and height of the thumbnails
+    public static final int SIZE = 256;
+
+    // the oldest thumbnails are deleted above this number
+    private static final int MAX_FILES_ON_DISK = 5000;
+
+    private static final int MAX_THUMBS_IN_MEMORY = 50;
+
+    private static File cacheDir = new File(AppPreferences.getConfigDir(), "thumbnails");
+    private static boolean diskCacheTrimmed = false;
+
+    private static final Map<String, Thumbnail> memoryCache = new RecentThumbnails();
+
+    private static final ExecutorService generator = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Thumbnail Generator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // only the last requested file is processed, the others
+    // are skipped while browsing fast with the arrow keys
+    private static final AtomicReference<File> lastRequested = new AtomicReference<>();
+
+    /**
+     * Keeps only the recently used thumbnails in memory
+     */
+    private static class RecentThumbnails extends LinkedHashMap<String, Thumbnail> {
+        private static final long serialVersionUID = 1L;
+
+        private RecentThumbnails() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Thumbnail> eldest) {
+            return size() > MAX_THUMBS_IN_MEMORY;
+        }
+    }
+
+    /**
+     * A scaled-down image and the size of the original
+     */
+    public static class Thumbnail {
+        private final BufferedImage image;
+        private final int origWidth;
+        private final int origHeight;
+
+        private Thumbnail(BufferedImage image, int origWidth, int origHeight) {
+            this.image = image;
+            this.origWidth = origWidth;
+            this.origHeight = origHeight;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public int getOrigWidth() {
+            return origWidth;
+        }
+
+        public int getOrigHeight() {
+            return origHeight;
+        }
+    }
+
+    /**
+     * Utility class with static methods
+     */
+    private ThumbnailCache() {
+    }
+
+    /**
+     * Returns the thumbnail if it was recently used, without accessing the disk
+     */
+    public static Thumbnail getFromMemory(File file) {
+        synchronized (memoryCache) {
+            return memoryCache.get(getKey(file));
+        }
+    }
+
+    /**
+     * Reads or creates the thumbnail in a background thread, and
+     * calls the callback in the EDT. The thumbnail is null if the
+     * file could not be decoded. Older requests that were not yet
+     * started are skipped.
+     */
+    public static void request(File file, Consumer<Thumbnail> callback) {
+        lastRequested.set(file);
+        generator.execute(() -> {
+            if (lastRequested.get() != file) {
+                return;
+            }
+            Thumbnail thumb = get(file);
+            SwingUtilities.invokeLater(() -> callback.accept(thumb));
+        });
+    }
+
+    /**
+     * Returns the thumbnail from the cache, or creates and caches
+     * it if it doesn't exist. Returns null if it can't be created.
+     */
+    static Thumbnail get(File file) {
+        String key = getKey(file);
+        synchronized (memoryCache) {
+            Thumbnail thumb = memoryCache.get(key);
+            if (thumb != null) {
+                return thumb;
+            }
+        }
+
+        File cacheFile = new File(cacheDir, key + ".thumb");
+        Thumbnail thumb = readCacheFile(cacheFile);
+        if (thumb == null) {
+            thumb = createThumbnail(file);
+            if (thumb == null) {
+                return null;
+            }
+            writeCacheFile(cacheFile, thumb);
+        }
+        synchronized (memoryCache) {
+            memoryCache.put(key, thumb);
+        }
+        return thumb;
+    }
+
+    /**
+     * The key changes if the file is modified
+     */
+    private static String getKey(File file) {
+        String s = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified() + '|' + SIZE;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(2 * hash.length);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-1
+        }
+    }
+
+    /**
+     * Decodes only every n-th pixel of every n-th row
+     */
+    private static Thumbnail createThumbnail(File file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // decoded at about twice the thumbnail size for a smoother downscaling
+                int subsampling = Math.max(1, Math.max(width, height) / (2 * SIZE));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage img = reader.read(0, param);
+                return new Thumbnail(scaleDown(img), width, height);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            // not an image file or it is damaged
+            return null;
+        }
+    }
+
+    private static BufferedImage scaleDown(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        double scale = Math.min(1.0, Math.min(SIZE / (double) width, SIZE / (double) height));
+        int thumbWidth = Math.max(1, (int) (scale * width));
+        int thumbHeight = Math.max(1, (int) (scale * height));
+
+        BufferedImage thumb = new BufferedImage(thumbWidth, thumbHeight, TYPE_INT_ARGB);
+        Graphics2D g = thumb.createGraphics();
+        g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, thumbWidth, thumbHeight, null);
+        g.dispose();
+        return thumb;
+    }
+
+    private static Thumbnail readCacheFile(File cacheFile) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            int origWidth = in.readInt();
+            int origHeight = in.readInt();
+            BufferedImage img = ImageIO.read(in);
+            if (img == null) {
+                return null;
+            }
+            return new Thumbnail(img, origWidth, origHeight);
+        } catch (IOException e) {
+            // it will be created again
+            return null;
+        }
+    }
+
+    private static void writeCacheFile(File cacheFile, Thumbnail thumb) {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            return; // works without a disk cache
+        }
+        trimDiskCache();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+            out.writeInt(thumb.getOrigWidth());
+            out.writeInt(thumb.getOrigHeight());
+            ImageIO.write(thumb.getImage(), "png", out);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the least recently created thumbnails if there are too many,
+     * at most once in a session, at the first time a thumbnail is written
+     */
+    private static void trimDiskCache() {
+        if (diskCacheTrimmed) {
+            return;
+        }
+        diskCacheTrimmed = true;
+
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".thumb"));
+        if (files == null || files.length <= MAX_FILES_ON_DISK) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - MAX_FILES_ON_DISK; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    @VisibleForTesting
+    static void setCacheDir(File dir) {
+        cacheDir = dir;
+        diskCacheTrimmed = false;
+        synchronized (memoryCache) {
+            memoryCache.clear();
+        }
+    }
+}
@@ -2,7 +2,12 @@ package pixelitor;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
+import pixelitor.automate.BatchEngineTest;
+import pixelitor.automate.macro.MacroTest;
 import pixelitor.filters.RandomFilterSourceTest;
+import pixelitor.filters.animation.AnimGIFWriterTest;
+import pixelitor.filters.animation.FrameCacheTest;
+import pixelitor.filters.animation.PNGFileSequenceWriterTest;
 import pixelitor.filters.comp.MultiLayerEditTest;
 import pixelitor.filters.gui.BooleanParamTest;
 import pixelitor.filters.gui.FilterParamTest;
@@ -11,12 +16,26 @@ import pixelitor.filters.gui.ParamSetTest;
 import pixelitor.filters.gui.ParamStateTest;
 import pixelitor.filters.gui.RangeParamTest;
 import pixelitor.filters.levels.LevelsTest;
+import pixelitor.history.PixelitorUndoManagerTest;
+import pixelitor.io.CompatibleImageReaderTest;
+import pixelitor.io.ImageProxyTest;
+import pixelitor.io.LayerPNGExportTest;
+import pixelitor.io.OpenRasterTest;
+import pixelitor.io.PXCFormatTest;
+import pixelitor.io.PngOutputTest;
+import pixelitor.io.StripExportTest;
 import pixelitor.layers.ContentLayerTest;
 import pixelitor.layers.ImageLayerTest;
 import pixelitor.layers.LayerBlendingModesTest;
 import pixelitor.layers.LayerTest;
+import pixelitor.layers.MappedImageTest;
+import pixelitor.layers.SparseImageTest;
 import pixelitor.layers.TextLayerTest;
 import pixelitor.tools.ToolTest;
+import pixelitor.utils.BufferPoolTest;
+import pixelitor.utils.ResamplerTest;
+import pixelitor.utils.SwapFileTest;
+import pixelitor.utils.ThumbnailCacheTest;
 
 /**
  * See http://stackoverflow.com/questions/24510742/can-you-run-all-junit-tests-in-a-package-from-the-command-line-without-explicitl
@@ -25,6 +44,7 @@ import pixelitor.tools.ToolTest;
 @Suite.SuiteClasses({
 //        CompositionCreationTest.class,
         CompositionTest.class,
+        CompositionHibernationTest.class,
         MultiLayerEditTest.class,
         BooleanParamTest.class,
         FilterParamTest.class,
@@ -33,13 +53,32 @@ import pixelitor.tools.ToolTest;
         ParamStateTest.class,
         RangeParamTest.class,
         LevelsTest.class,
+        PixelitorUndoManagerTest.class,
         RandomFilterSourceTest.class,
+        AnimGIFWriterTest.class,
+        FrameCacheTest.class,
+        PNGFileSequenceWriterTest.class,
+        OpenRasterTest.class,
+        PXCFormatTest.class,
+        PngOutputTest.class,
+        ImageProxyTest.class,
+        CompatibleImageReaderTest.class,
+        StripExportTest.class,
+        LayerPNGExportTest.class,
         ContentLayerTest.class,
         ImageLayerTest.class,
         LayerBlendingModesTest.class,
         LayerTest.class,
+        SparseImageTest.class,
+        MappedImageTest.class,
         TextLayerTest.class,
         ToolTest.class,
+        BufferPoolTest.class,
+        SwapFileTest.class,
+        ThumbnailCacheTest.class,
+        ResamplerTest.class,
+        BatchEngineTest.class,
+        MacroTest.class,
 })
 public class AllTestsSuite {
     // empty
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pixelitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.history.History;
+import pixelitor.history.ImageEdit;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.LayerMask;
+import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.ImageUtils;
+
+import javax.swing.*;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompositionHibernationTest {
+    private Composition comp;
+    private ImageLayer layer1;
+    private ImageLayer layer2;
+    private File swapDir;
+
+    @Before
+    public void setUp() throws IOException {
+        comp = TestHelper.create2LayerComposition(true);
+        layer1 = (ImageLayer) comp.getLayer(0);
+        layer2 = (ImageLayer) comp.getLayer(1);
+        fillRandom(layer1.getImage(), 1);
+        fillRandom(layer2.getImage(), 2);
+        fillRandom(layer2.getMask().getImage(), 3);
+        History.clear();
+
+        swapDir = Files.createTempDirectory("hibernation").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        comp.dispose();
+        File[] leftFiles = swapDir.listFiles();
+        assertThat(leftFiles).isEmpty();
+        swapDir.delete();
+    }
+
+    @Test
+    public void testLayersAndMasksAreRestored() {
+        BufferedImage image1 = ImageUtils.copyImage(layer1.getImage());
+        BufferedImage image2 = ImageUtils.copyImage(layer2.getImage());
+        BufferedImage mask1 = ImageUtils.copyImage(layer1.getMask().getImage());
+        BufferedImage mask2 = ImageUtils.copyImage(layer2.getMask().getImage());
+
+        long freed = comp.hibernate(swapDir, 0.5);
+        assertThat(freed).isPositive();
+        assertThat(comp.isHibernated()).isTrue();
+        BufferedImage proxy = comp.getHibernationProxy();
+        assertThat(proxy.getWidth()).isEqualTo(comp.getCanvasWidth() / 2);
+        assertThat(proxy.getHeight()).isEqualTo(comp.getCanvasHeight() / 2);
+
+        comp.wakeUp();
+        assertThat(comp.isHibernated()).isFalse();
+        assertThat(comp.getHibernationProxy()).isNull();
+
+        assertSamePixels(image1, layer1.getImage());
+        assertSamePixels(image2, layer2.getImage());
+        assertSamePixels(mask1, layer1.getMask().getImage());
+        assertSamePixels(mask2, layer2.getMask().getImage());
+    }
+
+    @Test
+    public void testHistoryEditsAreRestored() {
+        BufferedImage before = ImageUtils.copyImage(layer2.getImage());
+        BufferedImage backup = ImageUtils.copyImage(before);
+        Graphics2D g = layer2.getImage().createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 5, 5);
+        g.dispose();
+        BufferedImage after = ImageUtils.copyImage(layer2.getImage());
+        History.addEdit(new ImageEdit(comp, "Test Edit", layer2, backup, IgnoreSelection.YES, false));
+
+        comp.hibernate(swapDir, 1.0);
+        comp.wakeUp();
+
+        History.undo();
+        assertSamePixels(before, layer2.getImage());
+        History.redo();
+        assertSamePixels(after, layer2.getImage());
+    }
+
+    @Test
+    public void testGetImageWakesUpComposition() {
+        BufferedImage image = ImageUtils.copyImage(layer1.getImage());
+        LayerMask mask = layer2.getMask();
+        BufferedImage maskImage = ImageUtils.copyImage(mask.getImage());
+
+        comp.hibernate(swapDir, 1.0);
+        assertThat(comp.isHibernated()).isTrue();
+
+        assertSamePixels(image, layer1.getImage());
+        assertThat(comp.isHibernated()).isFalse();
+        assertSamePixels(maskImage, mask.getImage());
+    }
+
+    @Test
+    public void testScheduledHibernationCanBeCancelled() throws InvocationTargetException, InterruptedException {
+        BufferedImage image = ImageUtils.copyImage(layer1.getImage());
+
+        SwingUtilities.invokeAndWait(() -> comp.startHibernation(1.0));
+        assertThat(comp.isHibernated()).isTrue();
+        assertThat(comp.getHibernationProxy()).isNotNull();
+
+        // activated before the background thread could start
+        comp.wakeUp();
+        assertThat(comp.hibernateInBackground(swapDir)).isZero();
+        assertThat(comp.isHibernated()).isFalse();
+        assertSamePixels(image, layer1.getImage());
+    }
+
+    @Test
+    public void testBackgroundHibernationAndWakeUp() throws InvocationTargetException, InterruptedException {
+        BufferedImage image = ImageUtils.copyImage(layer2.getImage());
+
+        SwingUtilities.invokeAndWait(() -> comp.startHibernation(1.0));
+        assertThat(comp.hibernateInBackground(swapDir)).isPositive();
+        assertThat(comp.isHibernated()).isTrue();
+
+        SwingUtilities.invokeAndWait(comp::startWakeUp);
+        comp.wakeUpInBackground();
+        assertThat(comp.isHibernated()).isFalse();
+        assertSamePixels(image, layer2.getImage());
+    }
+
+    private static void fillRandom(BufferedImage img, long seed) {
+        Random random = new Random(seed);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package pixelitor.automate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.io.OpenRaster;
+import pixelitor.io.OutputFormat;
+import pixelitor.io.PXCFormat;
+import pixelitor.layers.ImageLayer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchEngineTest {
+    private File inputDir;
+    private File outputDir;
+
+    @Before
+    public void setUp() throws IOException {
+        inputDir = Files.createTempDirectory("batch_in").toFile();
+        outputDir = Files.createTempDirectory("batch_out").toFile();
+        for (int i = 0; i < 5; i++) {
+            ImageIO.write(new BufferedImage(200 + i, 100, TYPE_INT_RGB), "png", new File(inputDir, "img" + i + ".png"));
+        }
+        Files.write(new File(inputDir, "broken.png").toPath(), "not an image".getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir(inputDir);
+        deleteDir(outputDir);
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testResizeInParallel() throws InterruptedException, IOException {
+        BatchEngine engine = new BatchEngine(inputDir, outputDir, OutputFormat.PNG,
+                BatchEngine.resizeInBox(50, 50));
+        engine.setNumThreads(2, 3, 2);
+
+        BatchEngine.Result result = engine.run(null);
+        // the broken file doesn't stop the others
+        assertThat(result.getNumProcessed()).isEqualTo(5);
+        assertThat(result.getNumFailed()).isEqualTo(1);
+        assertThat(result.getErrors().get(0)).startsWith("broken.png");
+
+        for (int i = 0; i < 5; i++) {
+            BufferedImage out = ImageIO.read(new File(outputDir, "img" + i + ".png"));
+            assertThat(out.getWidth()).isEqualTo(50);
+            assertThat(out.getHeight()).isEqualTo((int) (50.0 / (200 + i) * 100));
+        }
+
+        // the existing files are not overwritten by default
+        result = new BatchEngine(inputDir, outputDir, OutputFormat.PNG, img -> img).run(null);
+        assertThat(result.getNumSkipped()).isEqualTo(5);
+        assertThat(result.getNumProcessed()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLayeredFiles() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(true);
+        BufferedImage pixels = new BufferedImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        Graphics2D g = pixels.createGraphics();
+        g.setColor(new Color(255, 0, 0, 200));
+        g.fillRect(0, 0, pixels.getWidth() / 2, pixels.getHeight());
+        g.dispose();
+        ((ImageLayer) comp.getLayer(1)).setImage(pixels);
+        BufferedImage expected = comp.getCompositeImage();
+
+        File layeredDir = Files.createTempDirectory("batch_layered").toFile();
+        try {
+            PXCFormat.write(comp, new File(layeredDir, "comp.pxc"));
+            OpenRaster.writeOpenRaster(comp, new File(layeredDir, "comp_layers.ora"), false);
+            OpenRaster.writeOpenRaster(comp, new File(layeredDir, "comp_merged.ora"), true);
+
+            // the files are flattened and written without creating layer buttons
+            BatchEngine engine = new BatchEngine(layeredDir, outputDir, OutputFormat.PXC, img -> img);
+            BatchEngine.Result result = engine.run(null);
+            assertThat(result.getErrors()).isEmpty();
+            assertThat(result.getNumProcessed()).isEqualTo(3);
+
+            for (String name : new String[]{"comp.pxc", "comp_layers.pxc", "comp_merged.pxc"}) {
+                Composition read = PXCFormat.read(new File(outputDir, name));
+                assertThat(read.getNrLayers()).isEqualTo(1);
+                read.decodeLazyLayers();
+                BufferedImage readPixels = ((ImageLayer) read.getLayer(0)).getImage();
+                for (int y = 0; y < expected.getHeight(); y++) {
+                    for (int x = 0; x < expected.getWidth(); x++) {
+                        assertThat(readPixels.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+                    }
+                }
+            }
+        } finally {
+            deleteDir(layeredDir);
+        }
+    }
+
+    @Test
+    public void testResidentImagesAreBounded() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        BatchEngine engine = new BatchEngine(inputDir, outputDir, OutputFormat.PNG, img -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return img;
+        });
+        engine.setNumThreads(3, 3, 3);
+        engine.setMaxResidentImages(1);
+
+        BatchEngine.Result result = engine.run(null);
+        assertThat(result.getNumProcessed()).isEqualTo(5);
+        assertThat(maxRunning.get()).isEqualTo(1);
+    }
+}
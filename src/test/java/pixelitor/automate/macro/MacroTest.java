@@ -0,0 +1,67 @@
+package pixelitor.automate.macro;
+
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.filters.Brightness;
+import pixelitor.filters.gui.FilterParam;
+import pixelitor.filters.gui.RangeParam;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MacroTest {
+    @Test
+    public void testSaveLoadAndReplayInFastPath() throws IOException {
+        Brightness brightness = new Brightness();
+        RangeParam add = findParam(brightness, "Brightness Add");
+        add.setValue(100, false);
+
+        Macro macro = new Macro(Arrays.asList(
+                new FilterMacroStep(brightness),
+                LayerMacroStep.DUPLICATE_LAYER,
+                LayerMacroStep.MOVE_LAYER_DOWN,
+                LayerMacroStep.FLATTEN_IMAGE));
+        add.setValue(0, false);
+
+        File file = File.createTempFile("macro", "." + Macro.FILE_EXTENSION);
+        Macro loaded;
+        try {
+            macro.save(file);
+            loaded = Macro.load(file);
+        } finally {
+            file.delete();
+        }
+        assertThat(loaded.getSteps()).hasSize(4);
+        assertThat(loaded.getSteps().get(1)).isSameAs(LayerMacroStep.DUPLICATE_LAYER);
+        assertThat(loaded.hasBrushStrokes()).isFalse();
+
+        BufferedImage img = new BufferedImage(10, 10, TYPE_INT_ARGB);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                img.setRGB(x, y, 0xFF_40_40_40);
+            }
+        }
+        Composition comp = Composition.fromImage(img, null, "test");
+        assertThat(comp.getIC()).isNull();
+
+        loaded.replay(comp);
+
+        assertThat(comp.getNrLayers()).isEqualTo(1);
+        // the recorded settings were used, not the current ones
+        assertThat(comp.getCompositeImage().getRGB(5, 5)).isEqualTo(0xFF_A4_A4_A4);
+    }
+
+    private static RangeParam findParam(Brightness filter, String name) {
+        for (FilterParam param : filter.getParamSet().getParamList()) {
+            if (param.getName().equals(name)) {
+                return (RangeParam) param;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
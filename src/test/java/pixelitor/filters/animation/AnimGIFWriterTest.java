@@ -0,0 +1,129 @@
+package pixelitor.filters.animation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class)
+public class AnimGIFWriterTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int NUM_FRAMES = 6;
+
+    private final boolean sharedPalette;
+    private File file;
+
+    public AnimGIFWriterTest(boolean sharedPalette) {
+        this.sharedPalette = sharedPalette;
+    }
+
+    @Parameters(name = "{index}: sharedPalette = {0}")
+    public static Collection<Object[]> instancesToTest() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("anim", ".gif");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testFramesAreRestored() throws IOException {
+        AnimGIFWriter writer = new AnimGIFWriter(file, 100, sharedPalette);
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            writer.addFrame(createFrame(i));
+        }
+        writer.finish();
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = ImageIO.getImageReaders(in).next();
+            reader.setInput(in);
+            assertThat(reader.getNumImages(true)).isEqualTo(NUM_FRAMES);
+
+            // the frames are painted over each other like a browser would do
+            BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB);
+            Graphics2D g = canvas.createGraphics();
+            for (int i = 0; i < NUM_FRAMES; i++) {
+                BufferedImage frameImage = reader.read(i);
+                Node descriptor = getImageDescriptor(reader.getImageMetadata(i));
+                int x = getIntAttribute(descriptor, "imageLeftPosition");
+                int y = getIntAttribute(descriptor, "imageTopPosition");
+                if (i > 0) {
+                    // only the moving rectangle is encoded
+                    assertThat(frameImage.getWidth()).isLessThan(WIDTH);
+                    assertThat(frameImage.getHeight()).isLessThan(HEIGHT);
+                }
+                g.drawImage(frameImage, x, y, null);
+
+                assertSimilar(canvas, createFrame(i));
+            }
+            g.dispose();
+            reader.dispose();
+        }
+    }
+
+    private static BufferedImage createFrame(int frameNr) {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(Color.YELLOW);
+        g.fillRect(0, 0, WIDTH, 5);
+        g.setColor(Color.RED);
+        g.fillRect(3 * frameNr, 10, 16, 16);
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSimilar(BufferedImage actual, BufferedImage expected) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int a = actual.getRGB(x, y);
+                int e = expected.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int diff = Math.abs(((a >>> shift) & 0xFF) - ((e >>> shift) & 0xFF));
+                    assertThat(diff).as("x = %d, y = %d", x, y).isLessThan(32);
+                }
+            }
+        }
+    }
+
+    private static Node getImageDescriptor(IIOMetadata metadata) {
+        Node root = metadata.getAsTree(metadata.getNativeMetadataFormatName());
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals("ImageDescriptor")) {
+                return node;
+            }
+        }
+        throw new AssertionError("no ImageDescriptor");
+    }
+
+    private static int getIntAttribute(Node node, String name) {
+        return Integer.parseInt(node.getAttributes().getNamedItem(name).getNodeValue());
+    }
+}
@@ -0,0 +1,62 @@
+package pixelitor.filters.animation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrameCacheTest {
+    private static final int SIZE = 10;
+
+    private FrameCache cache;
+
+    @Before
+    public void setUp() {
+        // room for two frames in memory
+        cache = new FrameCache(2 * 4 * SIZE * SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        cache.dispose();
+    }
+
+    @Test
+    public void testFramesAreMovedToDisk() {
+        for (int i = 0; i < 5; i++) {
+            cache.put(i, createFrame(i));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertThat(cache.contains(i)).isTrue();
+            BufferedImage frame = cache.get(i);
+            assertThat(frame).isNotNull();
+            assertThat(frame.getRGB(3, 3)).isEqualTo(createFrame(i).getRGB(3, 3));
+        }
+        assertThat(cache.get(5)).isNull();
+    }
+
+    @Test
+    public void testReleasedFramesCanBeRead() {
+        cache.put(0, createFrame(0));
+        cache.releaseMemory();
+        // unless the garbage collector cleared it
+        BufferedImage frame = cache.get(0);
+        if (frame != null) {
+            assertThat(frame.getRGB(0, 0)).isEqualTo(createFrame(0).getRGB(0, 0));
+        }
+    }
+
+    private static BufferedImage createFrame(int frameNr) {
+        BufferedImage img = new BufferedImage(SIZE, SIZE, TYPE_INT_ARGB_PRE);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                img.setRGB(x, y, 0xFF_00_00_00 | (frameNr * 40 << 16) | (x * 20 << 8) | y * 20);
+            }
+        }
+        return img;
+    }
+}
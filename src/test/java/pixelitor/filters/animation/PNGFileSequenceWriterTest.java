@@ -0,0 +1,69 @@
+package pixelitor.filters.animation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.TestMessageHandler;
+import pixelitor.utils.Messages;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PNGFileSequenceWriterTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        Messages.setMessageHandler(new TestMessageHandler());
+        dir = Files.createTempDirectory("frames").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void testFramesAreWrittenInOrder() throws IOException {
+        int numFrames = 20;
+        PNGFileSequenceWriter writer = new PNGFileSequenceWriter(dir, 3);
+        for (int i = 0; i < numFrames; i++) {
+            writer.addFrame(createFrame(i));
+            assertThat(writer.getQueueDepth()).isBetween(0, 6);
+        }
+        writer.finish();
+
+        assertThat(dir.list()).hasSize(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            File file = new File(dir, String.format("frame_%05d.png", i));
+            BufferedImage frame = ImageIO.read(file);
+            assertThat(frame.getRGB(1, 1)).isEqualTo(createFrame(i).getRGB(1, 1));
+        }
+        assertThat(writer.getQueueDepth()).isZero();
+        assertThat(writer.getStatistics()).startsWith(numFrames + " frames written");
+    }
+
+    private static BufferedImage createFrame(int frameNr) {
+        BufferedImage img = new BufferedImage(64, 48, TYPE_INT_ARGB);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                img.setRGB(x, y, 0xFF_00_00_00 | (frameNr * 10 << 16) | (x << 8) | y);
+            }
+        }
+        return img;
+    }
+}
@@ -23,6 +23,12 @@ import pixelitor.filters.ParamTest;
 import pixelitor.utils.ReseedSupport;
 
 import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -80,6 +86,49 @@ public class ParamSetTest {
         checkThatFilterWasNotCalled();
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCopyAndSetAllStates() throws IOException, ClassNotFoundException {
+        extraParam.setValue(42, false);
+        Map<String, ParamState> states = params.copyAllStates();
+        assertThat(states).containsKey("Extra Param");
+
+        // the states of all param types can be saved in macro files
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(states);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            states = (Map<String, ParamState>) in.readObject();
+        }
+
+        extraParam.setValue(7, false);
+        params.setAllStates(states);
+        assertThat(extraParam.getValue()).isEqualTo(42);
+
+        checkThatFilterWasNotCalled();
+    }
+
+    @Test
+    public void testScaledDistances() {
+        RangeParam radius = new RangeParam("Radius", 0, 10, 20).markAsDistance();
+        RangeParam amount = new RangeParam("Amount", 0, 10, 20);
+        GroupedRangeParam size = new GroupedRangeParam("Size", 0, 5, 20).markAsDistance();
+        ParamSet distanceParams = new ParamSet(radius, amount, size);
+
+        ParamSetState scaled = distanceParams.copyStateWithScaledDistances(4);
+        // the current values are not changed
+        assertThat(radius.getValue()).isEqualTo(10);
+        assertThat(size.getValue(0)).isEqualTo(5);
+
+        // the scaled values can be outside the range
+        distanceParams.setState(scaled);
+        assertThat(radius.getValue()).isEqualTo(40);
+        assertThat(amount.getValue()).isEqualTo(10);
+        assertThat(size.getValue(0)).isEqualTo(20);
+        assertThat(size.getValue(1)).isEqualTo(20);
+    }
+
     @Test
     public void testCanBeAnimated() {
         assertThat(params.canBeAnimated()).isTrue();
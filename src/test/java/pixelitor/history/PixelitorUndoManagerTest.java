@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Laszlo Balazs-Csiki
+ *
+ * This file is part of Pixelitor. Pixelitor is free software: you
+ * can redistribute it and/or modify it under the terms of the GNU
+ * General Public License, version 3 as published by the Free
+ * Software Foundation.
+ *
+ * Pixelitor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Pixelitor. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package pixelitor.history;
+
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.layers.ImageLayer;
+import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.image.BufferedImage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PixelitorUndoManagerTest {
+    private static final int NUM_EDITS = 4;
+
+    private Composition comp;
+    private ImageLayer layer;
+    private long editBytes;
+
+    @Before
+    public void setUp() {
+        comp = TestHelper.create2LayerComposition(false);
+        layer = (ImageLayer) comp.getLayer(1);
+        History.clear();
+    }
+
+    @Test
+    public void testDiscardingAdjustsTheSelectedIndex() {
+        PixelitorUndoManager undoManager = new PixelitorUndoManager();
+        for (int i = 0; i < NUM_EDITS; i++) {
+            undoManager.addEdit(createEdit(i));
+        }
+        undoManager.undo();
+        assertThat(undoManager.getSelectedIndex()).isEqualTo(2);
+        PixelitorEdit selected = undoManager.getElementAt(2);
+
+        long freed = undoManager.discardOldestEdits(1);
+        assertThat(freed).isEqualTo(editBytes);
+        assertThat(undoManager.getSize()).isEqualTo(NUM_EDITS - 1);
+        assertThat(undoManager.getSelectedIndex()).isEqualTo(1);
+        assertThat(undoManager.getElementAt(1)).isSameAs(selected);
+
+        // the last done edit is also discarded
+        undoManager.discardOldestEdits(2 * editBytes);
+        assertThat(undoManager.getSize()).isEqualTo(1);
+        assertThat(undoManager.getSelectedIndex()).isEqualTo(-1);
+        assertThat(undoManager.canRedo()).isTrue();
+        assertThat(undoManager.canUndo()).isFalse();
+    }
+
+    @Test
+    public void testDiscardingAdjustsTheUndoneEditCount() {
+        for (int i = 0; i < NUM_EDITS; i++) {
+            History.addEdit(createEdit(i));
+        }
+        History.undo();
+        History.undo();
+        assertThat(History.getNumUndoneEdits()).isEqualTo(2);
+
+        // only done edits are discarded
+        History.discardOldestEdits(2 * editBytes);
+        History.assertNumEditsIs(NUM_EDITS - 2);
+        assertThat(History.getNumUndoneEdits()).isEqualTo(2);
+
+        // one of the undone edits is also discarded
+        History.discardOldestEdits(1);
+        History.assertNumEditsIs(1);
+        assertThat(History.getNumUndoneEdits()).isEqualTo(1);
+        assertThat(History.canRedo()).isTrue();
+
+        History.discardOldestEdits(Long.MAX_VALUE);
+        History.assertNumEditsIs(0);
+        assertThat(History.getNumUndoneEdits()).isEqualTo(0);
+    }
+
+    private ImageEdit createEdit(int index) {
+        BufferedImage backup = ImageUtils.copyImage(layer.getImage());
+        backup.setRGB(0, 0, index);
+        editBytes = ImageUtils.getMemoryBytes(backup);
+        return new ImageEdit(comp, "Edit " + index, layer, backup, IgnoreSelection.YES, false);
+    }
+}
@@ -0,0 +1,89 @@
+package pixelitor.io;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_BYTE_INDEXED;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompatibleImageReaderTest {
+    @Test
+    public void testSamePixelsAsImageIO() throws IOException {
+        for (String format : new String[]{"png", "jpg", "bmp", "gif"}) {
+            for (int type : new int[]{TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_BYTE_GRAY, TYPE_BYTE_INDEXED}) {
+                if (format.equals("jpg") && type == TYPE_INT_ARGB) {
+                    // not supported, and on some JDKs the writer throws an exception
+                    continue;
+                }
+                File tmp = File.createTempFile("read_test", "." + format);
+                try {
+                    if (!ImageIO.write(createTestImage(137, 91, type), format, tmp)) {
+                        continue; // for example bmp doesn't support alpha
+                    }
+                    BufferedImage expected = ImageIO.read(tmp);
+                    BufferedImage actual = CompatibleImageReader.read(tmp);
+
+                    assertThat(actual.getType()).isEqualTo(TYPE_INT_ARGB);
+                    assertSamePixels(expected, actual, 1);
+                } finally {
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSubsampling() throws IOException {
+        for (int type : new int[]{TYPE_INT_RGB, TYPE_INT_ARGB}) {
+            File tmp = File.createTempFile("read_test", ".png");
+            try {
+                ImageIO.write(createTestImage(137, 91, type), "png", tmp);
+                BufferedImage expected = ImageIO.read(tmp);
+                try (ImageInputStream in = ImageIO.createImageInputStream(tmp)) {
+                    ImageReader reader = ImageIO.getImageReaders(in).next();
+                    reader.setInput(in);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(3, 3, 0, 0);
+                    BufferedImage actual = CompatibleImageReader.read(reader, param, false);
+
+                    assertThat(actual.getWidth()).isEqualTo(46);
+                    assertThat(actual.getHeight()).isEqualTo(31);
+                    assertSamePixels(expected, actual, 3);
+                    reader.dispose();
+                }
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static BufferedImage createTestImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(255, 0, 0, 200), width, height, new Color(0, 0, 255, 50)));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual, int subsampling) {
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x * subsampling, y * subsampling));
+            }
+        }
+    }
+}
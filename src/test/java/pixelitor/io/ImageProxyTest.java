@@ -0,0 +1,100 @@
+package pixelitor.io;
+
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.history.ImageEdit;
+import pixelitor.layers.ImageLayer;
+import pixelitor.selection.IgnoreSelection;
+import pixelitor.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ImageProxyTest {
+    @Test
+    public void testSubsampling() {
+        assertThat(ImageProxy.calcSubsampling(1000, 1000)).isEqualTo(1);
+        assertThat(ImageProxy.calcSubsampling(4000, 4000)).isEqualTo(2);
+        assertThat(ImageProxy.calcSubsampling(20000, 10000)).isEqualTo(8);
+    }
+
+    @Test
+    public void testCropIsRepeatedAtFullResolution() throws IOException {
+        BufferedImage src = createTestImage(200, 100);
+        File tmp = File.createTempFile("proxy_test", ".png");
+        try {
+            ImageIO.write(src, "png", tmp);
+            Composition comp = ImageProxy.open(tmp, 4);
+            assertThat(comp.getCanvasWidth()).isEqualTo(50);
+            assertThat(comp.getCanvasHeight()).isEqualTo(25);
+
+            ImageProxy proxy = comp.getProxy();
+            ImageLayer layer = (ImageLayer) comp.getLayer(0);
+            assertThat(layer.getImage().getRGB(3, 2)).isEqualTo(src.getRGB(12, 8));
+
+            ImageEdit edit = new ImageEdit(comp, "Test", layer,
+                    ImageUtils.copyImage(layer.getImage()), IgnoreSelection.YES, false);
+            proxy.editAdded(edit);
+            assertThat(proxy.getNumUnrecordedEdits()).isEqualTo(1);
+
+            proxy.cropped(new Rectangle(5, 5, 10, 10), edit);
+            assertThat(proxy.getNumUnrecordedEdits()).isEqualTo(0);
+            BufferedImage cropped = proxy.renderFullResolution();
+            assertThat(cropped.getWidth()).isEqualTo(40);
+            assertThat(cropped.getHeight()).isEqualTo(40);
+            assertThat(cropped.getRGB(7, 3)).isEqualTo(src.getRGB(27, 23));
+
+            proxy.editUndone(edit);
+            assertThat(proxy.renderFullResolution().getWidth()).isEqualTo(200);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testUndoneEditsAreDroppedByNewEdits() throws IOException {
+        BufferedImage src = createTestImage(200, 100);
+        File tmp = File.createTempFile("proxy_test", ".png");
+        try {
+            ImageIO.write(src, "png", tmp);
+            Composition comp = ImageProxy.open(tmp, 4);
+            ImageProxy proxy = comp.getProxy();
+            ImageLayer layer = (ImageLayer) comp.getLayer(0);
+
+            ImageEdit cropEdit = new ImageEdit(comp, "Crop", layer,
+                    ImageUtils.copyImage(layer.getImage()), IgnoreSelection.YES, false);
+            proxy.editAdded(cropEdit);
+            proxy.cropped(new Rectangle(5, 5, 10, 10), cropEdit);
+            proxy.editUndone(cropEdit);
+
+            // the crop can't be redone after a new edit
+            ImageEdit otherEdit = new ImageEdit(comp, "Other", layer,
+                    ImageUtils.copyImage(layer.getImage()), IgnoreSelection.YES, false);
+            proxy.editAdded(otherEdit);
+            proxy.editRedone(cropEdit);
+
+            assertThat(proxy.getNumUnrecordedEdits()).isEqualTo(1);
+            assertThat(proxy.renderFullResolution().getWidth()).isEqualTo(200);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static BufferedImage createTestImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, width, height, Color.BLUE));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return img;
+    }
+}
@@ -0,0 +1,90 @@
+package pixelitor.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.MappedImage;
+import pixelitor.layers.PackedImage;
+import pixelitor.layers.SparseImage;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LayerPNGExportTest {
+    private File outputDir;
+
+    @Before
+    public void setUp() throws IOException {
+        outputDir = Files.createTempDirectory("layer_export").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        outputDir.delete();
+    }
+
+    @Test
+    public void testPackedLayersAreWrittenWithoutUnpacking() throws Exception {
+        testPackedLayers(false);
+    }
+
+    @Test
+    public void testPackedLayersAreCroppedWithoutUnpacking() throws Exception {
+        testPackedLayers(true);
+    }
+
+    private void testPackedLayers(boolean crop) throws Exception {
+        BufferedImage pixels = createTestImage(1000, 800);
+        Composition comp = Composition.fromImage(pixels, null, "Test");
+
+        ImageLayer sparseLayer = new ImageLayer(comp, SparseImage.fromImage(pixels), "sparse");
+        comp.addLayerNoGUI(sparseLayer);
+        ImageLayer mappedLayer = new ImageLayer(comp, MappedImage.fromImage(pixels), "mapped");
+        comp.addLayerNoGUI(mappedLayer);
+        ImageLayer emptyLayer = new ImageLayer(comp, SparseImage.createEmpty(1000, 800, TYPE_INT_ARGB), "empty");
+        comp.addLayerNoGUI(emptyLayer);
+
+        LayerPNGExport export = new LayerPNGExport(comp, outputDir, true, crop);
+        export.encodeLayers(progress -> {
+        }, () -> false);
+
+        File[] files = outputDir.listFiles();
+        assertThat(files).hasSize(3);
+        File first = outputDir.listFiles((dir, name) -> name.startsWith("000_"))[0];
+        byte[] expected = Files.readAllBytes(first.toPath());
+        assertThat(Files.readAllBytes(new File(outputDir, "001_sparse.png").toPath())).isEqualTo(expected);
+        assertThat(Files.readAllBytes(new File(outputDir, "002_mapped.png").toPath())).isEqualTo(expected);
+
+        // the layers are still packed
+        assertThat(mappedLayer.isOutOfCore()).isTrue();
+        PackedImage packed = sparseLayer.startReadingPacked();
+        assertThat(packed).isInstanceOf(SparseImage.class);
+        packed.endRead();
+    }
+
+    private static BufferedImage createTestImage(int width, int height) {
+        // the content is in the middle, so that most tiles are empty
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(300, 300, Color.RED, 600, 450, new Color(0, 0, 255, 100)));
+        g.fillOval(300, 300, 300, 150);
+        g.dispose();
+        return img;
+    }
+}
@@ -0,0 +1,57 @@
+package pixelitor.io;
+
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.layers.ImageLayer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OpenRasterTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        ImageLayer layer = (ImageLayer) comp.getLayer(1);
+        int width = comp.getCanvasWidth() + 10;
+        int height = comp.getCanvasHeight() + 20;
+        BufferedImage pixels = new BufferedImage(width, height, TYPE_INT_ARGB);
+        Graphics2D g = pixels.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, width / 2, height);
+        g.setColor(new Color(0, 0, 255, 100));
+        g.fillRect(width / 2, 0, width / 2, height / 3);
+        g.dispose();
+        layer.setImage(pixels);
+        layer.setTranslation(-4, -7);
+
+        File tmp = File.createTempFile("ora_test", ".ora");
+        try {
+            OpenRaster.writeOpenRaster(comp, tmp, false);
+            Composition read = OpenRaster.readOpenRaster(tmp);
+
+            assertThat(read.getNrLayers()).isEqualTo(2);
+            ImageLayer readLayer = (ImageLayer) read.getLayer(1);
+            assertThat(readLayer.getName()).isEqualTo(layer.getName());
+            assertThat(readLayer.getTX()).isEqualTo(-4);
+            assertThat(readLayer.getTY()).isEqualTo(-7);
+
+            read.decodeLazyLayers();
+            BufferedImage readPixels = readLayer.getImage();
+            assertThat(readPixels.getWidth()).isEqualTo(width);
+            assertThat(readPixels.getHeight()).isEqualTo(height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertThat(readPixels.getRGB(x, y)).isEqualTo(pixels.getRGB(x, y));
+                }
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+}
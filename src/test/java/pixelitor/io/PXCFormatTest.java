@@ -0,0 +1,338 @@
+package pixelitor.io;
+
+import org.junit.Test;
+import pixelitor.Composition;
+import pixelitor.TestHelper;
+import pixelitor.history.AddToHistory;
+import pixelitor.layers.ImageLayer;
+import pixelitor.layers.MappedImage;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class PXCFormatTest {
+    @Test
+    public void testTileCompression() throws IOException {
+        for (int type : new int[]{TYPE_INT_ARGB, TYPE_BYTE_GRAY}) {
+            BufferedImage src = createTestImage(300, 200, type);
+            Object pixels = src.getRaster().getDataElements(0, 0, 300, 200, null);
+            byte[] compressed = PXCFormat.compressPixels(pixels, 300, 200);
+
+            BufferedImage dest = new BufferedImage(300, 200, type);
+            PXCFormat.decompressPixels(compressed, dest);
+            assertSamePixels(src, dest);
+        }
+    }
+
+    @Test
+    public void testTransparentTilesAreNotStored() {
+        assertThat(PXCFormat.compressPixels(new int[100], 10, 10)).isNull();
+    }
+
+    @Test
+    public void testVersionsAreReadable() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        ImageLayer layer = (ImageLayer) comp.getLayer(1);
+        BufferedImage pixels = createTestImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        layer.setImage(pixels);
+
+        for (int version = 3; version <= PXCFormat.CURRENT_VERSION; version++) {
+            File tmp = File.createTempFile("pxc_test", ".pxc");
+            try {
+                PXCFormat.write(comp, tmp, version);
+                Composition read = PXCFormat.read(tmp);
+
+                assertThat(read.getNrLayers()).isEqualTo(2);
+                assertThat(read.getLayer(1).getName()).isEqualTo(layer.getName());
+                assertSamePixels(pixels, ((ImageLayer) read.getLayer(1)).getImage());
+            } finally {
+                tmp.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptOffsetsAreRejected() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            PXCFormat.write(comp, tmp);
+            long tocPos;
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                // the magic bytes, the version, the header version and the tile size
+                raf.seek(11);
+                tocPos = raf.readLong();
+                raf.seek(11);
+                raf.writeLong(tmp.length() + 1000);
+            }
+            assertIsRejected(tmp);
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.seek(11);
+                raf.writeLong(tocPos);
+                // the length of the first tile of the first image
+                raf.seek(tocPos + 4 + 12 + 8);
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+            assertIsRejected(tmp);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void assertIsRejected(File file) throws Exception {
+        try {
+            PXCFormat.read(file);
+            fail("NotPxcFormatException expected");
+        } catch (NotPxcFormatException e) {
+            assertThat(e.getMessage()).startsWith(file.getName());
+        }
+    }
+
+    @Test
+    public void testDecodingInAnotherThread() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        BufferedImage pixels = createTestImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        ((ImageLayer) comp.getLayer(1)).setImage(pixels);
+
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PXCFormat.write(comp, tmp);
+            // only the pixels are decoded in the other thread
+            DecodedFile decoded = executor.submit(() -> PXCFormat.decode(tmp, false)).get();
+
+            Composition read = decoded.toComposition();
+            assertThat(read.getFile()).isEqualTo(tmp);
+            assertThat(read.getNrLayers()).isEqualTo(2);
+            assertSamePixels(pixels, ((ImageLayer) read.getLayer(1)).getImage());
+        } finally {
+            executor.shutdown();
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testLazyLoading() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        BufferedImage pixels = createTestImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        ((ImageLayer) comp.getLayer(1)).setImage(pixels);
+
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            PXCFormat.write(comp, tmp);
+            Composition read = PXCFormat.read(tmp);
+            assertThat(read.isLoading()).isTrue();
+            assertThat(read.getLoadingPreview().getWidth()).isEqualTo(comp.getCanvasWidth());
+
+            ImageLayer layer = (ImageLayer) read.getLayer(1);
+            assertThat(layer.decodeLazyPixels()).isTrue();
+            assertThat(layer.decodeLazyPixels()).isFalse();
+            assertSamePixels(pixels, layer.getImage());
+
+            // saving over the source file must not lose the other layer
+            PXCFormat.write(read, tmp);
+            read = PXCFormat.read(tmp, false);
+            assertThat(read.isLoading()).isFalse();
+            assertSamePixels(pixels, ((ImageLayer) read.getLayer(1)).getImage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testFailedSaveKeepsTheExistingFile() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        // a non-empty directory in the place of the temporary file makes the save fail
+        File blocker = new File(tmp.getParentFile(), tmp.getName() + ".saving");
+        File blockerContent = new File(blocker, "content");
+        try {
+            PXCFormat.write(comp, tmp);
+            long savedLength = tmp.length();
+
+            assertThat(blocker.mkdir()).isTrue();
+            assertThat(blockerContent.createNewFile()).isTrue();
+            try {
+                PXCFormat.write(comp, tmp);
+                fail("IOException expected");
+            } catch (IOException e) {
+                // expected
+            }
+
+            assertThat(tmp.length()).isEqualTo(savedLength);
+            assertThat(PXCFormat.read(tmp, false).getNrLayers()).isEqualTo(2);
+        } finally {
+            blockerContent.delete();
+            blocker.delete();
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByLaterEdits() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        ImageLayer layer = (ImageLayer) comp.getLayer(1);
+        BufferedImage pixels = createTestImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        layer.setImage(pixels);
+        BufferedImage expected = ImageUtils.copyImage(pixels);
+
+        SnapshotWriter snapshot = PXCFormat.createSnapshot(comp);
+        // edit the composition before the snapshot is written
+        pixels.setRGB(0, 0, 0xFF123456);
+        layer.setName("renamed", AddToHistory.NO);
+
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            OpenSaveManager.writeAtomically(snapshot, tmp);
+            Composition read = PXCFormat.read(tmp, false);
+            assertThat(read.getLayer(1).getName()).isEqualTo("layer 2");
+            assertSamePixels(expected, ((ImageLayer) read.getLayer(1)).getImage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testUnchangedTilesAreReused() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        ImageLayer layer = (ImageLayer) comp.getLayer(1);
+        BufferedImage pixels = createTestImage(600, 600, TYPE_INT_ARGB);
+        layer.setImage(pixels);
+
+        File previous = File.createTempFile("pxc_test", ".pxc");
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            PXCFormat.write(comp, previous);
+            assertThat(PXCFormat.writeIncrementally(comp, tmp, null)).isEqualTo(0);
+
+            // change only the first tile
+            pixels.setRGB(3, 3, 0xFF123456);
+            int numCopiedTiles = PXCFormat.writeIncrementally(comp, tmp, previous);
+            assertThat(numCopiedTiles).isGreaterThan(0);
+
+            Composition read = PXCFormat.read(tmp, false);
+            assertSamePixels(pixels, ((ImageLayer) read.getLayer(1)).getImage());
+        } finally {
+            previous.delete();
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testTilesWithSameChecksumAreComparedBeforeReuse() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        ImageLayer layer = (ImageLayer) comp.getLayer(1);
+        BufferedImage pixels = createTestImage(600, 600, TYPE_INT_ARGB);
+        BufferedImage otherPixels = createTestImage(600, 600, TYPE_INT_ARGB);
+        otherPixels.setRGB(3, 3, 0xFF123456);
+
+        File current = File.createTempFile("pxc_test", ".pxc");
+        File previous = File.createTempFile("pxc_test", ".pxc");
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            layer.setImage(pixels);
+            PXCFormat.write(comp, current);
+            layer.setImage(otherPixels);
+            PXCFormat.write(comp, previous);
+
+            // the first tile of the previous file has different pixels,
+            // but it claims to have the checksum of the current tile
+            copyChecksums(current, previous);
+
+            layer.setImage(pixels);
+            PXCFormat.writeIncrementally(comp, tmp, previous);
+
+            Composition read = PXCFormat.read(tmp, false);
+            assertSamePixels(pixels, ((ImageLayer) read.getLayer(1)).getImage());
+        } finally {
+            current.delete();
+            previous.delete();
+            tmp.delete();
+        }
+    }
+
+    @Test
+    public void testOutOfCoreLayersAreWrittenWithoutCopying() throws Exception {
+        Composition comp = TestHelper.create2LayerComposition(false);
+        BufferedImage pixels = createTestImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        ImageLayer layer = new ImageLayer(comp, MappedImage.fromImage(pixels), "mapped");
+        comp.addLayerNoGUI(layer);
+        assertThat(comp.hasOutOfCoreLayers()).isTrue();
+
+        File tmp = File.createTempFile("pxc_test", ".pxc");
+        try {
+            OutputFormat.PXC.write(comp, tmp);
+            Composition read = PXCFormat.read(tmp, false);
+            assertThat(read.getNrLayers()).isEqualTo(3);
+            assertSamePixels(pixels, ((ImageLayer) read.getLayer(2)).getImage());
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Overwrites the tile checksums in the table of contents of the
+     * target file with the ones of the source file, which must
+     * contain images with the same sizes
+     */
+    private static void copyChecksums(File source, File target) throws IOException {
+        try (RandomAccessFile src = new RandomAccessFile(source, "r");
+             RandomAccessFile dest = new RandomAccessFile(target, "rw")) {
+            // the magic bytes, the version, the header version and the tile size
+            src.seek(11);
+            dest.seek(11);
+            long srcPos = src.readLong();
+            long destPos = dest.readLong();
+            src.seek(srcPos);
+            dest.seek(destPos);
+            int numImages = src.readInt();
+            dest.readInt();
+            for (int i = 0; i < numImages; i++) {
+                int width = src.readInt();
+                int height = src.readInt();
+                src.readInt();
+                dest.skipBytes(12);
+                int numTiles = ((width + 255) / 256) * ((height + 255) / 256);
+                for (int t = 0; t < numTiles; t++) {
+                    src.skipBytes(12);
+                    long checksum = src.readLong();
+                    dest.skipBytes(12);
+                    dest.writeLong(checksum);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage createTestImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, width, height, new Color(0, 0, 255, 100)));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package pixelitor.io;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Adler32;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PngOutputTest {
+    @Test
+    public void testImagesCanBeReadBack() throws IOException {
+        // high enough for several stripes
+        for (int type : new int[]{TYPE_INT_ARGB, TYPE_INT_ARGB_PRE, TYPE_INT_RGB, TYPE_BYTE_GRAY}) {
+            BufferedImage src = createTestImage(300, 1000, type);
+            for (PngOutput.FilterStrategy filter : PngOutput.FilterStrategy.values()) {
+                for (boolean parallel : new boolean[]{true, false}) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    PngOutput.write(src, out, 1, filter, parallel);
+
+                    BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+                    assertThat(read.getWidth()).isEqualTo(300);
+                    assertThat(read.getHeight()).isEqualTo(1000);
+                    for (int y = 0; y < 1000; y += 7) {
+                        for (int x = 0; x < 300; x++) {
+                            assertThat(read.getRGB(x, y)).isEqualTo(src.getRGB(x, y));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, 40_000);
+        Adler32 second = new Adler32();
+        second.update(data, 40_000, 60_000);
+
+        long combined = PngOutput.combineAdler32(first.getValue(), second.getValue(), 60_000);
+        assertThat(combined).isEqualTo(whole.getValue());
+    }
+
+    private static BufferedImage createTestImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, width, height, new Color(0, 0, 255, 100)));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(30, 200, 30, 180));
+        g.fillOval(20, 100, 200, 600);
+        g.dispose();
+        return img;
+    }
+}
@@ -0,0 +1,106 @@
+package pixelitor.io;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import pixelitor.Composition;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class)
+public class StripExportTest {
+    private final OutputFormat format;
+
+    private File stripFile;
+    private File snapshotFile;
+
+    public StripExportTest(OutputFormat format) {
+        this.format = format;
+    }
+
+    @Parameters(name = "{index}: format = {0}")
+    public static Collection<Object[]> instancesToTest() {
+        return Arrays.asList(new Object[][]{
+                {OutputFormat.PNG},
+                {OutputFormat.JPG},
+                {OutputFormat.BMP},
+        });
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        StripExport.setMinPixels(0);
+        stripFile = File.createTempFile("strip_export", "." + format);
+        snapshotFile = File.createTempFile("snapshot_export", "." + format);
+    }
+
+    @After
+    public void tearDown() {
+        StripExport.setMinPixels(16_000_000L);
+        stripFile.delete();
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testSameFileAsWithFullComposite() throws IOException {
+        // the height is not divisible by the strip height
+        Composition comp = Composition.fromImage(createTestImage(2000, 1201), null, "Test");
+        assertThat(StripExport.isUseful(comp)).isTrue();
+
+        format.write(comp, stripFile);
+        format.createSnapshot(comp).write(snapshotFile);
+
+        byte[] stripBytes = Files.readAllBytes(stripFile.toPath());
+        byte[] snapshotBytes = Files.readAllBytes(snapshotFile.toPath());
+        assertThat(stripBytes).isEqualTo(snapshotBytes);
+    }
+
+    @Test
+    public void testStripsOfCachedComposite() throws IOException {
+        Composition comp = Composition.fromImage(createTestImage(1500, 900), null, "Test");
+        comp.getCompositeImage();
+
+        format.write(comp, stripFile);
+        format.createSnapshot(comp).write(snapshotFile);
+
+        byte[] stripBytes = Files.readAllBytes(stripFile.toPath());
+        byte[] snapshotBytes = Files.readAllBytes(snapshotFile.toPath());
+        assertThat(stripBytes).isEqualTo(snapshotBytes);
+    }
+
+    @Test
+    public void testStreamedImageSizeLimit() {
+        // 3 * width * height must fit into an int
+        assertThat(StripExport.fitsStreamedImage(26_754, 26_755)).isTrue();
+        assertThat(StripExport.fitsStreamedImage(26_755, 26_755)).isFalse();
+        assertThat(StripExport.fitsStreamedImage(65_536, 10_922)).isTrue();
+        assertThat(StripExport.fitsStreamedImage(65_536, 10_923)).isFalse();
+        assertThat(StripExport.fitsStreamedImage(Integer.MAX_VALUE / 3, 1)).isTrue();
+        assertThat(StripExport.fitsStreamedImage(Integer.MAX_VALUE / 3, 2)).isFalse();
+    }
+
+    private static BufferedImage createTestImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(255, 0, 0, 50), width, height, Color.BLUE));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.GREEN);
+        g.fillOval(width / 4, height / 4, width / 2, height / 2);
+        g.dispose();
+        return img;
+    }
+}
@@ -36,11 +36,14 @@ import pixelitor.testutils.WithMask;
 import pixelitor.tools.FgBgColorSelector;
 
 import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
 import java.util.Collection;
 
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
@@ -286,4 +289,23 @@ public class ImageLayerTest {
             assertThat(layer.hasMask()).isFalse();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBrushStrokeOnEmptyLayerIsShown() {
+        Composition comp = layer.getComp();
+        ImageLayer emptyLayer = new ImageLayer(comp, "empty");
+
+        TmpDrawingLayer tmpLayer = emptyLayer.createTmpDrawingLayer(AlphaComposite.SrcOver, false);
+        Graphics2D tmpG = tmpLayer.getGraphics();
+        tmpG.setColor(Color.RED);
+        tmpG.fillRect(0, 0, 5, 5);
+
+        BufferedImage result = new BufferedImage(comp.getCanvasWidth(), comp.getCanvasHeight(), TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        emptyLayer.paintLayerOnGraphics(g, true);
+        g.dispose();
+        assertThat(result.getRGB(2, 2)).isEqualTo(Color.RED.getRGB());
+
+        emptyLayer.mergeTmpDrawingLayerDown();
+    }
+}
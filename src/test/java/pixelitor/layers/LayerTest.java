@@ -218,12 +218,12 @@ public class LayerTest {
         int canvasWidth = canvas.getWidth();
         int canvasHeight = canvas.getHeight();
 
-        layer.resize(canvasWidth, canvasHeight, true);
+        layer.resize(canvasWidth, canvasHeight);
 
-        layer.resize(30, 25, true);
-        layer.resize(25, 30, false);
+        layer.resize(30, 25);
+        layer.resize(25, 30);
 
-        layer.resize(canvasWidth, canvasHeight, true);
+        layer.resize(canvasWidth, canvasHeight);
     }
 
     @Test
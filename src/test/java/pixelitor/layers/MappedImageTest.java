@@ -0,0 +1,153 @@
+package pixelitor.layers;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedImageTest {
+    private static final int WIDTH = 700;
+    private static final int HEIGHT = 500;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        BufferedImage img = createTestImage(TYPE_INT_ARGB_PRE);
+        MappedImage mapped = MappedImage.fromImage(img);
+        try {
+            assertThat(mapped.getWidth()).isEqualTo(WIDTH);
+            assertThat(mapped.getHeight()).isEqualTo(HEIGHT);
+            assertSamePixels(img, mapped.toImage());
+        } finally {
+            mapped.dispose();
+        }
+    }
+
+    @Test
+    public void testDisposalIsDeferredWhileRead() throws IOException {
+        BufferedImage img = createTestImage(TYPE_INT_ARGB);
+        MappedImage mapped = MappedImage.fromImage(img);
+        assertThat(mapped.startRead()).isTrue();
+
+        mapped.dispose();
+        assertSamePixels(img, mapped.toImage());
+        assertThat(mapped.startRead()).isFalse();
+
+        mapped.endRead();
+    }
+
+    @Test
+    public void testGrayRoundTrip() throws IOException {
+        BufferedImage img = createTestImage(TYPE_BYTE_GRAY);
+        MappedImage mapped = MappedImage.fromImage(img);
+        try {
+            BufferedImage back = mapped.toImage();
+            assertThat(back.getType()).isEqualTo(TYPE_BYTE_GRAY);
+            assertSamePixels(img, back);
+        } finally {
+            mapped.dispose();
+        }
+    }
+
+    @Test
+    public void testPaintingWithClip() throws IOException {
+        BufferedImage img = createTestImage(TYPE_INT_ARGB);
+        MappedImage mapped = MappedImage.fromImage(img);
+        try {
+            BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB);
+            Graphics2D g = expected.createGraphics();
+            g.setClip(300, 200, 150, 100);
+            g.drawImage(img, -20, 10, null);
+            g.dispose();
+
+            BufferedImage actual = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB);
+            g = actual.createGraphics();
+            g.setClip(300, 200, 150, 100);
+            mapped.paint(g, -20, 10);
+            g.dispose();
+
+            assertSamePixels(expected, actual);
+        } finally {
+            mapped.dispose();
+        }
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        BufferedImage img = createTestImage(TYPE_INT_ARGB);
+        MappedImage mapped = MappedImage.fromImage(img);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            mapped.writePixels(out);
+        } finally {
+            mapped.dispose();
+        }
+        assertThat(bytes.size()).isEqualTo(4 * WIDTH * HEIGHT);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            MappedImage read = MappedImage.readPixels(in, WIDTH, HEIGHT, TYPE_INT_ARGB);
+            try {
+                assertSamePixels(img, read.toImage());
+            } finally {
+                read.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testMapTiles() throws IOException {
+        BufferedImage img = createTestImage(TYPE_INT_ARGB);
+        MappedImage mapped = MappedImage.fromImage(img);
+        MappedImage inverted = mapped.mapTiles(MappedImageTest::invert);
+        try {
+            assertSamePixels(invert(img), inverted.toImage());
+            // the original is not changed
+            assertSamePixels(img, mapped.toImage());
+        } finally {
+            mapped.dispose();
+            inverted.dispose();
+        }
+    }
+
+    private static BufferedImage invert(BufferedImage src) {
+        BufferedImage dest = new BufferedImage(src.getWidth(), src.getHeight(), src.getType());
+        for (int y = 0; y < src.getHeight(); y++) {
+            for (int x = 0; x < src.getWidth(); x++) {
+                dest.setRGB(x, y, src.getRGB(x, y) ^ 0x00FFFFFF);
+            }
+        }
+        return dest;
+    }
+
+    private static BufferedImage createTestImage(int type) {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, type);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, WIDTH, HEIGHT, new Color(0, 0, 255, 100)));
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(Color.WHITE);
+        g.fillOval(250, 150, 300, 200);
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package pixelitor.layers;
+
+import org.junit.Test;
+import pixelitor.utils.ImageUtils;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SparseImageTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 700;
+
+    @Test
+    public void testOpaqueImageIsNotConverted() {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_RGB);
+        assertThat(SparseImage.fromImage(img)).isNull();
+    }
+
+    @Test
+    public void testMostlyTransparentImage() {
+        BufferedImage img = createSmallObjectImage();
+        SparseImage sparse = SparseImage.fromImage(img);
+
+        assertThat(sparse).isNotNull();
+        assertThat(sparse.getMemoryBytes()).isLessThan(ImageUtils.getMemoryBytes(img) / 4);
+        assertThat(sparse.getContentBounds()).isEqualTo(new Rectangle(256, 256, 256, 256));
+        assertSamePixels(img, sparse.toImage());
+    }
+
+    @Test
+    public void testEmptyImage() {
+        SparseImage sparse = SparseImage.createEmpty(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+
+        assertThat(sparse.getMemoryBytes()).isEqualTo(0);
+        assertThat(sparse.getContentBounds().isEmpty()).isTrue();
+        assertSamePixels(new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE), sparse.toImage());
+    }
+
+    @Test
+    public void testPaintingSkipsOnlyTransparentTiles() {
+        BufferedImage img = createSmallObjectImage();
+        SparseImage sparse = SparseImage.fromImage(img);
+
+        BufferedImage expected = createBackground();
+        Graphics2D g = expected.createGraphics();
+        g.drawImage(img, 10, 20, null);
+        g.dispose();
+
+        BufferedImage actual = createBackground();
+        g = actual.createGraphics();
+        sparse.paint(g, 10, 20);
+        g.dispose();
+
+        assertSamePixels(expected, actual);
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        BufferedImage img = createSmallObjectImage();
+        SparseImage sparse = SparseImage.fromImage(img);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            sparse.write(out);
+        }
+        // the transparent tiles are not written
+        assertThat((long) bytes.size()).isLessThan(ImageUtils.getMemoryBytes(img) / 4);
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            SparseImage read = SparseImage.read(in);
+            assertSamePixels(img, read.toImage());
+        }
+    }
+
+    private static BufferedImage createSmallObjectImage() {
+        BufferedImage img = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_ARGB_PRE);
+        Graphics2D g = img.createGraphics();
+        g.setColor(new Color(255, 0, 0, 128));
+        g.fillOval(300, 280, 150, 120);
+        g.dispose();
+        return img;
+    }
+
+    private static BufferedImage createBackground() {
+        BufferedImage img = new BufferedImage(WIDTH + 50, HEIGHT + 50, TYPE_INT_ARGB_PRE);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 0, WIDTH + 50, HEIGHT + 50);
+        g.dispose();
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+}
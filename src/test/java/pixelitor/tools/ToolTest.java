@@ -14,6 +14,7 @@ import pixelitor.ImageDisplayStub;
 import pixelitor.MessageHandler;
 import pixelitor.TestHelper;
 import pixelitor.TestMessageHandler;
+import pixelitor.history.History;
 import pixelitor.utils.Messages;
 
 import javax.swing.*;
@@ -83,6 +84,18 @@ public class ToolTest {
         // TODO space should also be tested
     }
 
+    @Test
+    public void simpleStrokeWithSuspendedHistory() {
+        // the auto paint suspends the history, and
+        // the tools make no undo copies meanwhile
+        History.setSuspended(true);
+        try {
+            strokeMouseLeftRight();
+        } finally {
+            History.setSuspended(false);
+        }
+    }
+
     private void strokeMouseLeftRight() {
         strokeAltYesNo(Mouse.LEFT);
         strokeAltYesNo(Mouse.RIGHT);
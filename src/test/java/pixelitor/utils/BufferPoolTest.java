@@ -0,0 +1,86 @@
+package pixelitor.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferPoolTest {
+    @Before
+    public void setUp() {
+        BufferPool.clear();
+        BufferPool.resetStatistics();
+    }
+
+    @Test
+    public void testArraysAreReusedAndCleared() {
+        int[] first = BufferPool.borrowInts(1000);
+        first[42] = 7;
+        BufferPool.returnInts(first);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(4000);
+
+        int[] second = BufferPool.borrowInts(1000);
+        assertThat(second).isSameAs(first);
+        assertThat(second[42]).isEqualTo(0);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(0);
+
+        // a different size needs a new array
+        int[] other = BufferPool.borrowInts(999);
+        assertThat(other).isNotSameAs(first);
+
+        BufferPool.returnInts(second);
+        BufferPool.returnInts(other);
+        assertThat(BufferPool.getNumAllocations()).isEqualTo(2);
+        assertThat(BufferPool.getNumReuses()).isEqualTo(1);
+        assertThat(BufferPool.getNumBorrowedArrays()).isEqualTo(0);
+    }
+
+    @Test
+    public void testImagesAreReusedAndCleared() {
+        BufferedImage first = BufferPool.borrowImage(20, 10, TYPE_INT_ARGB);
+        first.setRGB(5, 5, 0xFF00FF00);
+        BufferPool.returnImage(first);
+
+        BufferedImage second = BufferPool.borrowImage(20, 10, TYPE_INT_ARGB);
+        assertThat(second).isSameAs(first);
+        assertThat(second.getRGB(5, 5)).isEqualTo(0);
+        BufferPool.returnImage(second);
+    }
+
+    @Test
+    public void testForeignAndKeptImagesAreNotPooled() {
+        BufferPool.returnImage(new BufferedImage(20, 10, TYPE_INT_ARGB));
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(0);
+
+        BufferedImage kept = BufferPool.borrowImage(20, 10, TYPE_INT_ARGB);
+        BufferPool.keepImage(kept);
+        BufferPool.returnImage(kept);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testForeignArraysAreNotPooled() {
+        int numBorrowed = BufferPool.getNumBorrowedArrays();
+        BufferPool.returnInts(new int[1000]);
+        BufferPool.returnFloats(new float[1000]);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(0);
+        assertThat(BufferPool.getNumBorrowedArrays()).isEqualTo(numBorrowed);
+
+        // a borrowed array can be returned only once
+        int[] borrowed = BufferPool.borrowInts(1000);
+        BufferPool.returnInts(borrowed);
+        BufferPool.returnInts(borrowed);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(4000);
+        BufferPool.clear();
+    }
+
+    @Test
+    public void testClear() {
+        BufferPool.returnFloats(BufferPool.borrowFloats(100));
+        assertThat(BufferPool.clear()).isEqualTo(400);
+        assertThat(BufferPool.getPooledBytes()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,103 @@
+package pixelitor.utils;
+
+import org.junit.Test;
+import pixelitor.utils.Resampler.Kernel;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResamplerTest {
+    private static final int[] TYPES = {TYPE_INT_ARGB, TYPE_INT_ARGB_PRE, TYPE_INT_RGB, TYPE_BYTE_GRAY};
+
+    @Test
+    public void testUniformColorIsKept() {
+        for (int type : TYPES) {
+            BufferedImage src = new BufferedImage(101, 67, type);
+            Graphics2D g = src.createGraphics();
+            g.setColor(new Color(200, 200, 200));
+            g.fillRect(0, 0, 101, 67);
+            g.dispose();
+            int expected = src.getRGB(0, 0);
+
+            for (Kernel kernel : Kernel.values()) {
+                // downscaling and upscaling
+                for (int size : new int[]{13, 250}) {
+                    BufferedImage dest = Resampler.resize(src, size, size / 2, kernel, false);
+                    assertThat(dest.getType()).isEqualTo(type);
+                    assertThat(dest.getWidth()).isEqualTo(size);
+                    assertThat(dest.getHeight()).isEqualTo(size / 2);
+                    for (int y = 0; y < dest.getHeight(); y++) {
+                        for (int x = 0; x < dest.getWidth(); x++) {
+                            assertThat(dest.getRGB(x, y)).isEqualTo(expected);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransparentColorsDontBleed() {
+        BufferedImage src = new BufferedImage(40, 40, TYPE_INT_ARGB);
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                // transparent green on the left, opaque red on the right
+                src.setRGB(x, y, x < 20 ? 0x00_00_FF_00 : 0xFF_FF_00_00);
+            }
+        }
+        for (Kernel kernel : Kernel.values()) {
+            BufferedImage dest = Resampler.resize(src, 10, 10, kernel, false);
+            for (int x = 0; x < 10; x++) {
+                int pixel = dest.getRGB(x, 5);
+                if ((pixel >>> 24) != 0) {
+                    assertThat((pixel >>> 8) & 0xFF).isEqualTo(0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelIsSameAsSequential() {
+        Random random = new Random(42);
+        BufferedImage src = new BufferedImage(300, 200, TYPE_INT_ARGB);
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 300; x++) {
+                src.setRGB(x, y, random.nextInt());
+            }
+        }
+        // also a source with a parent raster
+        BufferedImage subImage = src.getSubimage(10, 20, 200, 150);
+        for (BufferedImage img : new BufferedImage[]{src, subImage}) {
+            BufferedImage sequential = Resampler.resize(img, 77, 55, Kernel.LANCZOS3, false);
+            BufferedImage parallel = Resampler.resize(img, 77, 55, Kernel.LANCZOS3, true);
+            assertThat(Resampler.calcPSNR(sequential, parallel)).isEqualTo(Double.POSITIVE_INFINITY);
+        }
+
+        // the area average of 2x2 blocks
+        BufferedImage half = Resampler.resize(subImage, 100, 75, Kernel.BOX, false);
+        int expectedBlue = 0;
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                int pixel = subImage.getRGB(x, y);
+                expectedBlue += (pixel >>> 24) * (pixel & 0xFF);
+            }
+        }
+        int expectedAlpha = 0;
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                expectedAlpha += subImage.getRGB(x, y) >>> 24;
+            }
+        }
+        int pixel = half.getRGB(0, 0);
+        assertThat(pixel >>> 24).isEqualTo(Math.round(expectedAlpha / 4.0f));
+        assertThat(pixel & 0xFF).isBetween(expectedBlue / expectedAlpha - 1, expectedBlue / expectedAlpha + 1);
+    }
+}
@@ -0,0 +1,83 @@
+package pixelitor.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SwapFileTest {
+    private SwapFile swapFile;
+
+    @Before
+    public void setUp() throws IOException {
+        swapFile = SwapFile.create(null);
+    }
+
+    @After
+    public void tearDown() {
+        swapFile.close();
+    }
+
+    @Test
+    public void testIntImagesAreRestored() throws IOException {
+        checkRoundTrip(createRandomImage(TYPE_INT_ARGB_PRE, 300, 200));
+        checkRoundTrip(createRandomImage(TYPE_INT_RGB, 7, 13));
+    }
+
+    @Test
+    public void testGrayImageIsRestored() throws IOException {
+        checkRoundTrip(createRandomImage(TYPE_BYTE_GRAY, 120, 80));
+    }
+
+    @Test
+    public void testSubImageIsRestored() throws IOException {
+        BufferedImage img = createRandomImage(TYPE_INT_ARGB_PRE, 100, 100);
+        checkRoundTrip(img.getSubimage(10, 20, 30, 40));
+    }
+
+    @Test
+    public void testMultipleImagesCanBeReadInAnyOrder() throws IOException {
+        BufferedImage first = createRandomImage(TYPE_INT_ARGB_PRE, 50, 60);
+        BufferedImage second = createRandomImage(TYPE_BYTE_GRAY, 70, 80);
+        long firstPos = swapFile.write(first);
+        long secondPos = swapFile.write(second);
+
+        assertSamePixels(second, swapFile.read(secondPos));
+        assertSamePixels(first, swapFile.read(firstPos));
+    }
+
+    private void checkRoundTrip(BufferedImage img) throws IOException {
+        long pos = swapFile.write(img);
+        BufferedImage restored = swapFile.read(pos);
+        assertSamePixels(img, restored);
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+        assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertThat(actual.getRGB(x, y)).isEqualTo(expected.getRGB(x, y));
+            }
+        }
+    }
+
+    private static BufferedImage createRandomImage(int type, int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random random = new Random(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        return img;
+    }
+}
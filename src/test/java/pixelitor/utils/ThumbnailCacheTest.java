@@ -0,0 +1,74 @@
+package pixelitor.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pixelitor.utils.ThumbnailCache.Thumbnail;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThumbnailCacheTest {
+    private File cacheDir;
+    private File imageFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("thumb_test").toFile();
+        ThumbnailCache.setCacheDir(cacheDir);
+        imageFile = File.createTempFile("thumb_test", ".png");
+        ImageIO.write(new BufferedImage(1000, 500, TYPE_INT_RGB), "png", imageFile);
+    }
+
+    @After
+    public void tearDown() {
+        imageFile.delete();
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void testThumbnailsAreCachedOnDisk() {
+        Thumbnail thumb = ThumbnailCache.get(imageFile);
+        assertThat(thumb.getOrigWidth()).isEqualTo(1000);
+        assertThat(thumb.getOrigHeight()).isEqualTo(500);
+        assertThat(thumb.getImage().getWidth()).isEqualTo(ThumbnailCache.SIZE);
+        assertThat(thumb.getImage().getHeight()).isEqualTo(ThumbnailCache.SIZE / 2);
+        assertThat(cacheDir.listFiles()).hasSize(1);
+        assertThat(ThumbnailCache.getFromMemory(imageFile)).isSameAs(thumb);
+
+        // clears the memory cache
+        ThumbnailCache.setCacheDir(cacheDir);
+        assertThat(ThumbnailCache.getFromMemory(imageFile)).isNull();
+        Thumbnail fromDisk = ThumbnailCache.get(imageFile);
+        assertThat(fromDisk.getOrigWidth()).isEqualTo(1000);
+        assertThat(fromDisk.getImage().getWidth()).isEqualTo(ThumbnailCache.SIZE);
+
+        // a modified file gets a new thumbnail
+        imageFile.setLastModified(imageFile.lastModified() - 10_000);
+        ThumbnailCache.get(imageFile);
+        assertThat(cacheDir.listFiles()).hasSize(2);
+    }
+
+    @Test
+    public void testNotAnImage() throws IOException {
+        File textFile = File.createTempFile("thumb_test", ".png");
+        try {
+            Files.write(textFile.toPath(), "not an image".getBytes("UTF-8"));
+            assertThat(ThumbnailCache.get(textFile)).isNull();
+        } finally {
+            textFile.delete();
+        }
+    }
+}